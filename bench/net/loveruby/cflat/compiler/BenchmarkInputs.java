@@ -0,0 +1,242 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ast.AST;
+import net.loveruby.cflat.type.TypeTable;
+import net.loveruby.cflat.ir.IR;
+import net.loveruby.cflat.parser.LibraryLoader;
+import net.loveruby.cflat.sysdep.AssemblyCode;
+import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.exception.*;
+import java.util.*;
+import java.io.*;
+
+/**
+ * Fixed inputs of the benchmarks and the compiler phases run on them.
+ * An input is either "corpus", all test/*.cb files which compile,
+ * or a program made by ProgramGenerator.  The phases are called one by
+ * one as Compiler#compileToAssembly does, so that benchmarks can
+ * measure each of them.
+ *
+ * System properties: cbc.bench.corpus (default "test") and
+ * cbc.bench.import (default "import").
+ */
+public class BenchmarkInputs {
+    static public final String CORPUS = "corpus";
+    static public final String LARGE = "large";
+
+    static private final int LARGE_FUNCTIONS = 1000;
+
+    /** Returns the input CORPUS or LARGE. */
+    static public BenchmarkInputs of(String input, int optimizeLevel)
+                                        throws IOException {
+        if (input.equals(CORPUS)) {
+            return corpus(optimizeLevel);
+        }
+        else if (input.equals(LARGE)) {
+            ProgramGenerator.Params params = new ProgramGenerator.Params();
+            params.set("functions", LARGE_FUNCTIONS);
+            return generated(params, optimizeLevel);
+        }
+        else {
+            throw new IllegalArgumentException("unknown input: " + input);
+        }
+    }
+
+    static public BenchmarkInputs corpus(int optimizeLevel)
+                                        throws IOException {
+        String corpus = System.getProperty("cbc.bench.corpus", "test");
+        String[] names = new File(corpus).list();
+        if (names == null) {
+            throw new IOException("no such directory: " + corpus);
+        }
+        Arrays.sort(names);
+        List<String> paths = new ArrayList<String>();
+        for (String name : names) {
+            if (name.endsWith(".cb")) {
+                paths.add(new File(corpus, name).getPath());
+            }
+        }
+        return new BenchmarkInputs(paths, new ArrayList<String>(),
+                                   optimizeLevel);
+    }
+
+    /**
+     * Generates a program by PARAMS into a temporary directory,
+     * which is removed on exit.
+     */
+    static public BenchmarkInputs generated(ProgramGenerator.Params params,
+            int optimizeLevel) throws IOException {
+        File dir = File.createTempFile("cbc-bench-", "");
+        if (! dir.delete() || ! dir.mkdir()) {
+            throw new IOException("cannot make directory: " + dir);
+        }
+        File main = new ProgramGenerator(params).generate(dir);
+        deleteOnExit(dir);
+        return new BenchmarkInputs(Arrays.asList(main.getPath()),
+                                   Arrays.asList(dir.getPath()),
+                                   optimizeLevel);
+    }
+
+    // Files are deleted in reverse order of registration,
+    // so a directory is registered before its entries.
+    static private void deleteOnExit(File file) {
+        file.deleteOnExit();
+        File[] ents = file.listFiles();
+        if (ents == null) return;
+        for (File ent : ents) {
+            deleteOnExit(ent);
+        }
+    }
+
+    private final List<String> paths = new ArrayList<String>();
+    private final Options opts;
+    private final ErrorHandler errorHandler;
+    private final Compiler compiler;
+
+    /**
+     * Files in CANDIDATES which compile without errors are the
+     * input.  The import path is IMPORTDIRS and cbc.bench.import.
+     */
+    public BenchmarkInputs(List<String> candidates, List<String> importDirs,
+            int optimizeLevel) throws IOException {
+        if (candidates.isEmpty()) {
+            throw new IOException("no input file");
+        }
+        List<String> args = new ArrayList<String>();
+        args.add("-S");
+        args.add("-O" + optimizeLevel);
+        for (String dir : importDirs) {
+            args.add("-I");
+            args.add(dir);
+        }
+        args.add("-I");
+        args.add(System.getProperty("cbc.bench.import", "import"));
+        args.add(candidates.get(0));
+        this.opts = Options.parse(args.toArray(new String[] {}));
+        this.errorHandler = quietErrorHandler();
+        this.compiler = new Compiler(errorHandler);
+        for (String path : candidates) {
+            if (compiles(path)) {
+                paths.add(path);
+            }
+        }
+        if (paths.isEmpty()) {
+            throw new IOException("no valid input: " + candidates);
+        }
+    }
+
+    // Errors of the corpus (semcheck tests etc.) are not printed.
+    static private ErrorHandler quietErrorHandler() {
+        return new ErrorHandler(Compiler.ProgramName,
+                                new ByteArrayOutputStream());
+    }
+
+    // ErrorHandler counts errors, so each file is tried by
+    // a new Compiler not to make later phases fail.
+    private boolean compiles(String path) {
+        ErrorHandler h = quietErrorHandler();
+        Compiler c = new Compiler(h);
+        try {
+            AST ast = c.parseFile(path, opts);
+            TypeTable types = opts.typeTable();
+            c.semanticAnalyze(ast, types, opts);
+            IR ir = new IRGenerator(types, h).generate(ast);
+            c.generateAssembly(ir, opts);
+            return true;
+        }
+        catch (CompileException ex) {
+            return false;
+        }
+    }
+
+    /** Caches the code of functions in DIR (--codegen-cache). */
+    public void setFunctionCacheDir(File dir) {
+        opts.setFunctionCacheDir(dir.getPath());
+    }
+
+    /** Compiles functions of a file by JOBS threads (-j). */
+    public void setJobs(int jobs) {
+        opts.setJobs(jobs);
+    }
+
+    /** Source files of this input. */
+    public List<String> paths() {
+        return paths;
+    }
+
+    /** Returns a new loader with the import path of this input. */
+    public LibraryLoader newLoader() {
+        return opts.newLoader();
+    }
+
+    public List<AST> parse() throws CompileException {
+        List<AST> asts = new ArrayList<AST>();
+        for (String path : paths) {
+            asts.add(compiler.parseFile(path, opts));
+        }
+        return asts;
+    }
+
+    /** Returns a new TypeTable for each source file. */
+    public List<TypeTable> newTypeTables() {
+        List<TypeTable> tables = new ArrayList<TypeTable>();
+        for (int i = 0; i < paths.size(); i++) {
+            tables.add(opts.typeTable());
+        }
+        return tables;
+    }
+
+    /**
+     * Runs LocalResolver only, by the indexed lookup if INDEXED is
+     * true (see --resolver).
+     */
+    public void resolve(List<AST> asts, boolean indexed)
+                                        throws SemanticException {
+        for (AST ast : asts) {
+            new LocalResolver(errorHandler, indexed).resolve(ast);
+        }
+    }
+
+    public void semanticAnalyze(List<AST> asts, List<TypeTable> types)
+                                        throws SemanticException {
+        for (int i = 0; i < asts.size(); i++) {
+            compiler.semanticAnalyze(asts.get(i), types.get(i), opts);
+        }
+    }
+
+    public List<IR> generateIR(List<AST> asts, List<TypeTable> types)
+                                        throws SemanticException {
+        List<IR> irs = new ArrayList<IR>();
+        for (int i = 0; i < asts.size(); i++) {
+            irs.add(new IRGenerator(types.get(i), errorHandler)
+                        .generate(asts.get(i)));
+        }
+        return irs;
+    }
+
+    public List<AssemblyCode> generateAssembly(List<IR> irs) {
+        List<AssemblyCode> asms = new ArrayList<AssemblyCode>();
+        for (IR ir : irs) {
+            asms.add(compiler.generateAssembly(ir, opts));
+        }
+        return asms;
+    }
+
+    /**
+     * Compiles all files by the streaming compilation (--stream),
+     * writing the assembly source to OUT.
+     */
+    public void compileStreaming(Writer out)
+                                throws CompileException, IOException {
+        for (String path : paths) {
+            compiler.compileStreaming(path, out, opts);
+        }
+    }
+
+    /** Runs all phases up to IRGenerator. */
+    public List<IR> compileToIR() throws CompileException {
+        List<AST> asts = parse();
+        List<TypeTable> types = newTypeTables();
+        semanticAnalyze(asts, types);
+        return generateIR(asts, types);
+    }
+}
@@ -0,0 +1,77 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.IR;
+import net.loveruby.cflat.sysdep.AssemblyCode;
+import net.loveruby.cflat.exception.CompileException;
+import org.openjdk.jmh.annotations.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.io.*;
+
+/**
+ * Benchmark of CodeGenerator with the cache of the code of functions
+ * (--codegen-cache).  "none" does not use the cache; "hit" uses the
+ * cache filled by @Setup, so the code of all functions is loaded from
+ * it.  The IR is made by @Setup for each invocation, as
+ * PhaseBenchmark#generateAssembly.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FunctionCacheBenchmark {
+    @State(Scope.Benchmark)
+    static public class Input {
+        @Param({BenchmarkInputs.CORPUS, BenchmarkInputs.LARGE})
+        public String input;
+
+        @Param({"0", "1"})
+        public int optimizeLevel;
+
+        @Param({"none", "hit"})
+        public String cache;
+
+        BenchmarkInputs inputs;
+        File dir;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            inputs = BenchmarkInputs.of(input, optimizeLevel);
+            if (cache.equals("hit")) {
+                dir = File.createTempFile("cbc-fcache-", "");
+                if (! dir.delete() || ! dir.mkdir()) {
+                    throw new IOException("cannot make directory: " + dir);
+                }
+                inputs.setFunctionCacheDir(dir);
+                inputs.generateAssembly(inputs.compileToIR());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            if (dir == null) return;
+            File[] ents = dir.listFiles();
+            if (ents != null) {
+                for (File ent : ents) {
+                    ent.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @State(Scope.Thread)
+    static public class Generated {
+        List<IR> irs;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws CompileException {
+            irs = in.inputs.compileToIR();
+        }
+    }
+
+    @Benchmark
+    public List<AssemblyCode> generateAssembly(Input in, Generated g) {
+        return in.inputs.generateAssembly(g.irs);
+    }
+}
@@ -0,0 +1,56 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.IR;
+import net.loveruby.cflat.sysdep.AssemblyCode;
+import net.loveruby.cflat.exception.CompileException;
+import org.openjdk.jmh.annotations.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of CodeGenerator compiling the functions of one file by
+ * JOBS threads (-j).  The input is a program of 5000 functions.
+ * The IR is made by @Setup for each invocation, as
+ * PhaseBenchmark#generateAssembly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelCodeGeneratorBenchmark {
+    static private final int FUNCTIONS = 5000;
+
+    @State(Scope.Benchmark)
+    static public class Input {
+        @Param({"0", "1"})
+        public int optimizeLevel;
+
+        @Param({"1", "2", "4"})
+        public int jobs;
+
+        BenchmarkInputs inputs;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            ProgramGenerator.Params params = new ProgramGenerator.Params();
+            params.set("functions", FUNCTIONS);
+            inputs = BenchmarkInputs.generated(params, optimizeLevel);
+            inputs.setJobs(jobs);
+        }
+    }
+
+    @State(Scope.Thread)
+    static public class Generated {
+        List<IR> irs;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws CompileException {
+            irs = in.inputs.compileToIR();
+        }
+    }
+
+    @Benchmark
+    public List<AssemblyCode> generateAssembly(Input in, Generated g) {
+        return in.inputs.generateAssembly(g.irs);
+    }
+}
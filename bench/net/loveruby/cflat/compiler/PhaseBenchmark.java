@@ -0,0 +1,116 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ast.AST;
+import net.loveruby.cflat.type.TypeTable;
+import net.loveruby.cflat.ir.IR;
+import net.loveruby.cflat.sysdep.AssemblyCode;
+import net.loveruby.cflat.exception.CompileException;
+import org.openjdk.jmh.annotations.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of each compiler phase.  One operation runs the phase
+ * on all source files of the input.  The phases before the measured
+ * one are run by @Setup for each invocation, because the semantic
+ * passes and IRGenerator modify the AST.  Note that gc.alloc.rate.norm
+ * of such benchmarks includes allocation of the @Setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseBenchmark {
+    @State(Scope.Benchmark)
+    static public class Input {
+        @Param({BenchmarkInputs.CORPUS, BenchmarkInputs.LARGE})
+        public String input;
+
+        @Param({"0", "1"})
+        public int optimizeLevel;
+
+        BenchmarkInputs inputs;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            inputs = BenchmarkInputs.of(input, optimizeLevel);
+        }
+    }
+
+    @State(Scope.Thread)
+    static public class Parsed {
+        List<AST> asts;
+        List<TypeTable> types;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws CompileException {
+            asts = in.inputs.parse();
+            types = in.inputs.newTypeTables();
+        }
+    }
+
+    @State(Scope.Thread)
+    static public class Analyzed {
+        List<AST> asts;
+        List<TypeTable> types;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws CompileException {
+            asts = in.inputs.parse();
+            types = in.inputs.newTypeTables();
+            in.inputs.semanticAnalyze(asts, types);
+        }
+    }
+
+    @State(Scope.Thread)
+    static public class Generated {
+        List<IR> irs;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws CompileException {
+            irs = in.inputs.compileToIR();
+        }
+    }
+
+    @State(Scope.Thread)
+    static public class Assembled {
+        List<AssemblyCode> asms;
+
+        @Setup(Level.Trial)
+        public void setup(Input in) throws CompileException {
+            asms = in.inputs.generateAssembly(in.inputs.compileToIR());
+        }
+    }
+
+    @Benchmark
+    public List<AST> parse(Input in) throws CompileException {
+        return in.inputs.parse();
+    }
+
+    @Benchmark
+    public List<AST> semanticAnalyze(Input in, Parsed p)
+                                        throws CompileException {
+        in.inputs.semanticAnalyze(p.asts, p.types);
+        return p.asts;
+    }
+
+    @Benchmark
+    public List<IR> generateIR(Input in, Analyzed a)
+                                        throws CompileException {
+        return in.inputs.generateIR(a.asts, a.types);
+    }
+
+    @Benchmark
+    public List<AssemblyCode> generateAssembly(Input in, Generated g) {
+        return in.inputs.generateAssembly(g.irs);
+    }
+
+    @Benchmark
+    public long toSource(Assembled a) {
+        long len = 0;
+        for (AssemblyCode asm : a.asms) {
+            len += asm.toSource().length();
+        }
+        return len;
+    }
+}
@@ -0,0 +1,373 @@
+package net.loveruby.cflat.compiler;
+import java.util.*;
+import java.io.*;
+
+/**
+ * Generates a valid Cflat program of configurable scale, to see how
+ * the compiler scales.  The program is DIR/main.cb and its import
+ * files DIR/gen/h*.hb; compile it with -I DIR.  It is made to be
+ * compiled, not to be run.
+ *
+ * Parameters are read from a properties file:
+ *
+ *   functions    number of functions f0, f1, ... in main.cb
+ *   statements   statements in each function
+ *   nesting      depth of nested blocks in the function nest()
+ *   switchCases  cases of the switch in the function dispatch()
+ *   imports      number of files each file imports (fan-out)
+ *   importDepth  depth of the import tree
+ *   strings      number of string literals in main.cb
+ *   pointers     pointer statements in each function, which are
+ *                checked and lowered with many pointer types
+ *   seed         seed of random choices
+ *
+ * Usage: ProgramGenerator PARAMFILE DIR
+ */
+public class ProgramGenerator {
+    static public void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ProgramGenerator PARAMFILE DIR");
+            System.exit(1);
+        }
+        Params params = Params.load(new File(args[0]));
+        new ProgramGenerator(params).generate(new File(args[1]));
+    }
+
+    static public class Params {
+        static private final String[] KEYS = {
+            "functions", "statements", "nesting", "switchCases",
+            "imports", "importDepth", "strings", "pointers", "seed"
+        };
+
+        private final Map<String, Integer> values =
+                new HashMap<String, Integer>();
+
+        public Params() {
+            set("functions", 100);
+            set("statements", 20);
+            set("nesting", 10);
+            set("switchCases", 16);
+            set("imports", 2);
+            set("importDepth", 2);
+            set("strings", 100);
+            set("pointers", 0);
+            set("seed", 1);
+        }
+
+        static public Params load(File file) throws IOException {
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            }
+            finally {
+                in.close();
+            }
+            return fromProperties(props);
+        }
+
+        static public Params fromProperties(Properties props) {
+            Params params = new Params();
+            for (String key : props.stringPropertyNames()) {
+                String val = props.getProperty(key).trim();
+                try {
+                    params.set(key, Integer.parseInt(val));
+                }
+                catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException(
+                            "not a number: " + key + "=" + val);
+                }
+            }
+            return params;
+        }
+
+        static public boolean isValidKey(String key) {
+            return Arrays.asList(KEYS).contains(key);
+        }
+
+        public void set(String key, int value) {
+            if (! isValidKey(key)) {
+                throw new IllegalArgumentException("unknown parameter: "
+                                                   + key);
+            }
+            if (value < 0) {
+                throw new IllegalArgumentException(
+                        "negative parameter: " + key + "=" + value);
+            }
+            values.put(key, value);
+        }
+
+        public int get(String key) {
+            Integer val = values.get(key);
+            if (val == null) {
+                throw new IllegalArgumentException("unknown parameter: "
+                                                   + key);
+            }
+            return val;
+        }
+
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            String sep = "";
+            for (String key : KEYS) {
+                buf.append(sep); sep = " ";
+                buf.append(key).append("=").append(get(key));
+            }
+            return buf.toString();
+        }
+    }
+
+    static private final String HEADER_DIR = "gen";
+
+    private final Params params;
+    private final Random random;
+    private final List<String> headerFunctions = new ArrayList<String>();
+    private int stringCount = 0;
+
+    public ProgramGenerator(Params params) {
+        this.params = params;
+        this.random = new Random(params.get("seed"));
+    }
+
+    /** Writes the program under DIR and returns the path of main.cb. */
+    public File generate(File dir) throws IOException {
+        File hdir = new File(dir, HEADER_DIR);
+        if (! hdir.isDirectory() && ! hdir.mkdirs()) {
+            throw new IOException("cannot make directory: " + hdir);
+        }
+        List<String> roots = new ArrayList<String>();
+        if (params.get("importDepth") > 0) {
+            for (int i = 0; i < params.get("imports"); i++) {
+                roots.add(writeHeader(hdir, 1, "" + i));
+            }
+        }
+        File main = new File(dir, "main.cb");
+        PrintWriter out = open(main);
+        try {
+            writeMain(out, roots);
+        }
+        finally {
+            out.close();
+        }
+        return main;
+    }
+
+    static private PrintWriter open(File file) throws IOException {
+        return new PrintWriter(new BufferedWriter(new FileWriter(file)));
+    }
+
+    // Writes gen/hPATH.hb and the headers it imports.
+    // Returns the library ID of the header.
+    private String writeHeader(File hdir, int depth, String path)
+                                        throws IOException {
+        List<String> children = new ArrayList<String>();
+        if (depth < params.get("importDepth")) {
+            for (int i = 0; i < params.get("imports"); i++) {
+                children.add(writeHeader(hdir, depth + 1, path + "_" + i));
+            }
+        }
+        String name = "h" + path;
+        PrintWriter out = open(new File(hdir, name + ".hb"));
+        try {
+            for (String id : children) {
+                out.println("import " + id + ";");
+            }
+            out.println("typedef int " + name + "_t;");
+            out.println("struct " + name + "_s { int a; " + name + "_t b; };");
+            out.println("extern int " + name + "_v;");
+            out.println("extern int " + name + "_f(int x, "
+                        + "struct " + name + "_s* s);");
+            out.println("extern int " + name + "_g(int x);");
+        }
+        finally {
+            out.close();
+        }
+        headerFunctions.add(name + "_g");
+        return HEADER_DIR + "." + name;
+    }
+
+    private void writeMain(PrintWriter out, List<String> imports) {
+        out.println("import stdio;");
+        for (String id : imports) {
+            out.println("import " + id + ";");
+        }
+        out.println();
+        out.println("struct pt { int a; int b; };");
+        out.println("static int[64] table;");
+        int nfuncs = params.get("functions");
+        for (int i = 0; i < nfuncs; i++) {
+            out.println();
+            writeFunction(out, i, stringsOf(i, nfuncs));
+        }
+        out.println();
+        writeNest(out, params.get("nesting"));
+        out.println();
+        writeDispatch(out, params.get("switchCases"));
+        out.println();
+        out.println("int");
+        out.println("main(int argc, char** argv)");
+        out.println("{");
+        out.println("    int r = dispatch(argc) + nest(argc);");
+        if (nfuncs > 0) {
+            out.println("    r += f" + (nfuncs - 1) + "(argc, r);");
+        }
+        out.println("    printf(\"%d\\n\", r);");
+        out.println("    return 0;");
+        out.println("}");
+    }
+
+    // String literals are spread over all functions.
+    private int stringsOf(int i, int nfuncs) {
+        int n = params.get("strings");
+        if (nfuncs == 0) return 0;
+        return n / nfuncs + (i < n % nfuncs ? 1 : 0);
+    }
+
+    private void writeFunction(PrintWriter out, int idx, int nstrings) {
+        out.println("static int");
+        out.println("f" + idx + "(int x, int y)");
+        out.println("{");
+        out.println("    int i = 0;");
+        if (nstrings > 0) {
+            out.println("    char* s;");
+        }
+        out.println("    struct pt p;");
+        int nptrs = params.get("pointers");
+        if (nptrs > 0) {
+            out.println("    int* q = &table[0];");
+            out.println("    int** qq = &q;");
+            out.println("    struct pt* pp = &p;");
+        }
+        out.println();
+        out.println("    p.a = x; p.b = y;");
+        for (int i = 0; i < nptrs; i++) {
+            writePointerStatement(out);
+        }
+        int nstmts = params.get("statements");
+        for (int i = 0; i < nstmts; i++) {
+            if (i < nstrings) {
+                out.println("    s = \"string " + (stringCount++) + "\";");
+            }
+            else {
+                writeStatement(out, idx);
+            }
+        }
+        for (int i = nstmts; i < nstrings; i++) {
+            out.println("    s = \"string " + (stringCount++) + "\";");
+        }
+        // main() calls the last function, which reaches all functions.
+        if (idx > 0) {
+            out.println("    if (x < 0) y += f" + (idx - 1) + "(x + 1, y);");
+        }
+        out.println("    return x + y + p.a + i;");
+        out.println("}");
+    }
+
+    private void writeStatement(PrintWriter out, int idx) {
+        int k = random.nextInt(100);
+        switch (random.nextInt(7)) {
+        case 0:
+            out.println("    x = x * " + k + " + y;");
+            break;
+        case 1:
+            out.println("    if (x > " + k + ") y += x; else y -= " + k + ";");
+            break;
+        case 2:
+            out.println("    for (i = 0; i < " + k + "; i++) x ^= i;");
+            break;
+        case 3:
+            if (idx > 0) {
+                out.println("    if (x < 0) y += f" + random.nextInt(idx)
+                            + "(x + 1, y);");
+                break;
+            }
+            out.println("    y = y << " + (k % 8) + ";");
+            break;
+        case 4:
+            if (! headerFunctions.isEmpty()) {
+                String f = headerFunctions.get(
+                        random.nextInt(headerFunctions.size()));
+                out.println("    x += " + f + "(y);");
+                break;
+            }
+            out.println("    x = x / " + (k + 1) + ";");
+            break;
+        case 5:
+            out.println("    p.a += table[x & 63]; y -= p.b;");
+            break;
+        default:
+            out.println("    while (y > " + k + ") y = y / 2;");
+            break;
+        }
+    }
+
+    private void writePointerStatement(PrintWriter out) {
+        int k = random.nextInt(64);
+        switch (random.nextInt(6)) {
+        case 0:
+            out.println("    q = &table[(x + " + k + ") & 63];");
+            break;
+        case 1:
+            out.println("    *q += pp->a; q++;");
+            break;
+        case 2:
+            out.println("    **qq -= " + k + "; *qq = q - 1;");
+            break;
+        case 3:
+            out.println("    pp->b += *(q - 1) + (&p)->a;");
+            break;
+        case 4:
+            out.println("    q = &table[0]; q += y & 31;");
+            break;
+        default:
+            out.println("    if (q == &table[" + k + "]) x += *&y;");
+            break;
+        }
+    }
+
+    private void writeNest(PrintWriter out, int depth) {
+        out.println("static int");
+        out.println("nest(int x)");
+        out.println("{");
+        out.println("    int y = 0;");
+        String var = "x";
+        for (int i = 1; i <= depth; i++) {
+            String indent = indent(i);
+            out.println(indent + "if (" + var + " > " + i + ") {");
+            out.println(indent + "    int v" + i + " = " + var + " - 1;");
+            out.println(indent + "    y += v" + i + ";");
+            var = "v" + i;
+        }
+        for (int i = depth; i >= 1; i--) {
+            out.println(indent(i) + "}");
+        }
+        out.println("    return y;");
+        out.println("}");
+    }
+
+    static private String indent(int level) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < level; i++) {
+            buf.append("    ");
+        }
+        return buf.toString();
+    }
+
+    // The first half of case values is dense, the rest is sparse.
+    private void writeDispatch(PrintWriter out, int ncases) {
+        out.println("static int");
+        out.println("dispatch(int x)");
+        out.println("{");
+        out.println("    int y = 0;");
+        out.println("    switch (x) {");
+        for (int i = 0; i < ncases; i++) {
+            int val = (i < ncases / 2) ? i : i * 7;
+            out.println("    case " + val + ": y = "
+                        + random.nextInt(1000) + "; break;");
+        }
+        out.println("    default: y = -1; break;");
+        out.println("    }");
+        out.println("    return y;");
+        out.println("}");
+    }
+}
@@ -0,0 +1,55 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ast.AST;
+import net.loveruby.cflat.exception.CompileException;
+import org.openjdk.jmh.annotations.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of LocalResolver on deeply nested blocks.  The input is
+ * a generated program whose nest() has NESTING nested blocks, each of
+ * which refers to variables of the outer blocks.  Both lookups of
+ * --resolver (indexed and chained) are measured.  The ASTs are parsed
+ * by @Setup for each invocation, as PhaseBenchmark.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolverBenchmark {
+    @State(Scope.Benchmark)
+    static public class Input {
+        @Param({"10", "300"})
+        public int nesting;
+
+        @Param({"indexed", "chained"})
+        public String resolver;
+
+        BenchmarkInputs inputs;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            ProgramGenerator.Params params = new ProgramGenerator.Params();
+            params.set("functions", 100);
+            params.set("nesting", nesting);
+            inputs = BenchmarkInputs.generated(params, 0);
+        }
+    }
+
+    @State(Scope.Thread)
+    static public class Parsed {
+        List<AST> asts;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws CompileException {
+            asts = in.inputs.parse();
+        }
+    }
+
+    @Benchmark
+    public List<AST> resolve(Input in, Parsed p) throws CompileException {
+        in.inputs.resolve(p.asts, in.resolver.equals("indexed"));
+        return p.asts;
+    }
+}
@@ -0,0 +1,263 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.sysdep.AssemblyCode;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.io.*;
+
+/**
+ * Compiles programs made by ProgramGenerator at increasing sizes and
+ * reports compile time and heap against the size, to find phases
+ * which do not scale linearly.
+ *
+ * A parameter file is a ProgramGenerator parameter file plus the key
+ * "sweep", which names the parameter to increase; the value of that
+ * parameter is a comma-separated list of sizes, e.g.:
+ *
+ *   sweep=functions
+ *   functions=1000,2000,4000
+ *   statements=10
+ *
+ * For each parameter file NAME.properties, NAME.dat (size, time in ms,
+ * heap in MB) and the gnuplot script NAME.gp are written into OUTDIR.
+ * The time is the best of REPEAT runs of all phases up to writing the
+ * assembly source, after a warm-up by the first size; the heap is the
+ * peak heap usage above the usage before the compilation.  With
+ * -stream, programs are compiled by the streaming compilation.
+ *
+ * Usage: ScalingBenchmark [-O LEVEL] [-n REPEAT] [-stream]
+ *                         OUTDIR PARAMFILE...
+ */
+public class ScalingBenchmark {
+    static public void main(String[] args) throws Exception {
+        int optimizeLevel = 0;
+        int repeat = 3;
+        boolean stream = false;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            if (args[i].equals("-stream")) {
+                stream = true;
+                continue;
+            }
+            if (i + 1 >= args.length) usage();
+            if (args[i].equals("-O")) {
+                optimizeLevel = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-n")) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else {
+                usage();
+            }
+        }
+        if (args.length - i < 2) usage();
+        File outDir = new File(args[i++]);
+        if (! outDir.isDirectory() && ! outDir.mkdirs()) {
+            throw new IOException("cannot make directory: " + outDir);
+        }
+        ScalingBenchmark bench =
+                new ScalingBenchmark(optimizeLevel, repeat, stream);
+        boolean superlinear = false;
+        for (; i < args.length; i++) {
+            superlinear |= bench.run(new File(args[i]), outDir);
+        }
+        if (superlinear) {
+            System.out.println("superlinear growth found (marked by '*')");
+        }
+    }
+
+    static private void usage() {
+        System.err.println("Usage: ScalingBenchmark [-O LEVEL] [-n REPEAT]"
+                           + " [-stream] OUTDIR PARAMFILE...");
+        System.exit(1);
+    }
+
+    // Growth of time against size above this exponent is reported.
+    static private final double SUPERLINEAR_EXPONENT = 1.5;
+
+    private final int optimizeLevel;
+    private final int repeat;
+    private final boolean stream;
+
+    public ScalingBenchmark(int optimizeLevel, int repeat, boolean stream) {
+        this.optimizeLevel = optimizeLevel;
+        this.repeat = repeat;
+        this.stream = stream;
+    }
+
+    /** Returns true if superlinear growth of time is found. */
+    public boolean run(File paramFile, File outDir) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(paramFile);
+        try {
+            props.load(in);
+        }
+        finally {
+            in.close();
+        }
+        String key = props.getProperty("sweep");
+        if (key == null || props.getProperty(key) == null) {
+            throw new IllegalArgumentException(paramFile
+                    + ": sweep and its sizes are required");
+        }
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (String size : props.getProperty(key).split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+        props.remove("sweep");
+        props.remove(key);
+        ProgramGenerator.Params params =
+                ProgramGenerator.Params.fromProperties(props);
+
+        String name = paramFile.getName().replaceFirst("\\.properties$", "");
+        System.out.println("# " + name + ": " + key + "=" + sizes
+                           + " (" + params + ")");
+        System.out.println(String.format("# %8s %10s %10s %8s %8s",
+                key, "time(ms)", "heap(MB)", "time^", "heap^"));
+        PrintWriter dat = new PrintWriter(new BufferedWriter(
+                new FileWriter(new File(outDir, name + ".dat"))));
+        boolean superlinear = false;
+        try {
+            // Warms up JIT not to make the first size slow.
+            params.set(key, sizes.get(0));
+            measure(params);
+            dat.println("# " + key + " time(ms) heap(MB)");
+            double prevSize = 0, prevTime = 0, prevHeap = 0;
+            for (int size : sizes) {
+                params.set(key, size);
+                double[] r = measure(params);
+                double time = r[0], heap = r[1];
+                String timeExp = "", heapExp = "";
+                if (prevSize > 0) {
+                    double t = exponent(prevSize, size, prevTime, time);
+                    double h = exponent(prevSize, size, prevHeap, heap);
+                    timeExp = String.format("%.2f", t);
+                    heapExp = String.format("%.2f", h);
+                    if (t > SUPERLINEAR_EXPONENT) {
+                        timeExp += "*";
+                        superlinear = true;
+                    }
+                }
+                System.out.println(String.format(
+                        "  %8d %10.1f %10.1f %8s %8s",
+                        size, time, heap, timeExp, heapExp));
+                dat.println(size + " " + time + " " + heap);
+                prevSize = size;
+                prevTime = time;
+                prevHeap = heap;
+            }
+        }
+        finally {
+            dat.close();
+        }
+        writePlotScript(new File(outDir, name + ".gp"), name, key);
+        return superlinear;
+    }
+
+    // The exponent k of y = c * x^k between two points.
+    static private double exponent(double x0, double x1,
+                                   double y0, double y1) {
+        if (y0 <= 0 || y1 <= 0 || x0 == x1) return 0;
+        return Math.log(y1 / y0) / Math.log(x1 / x0);
+    }
+
+    // Returns {time in ms, heap in MB}.
+    private double[] measure(ProgramGenerator.Params params)
+                                        throws IOException {
+        BenchmarkInputs inputs =
+                BenchmarkInputs.generated(params, optimizeLevel);
+        double bestTime = Double.MAX_VALUE;
+        double bestHeap = Double.MAX_VALUE;
+        for (int i = 0; i < repeat; i++) {
+            System.gc();
+            long before = heapUsed();
+            resetPeakUsage();
+            long t0 = System.nanoTime();
+            try {
+                compile(inputs);
+            }
+            catch (Exception ex) {
+                throw new RuntimeException("compile failed: " + params, ex);
+            }
+            double time = (System.nanoTime() - t0) / 1e6;
+            double heap = (peakHeapUsed() - before) / (1024.0 * 1024.0);
+            bestTime = Math.min(bestTime, time);
+            bestHeap = Math.min(bestHeap, heap);
+        }
+        return new double[] { bestTime, bestHeap };
+    }
+
+    private void compile(BenchmarkInputs inputs) throws Exception {
+        Writer discard = new Writer() {
+            public void write(char[] buf, int off, int len) {}
+            public void flush() {}
+            public void close() {}
+        };
+        if (stream) {
+            inputs.compileStreaming(discard);
+            return;
+        }
+        for (AssemblyCode asm
+                : inputs.generateAssembly(inputs.compileToIR())) {
+            asm.writeSource(discard);
+        }
+    }
+
+    static private List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    static private long heapUsed() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    static private void resetPeakUsage() {
+        for (MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    // Sum of peaks of the pools; an upper bound of the real peak.
+    static private long peakHeapUsed() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            used += pool.getPeakUsage().getUsed();
+        }
+        return used;
+    }
+
+    static private void writePlotScript(File file, String name, String key)
+                                        throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new FileWriter(file)));
+        try {
+            out.println("set terminal png size 800,600");
+            out.println("set output \"" + name + ".png\"");
+            out.println("set title \"" + name + "\"");
+            out.println("set xlabel \"" + key + "\"");
+            out.println("set ylabel \"time (ms)\"");
+            out.println("set y2label \"heap (MB)\"");
+            out.println("set ytics nomirror");
+            out.println("set y2tics");
+            out.println("set key left top");
+            out.println("plot \"" + name + ".dat\" using 1:2"
+                        + " with linespoints title \"time\", \\");
+            out.println("     \"" + name + ".dat\" using 1:3 axes x1y2"
+                        + " with linespoints title \"heap\"");
+        }
+        finally {
+            out.close();
+        }
+    }
+}
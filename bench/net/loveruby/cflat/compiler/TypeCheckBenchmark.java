@@ -0,0 +1,80 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ast.AST;
+import net.loveruby.cflat.type.TypeTable;
+import net.loveruby.cflat.ir.IR;
+import net.loveruby.cflat.exception.CompileException;
+import org.openjdk.jmh.annotations.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the semantic passes and IRGenerator on pointer-heavy
+ * code, which makes many pointer types (&x, p++, p += n, p->m).
+ * The input is a program of 1000 functions with POINTERS pointer
+ * statements each.  The phases before the measured one are run by
+ * @Setup for each invocation, as PhaseBenchmark.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TypeCheckBenchmark {
+    static private final int FUNCTIONS = 1000;
+
+    @State(Scope.Benchmark)
+    static public class Input {
+        @Param({"10", "40"})
+        public int pointers;
+
+        BenchmarkInputs inputs;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            ProgramGenerator.Params params = new ProgramGenerator.Params();
+            params.set("functions", FUNCTIONS);
+            params.set("statements", 5);
+            params.set("strings", 0);
+            params.set("pointers", pointers);
+            inputs = BenchmarkInputs.generated(params, 0);
+        }
+    }
+
+    @State(Scope.Thread)
+    static public class Parsed {
+        List<AST> asts;
+        List<TypeTable> types;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws CompileException {
+            asts = in.inputs.parse();
+            types = in.inputs.newTypeTables();
+        }
+    }
+
+    @State(Scope.Thread)
+    static public class Analyzed {
+        List<AST> asts;
+        List<TypeTable> types;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws CompileException {
+            asts = in.inputs.parse();
+            types = in.inputs.newTypeTables();
+            in.inputs.semanticAnalyze(asts, types);
+        }
+    }
+
+    @Benchmark
+    public List<AST> semanticAnalyze(Input in, Parsed p)
+                                        throws CompileException {
+        in.inputs.semanticAnalyze(p.asts, p.types);
+        return p.asts;
+    }
+
+    @Benchmark
+    public List<IR> generateIR(Input in, Analyzed a)
+                                        throws CompileException {
+        return in.inputs.generateIR(a.asts, a.types);
+    }
+}
@@ -0,0 +1,55 @@
+package net.loveruby.cflat.parser;
+import net.loveruby.cflat.compiler.BenchmarkInputs;
+import net.loveruby.cflat.ast.SourceText;
+import org.openjdk.jmh.annotations.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.io.*;
+
+/**
+ * Benchmark of the token manager alone.  One operation reads all
+ * tokens (and the special tokens before them) of all source files
+ * of the input, which are read into memory by @Setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LexerBenchmark {
+    @Param({BenchmarkInputs.CORPUS, BenchmarkInputs.LARGE})
+    public String input;
+
+    private List<SourceText> sources;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sources = new ArrayList<SourceText>();
+        for (String path : BenchmarkInputs.of(input, 0).paths()) {
+            Reader r = new InputStreamReader(new FileInputStream(path),
+                                             Parser.SOURCE_ENCODING);
+            try {
+                sources.add(SourceText.read(path, r));
+            }
+            finally {
+                r.close();
+            }
+        }
+    }
+
+    @Benchmark
+    public int tokenize() {
+        SymbolPool pool = new SymbolPool();
+        int n = 0;
+        for (SourceText src : sources) {
+            ParserTokenManager lexer =
+                    new PoolingTokenManager(new SourceCharStream(src, pool));
+            while (lexer.getNextToken().kind != ParserConstants.EOF) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,117 @@
+package net.loveruby.cflat.parser;
+import net.loveruby.cflat.compiler.BenchmarkInputs;
+import net.loveruby.cflat.ast.SourceText;
+import net.loveruby.cflat.utils.ErrorHandler;
+import org.openjdk.jmh.annotations.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.io.*;
+
+/**
+ * Benchmark of the parser.  One operation parses all source files
+ * of the input, which are read into memory by @Setup.  The inputs
+ * "header" and "nested" are made by @Setup: "header" is a declaration
+ * file which has many extern declarations, structs and typedefs, and
+ * "nested" is a source file of deeply nested expressions.
+ *
+ * A loader is shared by the operations, so import files are parsed
+ * only once in the first operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+    static private final String HEADER = "header";
+    static private final int HEADER_DECLS = 1000;
+    static private final String NESTED = "nested";
+    static private final int NESTED_STMTS = 100;
+    static private final int NESTED_DEPTH = 6;
+
+    @Param({BenchmarkInputs.CORPUS, BenchmarkInputs.LARGE, HEADER, NESTED})
+    public String input;
+
+    private List<SourceText> sources;
+    private LibraryLoader loader;
+    private ErrorHandler errorHandler;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        errorHandler = new ErrorHandler("cbc", new ByteArrayOutputStream());
+        sources = new ArrayList<SourceText>();
+        if (input.equals(HEADER)) {
+            loader = new LibraryLoader();
+            sources.add(new SourceText("header.hb", header(HEADER_DECLS)));
+            return;
+        }
+        if (input.equals(NESTED)) {
+            loader = new LibraryLoader();
+            sources.add(new SourceText("nested.cb",
+                                       nested(NESTED_STMTS, NESTED_DEPTH)));
+            return;
+        }
+        BenchmarkInputs inputs = BenchmarkInputs.of(input, 0);
+        loader = inputs.newLoader();
+        for (String path : inputs.paths()) {
+            Reader r = new InputStreamReader(new FileInputStream(path),
+                                             Parser.SOURCE_ENCODING);
+            try {
+                sources.add(SourceText.read(path, r));
+            }
+            finally {
+                r.close();
+            }
+        }
+    }
+
+    static private String header(int n) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            String t = "t" + i;
+            String s = "struct s" + i;
+            buf.append("typedef unsigned long " + t + ";\n");
+            buf.append(s + " { int a; " + t + " b; char* c; };\n");
+            buf.append("extern int f" + i + "(" + t + " x, " + s + "* p, "
+                       + "unsigned int n, char* fmt, ...);\n");
+            buf.append("extern " + s + "* g" + i + "(" + t + "[] a);\n");
+            buf.append("extern " + t + " v" + i + ";\n");
+            buf.append("extern " + s + "*[4] w" + i + ";\n");
+        }
+        return buf.toString();
+    }
+
+    static private String nested(int n, int depth) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("int f(int a, int b) { return a; }\n");
+        buf.append("int main(int argc, char** argv) {\n");
+        buf.append("    int x = 1;\n");
+        for (int i = 0; i < n; i++) {
+            String e = "x";
+            for (int d = 0; d < depth; d++) {
+                e = "f(" + e + ", (x + " + d + ") * x)";
+            }
+            buf.append("    x += " + e + ";\n");
+        }
+        buf.append("    return x;\n");
+        buf.append("}\n");
+        return buf.toString();
+    }
+
+    @Benchmark
+    public int parse() throws Exception {
+        int n = 0;
+        for (SourceText src : sources) {
+            Parser p = new Parser(src, loader, errorHandler, false);
+            if (input.equals(HEADER)) {
+                n += p.parseDecls().funcdecls().size();
+            }
+            else {
+                n += p.parse().definedFunctions().size();
+            }
+        }
+        return n;
+    }
+}
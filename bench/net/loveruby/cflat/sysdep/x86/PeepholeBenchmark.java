@@ -0,0 +1,46 @@
+package net.loveruby.cflat.sysdep.x86;
+import net.loveruby.cflat.compiler.BenchmarkInputs;
+import net.loveruby.cflat.asm.Assembly;
+import org.openjdk.jmh.annotations.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of PeepholeOptimizer#optimize on the unoptimized (-O0)
+ * assembly of the input.  The optimizer does not modify its input,
+ * so the same assembly is used for all invocations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PeepholeBenchmark {
+    @Param({BenchmarkInputs.CORPUS, BenchmarkInputs.LARGE})
+    public String input;
+
+    private List<List<Assembly>> bodies;
+    private PeepholeOptimizer optimizer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkInputs inputs = BenchmarkInputs.of(input, 0);
+        bodies = new ArrayList<List<Assembly>>();
+        for (net.loveruby.cflat.sysdep.AssemblyCode asm
+                : inputs.generateAssembly(inputs.compileToIR())) {
+            bodies.add(((AssemblyCode)asm).assemblies());
+        }
+        optimizer = PeepholeOptimizer.defaultSet();
+    }
+
+    @Benchmark
+    public int optimize() {
+        int n = 0;
+        for (List<Assembly> body : bodies) {
+            n += optimizer.optimize(body).size();
+        }
+        return n;
+    }
+}
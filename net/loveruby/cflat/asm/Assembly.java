@@ -4,6 +4,14 @@ abstract public class Assembly {
     abstract public String toSource(SymbolTable table);
     abstract public String dump();
 
+    /**
+     * Appends the source of this assembly to BUF.  Subclasses
+     * override this not to make intermediate strings.
+     */
+    public void appendSource(StringBuilder buf, SymbolTable table) {
+        buf.append(toSource(table));
+    }
+
     public boolean isInstruction() {
         return false;
     }
@@ -14,6 +14,14 @@ public class Comment extends Assembly {
         this.indentLevel = indentLevel;
     }
 
+    public String string() {
+        return this.string;
+    }
+
+    public int indentLevel() {
+        return this.indentLevel;
+    }
+
     public boolean isComment() {
         return true;
     }
@@ -22,6 +30,14 @@ public class Comment extends Assembly {
         return "\t" + indent() + "# " + string;
     }
 
+    public void appendSource(StringBuilder buf, SymbolTable table) {
+        buf.append('\t');
+        for (int i = 0; i < indentLevel; i++) {
+            buf.append("  ");
+        }
+        buf.append("# ").append(string);
+    }
+
     protected String indent() {
         StringBuffer buf = new StringBuffer();
         for (int i = 0; i < indentLevel; i++) {
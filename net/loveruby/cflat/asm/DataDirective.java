@@ -0,0 +1,31 @@
+package net.loveruby.cflat.asm;
+
+/**
+ * A data directive whose value is a literal, e.g. ".long .L3".
+ * Unlike Directive, its symbol is named by the SymbolTable of the
+ * output and counted as used by Statistics.
+ */
+public class DataDirective extends Directive {
+    protected Literal value;
+
+    public DataDirective(String op, Literal value) {
+        super(op);
+        this.value = value;
+    }
+
+    public Literal value() {
+        return this.value;
+    }
+
+    public void collectStatistics(Statistics stats) {
+        value.collectStatistics(stats);
+    }
+
+    public String toSource(SymbolTable table) {
+        return this.content + "\t" + value.toSource(table);
+    }
+
+    public String dump() {
+        return "(DataDirective " + content + " " + value.dump() + ")";
+    }
+}
@@ -8,6 +8,10 @@ public class Directive extends Assembly {
         this.content = content;
     }
 
+    public String content() {
+        return this.content;
+    }
+
     public boolean isDirective() {
         return true;
     }
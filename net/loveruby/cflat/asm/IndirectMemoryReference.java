@@ -42,10 +42,16 @@ public class IndirectMemoryReference extends MemoryReference {
     }
 
     public void collectStatistics(Statistics stats) {
+        offset.collectStatistics(stats);
         base.collectStatistics(stats);
     }
 
     public String toString() {
+        if (! fixed) {
+            // for comments of -fverbose-asm, written before fixing
+            return "*" + offset.toSource(SymbolTable.dummy())
+                    + "(" + base.toSource(SymbolTable.dummy()) + ")";
+        }
         return toSource(SymbolTable.dummy());
     }
 
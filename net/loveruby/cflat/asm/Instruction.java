@@ -50,6 +50,14 @@ public class Instruction extends Assembly {
         return this.mnemonic;
     }
 
+    public String suffix() {
+        return this.suffix;
+    }
+
+    public boolean needRelocation() {
+        return this.needRelocation;
+    }
+
     public boolean isJumpInstruction() {
         return mnemonic.equals("jmp")
                 || mnemonic.equals("jz")
@@ -65,6 +73,10 @@ public class Instruction extends Assembly {
         return this.operands.length;
     }
 
+    public Operand operand(int n) {
+        return this.operands[n];
+    }
+
     public Operand operand1() {
         return this.operands[0];
     }
@@ -89,15 +101,19 @@ public class Instruction extends Assembly {
     }
 
     public String toSource(SymbolTable table) {
-        StringBuffer buf = new StringBuffer();
+        StringBuilder buf = new StringBuilder();
+        appendSource(buf, table);
+        return buf.toString();
+    }
+
+    public void appendSource(StringBuilder buf, SymbolTable table) {
         buf.append("\t");
-        buf.append(mnemonic + suffix);
+        buf.append(mnemonic).append(suffix);
         String sep = "\t";
         for (int i = 0; i < operands.length; i++) {
             buf.append(sep); sep = ", ";
             buf.append(operands[i].toSource(table));
         }
-        return buf.toString();
     }
 
     public String toString() {
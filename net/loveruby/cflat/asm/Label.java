@@ -23,6 +23,10 @@ public class Label extends Assembly {
         return symbol.toSource(table) + ":";
     }
 
+    public void appendSource(StringBuilder buf, SymbolTable table) {
+        buf.append(symbol.toSource(table)).append(':');
+    }
+
     public String dump() {
         return "(Label " + symbol.dump() + ")";
     }
@@ -10,6 +10,14 @@ public class SuffixedSymbol implements Symbol {
         this.suffix = suffix;
     }
 
+    public Symbol base() {
+        return base;
+    }
+
+    public String suffix() {
+        return suffix;
+    }
+
     public boolean isZero() {
         return false;
     }
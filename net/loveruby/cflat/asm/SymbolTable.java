@@ -22,7 +22,8 @@ public class SymbolTable {
         return new NamedSymbol(newString());
     }
 
-    public String symbolString(UnnamedSymbol sym) {
+    // The dummy table is shared by all threads.
+    public synchronized String symbolString(UnnamedSymbol sym) {
         String str = map.get(sym);
         if (str != null) {
             return str;
@@ -34,7 +35,16 @@ public class SymbolTable {
         }
     }
 
-    protected String newString() {
+    /**
+     * Forgets the symbols named so far; names of new symbols continue
+     * the sequence.  Used when the code written so far is not
+     * referred to any more.
+     */
+    public synchronized void forget() {
+        map.clear();
+    }
+
+    protected synchronized String newString() {
         return base + seq++;
     }
 }
@@ -1,6 +1,7 @@
 package net.loveruby.cflat.ast;
 import net.loveruby.cflat.entity.*;
 import net.loveruby.cflat.ir.IR;
+import net.loveruby.cflat.parser.Parser;
 import java.util.List;
 import java.util.ArrayList;
 import java.io.PrintStream;
@@ -111,7 +112,7 @@ public class AST extends Node {
     }
 
     public void dumpTokens(PrintStream s) {
-        for (CflatToken t : source.token()) {
+        for (CflatToken t : Parser.tokenize(source.source())) {
             printPair(t.kindName(), t.dumpedImage(), s);
         }
     }
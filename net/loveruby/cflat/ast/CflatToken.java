@@ -2,12 +2,11 @@ package net.loveruby.cflat.ast;
 import net.loveruby.cflat.parser.Token;
 import net.loveruby.cflat.parser.ParserConstants;
 import net.loveruby.cflat.utils.TextUtils;
-import java.util.*;
 
 /**
  * Token wrapper.
  */
-public class CflatToken implements Iterable<CflatToken> {
+public class CflatToken {
     protected Token token;
     protected boolean isSpecial;
 
@@ -51,49 +50,4 @@ public class CflatToken implements Iterable<CflatToken> {
     public String dumpedImage() {
         return TextUtils.dumpString(token.image);
     }
-
-    public Iterator<CflatToken> iterator() {
-        return buildTokenList(token, false).iterator();
-    }
-
-    protected List<CflatToken> tokensWithoutFirstSpecials() {
-        return buildTokenList(token, true);
-    }
-
-    protected List<CflatToken> buildTokenList(Token first, boolean rejectFirstSpecials) {
-        List<CflatToken> result = new ArrayList<CflatToken>();
-        boolean rejectSpecials = rejectFirstSpecials;
-        for (Token t = first; t != null; t = t.next) {
-            if (t.specialToken != null && !rejectSpecials) {
-                Token s = specialTokenHead(t.specialToken);
-                for (; s != null; s = s.next) {
-                    result.add(new CflatToken(s));
-                }
-            }
-            result.add(new CflatToken(t));
-            rejectSpecials = false;
-        }
-        return result;
-    }
-
-    protected Token specialTokenHead(Token firstSpecial) {
-        Token s = firstSpecial;
-        while (s.specialToken != null) {
-            s = s.specialToken;
-        }
-        return s;
-    }
-
-    public String includedLine() {
-        StringBuffer buf = new StringBuffer();
-        for (CflatToken t : tokensWithoutFirstSpecials()) {
-            int idx = t.image().indexOf("\n");
-            if (idx >= 0) {
-                buf.append(t.image().substring(0, idx));
-                break;
-            }
-            buf.append(t.image());
-        }
-        return buf.toString();
-    }
 }
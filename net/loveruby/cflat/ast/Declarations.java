@@ -22,6 +22,22 @@ public class Declarations {
         typedefs.addAll(decls.typedefs);
     }
 
+    /** Returns the declarations which are not in DECLS. */
+    public Declarations minus(Declarations decls) {
+        Declarations result = new Declarations();
+        result.add(this);
+        result.defuns.addAll(defuns);
+        result.defvars.removeAll(decls.defvars);
+        result.vardecls.removeAll(decls.vardecls);
+        result.defuns.removeAll(decls.defuns);
+        result.funcdecls.removeAll(decls.funcdecls);
+        result.constants.removeAll(decls.constants);
+        result.defstructs.removeAll(decls.defstructs);
+        result.defunions.removeAll(decls.defunions);
+        result.typedefs.removeAll(decls.typedefs);
+        return result;
+    }
+
     public void addDefvar(DefinedVariable var) {
         defvars.add(var);
     }
@@ -1,48 +1,52 @@
 package net.loveruby.cflat.ast;
 import net.loveruby.cflat.parser.Token;
-import net.loveruby.cflat.parser.ParserConstants;
-import net.loveruby.cflat.utils.TextUtils;
-import java.util.*;
 
+/**
+ * Position in a source file.  Only the line and the column are
+ * kept; the source line is taken from the SourceText.
+ */
 public class Location {
-    protected String sourceName;
-    protected CflatToken token;
+    protected SourceText source;
+    protected int lineno;
+    protected int column;
 
-    public Location(String sourceName, Token token) {
-        this(sourceName, new CflatToken(token));
+    public Location(SourceText source, Token token) {
+        this(source, token.beginLine, token.beginColumn);
     }
 
-    public Location(String sourceName, CflatToken token) {
-        this.sourceName = sourceName;
-        this.token = token;
+    public Location(SourceText source, int lineno, int column) {
+        this.source = source;
+        this.lineno = lineno;
+        this.column = column;
     }
 
     public String sourceName() {
-        return sourceName;
+        return source.name();
     }
 
-    public CflatToken token() {
-        return token;
+    public SourceText source() {
+        return source;
     }
 
     /** line number */
     public int lineno() {
-        return token.lineno();
+        return lineno;
     }
 
     public int column() {
-        return token.column();
+        return column;
     }
 
+    /** The source line from this location to the end of the line. */
     public String line() {
-        return token.includedLine();
+        return source.lineFrom(lineno, column);
     }
 
     public String numberedLine() {
-        return "line " + token.lineno() + ": " + line();
+        return "line " + lineno + ": " + line();
     }
 
     public String toString() {
-        return sourceName + ":" + token.lineno();
+        return sourceName() + ":" + lineno;
     }
 }
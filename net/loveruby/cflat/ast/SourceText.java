@@ -0,0 +1,139 @@
+package net.loveruby.cflat.ast;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.IOException;
+
+/**
+ * Text of a source file and the table of its line offsets.
+ * The parser makes one per file; Locations refer to it to get
+ * source lines without keeping tokens.
+ */
+public class SourceText {
+    // Same as the tab size of SourceCharStream, which
+    // makes the columns of tokens.
+    static private final int TAB_SIZE = 8;
+
+    private final String name;
+    private String text;                // null until #load is called
+    private int[] lineStarts;           // offset of the line N+1
+
+    public SourceText(String name, String text) {
+        this.name = name;
+        this.text = text;
+        this.lineStarts = scanLines(text);
+    }
+
+    /**
+     * Makes a SourceText whose text is read by #load when it is
+     * first used.
+     */
+    protected SourceText(String name) {
+        this.name = name;
+    }
+
+    /** Reads the text of a SourceText made by SourceText(String). */
+    protected String load() {
+        throw new Error("must not happen: SourceText#load called");
+    }
+
+    synchronized private void fill() {
+        if (text == null) {
+            String s = load();
+            lineStarts = scanLines(s);
+            text = s;
+        }
+    }
+
+    /**
+     * Reads the whole text from R.  R is not closed.
+     */
+    static public SourceText read(String name, Reader r) throws IOException {
+        StringBuilder buf = new StringBuilder();
+        char[] cbuf = new char[8192];
+        int n;
+        while ((n = r.read(cbuf)) > 0) {
+            buf.append(cbuf, 0, n);
+        }
+        return new SourceText(name, buf.toString());
+    }
+
+    // A line ends with "\n", "\r" or "\r\n", as SourceCharStream.
+    static private int[] scanLines(String text) {
+        int[] starts = new int[64];
+        int n = 0;
+        starts[n++] = 0;
+        int len = text.length();
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+            if (c == '\r' && i + 1 < len && text.charAt(i + 1) == '\n') {
+                i++;
+            }
+            else if (c != '\r' && c != '\n') {
+                continue;
+            }
+            if (n == starts.length) {
+                int[] tmp = new int[n * 2];
+                System.arraycopy(starts, 0, tmp, 0, n);
+                starts = tmp;
+            }
+            starts[n++] = i + 1;
+        }
+        int[] result = new int[n];
+        System.arraycopy(starts, 0, result, 0, n);
+        return result;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String text() {
+        fill();
+        return text;
+    }
+
+    public Reader newReader() {
+        return new StringReader(text());
+    }
+
+    public int numLines() {
+        fill();
+        return lineStarts.length;
+    }
+
+    /** Returns the line LINENO (1-origin) without the line terminator. */
+    public String line(int lineno) {
+        return lineFrom(lineno, 1);
+    }
+
+    /**
+     * Returns the line LINENO from the column COLUMN to the end of
+     * the line.  Columns count tabs as SourceCharStream does.
+     */
+    public String lineFrom(int lineno, int column) {
+        fill();
+        if (lineno < 1 || lineno > lineStarts.length) return "";
+        int begin = lineStarts[lineno - 1];
+        int end = (lineno < lineStarts.length)
+                ? lineStarts[lineno] : text.length();
+        while (end > begin && isLineTerminator(text.charAt(end - 1))) {
+            end--;
+        }
+        int col = 0;
+        int pos = begin;
+        while (pos < end) {
+            col++;
+            if (text.charAt(pos) == '\t') {
+                col--;
+                col += TAB_SIZE - (col % TAB_SIZE);
+            }
+            if (col >= column) break;
+            pos++;
+        }
+        return text.substring(pos, end);
+    }
+
+    static private boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r';
+    }
+}
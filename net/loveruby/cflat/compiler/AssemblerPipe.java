@@ -0,0 +1,96 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.sysdep.AssemblyCode;
+import net.loveruby.cflat.utils.CommandUtils;
+import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.exception.IPCException;
+import java.io.*;
+
+/**
+ * Assembles AssemblyCode by streaming its source into the standard
+ * input of the assembler ("as -"), without an intermediate file.
+ * The source is written by a background thread, so the compiler can
+ * go on to the next file while the assembler runs.  With #open, the
+ * caller writes the source by itself (streaming compilation).
+ */
+class AssemblerPipe {
+    static AssemblerPipe start(AssemblyCode asm, String destPath,
+            Options opts, ErrorHandler h) throws IPCException {
+        CommandUtils.Command cmd =
+                opts.assembler(h).start(destPath, opts.asOptions());
+        return new AssemblerPipe(asm, cmd, h);
+    }
+
+    /**
+     * Starts the assembler whose source is written to #input by the
+     * caller.  Call #finish after writing, or #abort on errors.
+     */
+    static AssemblerPipe open(String destPath,
+            Options opts, ErrorHandler h) throws IPCException {
+        CommandUtils.Command cmd =
+                opts.assembler(h).start(destPath, opts.asOptions());
+        return new AssemblerPipe(null, cmd, h);
+    }
+
+    private final CommandUtils.Command command;
+    private final ErrorHandler errorHandler;
+    private final Thread writer;
+    private volatile IOException writeError = null;
+
+    private AssemblerPipe(final AssemblyCode asm,
+            final CommandUtils.Command command, ErrorHandler h) {
+        this.command = command;
+        this.errorHandler = h;
+        if (asm == null) {
+            this.writer = null;
+            return;
+        }
+        this.writer = new Thread() {
+            public void run() {
+                try {
+                    Writer w = new BufferedWriter(
+                            new OutputStreamWriter(command.input()));
+                    try {
+                        asm.writeSource(w);
+                    }
+                    finally {
+                        w.close();
+                    }
+                }
+                catch (IOException ex) {
+                    writeError = ex;
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** The standard input of the assembler opened by #open. */
+    OutputStream input() {
+        return command.input();
+    }
+
+    /** Kills the assembler without reporting its errors. */
+    void abort() {
+        command.kill();
+    }
+
+    /** Waits for the assembler and reports its errors. */
+    void finish() throws IPCException {
+        try {
+            if (writer != null) writer.join();
+        }
+        catch (InterruptedException ex) {
+            errorHandler.error("assembler interrupted");
+            throw new IPCException("compile error");
+        }
+        // Failures of the assembler itself are reported first;
+        // they usually cause the write error.
+        command.finish();
+        if (writeError != null) {
+            errorHandler.error("failed to write to assembler: "
+                               + writeError.getMessage());
+            throw new IPCException("compile error");
+        }
+    }
+}
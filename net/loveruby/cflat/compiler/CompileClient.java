@@ -0,0 +1,71 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.utils.ErrorHandler;
+import java.util.*;
+import java.net.*;
+import java.io.*;
+
+/**
+ * "cbc --client[=PORT] ARGS..." sends ARGS and the current
+ * directory to the compile server, prints its output and exits
+ * with its status.  Requests begin with the token the server wrote
+ * to ~/.cbc/server-PORT.token.
+ */
+class CompileClient {
+    /**
+     * OPT is "--client" or "--client=PORT", which is ARGS[INDEX].
+     * Other arguments are sent to the server.
+     */
+    static public void main(String opt, String[] args, int index) {
+        ErrorHandler h = new ErrorHandler(Compiler.ProgramName);
+        int port = CompileServer.parsePort(opt, h);
+        List<String> compilerArgs = new ArrayList<String>(Arrays.asList(args));
+        compilerArgs.remove(index);
+        try {
+            System.exit(new CompileClient(port).request(compilerArgs));
+        }
+        catch (IOException ex) {
+            h.error("cannot talk to compile server on port "
+                    + port + ": " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private final int port;
+
+    CompileClient(int port) {
+        this.port = port;
+    }
+
+    int request(List<String> args) throws IOException {
+        String token = CompileServer.readToken(port);
+        Socket sock = new Socket(InetAddress.getByName(null), port);
+        try {
+            DataOutputStream req = new DataOutputStream(
+                    new BufferedOutputStream(sock.getOutputStream()));
+            req.writeUTF(token);
+            req.writeUTF(System.getProperty("user.dir"));
+            req.writeInt(args.size());
+            for (String arg : args) {
+                req.writeUTF(arg);
+            }
+            req.flush();
+            DataInputStream res = new DataInputStream(
+                    new BufferedInputStream(sock.getInputStream()));
+            int status = res.readInt();
+            System.out.write(readBytes(res));
+            System.out.flush();
+            System.err.write(readBytes(res));
+            System.err.flush();
+            return status;
+        }
+        finally {
+            sock.close();
+        }
+    }
+
+    private byte[] readBytes(DataInputStream s) throws IOException {
+        byte[] b = new byte[s.readInt()];
+        s.readFully(b);
+        return b;
+    }
+}
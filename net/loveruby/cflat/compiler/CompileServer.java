@@ -0,0 +1,320 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.parser.ImportCache;
+import net.loveruby.cflat.utils.ErrorHandler;
+import java.util.*;
+import java.util.concurrent.*;
+import java.net.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Compile server.  "cbc --server" stays running and compiles the
+ * requests sent by "cbc --client", so each compilation does not pay
+ * for JVM startup, class loading and JIT warmup.  Import files are
+ * shared among requests through an ImportCache.
+ *
+ * The server listens only on the loopback interface.  A request is
+ * the client's current directory and its arguments; the response is
+ * the exit status and the output of the compiler.
+ *
+ * The loopback port is open to all local users, but a request runs
+ * the compiler (and the assembler and the linker) with the rights of
+ * the server's owner.  So the server makes a random token and writes
+ * it to ~/.cbc/server-PORT.token, which only the owner can read, and
+ * rejects requests which do not begin with the token.
+ */
+class CompileServer {
+    static final int DEFAULT_PORT = 7891;
+
+    /**
+     * OPT is "--server" or "--server=PORT".  Other arguments are
+     * ignored; options are given by each request.
+     */
+    static public void main(String opt) {
+        ErrorHandler h = new ErrorHandler(Compiler.ProgramName);
+        int port = parsePort(opt, h);
+        try {
+            new CompileServer(port).serve();
+        }
+        catch (IOException ex) {
+            h.error("compile server: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** "--server=PORT" -> PORT */
+    static int parsePort(String opt, ErrorHandler h) {
+        int idx = opt.indexOf('=');
+        if (idx < 0) return DEFAULT_PORT;
+        String s = opt.substring(idx + 1);
+        try {
+            int port = Integer.parseInt(s);
+            if (port > 0 && port < 65536) {
+                return port;
+            }
+        }
+        catch (NumberFormatException ex) {
+            ;
+        }
+        h.error("invalid port number: " + s);
+        System.exit(1);
+        return -1;   // never reach
+    }
+
+    private final int port;
+    private final String token;
+    private final ImportCache importCache;
+    private final RequestOutput stdout;
+    private final RequestOutput stderr;
+
+    CompileServer(int port) {
+        this.port = port;
+        this.token = newToken();
+        this.importCache = new ImportCache();
+        this.stdout = new RequestOutput(System.out);
+        this.stderr = new RequestOutput(System.err);
+    }
+
+    void serve() throws IOException {
+        ServerSocket sock = new ServerSocket(port, 0,
+                InetAddress.getByName(null));
+        // Written after binding the port, not to leave the token of
+        // a server which could not start.
+        final Path tokenFile = tokenFile(port);
+        writeToken(tokenFile, token);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    Files.deleteIfExists(tokenFile);
+                }
+                catch (IOException ex) {
+                    ;
+                }
+            }
+        });
+        System.setOut(new PrintStream(stdout, true));
+        System.setErr(new PrintStream(stderr, true));
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try {
+            while (true) {
+                final Socket conn = sock.accept();
+                pool.execute(new Runnable() {
+                    public void run() {
+                        handle(conn);
+                    }
+                });
+            }
+        }
+        finally {
+            pool.shutdown();
+            sock.close();
+        }
+    }
+
+    private void handle(Socket conn) {
+        try {
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(conn.getInputStream()));
+                DataOutputStream res = new DataOutputStream(
+                        new BufferedOutputStream(conn.getOutputStream()));
+                if (! isValidToken(in.readUTF())) {
+                    res.writeInt(1);
+                    writeBytes(res, new byte[0]);
+                    writeBytes(res, (Compiler.ProgramName
+                            + ": error: compile server: invalid token\n")
+                            .getBytes("UTF-8"));
+                    res.flush();
+                    return;
+                }
+                File cwd = new File(in.readUTF());
+                String[] args = new String[in.readInt()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = in.readUTF();
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayOutputStream err = new ByteArrayOutputStream();
+                int status = compile(args, cwd, out, err);
+                res.writeInt(status);
+                writeBytes(res, out.toByteArray());
+                writeBytes(res, err.toByteArray());
+                res.flush();
+            }
+            finally {
+                conn.close();
+            }
+        }
+        catch (IOException ex) {
+            stderr.original().println(Compiler.ProgramName
+                    + ": compile server: " + ex.getMessage());
+        }
+    }
+
+    //
+    // Token
+    //
+
+    static private final Set<PosixFilePermission> OWNER_ONLY_DIR =
+            PosixFilePermissions.fromString("rwx------");
+    static private final Set<PosixFilePermission> OWNER_ONLY_FILE =
+            PosixFilePermissions.fromString("rw-------");
+
+    static Path tokenFile(int port) {
+        return Paths.get(homeDirectory(), ".cbc",
+                         "server-" + port + ".token");
+    }
+
+    // $HOME if set, as the shell's ~.  Java's user.home does not
+    // follow $HOME.
+    static private String homeDirectory() {
+        String home = System.getenv("HOME");
+        if (home == null || home.length() == 0) {
+            home = System.getProperty("user.home");
+        }
+        return home;
+    }
+
+    static String readToken(int port) throws IOException {
+        byte[] b = Files.readAllBytes(tokenFile(port));
+        return new String(b, "UTF-8").trim();
+    }
+
+    static private String newToken() {
+        byte[] b = new byte[32];
+        new SecureRandom().nextBytes(b);
+        StringBuilder buf = new StringBuilder();
+        for (byte x : b) {
+            buf.append(String.format("%02x", x & 0xff));
+        }
+        return buf.toString();
+    }
+
+    private boolean isValidToken(String s) throws IOException {
+        return MessageDigest.isEqual(s.getBytes("UTF-8"),
+                                     token.getBytes("UTF-8"));
+    }
+
+    /**
+     * Writes TOKEN to FILE in a directory only the owner can access.
+     * The file is created by the mode 0600 and renamed, so no other
+     * user can read it in the meantime.
+     */
+    static private void writeToken(Path file, String token)
+                                        throws IOException {
+        Path dir = file.getParent();
+        if (! Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            Files.createDirectories(dir);
+        }
+        if (! Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException("not a directory: " + dir);
+        }
+        UserPrincipal me = dir.getFileSystem()
+                .getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (! Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS).equals(me)) {
+            throw new IOException("directory owned by another user: " + dir);
+        }
+        try {
+            Files.setPosixFilePermissions(dir, OWNER_ONLY_DIR);
+        }
+        catch (UnsupportedOperationException ex) {
+            throw new IOException("cannot protect the token: " + dir);
+        }
+        Path tmp = Files.createTempFile(dir, "server", ".tmp",
+                PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE));
+        try {
+            Files.write(tmp, (token + "\n").getBytes("UTF-8"));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                                  StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    static void writeBytes(DataOutputStream s, byte[] b) throws IOException {
+        s.writeInt(b.length);
+        s.write(b);
+    }
+
+    private int compile(String[] args, File cwd,
+                        OutputStream out, OutputStream err) {
+        stdout.set(out);
+        stderr.set(err);
+        try {
+            Compiler compiler = new Compiler(Compiler.ProgramName);
+            Options opts = compiler.parseOptions(args);
+            if (opts == null) {
+                return 1;
+            }
+            opts.setWorkingDirectory(cwd);
+            opts.setImportCache(importCache);
+            return compiler.run(opts);
+        }
+        catch (RuntimeException ex) {
+            ex.printStackTrace(System.err);
+            return 1;
+        }
+        catch (Error e) {
+            e.printStackTrace(System.err);
+            return 1;
+        }
+        finally {
+            stdout.remove();
+            stderr.remove();
+        }
+    }
+
+    /**
+     * System.out and System.err of the server.  Each request thread
+     * (and the threads it creates for -j) writes to its own buffer;
+     * other threads write to the original stream.
+     */
+    static class RequestOutput extends OutputStream {
+        private final PrintStream original;
+        private final InheritableThreadLocal<OutputStream> current;
+
+        RequestOutput(PrintStream original) {
+            this.original = original;
+            this.current = new InheritableThreadLocal<OutputStream>();
+        }
+
+        PrintStream original() {
+            return original;
+        }
+
+        void set(OutputStream s) {
+            current.set(s);
+        }
+
+        void remove() {
+            current.remove();
+        }
+
+        private OutputStream stream() {
+            OutputStream s = current.get();
+            return (s == null) ? original : s;
+        }
+
+        public void write(int b) throws IOException {
+            OutputStream s = stream();
+            synchronized (s) {
+                s.write(b);
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            OutputStream s = stream();
+            synchronized (s) {
+                s.write(b, off, len);
+            }
+        }
+
+        public void flush() throws IOException {
+            stream().flush();
+        }
+    }
+}
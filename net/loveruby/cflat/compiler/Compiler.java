@@ -1,15 +1,25 @@
 package net.loveruby.cflat.compiler;
 import net.loveruby.cflat.parser.Parser;
+import net.loveruby.cflat.parser.LibraryLoader;
 import net.loveruby.cflat.ast.AST;
 import net.loveruby.cflat.ast.StmtNode;
 import net.loveruby.cflat.ast.ExprNode;
 import net.loveruby.cflat.type.TypeTable;
 import net.loveruby.cflat.ir.IR;
+import net.loveruby.cflat.ir.Stmt;
+import net.loveruby.cflat.ir.ControlFlowGraph;
+import net.loveruby.cflat.ir.CFGVerifier;
+import net.loveruby.cflat.ir.SSABuilder;
+import net.loveruby.cflat.ir.SSAOptimizer;
+import net.loveruby.cflat.ir.SSADestructor;
+import net.loveruby.cflat.entity.DefinedFunction;
 import net.loveruby.cflat.sysdep.CodeGenerator;
 import net.loveruby.cflat.sysdep.AssemblyCode;
 import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.utils.TimeReport;
 import net.loveruby.cflat.exception.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 public class Compiler {
@@ -18,41 +28,93 @@ public class Compiler {
     static final public String Version = "1.0.0";
 
     static public void main(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--")) break;
+            if (isOption(args[i], "--server")) {
+                CompileServer.main(args[i]);
+                return;
+            }
+            if (isOption(args[i], "--client")) {
+                CompileClient.main(args[i], args, i);
+                return;
+            }
+        }
         new Compiler(ProgramName).commandMain(args);
     }
 
+    static private boolean isOption(String arg, String name) {
+        return arg.equals(name) || arg.startsWith(name + "=");
+    }
+
     private final ErrorHandler errorHandler;
 
     public Compiler(String programName) {
-        this.errorHandler = new ErrorHandler(programName);
+        this(new ErrorHandler(programName));
+    }
+
+    Compiler(ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
     }
     // #@@}
 
     public void commandMain(String[] args) {
         Options opts = parseOptions(args);
-        if (opts.mode() == CompilerMode.CheckSyntax) {
-            System.exit(checkSyntax(opts) ? 0 : 1);
+        if (opts == null) {
+            System.exit(1);
         }
+        System.exit(run(opts));
+    }
+
+    /**
+     * Runs the compiler driver and returns the exit status.
+     * Does not call System.exit, so that the compile server can
+     * run it for each request.
+     */
+    int run(Options opts) {
         try {
-            List<SourceFile> srcs = opts.sourceFiles();
-            build(srcs, opts);
-            System.exit(0);
+            if (opts.quitRequested()) {
+                return 0;
+            }
+            if (opts.mode() == CompilerMode.CheckSyntax) {
+                return checkSyntax(opts) ? 0 : 1;
+            }
+            try {
+                List<SourceFile> srcs = opts.sourceFiles();
+                build(srcs, opts);
+                return 0;
+            }
+            catch (CompileException ex) {
+                errorHandler.error(ex.getMessage());
+                return 1;
+            }
+            finally {
+                printTimeReport(opts);
+            }
         }
-        catch (CompileException ex) {
-            errorHandler.error(ex.getMessage());
-            System.exit(1);
+        finally {
+            opts.shutdown();
         }
     }
 
-    private Options parseOptions(String[] args) {
+    private void printTimeReport(Options opts) {
+        if (! opts.isTimeReportRequired()) return;
+        if (opts.isTimeReportJSON()) {
+            opts.timeReport().printJSON(System.err);
+        }
+        else {
+            opts.timeReport().print(System.err);
+        }
+    }
+
+    /** Returns null after reporting errors if ARGS is invalid. */
+    Options parseOptions(String[] args) {
         try {
             return Options.parse(args);
         }
         catch (OptionParseError err) {
             errorHandler.error(err.getMessage());
             errorHandler.error("Try \"cbc --help\" for usage");
-            System.exit(1);
-            return null;   // never reach
+            return null;
         }
     }
 
@@ -87,59 +149,551 @@ public class Compiler {
     // #@@range/build{
     public void build(List<SourceFile> srcs, Options opts)
                                         throws CompileException {
-        for (SourceFile src : srcs) {
-            if (src.isCflatSource()) {
-                String destPath = opts.asmFileNameOf(src);
-                compile(src.path(), destPath, opts);
-                src.setCurrentName(destPath);
+        if (opts.isParallelBuild()) {
+            buildParallel(srcs, opts);
+        }
+        else {
+            try {
+                for (SourceFile src : srcs) {
+                    buildFile(src, opts);
+                }
             }
-            if (! opts.isAssembleRequired()) continue;
-            if (src.isAssemblySource()) {
-                String destPath = opts.objFileNameOf(src);
-                assemble(src.path(), destPath, opts);
-                src.setCurrentName(destPath);
+            finally {
+                finishAssemblers(opts);
             }
         }
+        ObjectCache cache = opts.objectCache();
+        if (cache != null && opts.isVerboseMode()) {
+            System.out.println("object cache: " + cache.hits() + " hits, "
+                               + cache.misses() + " misses");
+        }
         if (! opts.isLinkRequired()) return;
         link(opts);
     }
     // #@@}
 
+    private void buildFile(SourceFile src, Options opts)
+                                        throws CompileException {
+        if (src.isCflatSource() && opts.objectCache() != null
+                && ! opts.asmFileNameOf(src).equals("-")) {
+            buildFileCached(src, opts, opts.objectCache());
+            return;
+        }
+        if (src.isCflatSource() && opts.isAssembleRequired()) {
+            String destPath = opts.objFileNameOf(src);
+            compileToObject(src.path(), opts.asmFileNameOf(src),
+                            destPath, opts, true);
+            src.setCurrentName(destPath);
+            return;
+        }
+        if (src.isCflatSource()) {
+            String destPath = opts.asmFileNameOf(src);
+            compile(src.path(), destPath, opts);
+            src.setCurrentName(destPath);
+        }
+        if (! opts.isAssembleRequired()) return;
+        if (src.isAssemblySource()) {
+            String destPath = opts.objFileNameOf(src);
+            assemble(src.path(), destPath, opts);
+            src.setCurrentName(destPath);
+        }
+    }
+
+    /**
+     * Same as #buildFile, but fetches the assembly file and the object
+     * file from the object cache if possible.
+     */
+    private void buildFileCached(SourceFile src, Options opts,
+            ObjectCache cache) throws CompileException {
+        String asmPath = opts.asmFileNameOf(src);
+        String objPath = opts.isAssembleRequired()
+                ? opts.objFileNameOf(src) : null;
+        File asmFile = (objPath == null || opts.isSavingTemps())
+                ? opts.file(asmPath) : null;
+        File objFile = (objPath == null) ? null : opts.file(objPath);
+        String key = cache.key(src, opts, errorHandler);
+        if (key != null && cache.fetch(key, asmFile, objFile)) {
+            src.setCurrentName(objPath == null ? asmPath : objPath);
+            return;
+        }
+        if (objPath == null) {
+            compile(src.path(), asmPath, opts);
+        }
+        else {
+            // The object file must be complete to be stored.
+            compileToObject(src.path(), asmPath, objPath, opts, false);
+        }
+        src.setCurrentName(objPath == null ? asmPath : objPath);
+        if (key != null) {
+            cache.store(key, asmFile, objFile);
+        }
+    }
+
+    /**
+     * Compiles and assembles source files on a thread pool.
+     * Each file is processed by its own Compiler whose messages are
+     * buffered, and the buffers are flushed in the order of the
+     * source files, so the output is same as the sequential build.
+     */
+    private void buildParallel(List<SourceFile> srcs, final Options opts)
+                                        throws CompileException {
+        ExecutorService pool =
+            Executors.newFixedThreadPool(Math.min(opts.jobs(), srcs.size()));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            List<ByteArrayOutputStream> logs =
+                    new ArrayList<ByteArrayOutputStream>();
+            for (final SourceFile src : srcs) {
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                final Compiler c = new Compiler(
+                        new ErrorHandler(ProgramName, log));
+                logs.add(log);
+                results.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws CompileException {
+                        try {
+                            c.buildFile(src, opts);
+                        }
+                        finally {
+                            c.finishAssemblers(opts);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                }
+                finally {
+                    System.err.print(logs.get(i).toString());
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            throw new CompileException("build interrupted");
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof CompileException) {
+                throw (CompileException)cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new Error(cause);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
     public void compile(String srcPath, String destPath,
                         Options opts) throws CompileException {
+        if (opts.isStreaming()) {
+            compileStreaming(srcPath, destPath, opts);
+            return;
+        }
+        AssemblyCode asm = compileToAssembly(srcPath, opts);
+        if (asm == null) return;
+        TimeReport.Timer t = opts.timeReport().phase(srcPath, "writeFile");
+        writeFile(destPath, asm, opts);
+        t.stop();
+    }
+
+    /**
+     * Compiles SRCPATH into the object file OBJPATH.  The assembly
+     * file ASMPATH is written only if --save-temps is given; otherwise
+     * the source is piped to the assembler, or encoded by the
+     * integrated assembler if -integrated-as is given (.s files are
+     * always passed to as).  If BACKGROUND is true, the assembler can
+     * still be running on return; see #finishAssemblers.
+     */
+    private void compileToObject(String srcPath, String asmPath,
+            String objPath, Options opts, boolean background)
+            throws CompileException {
+        if (opts.isStreaming()) {
+            if (opts.isSavingTemps()) {
+                compileStreaming(srcPath, asmPath, opts);
+                assemble(asmPath, objPath, opts);
+            }
+            else {
+                compileStreamingToAssembler(srcPath, objPath, opts);
+            }
+            return;
+        }
+        AssemblyCode asm = compileToAssembly(srcPath, opts);
+        if (asm == null) return;
+        if (opts.isSavingTemps()) {
+            TimeReport.Timer t = opts.timeReport().phase(srcPath, "writeFile");
+            writeFile(asmPath, asm, opts);
+            t.stop();
+        }
+        if (opts.useIntegratedAssembler()) {
+            TimeReport.Timer t =
+                    opts.timeReport().phase(srcPath, "IntegratedAssembler");
+            opts.integratedAssembler(errorHandler)
+                .assemble(asm, opts.file(objPath));
+            t.stop();
+        }
+        else if (opts.isSavingTemps()) {
+            assemble(asmPath, objPath, opts);
+        }
+        else {
+            startAssembler(asm, objPath, opts, background);
+        }
+    }
+
+    private final LinkedList<AssemblerPipe> assemblers =
+            new LinkedList<AssemblerPipe>();
+
+    // Runs at most opts.jobs() assemblers in the background.
+    private void startAssembler(AssemblyCode asm, String objPath,
+            Options opts, boolean background) throws IPCException {
+        TimeReport.Timer t = opts.timeReport().phase("", "as");
+        while (assemblers.size() >= opts.jobs()) {
+            assemblers.removeFirst().finish();
+        }
+        AssemblerPipe as = AssemblerPipe.start(asm, objPath, opts,
+                                               errorHandler);
+        if (background) {
+            assemblers.add(as);
+        }
+        else {
+            as.finish();
+        }
+        t.stop();
+    }
+
+    /**
+     * Waits for all background assemblers.  All of them are waited
+     * even if some fail; the first failure is thrown.
+     */
+    private void finishAssemblers(Options opts) throws IPCException {
+        if (assemblers.isEmpty()) return;
+        TimeReport.Timer t = opts.timeReport().phase("", "as");
+        IPCException err = null;
+        while (! assemblers.isEmpty()) {
+            try {
+                assemblers.removeFirst().finish();
+            }
+            catch (IPCException ex) {
+                if (err == null) err = ex;
+            }
+        }
+        t.stop();
+        if (err != null) throw err;
+    }
+
+    /** Returns null if the compilation is finished by dump options. */
+    private AssemblyCode compileToAssembly(String srcPath, Options opts)
+                                        throws CompileException {
+        TimeReport report = opts.timeReport();
+        TimeReport.Timer t = report.phase(srcPath, "Parser");
         AST ast = parseFile(srcPath, opts);
-        if (dumpAST(ast, opts.mode())) return;
+        t.stop();
+        if (dumpAST(ast, opts.mode())) return null;
         TypeTable types = opts.typeTable();
         AST sem = semanticAnalyze(ast, types, opts);
-        if (dumpSemant(sem, opts.mode())) return;
+        if (dumpSemant(sem, opts.mode())) return null;
+        t = report.phase(srcPath, "IRGenerator");
         IR ir = new IRGenerator(types, errorHandler).generate(sem);
-        if (dumpIR(ir, opts.mode())) return;
+        t.stop();
+        if (dumpIR(ir, opts.mode())) return null;
+        if (opts.isVerifyingCFG() || opts.isSSARequired()) {
+            t = report.phase(srcPath, "IROptimizer");
+            optimizeIR(ir, opts);
+            t.stop();
+        }
+        if (dumpCFG(ir, opts)) return null;
+        t = report.phase(srcPath, "CodeGenerator");
         AssemblyCode asm = generateAssembly(ir, opts);
-        if (dumpAsm(asm, opts.mode())) return;
-        if (printAsm(asm, opts.mode())) return;
-        writeFile(destPath, asm.toSource());
+        t.stop();
+        if (dumpAsm(asm, opts.mode())) return null;
+        if (printAsm(asm, opts.mode())) return null;
+        return asm;
+    }
+
+    /**
+     * Compiles SRCPATH into the assembly file DESTPATH one function
+     * at a time (--stream).  The code is written to a temporary file
+     * in the same directory, which is renamed to DESTPATH on success
+     * and removed on errors, so DESTPATH is never left incomplete.
+     */
+    private void compileStreaming(String srcPath, String destPath,
+                        Options opts) throws CompileException {
+        if (destPath.equals("-")) {
+            try {
+                Writer w = new BufferedWriter(
+                        new OutputStreamWriter(System.out));
+                compileStreaming(srcPath, w, opts);
+                w.flush();
+            }
+            catch (IOException ex) {
+                errorHandler.error("IO error" + ex.getMessage());
+                throw new FileException("file error");
+            }
+            return;
+        }
+        File file = opts.file(destPath);
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("tmp", ".part",
+                                      file.getAbsoluteFile().getParentFile());
+            Writer w = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp)));
+            try {
+                compileStreaming(srcPath, w, opts);
+            }
+            finally {
+                w.close();
+            }
+            if (! tmp.renameTo(file)) {
+                file.delete();
+                if (! tmp.renameTo(file)) {
+                    throw new IOException("cannot rename to " + destPath);
+                }
+            }
+        }
+        catch (FileNotFoundException ex) {
+            errorHandler.error("file not found: " + destPath);
+            throw new FileException("file error");
+        }
+        catch (IOException ex) {
+            errorHandler.error("IO error" + ex.getMessage());
+            throw new FileException("file error");
+        }
+        finally {
+            if (tmp != null) tmp.delete();
+        }
+    }
+
+    // Compiles SRCPATH into the standard input of the assembler.
+    private void compileStreamingToAssembler(String srcPath,
+            String objPath, Options opts) throws CompileException {
+        AssemblerPipe as = AssemblerPipe.open(objPath, opts, errorHandler);
+        boolean done = false;
+        try {
+            Writer w = new BufferedWriter(new OutputStreamWriter(as.input()));
+            compileStreaming(srcPath, w, opts);
+            w.flush();
+            done = true;
+        }
+        catch (IOException ex) {
+            // Failures of the assembler itself are reported first.
+            done = true;
+            as.finish();
+            errorHandler.error("failed to write to assembler: "
+                               + ex.getMessage());
+            throw new IPCException("compile error");
+        }
+        finally {
+            if (! done) {
+                as.abort();
+                opts.file(objPath).delete();
+            }
+        }
+        TimeReport.Timer t = opts.timeReport().phase("", "as");
+        as.finish();
+        t.stop();
+    }
+
+    /**
+     * Compiles SRCPATH and writes the assembly source to OUT.  Only
+     * names, types and the global and static local variables are
+     * checked for the whole file; each function is checked, lowered
+     * to IR, code-generated and written in turn, then its body and
+     * IR are released, so the checked bodies, the IR and the assembly
+     * code of the whole file are never held.  The output is same as
+     * #compileToAssembly.  Each function is type-checked if its own
+     * references are valid, and no code is generated after an error;
+     * SemanticException is thrown at the end.  So the errors are same
+     * as #semanticAnalyze unless there are invalid references, which
+     * stop #semanticAnalyze before it checks types of any function.
+     */
+    void compileStreaming(final String srcPath, Writer out,
+            final Options opts) throws CompileException, IOException {
+        final TimeReport report = opts.timeReport();
+        TimeReport.Timer t = report.phase(srcPath, "Parser");
+        AST ast = parseFile(srcPath, opts);
+        t.stop();
+        TypeTable types = opts.typeTable();
+        resolve(ast, types, opts);
+        final DereferenceChecker derefChecker =
+                new DereferenceChecker(types, errorHandler);
+        final TypeChecker typeChecker = new TypeChecker(types, errorHandler);
+        t = report.phase(srcPath, "DereferenceChecker");
+        derefChecker.checkVariables(ast);
+        derefChecker.checkStaticLocalVariables(ast);
+        t.stop();
+        t = report.phase(srcPath, "TypeChecker");
+        typeChecker.checkVariables(ast);
+        typeChecker.checkStaticLocalVariables(ast);
+        t.stop();
+        if (errorHandler.errorOccured()) {
+            throw new SemanticException("compile failed.");
+        }
+        t = report.phase(srcPath, "IRGenerator");
+        final IRGenerator irGen = new IRGenerator(types, errorHandler);
+        IR ir = irGen.generateVariables(ast);
+        t.stop();
+        t = report.phase(srcPath, "CodeGenerator");
+        opts.codeGenerator(errorHandler).generate(ir,
+            new CodeGenerator.Lowering() {
+                public List<Stmt> lower(DefinedFunction func) {
+                    long errors = errorHandler.errorCount();
+                    TimeReport.Timer t =
+                            report.phase(srcPath, "DereferenceChecker");
+                    derefChecker.check(func);
+                    t.stop();
+                    // Types of invalid references cannot be checked.
+                    if (errorHandler.errorCount() > errors) return null;
+                    t = report.phase(srcPath, "TypeChecker");
+                    typeChecker.check(func);
+                    t.stop();
+                    if (errorHandler.errorOccured()) return null;
+                    t = report.phase(srcPath, "IRGenerator");
+                    List<Stmt> stmts = irGen.compileFunctionBody(func);
+                    t.stop();
+                    if (errorHandler.errorOccured()) return null;
+                    if (opts.isVerifyingCFG() || opts.isSSARequired()) {
+                        t = report.phase(srcPath, "IROptimizer");
+                        stmts = optimizeIR(func, stmts, opts);
+                        t.stop();
+                    }
+                    return stmts;
+                }
+            }, out);
+        t.stop();
+        if (errorHandler.errorOccured()) {
+            throw new SemanticException("compile failed.");
+        }
     }
 
     public AST parseFile(String path, Options opts)
                             throws SyntaxException, FileException {
-        return Parser.parseFile(new File(path),
-                opts.loader(), errorHandler, opts.doesDebugParser());
+        LibraryLoader loader = opts.newLoader();
+        Parser parser = Parser.newFileParser(opts.file(path), path,
+                loader, errorHandler, opts.doesDebugParser());
+        ForkJoinPool pool = opts.pool();
+        if (pool != null) {
+            loader.loadLibraries(parser.scanImports(), errorHandler, pool);
+        }
+        return parser.parse();
     }
 
-    public AST semanticAnalyze(AST ast, TypeTable types,
+    public AST semanticAnalyze(AST ast, final TypeTable types,
                 Options opts) throws SemanticException {
-        new LocalResolver(errorHandler).resolve(ast);
-        new TypeResolver(types, errorHandler).resolve(ast);
-        types.semanticCheck(errorHandler);
+        TimeReport report = opts.timeReport();
+        String unit = ast.location().sourceName();
+        resolve(ast, types, opts);
         if (opts.mode() == CompilerMode.DumpReference) {
             ast.dump();
             return ast;
         }
-        new DereferenceChecker(types, errorHandler).check(ast);
-        new TypeChecker(types, errorHandler).check(ast);
+        int jobs = opts.functionJobs();
+        boolean parallel = jobs > 1 && ast.definedFunctions().size() > 1;
+        TimeReport.Timer t = report.phase(unit, "DereferenceChecker");
+        if (parallel) {
+            new DereferenceChecker(types, errorHandler).checkVariables(ast);
+            checkFunctions(ast, jobs, new FunctionCheck() {
+                public void check(DefinedFunction f, ErrorHandler h) {
+                    new DereferenceChecker(types, h).check(f);
+                }
+            });
+        }
+        else {
+            new DereferenceChecker(types, errorHandler).check(ast);
+        }
+        t.stop();
+        t = report.phase(unit, "TypeChecker");
+        if (parallel) {
+            new TypeChecker(types, errorHandler).checkVariables(ast);
+            checkFunctions(ast, jobs, new FunctionCheck() {
+                public void check(DefinedFunction f, ErrorHandler h) {
+                    new TypeChecker(types, h).check(f);
+                }
+            });
+        }
+        else {
+            new TypeChecker(types, errorHandler).check(ast);
+        }
+        t.stop();
         return ast;
     }
 
+    // Resolves the names and the types of AST, and checks the types.
+    private void resolve(AST ast, TypeTable types, Options opts)
+                                        throws SemanticException {
+        TimeReport report = opts.timeReport();
+        String unit = ast.location().sourceName();
+        TimeReport.Timer t = report.phase(unit, "LocalResolver");
+        new LocalResolver(errorHandler, opts.isIndexedResolver())
+                .resolve(ast);
+        t.stop();
+        t = report.phase(unit, "TypeResolver");
+        new TypeResolver(types, errorHandler).resolve(ast);
+        t.stop();
+        t = report.phase(unit, "TypeTable#semanticCheck");
+        types.semanticCheck(errorHandler);
+        t.stop();
+    }
+
+    // A check of a function, which reports to H.
+    private interface FunctionCheck {
+        void check(DefinedFunction f, ErrorHandler h);
+    }
+
+    /**
+     * Runs CHECK on each function of AST on a pool of JOBS threads.
+     * Messages are buffered for each function and flushed in the
+     * order of the functions, so they are same as the sequential
+     * check.
+     */
+    private void checkFunctions(AST ast, int jobs, final FunctionCheck check)
+                                        throws SemanticException {
+        List<DefinedFunction> funcs = ast.definedFunctions();
+        ExecutorService pool =
+            Executors.newFixedThreadPool(Math.min(jobs, funcs.size()));
+        try {
+            List<Future<ErrorHandler>> results =
+                    new ArrayList<Future<ErrorHandler>>();
+            for (final DefinedFunction f : funcs) {
+                final ErrorHandler h = errorHandler.buffer();
+                results.add(pool.submit(new Callable<ErrorHandler>() {
+                    public ErrorHandler call() {
+                        check.check(f, h);
+                        return h;
+                    }
+                }));
+            }
+            for (Future<ErrorHandler> result : results) {
+                result.get().flush();
+            }
+        }
+        catch (InterruptedException ex) {
+            throw new SemanticException("semantic analysis interrupted");
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new Error(cause);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        if (errorHandler.errorOccured()) {
+            throw new SemanticException("compile failed.");
+        }
+    }
+
     public AssemblyCode generateAssembly(IR ir, Options opts) {
         return opts.codeGenerator(errorHandler).generate(ir);
     }
@@ -147,19 +701,23 @@ public class Compiler {
     // #@@range/assemble{
     public void assemble(String srcPath, String destPath,
                             Options opts) throws IPCException {
+        TimeReport.Timer t = opts.timeReport().phase("", "as");
         opts.assembler(errorHandler)
             .assemble(srcPath, destPath, opts.asOptions());
+        t.stop();
     }
     // #@@}
 
     // #@@range/link{
     public void link(Options opts) throws IPCException {
+        TimeReport.Timer t = opts.timeReport().phase("", "ld");
         if (! opts.isGeneratingSharedLibrary()) {
             generateExecutable(opts);
         }
         else {
             generateSharedLibrary(opts);
         }
+        t.stop();
     }
     // #@@}
 
@@ -177,16 +735,18 @@ public class Compiler {
     }
     // #@@}
 
-    private void writeFile(String path, String str) throws FileException {
+    // Streams the assembly source; the whole text is never held in memory.
+    private void writeFile(String path, AssemblyCode asm, Options opts)
+                                        throws FileException {
         if (path.equals("-")) {
-            System.out.print(str);
+            printSource(asm);
             return;
         }
         try {
             BufferedWriter f = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(path)));
+                new OutputStreamWriter(new FileOutputStream(opts.file(path))));
             try {
-                f.write(str);
+                asm.writeSource(f);
             }
             finally {
                 f.close();
@@ -202,7 +762,20 @@ public class Compiler {
         }
     }
 
-    private boolean dumpAST(AST ast, CompilerMode mode) {
+    private void printSource(AssemblyCode asm) throws FileException {
+        try {
+            Writer w = new BufferedWriter(new OutputStreamWriter(System.out));
+            asm.writeSource(w);
+            w.flush();
+        }
+        catch (IOException ex) {
+            errorHandler.error("IO error" + ex.getMessage());
+            throw new FileException("file error");
+        }
+    }
+
+    private boolean dumpAST(AST ast, CompilerMode mode)
+                                        throws SemanticException {
         switch (mode) {
         case DumpTokens:
             ast.dumpTokens(System.out);
@@ -221,18 +794,19 @@ public class Compiler {
         }
     }
 
-    private StmtNode findStmt(AST ast) {
+    private StmtNode findStmt(AST ast) throws SemanticException {
         StmtNode stmt = ast.getSingleMainStmt();
         if (stmt == null) {
-            errorExit("source file does not contains main()");
+            throw new SemanticException("source file does not contains main()");
         }
         return stmt;
     }
 
-    private ExprNode findExpr(AST ast) {
+    private ExprNode findExpr(AST ast) throws SemanticException {
         ExprNode expr = ast.getSingleMainExpr();
         if (expr == null) {
-            errorExit("source file does not contains single expression");
+            throw new SemanticException(
+                    "source file does not contains single expression");
         }
         return expr;
     }
@@ -259,6 +833,59 @@ public class Compiler {
         }
     }
 
+    private boolean dumpCFG(IR ir, Options opts) {
+        if (opts.mode() == CompilerMode.DumpCFG) {
+            for (DefinedFunction f : ir.definedFunctions()) {
+                ControlFlowGraph cfg = ControlFlowGraph.build(f);
+                if (opts.isSSARequired()) {
+                    new SSABuilder(f, cfg).build();
+                    new SSAOptimizer(cfg).optimize();
+                }
+                if (opts.isDumpCFGDot()) {
+                    cfg.dumpDot(System.out);
+                }
+                else {
+                    cfg.dump(System.out);
+                }
+            }
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    /**
+     * Rebuilds the IR of each function through its control flow
+     * graph: through SSA form on -O2, verifying the graph on
+     * --verify-cfg.
+     */
+    private void optimizeIR(IR ir, Options opts) {
+        for (DefinedFunction f : ir.definedFunctions()) {
+            f.setIR(optimizeIR(f, f.ir(), opts));
+        }
+    }
+
+    private List<Stmt> optimizeIR(DefinedFunction f, List<Stmt> stmts,
+                                  Options opts) {
+        ControlFlowGraph cfg = new ControlFlowGraph(f.name(), stmts);
+        boolean verify = opts.isVerifyingCFG();
+        if (verify) {
+            CFGVerifier verifier = new CFGVerifier(cfg);
+            verifier.verify();
+            verifier.verifyRoundTrip(stmts);
+        }
+        if (opts.isSSARequired()) {
+            new SSABuilder(f, cfg).build();
+            if (verify) new CFGVerifier(cfg).verifySSA();
+            new SSAOptimizer(cfg).optimize();
+            if (verify) new CFGVerifier(cfg).verifySSA();
+            new SSADestructor(f, cfg).destruct();
+            if (verify) CFGVerifier.verify(cfg);
+        }
+        return cfg.toStmts();
+    }
+
     private boolean dumpAsm(AssemblyCode asm, CompilerMode mode) {
         if (mode == CompilerMode.DumpAsm) {
             asm.dump(System.out);
@@ -269,18 +896,14 @@ public class Compiler {
         }
     }
 
-    private boolean printAsm(AssemblyCode asm, CompilerMode mode) {
+    private boolean printAsm(AssemblyCode asm, CompilerMode mode)
+                                        throws FileException {
         if (mode == CompilerMode.PrintAsm) {
-            System.out.print(asm.toSource());
+            printSource(asm);
             return true;
         }
         else {
             return false;
         }
     }
-
-    private void errorExit(String msg) {
-        errorHandler.error(msg);
-        System.exit(1);
-    }
 }
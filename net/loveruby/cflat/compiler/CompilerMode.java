@@ -12,6 +12,7 @@ enum CompilerMode {
     DumpSemantic ("--dump-semantic"),
     DumpReference ("--dump-reference"),
     DumpIR ("--dump-ir"),
+    DumpCFG ("--dump-cfg"),
     DumpAsm ("--dump-asm"),
     PrintAsm ("--print-asm"),
     Compile ("-S"),
@@ -29,6 +30,7 @@ enum CompilerMode {
         modes.put("--dump-semantic", DumpSemantic);
         modes.put("--dump-reference", DumpReference);
         modes.put("--dump-ir", DumpIR);
+        modes.put("--dump-cfg", DumpCFG);
         modes.put("--dump-asm", DumpAsm);
         modes.put("--print-asm", PrintAsm);
         modes.put("-S", Compile);
@@ -19,11 +19,9 @@ class DereferenceChecker extends Visitor {
 
     // #@@range/check_AST{
     public void check(AST ast) throws SemanticException {
-        for (DefinedVariable var : ast.definedVariables()) {
-            checkToplevelVariable(var);
-        }
+        checkVariables(ast);
         for (DefinedFunction f : ast.definedFunctions()) {
-            check(f.body());
+            check(f);
         }
         if (errorHandler.errorOccured()) {
             throw new SemanticException("compile failed.");
@@ -31,6 +29,37 @@ class DereferenceChecker extends Visitor {
     }
     // #@@}
 
+    /** Checks the global variables of AST. */
+    public void checkVariables(AST ast) {
+        for (DefinedVariable var : ast.definedVariables()) {
+            checkToplevelVariable(var);
+        }
+    }
+
+    // True if static local variables are checked by
+    // #checkStaticLocalVariables, not with their functions.
+    private boolean staticLocalsChecked = false;
+
+    /**
+     * Checks the static local variables of AST before their
+     * functions, for the streaming compilation, which generates
+     * their data before the code of the functions.
+     */
+    public void checkStaticLocalVariables(AST ast) {
+        for (DefinedVariable var : ast.scope().staticLocalVariables()) {
+            checkVariable(var);
+        }
+        staticLocalsChecked = true;
+    }
+
+    /**
+     * Checks a function.  Functions can be checked in parallel by
+     * their own DereferenceCheckers.
+     */
+    public void check(DefinedFunction f) {
+        check(f.body());
+    }
+
     private void checkToplevelVariable(DefinedVariable var) {
         checkVariable(var);
         if (var.hasInitializer()) {
@@ -61,6 +90,7 @@ class DereferenceChecker extends Visitor {
     // #@@range/BlockNode{
     public Void visit(BlockNode node) {
         for (DefinedVariable var : node.variables()) {
+            if (staticLocalsChecked && var.isPrivate()) continue;
             checkVariable(var);
         }
         for (StmtNode stmt : node.stmts()) {
@@ -38,6 +38,25 @@ class IRGenerator implements ASTVisitor<Void, Expr> {
     }
     // #@@}
 
+    /**
+     * Generates the IR of the global and static local variables only,
+     * for the streaming compilation.  The IR of functions is made by
+     * #compileFunctionBody one by one.
+     */
+    public IR generateVariables(AST ast) {
+        for (DefinedVariable var : ast.definedVariables()) {
+            if (var.hasInitializer()) {
+                var.setIR(transformExpr(var.initializer()));
+            }
+        }
+        for (DefinedVariable var : ast.scope().staticLocalVariables()) {
+            if (var.hasInitializer()) {
+                var.setIR(transformExpr(var.initializer()));
+            }
+        }
+        return ast.ir();
+    }
+
     //
     // Definitions
     //
@@ -5,19 +5,68 @@ import net.loveruby.cflat.utils.ErrorHandler;
 import net.loveruby.cflat.exception.*;
 import java.util.*;
 
+/**
+ * Resolves the names of variables.  There are two modes of the
+ * lookup of local variables.
+ *
+ * In the indexed mode (default), each local variable is given a
+ * coordinate, the depth of its scope and its slot in the scope, and
+ * is stored in the frame of the scope at the slot.  Names are looked
+ * up in one flat table which maps a name to the coordinate of its
+ * innermost visible binding, so that a lookup costs the same
+ * regardless of the nesting of blocks.  Bindings shadowed by a block
+ * are kept in an undo log and restored when the block is left.
+ *
+ * In the chained mode, names are looked up by LocalScope#get, which
+ * searches each enclosing scope in turn.
+ *
+ * Names which are not local are searched in ToplevelScope.  Both
+ * modes resolve the same names to the same variables.
+ */
 public class LocalResolver extends Visitor {
     // #@@range/ctor{
     private final LinkedList<Scope> scopeStack;
     private final ConstantTable constantTable;
     private final ErrorHandler errorHandler;
+    private final boolean indexed;
+    private final Map<String, Binding> bindings;
+    private final List<Binding> undoLog;
+    private final List<Integer> scopeMarks;
+    // Variables of the scopes on the stack, indexed by depth and slot.
+    private final List<List<DefinedVariable>> frames;
 
     public LocalResolver(ErrorHandler h) {
+        this(h, true);
+    }
+
+    /** Uses the indexed lookup if INDEXED is true. */
+    public LocalResolver(ErrorHandler h, boolean indexed) {
         this.errorHandler = h;
+        this.indexed = indexed;
         this.scopeStack = new LinkedList<Scope>();
         this.constantTable = new ConstantTable();
+        this.bindings = new HashMap<String, Binding>();
+        this.undoLog = new ArrayList<Binding>();
+        this.scopeMarks = new ArrayList<Integer>();
+        this.frames = new ArrayList<List<DefinedVariable>>();
     }
     // #@@}
 
+    /** The coordinate of a local variable NAME. */
+    static private final class Binding {
+        final String name;
+        final int depth;
+        final int slot;
+        final Binding shadowed;
+
+        Binding(String name, int depth, int slot, Binding shadowed) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+            this.shadowed = shadowed;
+        }
+    }
+
     private void resolve(StmtNode n) {
         n.accept(this);
     }
@@ -92,21 +141,67 @@ public class LocalResolver extends Visitor {
     // #@@range/pushScope{
     private void pushScope(List<? extends DefinedVariable> vars) {
         LocalScope scope = new LocalScope(currentScope());
+        if (indexed) {
+            defineIndexed(scope, vars);
+        }
+        else {
+            for (DefinedVariable var : vars) {
+                if (scope.isDefinedLocally(var.name())) {
+                    duplicatedVariable(var);
+                }
+                else {
+                    scope.defineVariable(var);
+                }
+            }
+        }
+        scopeStack.addLast(scope);
+    }
+    // #@@}
+
+    private void defineIndexed(LocalScope scope,
+                               List<? extends DefinedVariable> vars) {
+        int depth = scopeStack.size();
+        List<DefinedVariable> frame = new ArrayList<DefinedVariable>();
+        scopeMarks.add(undoLog.size());
         for (DefinedVariable var : vars) {
-            if (scope.isDefinedLocally(var.name())) {
-                error(var.location(),
-                    "duplicated variable in scope: " + var.name());
+            Binding b = bindings.get(var.name());
+            if (b != null && b.depth == depth) {
+                duplicatedVariable(var);
             }
             else {
                 scope.defineVariable(var);
+                var.setCoordinate(depth, frame.size());
+                bind(new Binding(var.name(), depth, frame.size(), b));
+                frame.add(var);
             }
         }
-        scopeStack.addLast(scope);
+        frames.add(frame);
+    }
+
+    private void duplicatedVariable(DefinedVariable var) {
+        error(var.location(), "duplicated variable in scope: " + var.name());
+    }
+
+    private void bind(Binding b) {
+        bindings.put(b.name, b);
+        undoLog.add(b);
     }
-    // #@@}
 
     // #@@range/popScope{
     private LocalScope popScope() {
+        if (indexed) {
+            int mark = scopeMarks.remove(scopeMarks.size() - 1);
+            while (undoLog.size() > mark) {
+                Binding b = undoLog.remove(undoLog.size() - 1);
+                if (b.shadowed == null) {
+                    bindings.remove(b.name);
+                }
+                else {
+                    bindings.put(b.name, b.shadowed);
+                }
+            }
+            frames.remove(frames.size() - 1);
+        }
         return (LocalScope)scopeStack.removeLast();
     }
     // #@@}
@@ -127,7 +222,7 @@ public class LocalResolver extends Visitor {
     // #@@range/VariableNode{
     public Void visit(VariableNode node) {
         try {
-            Entity ent = currentScope().get(node.name());
+            Entity ent = lookup(node.name());
             ent.refered();
             node.setEntity(ent);
         }
@@ -138,6 +233,18 @@ public class LocalResolver extends Visitor {
     }
     // #@@}
 
+    private Entity lookup(String name) throws SemanticException {
+        if (! indexed) {
+            return currentScope().get(name);
+        }
+        Binding b = bindings.get(name);
+        if (b != null) {
+            // Frames start at depth 1; ToplevelScope is at 0.
+            return frames.get(b.depth - 1).get(b.slot);
+        }
+        return scopeStack.getFirst().get(name);
+    }
+
     private void error(Node node, String message) {
         errorHandler.error(node.location(), message);
     }
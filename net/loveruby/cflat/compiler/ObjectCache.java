@@ -0,0 +1,262 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.parser.Parser;
+import net.loveruby.cflat.parser.LibraryLoader;
+import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.exception.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.io.*;
+
+/**
+ * On-disk cache of compiled files (--cache-dir).
+ *
+ * An entry is keyed by the SHA-256 digest of the compiler version,
+ * the options which affect the output, the source file and all
+ * import files it (transitively) imports.  The entry holds the
+ * assembly file KEY.s and/or, if the source was assembled, the
+ * object file KEY.o (-integrated-as does not write KEY.s).  Entries
+ * are evicted in least-recently-used order when the total size
+ * exceeds the limit (--cache-size).
+ */
+class ObjectCache {
+    static final long DEFAULT_MAX_SIZE = 1024L * 1024L * 1024L;
+
+    static private final String EXT_ASM = ".s";
+    static private final String EXT_OBJ = ".o";
+
+    private final File dir;
+    private final long maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ObjectCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the cache key of SRC, or null if it cannot be computed
+     * (e.g. a missing import file).  The compiler reports such errors.
+     */
+    String key(SourceFile src, Options opts, ErrorHandler h) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            update(md, Compiler.ProgramName + " " + Compiler.Version);
+            update(md, opts.outputOptions());
+            update(md, src.path());
+            byte[] text = readFile(opts.file(src.path()));
+            md.update(text);
+            LibraryLoader loader = opts.newLoader();
+            Set<String> visited = new HashSet<String>();
+            digestImports(md, text, src.path(), loader, visited, h);
+            return toHex(md.digest());
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new Error("SHA-256 is not supported??: " + ex.getMessage());
+        }
+        catch (IOException ex) {
+            return null;
+        }
+        catch (CompileException ex) {
+            return null;
+        }
+    }
+
+    private void digestImports(MessageDigest md, byte[] text, String name,
+            LibraryLoader loader, Set<String> visited, ErrorHandler h)
+            throws IOException, CompileException {
+        Reader r = new InputStreamReader(
+                new ByteArrayInputStream(text), Parser.SOURCE_ENCODING);
+        List<String> libids =
+                new Parser(r, name, loader, h).parseImports();
+        for (String libid : libids) {
+            update(md, libid);
+            if (! visited.add(libid)) continue;
+            File file = loader.searchLibrary(libid);
+            byte[] lib = readFile(loader.resolve(file));
+            md.update(lib);
+            digestImports(md, lib, file.getPath(), loader, visited, h);
+        }
+    }
+
+    private void update(MessageDigest md, String s) {
+        try {
+            md.update(s.getBytes("UTF-8"));
+            md.update((byte)0);
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new Error("UTF-8 is not supported??: " + ex.getMessage());
+        }
+    }
+
+    static private final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private String toHex(byte[] bytes) {
+        StringBuilder buf = new StringBuilder();
+        for (byte b : bytes) {
+            buf.append(HEX[(b >> 4) & 0xf]);
+            buf.append(HEX[b & 0xf]);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Copies the cached assembly file to ASM and the cached object
+     * file to OBJ; null means the file is not needed.  Returns false
+     * if the entry does not exist.
+     */
+    boolean fetch(String key, File asm, File obj) {
+        File cachedAsm = new File(dir, key + EXT_ASM);
+        File cachedObj = new File(dir, key + EXT_OBJ);
+        try {
+            if ((asm != null && ! cachedAsm.exists())
+                    || (obj != null && ! cachedObj.exists())) {
+                misses.incrementAndGet();
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (asm != null) {
+                copyFile(cachedAsm, asm);
+                cachedAsm.setLastModified(now);
+            }
+            if (obj != null) {
+                copyFile(cachedObj, obj);
+                cachedObj.setLastModified(now);
+            }
+            hits.incrementAndGet();
+            return true;
+        }
+        catch (IOException ex) {
+            // The entry was evicted by another process while copying.
+            misses.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Stores ASM and OBJ (either can be null) as the entry KEY.
+     * Failures are ignored; the cache is only an optimization.
+     */
+    void store(String key, File asm, File obj) {
+        try {
+            if (! dir.isDirectory() && ! dir.mkdirs()) return;
+            if (asm != null) {
+                storeFile(asm, new File(dir, key + EXT_ASM));
+            }
+            if (obj != null) {
+                storeFile(obj, new File(dir, key + EXT_OBJ));
+            }
+            evict();
+        }
+        catch (IOException ex) {
+            ;
+        }
+    }
+
+    // Writes to a temporary file and renames it, so that other
+    // processes never see incomplete entries.
+    private void storeFile(File src, File dest) throws IOException {
+        File tmp = File.createTempFile("tmp", ".part", dir);
+        try {
+            copyFile(src, tmp);
+            if (! tmp.renameTo(dest)) {
+                dest.delete();
+                tmp.renameTo(dest);
+            }
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    /** Removes least recently used entries until the cache fits. */
+    synchronized private void evict() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Map<String, List<File>> entries = new HashMap<String, List<File>>();
+        long total = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (! name.endsWith(EXT_ASM) && ! name.endsWith(EXT_OBJ)) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - 2);
+            List<File> ent = entries.get(key);
+            if (ent == null) {
+                ent = new ArrayList<File>();
+                entries.put(key, ent);
+            }
+            ent.add(f);
+            total += f.length();
+        }
+        if (total <= maxSize) return;
+        List<List<File>> lru = new ArrayList<List<File>>(entries.values());
+        Collections.sort(lru, new Comparator<List<File>>() {
+            public int compare(List<File> a, List<File> b) {
+                long x = lastUsed(a), y = lastUsed(b);
+                return (x < y) ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (List<File> ent : lru) {
+            if (total <= maxSize) break;
+            for (File f : ent) {
+                total -= f.length();
+                f.delete();
+            }
+        }
+    }
+
+    private long lastUsed(List<File> ent) {
+        long t = 0;
+        for (File f : ent) {
+            t = Math.max(t, f.lastModified());
+        }
+        return t;
+    }
+
+    private byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            copy(in, buf);
+            return buf.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void copyFile(File src, File dest) throws IOException {
+        InputStream in = new FileInputStream(src);
+        try {
+            OutputStream out = new FileOutputStream(dest);
+            try {
+                copy(in, out);
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+    }
+}
@@ -1,14 +1,20 @@
 package net.loveruby.cflat.compiler;
 import net.loveruby.cflat.parser.LibraryLoader;
+import net.loveruby.cflat.parser.ImportCache;
+import net.loveruby.cflat.parser.PrecompiledHeaders;
 import net.loveruby.cflat.type.TypeTable;
 import net.loveruby.cflat.asm.*;
 import net.loveruby.cflat.sysdep.*;
 import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.utils.TimeReport;
 import net.loveruby.cflat.exception.*;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.io.File;
 import java.io.PrintStream;
 
 class Options {
@@ -22,14 +28,41 @@ class Options {
     private Platform platform = new X86Linux();
     private String outputFileName;
     private boolean verbose = false;
-    private LibraryLoader loader = new LibraryLoader();
+    private List<String> loadPath = LibraryLoader.defaultLoadPath();
     private boolean debugParser = false;
+    private int jobs = 1;
+    private ForkJoinPool pool = null;
+    private boolean quit = false;
+    private File workingDirectory = null;
+    private ImportCache importCache = null;
+    private String cacheDir = null;
+    private long cacheSize = ObjectCache.DEFAULT_MAX_SIZE;
+    private ObjectCache objectCache = null;
+    private String pchDir = null;
+    private PrecompiledHeaders precompiledHeaders = null;
+    private String functionCacheDir = null;
+    private final Map<String, File> librarySearchTable =
+            LibraryLoader.newSearchTable();
     private CodeGeneratorOptions genOptions = new CodeGeneratorOptions();
     private AssemblerOptions asOptions = new AssemblerOptions();
+    private boolean integratedAssembler = false;
+    private boolean saveTemps = false;
+    private boolean stream = false;
+    private TimeReport timeReport = TimeReport.nullReport();
+    private boolean timeReportJSON = false;
+    private boolean dumpCFGDot = false;
+    private boolean verifyCFG = false;
+    private boolean indexedResolver = true;
     private LinkerOptions ldOptions = new LinkerOptions();
     private List<LdArg> ldArgs;
     private List<SourceFile> sourceFiles;
 
+    /** True if the compiler should exit without compiling anything
+     * (e.g. --version and --help). */
+    boolean quitRequested() {
+        return quit;
+    }
+
     CompilerMode mode() {
         return mode;
     }
@@ -94,8 +127,128 @@ class Options {
         return this.debugParser;
     }
 
-    LibraryLoader loader() {
-        return this.loader;
+    // LibraryLoader caches loaded declarations and the semantic
+    // analysis modifies them, so each compilation unit needs its
+    // own loader.  Results of searching the load path are shared.
+    LibraryLoader newLoader() {
+        LibraryLoader loader =
+                new LibraryLoader(loadPath, workingDirectory, importCache);
+        loader.setSearchTable(librarySearchTable);
+        loader.setPrecompiledHeaders(precompiledHeaders());
+        return loader;
+    }
+
+    /** Returns null if --pch-dir is not given. */
+    synchronized PrecompiledHeaders precompiledHeaders() {
+        if (pchDir != null && precompiledHeaders == null) {
+            precompiledHeaders = new PrecompiledHeaders(file(pchDir));
+        }
+        return precompiledHeaders;
+    }
+
+    /** Caches the code of functions in DIR (--codegen-cache). */
+    void setFunctionCacheDir(String dir) {
+        this.functionCacheDir = dir;
+        genOptions.setFunctionCacheDir(file(dir));
+    }
+
+    /**
+     * Sets the directory relative paths are resolved against.
+     * The compile server uses this to compile in the client's
+     * current directory; null means the current directory of
+     * this process.
+     */
+    void setWorkingDirectory(File dir) {
+        this.workingDirectory = dir;
+        asOptions.workingDirectory = dir;
+        ldOptions.workingDirectory = dir;
+        librarySearchTable.clear();
+        if (functionCacheDir != null) {
+            genOptions.setFunctionCacheDir(file(functionCacheDir));
+        }
+    }
+
+    File file(String path) {
+        File f = new File(path);
+        if (workingDirectory == null || f.isAbsolute()) {
+            return f;
+        }
+        return new File(workingDirectory, path);
+    }
+
+    void setImportCache(ImportCache cache) {
+        this.importCache = cache;
+    }
+
+    int jobs() {
+        return this.jobs;
+    }
+
+    void setJobs(int jobs) {
+        this.jobs = jobs;
+        shutdown();
+        if (jobs > 1) {
+            pool = new ForkJoinPool(jobs);
+        }
+        genOptions.setJobs(functionJobs());
+        genOptions.setPool(pool);
+    }
+
+    /**
+     * Number of threads which check and compile functions of a file.
+     * Functions are processed in parallel when files are not.
+     */
+    int functionJobs() {
+        return isParallelBuild() ? 1 : jobs;
+    }
+
+    /**
+     * The fork-join pool of -j threads, which is shared by the loads
+     * of import files and the code generation of all files.  Returns
+     * null if -j is not given.
+     */
+    ForkJoinPool pool() {
+        return pool;
+    }
+
+    /** Stops threads started for the compilation. */
+    synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+            genOptions.setPool(null);
+        }
+    }
+
+    /** True if source files should be compiled in parallel. */
+    boolean isParallelBuild() {
+        return jobs > 1 && mode.requires(CompilerMode.Compile)
+                && sourceFiles.size() > 1;
+    }
+
+    /** Returns null if --cache-dir is not given. */
+    synchronized ObjectCache objectCache() {
+        if (cacheDir != null && objectCache == null) {
+            objectCache = new ObjectCache(file(cacheDir), cacheSize);
+        }
+        return objectCache;
+    }
+
+    /**
+     * Options which affect the output of compiling and assembling
+     * a source file.  This is a part of the object cache key.
+     */
+    String outputOptions() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("-O").append(genOptions.optimizeLevel());
+        if (genOptions.isPICRequired()) buf.append(" -fPIC");
+        if (genOptions.isPIERequired()) buf.append(" -fPIE");
+        if (genOptions.isVerboseAsm()) buf.append(" -fverbose-asm");
+        for (String a : asOptions.args()) {
+            buf.append(" -Xassembler ").append(a);
+        }
+        if (integratedAssembler) buf.append(" -integrated-as");
+        return buf.toString();
     }
 
     TypeTable typeTable() {
@@ -114,6 +267,70 @@ class Options {
         return asOptions;
     }
 
+    /** True if -integrated-as is given. */
+    boolean useIntegratedAssembler() {
+        return integratedAssembler;
+    }
+
+    IntegratedAssembler integratedAssembler(ErrorHandler h) {
+        return platform.integratedAssembler(h);
+    }
+
+    /** Returns TimeReport.nullReport() if --time-report is not given. */
+    TimeReport timeReport() {
+        return timeReport;
+    }
+
+    boolean isTimeReportRequired() {
+        return timeReport != TimeReport.nullReport();
+    }
+
+    /** True if --time-report=json is given. */
+    boolean isTimeReportJSON() {
+        return timeReportJSON;
+    }
+
+    /** True if -O2 or -O3 is given: local variables are promoted. */
+    boolean isSSARequired() {
+        return genOptions.optimizeLevel() >= 2;
+    }
+
+    /** True if --dump-cfg=dot is given. */
+    boolean isDumpCFGDot() {
+        return dumpCFGDot;
+    }
+
+    /**
+     * True if --verify-cfg is given: the IR of each function is
+     * rebuilt through its ControlFlowGraph and verified.
+     */
+    boolean isVerifyingCFG() {
+        return verifyCFG;
+    }
+
+    /**
+     * True unless --resolver=chained is given: LocalResolver looks up
+     * local variables by their coordinates in one flat table.
+     */
+    boolean isIndexedResolver() {
+        return indexedResolver;
+    }
+
+    /** True if assembly files should be kept when assembling. */
+    boolean isSavingTemps() {
+        return saveTemps;
+    }
+
+    /**
+     * True if --stream is given and assembly code is generated.
+     * Not used with -integrated-as, which needs the whole code.
+     */
+    boolean isStreaming() {
+        return stream && mode.requires(CompilerMode.Compile)
+                && ! (mode.requires(CompilerMode.Assemble)
+                      && integratedAssembler);
+    }
+
     Linker linker(ErrorHandler h) {
         return platform.linker(h);
     }
@@ -146,14 +363,45 @@ class Options {
             }
             else if (arg.startsWith("-")) {
                 if (CompilerMode.isModeOption(arg)) {
-                    if (mode != null) {
-                        parseError(mode.toOption() + " option and "
-                                   + arg + " option is exclusive");
+                    setMode(arg);
+                }
+                else if (arg.startsWith("--dump-cfg=")) {
+                    String format = arg.substring(arg.indexOf('=') + 1);
+                    if (! format.equals("text") && ! format.equals("dot")) {
+                        parseError("unknown CFG dump format: " + format);
+                    }
+                    dumpCFGDot = format.equals("dot");
+                    setMode("--dump-cfg");
+                }
+                else if (arg.startsWith("--resolver=")) {
+                    String mode = arg.substring(arg.indexOf('=') + 1);
+                    if (! mode.equals("indexed") && ! mode.equals("chained")) {
+                        parseError("unknown resolver mode: " + mode);
                     }
-                    mode = CompilerMode.fromOption(arg);
+                    indexedResolver = mode.equals("indexed");
+                }
+                else if (arg.equals("--verify-cfg")) {
+                    verifyCFG = true;
                 }
                 else if (arg.startsWith("-I")) {
-                    loader.addLoadPath(getOptArg(arg, args));
+                    loadPath.add(getOptArg(arg, args));
+                }
+                else if (arg.startsWith("-j")) {
+                    jobs = parseJobs(getOptArg(arg, args));
+                }
+                else if (arg.startsWith("--cache-dir")) {
+                    cacheDir = getLongOptArg("--cache-dir", arg, args);
+                }
+                else if (arg.startsWith("--cache-size")) {
+                    cacheSize = parseSize(
+                            getLongOptArg("--cache-size", arg, args));
+                }
+                else if (arg.startsWith("--pch-dir")) {
+                    pchDir = getLongOptArg("--pch-dir", arg, args);
+                }
+                else if (arg.startsWith("--codegen-cache")) {
+                    setFunctionCacheDir(
+                            getLongOptArg("--codegen-cache", arg, args));
                 }
                 else if (arg.equals("--debug-parser")) {
                     debugParser = true;
@@ -174,7 +422,8 @@ class Options {
                     if (! type.matches("^([0123s]|)$")) {
                         parseError("unknown optimization switch: " + arg);
                     }
-                    genOptions.setOptimizationLevel(type.equals("0") ? 0 : 1);
+                    genOptions.setOptimizationLevel(type.equals("0") ? 0
+                            : (type.equals("2") || type.equals("3")) ? 2 : 1);
                 }
                 else if (arg.equals("-fverbose-asm")
                         || arg.equals("--verbose-asm")) {
@@ -188,6 +437,32 @@ class Options {
                 else if (arg.equals("-Xassembler")) {
                     asOptions.addArg(nextArg(arg, args));
                 }
+                else if (arg.equals("-integrated-as")
+                        || arg.equals("-fintegrated-as")) {
+                    integratedAssembler = true;
+                }
+                else if (arg.equals("--time-report")
+                        || arg.startsWith("--time-report=")) {
+                    String format = arg.equals("--time-report")
+                            ? "text" : arg.substring(arg.indexOf('=') + 1);
+                    if (! format.equals("text") && ! format.equals("json")) {
+                        parseError("unknown time report format: " + format);
+                    }
+                    timeReportJSON = format.equals("json");
+                    timeReport = new TimeReport();
+                    genOptions.setTimeReport(timeReport);
+                }
+                else if (arg.equals("--save-temps")
+                        || arg.equals("-save-temps")) {
+                    saveTemps = true;
+                }
+                else if (arg.equals("--stream")) {
+                    stream = true;
+                }
+                else if (arg.equals("-no-integrated-as")
+                        || arg.equals("-fno-integrated-as")) {
+                    integratedAssembler = false;
+                }
                 else if (arg.equals("-static")) {
                     addLdArg(arg);
                 }
@@ -237,11 +512,13 @@ class Options {
                 else if (arg.equals("--version")) {
                     System.out.printf("%s version %s\n",
                         Compiler.ProgramName, Compiler.Version);
-                    System.exit(0);
+                    quit = true;
+                    return;
                 }
                 else if (arg.equals("--help")) {
                     printUsage(System.out);
-                    System.exit(0);
+                    quit = true;
+                    return;
                 }
                 else {
                     parseError("unknown option: " + arg);
@@ -273,6 +550,50 @@ class Options {
                 && ! isLinkRequired()) {
             parseError("-o option requires only 1 input (except linking)");
         }
+        setJobs(jobs);
+    }
+
+    private void setMode(String arg) {
+        if (mode != null) {
+            parseError(mode.toOption() + " option and "
+                       + arg + " option is exclusive");
+        }
+        mode = CompilerMode.fromOption(arg);
+    }
+
+    private int parseJobs(String n) {
+        try {
+            int i = Integer.parseInt(n);
+            if (i < 1) {
+                parseError("invalid number of jobs: " + n);
+            }
+            return i;
+        }
+        catch (NumberFormatException ex) {
+            parseError("invalid number of jobs: " + n);
+            return 1;   // never reach
+        }
+    }
+
+    /** "1024", "64K", "512M", "1G" */
+    private long parseSize(String size) {
+        long unit = 1;
+        String n = size;
+        if (size.matches("^\\d+[KMG]$")) {
+            switch (size.charAt(size.length() - 1)) {
+            case 'K': unit = 1024L; break;
+            case 'M': unit = 1024L * 1024L; break;
+            case 'G': unit = 1024L * 1024L * 1024L; break;
+            }
+            n = size.substring(0, size.length() - 1);
+        }
+        try {
+            return Long.parseLong(n) * unit;
+        }
+        catch (NumberFormatException ex) {
+            parseError("invalid cache size: " + size);
+            return 0;   // never reach
+        }
     }
 
     private void parseError(String msg) {
@@ -303,6 +624,21 @@ class Options {
         }
     }
 
+    /** "--name=ARG" or "--name ARG" */
+    private String getLongOptArg(String name, String opt,
+                                 ListIterator<String> args) {
+        if (opt.startsWith(name + "=")) {
+            return opt.substring(name.length() + 1);
+        }
+        else if (opt.equals(name)) {
+            return nextArg(opt, args);
+        }
+        else {
+            parseError("unknown option: " + opt);
+            return null;   // never reach
+        }
+    }
+
     private String nextArg(String opt, ListIterator<String> args) {
         if (! args.hasNext()) {
             parseError("missing argument for " + opt);
@@ -326,6 +662,8 @@ class Options {
 
     void printUsage(PrintStream out) {
         out.println("Usage: cbc [options] file...");
+        out.println("       cbc --server[=PORT]");
+        out.println("       cbc --client[=PORT] [options] file...");
         out.println("Global Options:");
         out.println("  --check-syntax   Checks syntax and quit.");
         out.println("  --dump-tokens    Dumps tokens and quit.");
@@ -335,19 +673,34 @@ class Options {
         out.println("  --dump-semantic  Dumps AST after semantic checks and quit.");
         // --dump-reference is a hidden option.
         out.println("  --dump-ir        Dumps IR and quit.");
+        out.println("  --dump-cfg[=FMT] Dumps control flow graphs (SSA form on -O2) and quit (FMT: text, dot).");
+        // --verify-cfg is a hidden option.
         out.println("  --dump-asm       Dumps AssemblyCode and quit.");
         out.println("  --print-asm      Prints assembly code and quit.");
         out.println("  -S               Generates an assembly file and quit.");
         out.println("  -c               Generates an object file and quit.");
         out.println("  -o PATH          Places output in file PATH.");
+        out.println("  --save-temps     Keeps assembly files when generating object files.");
+        out.println("  -j N             Compiles N files (or functions) and loads import files in parallel.");
+        out.println("  --cache-dir DIR  Caches compiled files in DIR.");
+        out.println("  --cache-size N   Limits the cache size to N bytes (K, M, G; default 1G).");
+        out.println("  --pch-dir DIR    Stores precompiled import files in DIR.");
+        out.println("  --codegen-cache DIR  Reuses the code of unchanged functions stored in DIR.");
+        out.println("  --stream         Checks, generates and writes one function at a time.");
+        out.println("  --time-report[=FMT]  Prints time spent in each phase to stderr (FMT: text, json).");
+        out.println("  --resolver=MODE  Looks up local variables by MODE (indexed (default), chained).");
         out.println("  -v               Turn on verbose mode.");
         out.println("  --version        Shows compiler version and quit.");
         out.println("  --help           Prints this message and quit.");
         out.println("");
+        out.println("Compile Server Options:");
+        out.println("  --server[=PORT]  Runs as a compile server on localhost:PORT.");
+        out.println("  --client[=PORT]  Sends the rest of arguments to the compile server.");
+        out.println("");
         out.println("Optimization Options:");
         out.println("  -O               Enables optimization.");
-        out.println("  -O1, -O2, -O3    Equivalent to -O.");
-        out.println("  -Os              Equivalent to -O.");
+        out.println("  -O1, -Os         Equivalent to -O.");
+        out.println("  -O2, -O3         Also keeps local variables in registers.");
         out.println("  -O0              Disables optimization (default).");
         out.println("");
         out.println("Parser Options:");
@@ -356,8 +709,8 @@ class Options {
         out.println("");
         out.println("Code Generator Options:");
         out.println("  -O               Enables optimization.");
-        out.println("  -O1, -O2, -O3    Equivalent to -O.");
-        out.println("  -Os              Equivalent to -O.");
+        out.println("  -O1, -Os         Equivalent to -O.");
+        out.println("  -O2, -O3         Also keeps local variables in registers.");
         out.println("  -O0              Disables optimization (default).");
         out.println("  -fPIC            Generates PIC assembly.");
         out.println("  -fpic            Equivalent to -fPIC.");
@@ -368,6 +721,8 @@ class Options {
         out.println("Assembler Options:");
         out.println("  -Wa,OPT          Passes OPT to the assembler (as).");
         out.println("  -Xassembler OPT  Passes OPT to the assembler (as).");
+        out.println("  -integrated-as   Generates object files without the assembler (as).");
+        out.println("  -no-integrated-as  Uses the assembler (as) (default).");
         out.println("");
         out.println("Linker Options:");
         out.println("  -l LIB           Links the library LIB.");
@@ -29,14 +29,9 @@ class TypeChecker extends Visitor {
     DefinedFunction currentFunction;
 
     public void check(AST ast) throws SemanticException {
-        for (DefinedVariable var : ast.definedVariables()) {
-            checkVariable(var);
-        }
+        checkVariables(ast);
         for (DefinedFunction f : ast.definedFunctions()) {
-            currentFunction = f;
-            checkReturnType(f);
-            checkParamTypes(f);
-            check(f.body());
+            check(f);
         }
         if (errorHandler.errorOccured()) {
             throw new SemanticException("compile failed.");
@@ -44,6 +39,39 @@ class TypeChecker extends Visitor {
     }
     // #@@}
 
+    /** Checks the global variables of AST. */
+    public void checkVariables(AST ast) {
+        for (DefinedVariable var : ast.definedVariables()) {
+            checkVariable(var);
+        }
+    }
+
+    // Set by #checkStaticLocalVariables; blocks skip them then.
+    private boolean staticLocalsChecked = false;
+
+    /**
+     * Checks the initializers of the static local variables of AST.
+     * The streaming compilation needs them before it checks the
+     * functions one by one.
+     */
+    public void checkStaticLocalVariables(AST ast) {
+        for (DefinedVariable var : ast.scope().staticLocalVariables()) {
+            checkVariable(var);
+        }
+        staticLocalsChecked = true;
+    }
+
+    /**
+     * Checks a function.  Functions can be checked in parallel by
+     * their own TypeCheckers.
+     */
+    public void check(DefinedFunction f) {
+        currentFunction = f;
+        checkReturnType(f);
+        checkParamTypes(f);
+        check(f.body());
+    }
+
     private void checkReturnType(DefinedFunction f) {
         if (isInvalidReturnType(f.returnType())) {
             error(f.location(), "returns invalid type: " + f.returnType());
@@ -65,6 +93,7 @@ class TypeChecker extends Visitor {
 
     public Void visit(BlockNode node) {
         for (DefinedVariable var : node.variables()) {
+            if (staticLocalsChecked && var.isPrivate()) continue;
             checkVariable(var);
         }
         for (StmtNode n : node.stmts()) {
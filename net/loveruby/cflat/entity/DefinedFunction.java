@@ -40,6 +40,15 @@ public class DefinedFunction extends Function {
         this.ir = ir;
     }
 
+    /**
+     * Releases the body and the IR, which are not used after
+     * the code is generated (streaming compilation).
+     */
+    public void releaseBody() {
+        this.body = null;
+        this.ir = null;
+    }
+
     public void setScope(LocalScope scope) {
         this.scope = scope;
     }
@@ -11,19 +11,21 @@ public class DefinedVariable extends Variable {
     protected Expr ir;
     protected long sequence;
     protected Symbol symbol;
+    protected int scopeDepth;
+    protected int slot;
 
     public DefinedVariable(boolean priv, TypeNode type,
                            String name, ExprNode init) {
         super(priv, type, name);
         initializer = init;
         sequence = -1;
+        scopeDepth = -1;
+        slot = -1;
     }
 
-    static private long tmpSeq = 0;
-
-    static public DefinedVariable tmp(Type t) {
+    static public DefinedVariable tmp(Type t, long seq) {
         return new DefinedVariable(false,
-                new TypeNode(t), "@tmp" + tmpSeq++, null);
+                new TypeNode(t), "@tmp" + seq, null);
     }
 
     public boolean isDefined() {
@@ -34,6 +36,26 @@ public class DefinedVariable extends Variable {
         this.sequence = seq;
     }
 
+    /**
+     * Sets the coordinate of a local variable given by LocalResolver:
+     * the depth of its scope (parameters are at 1) and its index in
+     * the scope.
+     */
+    public void setCoordinate(int depth, int slot) {
+        this.scopeDepth = depth;
+        this.slot = slot;
+    }
+
+    /** Returns -1 if the coordinate is not set. */
+    public int scopeDepth() {
+        return scopeDepth;
+    }
+
+    /** Returns -1 if the coordinate is not set. */
+    public int slot() {
+        return slot;
+    }
+
     public String symbolString() {
         return (sequence < 0) ? name : (name + "." + sequence);
     }
@@ -46,7 +46,7 @@ public class LocalScope extends Scope {
     // #@@}
 
     public DefinedVariable allocateTmp(Type t) {
-        DefinedVariable var = DefinedVariable.tmp(t);
+        DefinedVariable var = DefinedVariable.tmp(t, toplevel().newTmpSequence());
         defineVariable(var);
         return var;
     }
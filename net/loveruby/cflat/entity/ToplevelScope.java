@@ -7,11 +7,13 @@ import java.util.*;
 public class ToplevelScope extends Scope {
     protected Map<String, Entity> entities;
     protected List<DefinedVariable> staticLocalVariables;   // cache
+    protected long tmpSeq;
 
     public ToplevelScope() {
         super();
         entities = new LinkedHashMap<String, Entity>();
         staticLocalVariables = null;
+        tmpSeq = 0;
     }
 
     public boolean isToplevel() {
@@ -26,6 +28,15 @@ public class ToplevelScope extends Scope {
         return null;
     }
 
+    /**
+     * Returns a new sequence number for temporary variables.
+     * Numbered per compilation unit, so that the generated names
+     * do not depend on other files compiled in the same process.
+     */
+    public long newTmpSequence() {
+        return tmpSeq++;
+    }
+
     /** Declare variable or function globally. */
     // #@@range/declareEntity{
     public void declareEntity(Entity entity) throws SemanticException {
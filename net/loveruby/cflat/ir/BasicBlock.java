@@ -0,0 +1,99 @@
+package net.loveruby.cflat.ir;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * A maximal run of IR statements which is entered only at its top
+ * and left only at its bottom.  A block consists of its labels,
+ * straight-line statements (Assign and ExprStmt) and an optional
+ * terminator (Jump, CJump, Switch or Return).  A block without a
+ * terminator falls through to the next block of the graph.
+ * In SSA form, a block also has phi functions before its statements.
+ */
+public class BasicBlock {
+    protected int id;
+    protected List<LabelStmt> labels;
+    protected List<Phi> phis;
+    protected List<Stmt> stmts;
+    protected Stmt terminator;
+    protected List<BasicBlock> successors;
+    protected List<BasicBlock> predecessors;
+
+    BasicBlock(int id) {
+        this.id = id;
+        this.labels = new ArrayList<LabelStmt>();
+        this.phis = new ArrayList<Phi>();
+        this.stmts = new ArrayList<Stmt>();
+        this.terminator = null;
+        this.successors = new ArrayList<BasicBlock>();
+        this.predecessors = new ArrayList<BasicBlock>();
+    }
+
+    /** The index of this block in ControlFlowGraph#blocks. */
+    public int id() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    public String name() {
+        return "bb" + id;
+    }
+
+    public List<LabelStmt> labels() {
+        return labels;
+    }
+
+    public boolean hasLabel() {
+        return !labels.isEmpty();
+    }
+
+    /**
+     * Returns the first label of this block, adding a new one
+     * if the block has none (e.g. to jump to a fall-through block).
+     */
+    public Label label() {
+        if (labels.isEmpty()) {
+            labels.add(new LabelStmt(null, new Label()));
+        }
+        return labels.get(0).label();
+    }
+
+    /** Phi functions; their arguments are ordered as #predecessors. */
+    public List<Phi> phis() {
+        return phis;
+    }
+
+    /** Statements between the labels and the terminator. */
+    public List<Stmt> stmts() {
+        return stmts;
+    }
+
+    /** Jump, CJump, Switch, Return, or null for fall-through. */
+    public Stmt terminator() {
+        return terminator;
+    }
+
+    public void setTerminator(Stmt s) {
+        this.terminator = s;
+    }
+
+    public List<BasicBlock> successors() {
+        return successors;
+    }
+
+    public List<BasicBlock> predecessors() {
+        return predecessors;
+    }
+
+    /** True if this block leaves the function. */
+    public boolean isExit() {
+        return successors.isEmpty();
+    }
+
+    public String toString() {
+        return name();
+    }
+}
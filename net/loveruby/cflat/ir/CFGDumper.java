@@ -0,0 +1,266 @@
+package net.loveruby.cflat.ir;
+import net.loveruby.cflat.asm.Label;
+import net.loveruby.cflat.utils.TextUtils;
+import java.util.*;
+import java.io.PrintStream;
+
+/**
+ * Prints a ControlFlowGraph as text (--dump-cfg) or as a Graphviz
+ * digraph (--dump-cfg=dot).  Statements are printed in one line
+ * each, and jump targets are printed as block names.
+ */
+public class CFGDumper implements IRVisitor<String,String> {
+    protected PrintStream stream;
+    protected ControlFlowGraph cfg;
+
+    public CFGDumper(PrintStream s) {
+        this.stream = s;
+    }
+
+    public void dump(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        DominatorTree dom = cfg.dominatorTree();
+        LoopInfo loops = new LoopInfo(dom);
+        stream.println("function " + cfg.name() + ":");
+        for (BasicBlock b : cfg.blocks()) {
+            StringBuilder buf = new StringBuilder();
+            buf.append(b.name()).append(":");
+            buf.append("  ; preds:").append(blockNames(b.predecessors()));
+            buf.append(" ; succs:").append(blockNames(b.successors()));
+            if (!dom.isReachable(b)) {
+                buf.append(" ; unreachable");
+            }
+            else if (dom.idom(b) != null) {
+                buf.append(" ; idom: ").append(dom.idom(b).name());
+            }
+            LoopInfo.Loop loop = loops.loopFor(b);
+            if (loop != null) {
+                buf.append(" ; loop: ").append(loop.header().name());
+                buf.append(" depth ").append(loop.depth());
+            }
+            stream.println(buf.toString());
+            for (String line : lines(b)) {
+                stream.println("    " + line);
+            }
+        }
+        stream.println();
+    }
+
+    public void dumpDot(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        stream.println("digraph " + quote(cfg.name()) + " {");
+        stream.println("    node [shape=box, fontname=\"monospace\"];");
+        for (BasicBlock b : cfg.blocks()) {
+            StringBuilder buf = new StringBuilder();
+            buf.append(b.name()).append(":\\l");
+            for (String line : lines(b)) {
+                buf.append(escape(line)).append("\\l");
+            }
+            stream.println("    " + b.name()
+                    + " [label=\"" + buf.toString() + "\"];");
+        }
+        for (BasicBlock b : cfg.blocks()) {
+            for (BasicBlock succ : b.successors()) {
+                stream.println("    " + b.name() + " -> " + succ.name()
+                        + edgeAttributes(b, succ) + ";");
+            }
+        }
+        stream.println("}");
+    }
+
+    private String edgeAttributes(BasicBlock b, BasicBlock succ) {
+        if (!(b.terminator() instanceof CJump)) return "";
+        CJump j = (CJump)b.terminator();
+        if (j.thenLabel() == j.elseLabel()) return "";
+        return (cfg.blockOf(j.thenLabel()) == succ)
+                ? " [label=\"T\"]" : " [label=\"F\"]";
+    }
+
+    private List<String> lines(BasicBlock b) {
+        List<String> result = new ArrayList<String>();
+        for (Phi phi : b.phis()) {
+            StringBuilder buf = new StringBuilder();
+            buf.append(phi.var().name()).append(" = phi(");
+            String sep = "";
+            for (int i = 0; i < phi.args().size(); i++) {
+                buf.append(sep).append(phi.args().get(i).name());
+                buf.append(" ").append(b.predecessors().get(i).name());
+                sep = ", ";
+            }
+            buf.append(")");
+            result.add(buf.toString());
+        }
+        for (Stmt s : b.stmts()) {
+            result.add(s.accept(this));
+        }
+        if (b.terminator() != null) {
+            result.add(b.terminator().accept(this));
+        }
+        return result;
+    }
+
+    private String blockNames(List<BasicBlock> blocks) {
+        StringBuilder buf = new StringBuilder();
+        for (BasicBlock b : blocks) {
+            buf.append(" ").append(b.name());
+        }
+        return buf.toString();
+    }
+
+    private String quote(String str) {
+        return "\"" + escape(str) + "\"";
+    }
+
+    private String escape(String str) {
+        return str.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private String target(Label label) {
+        BasicBlock b = cfg.blockOf(label);
+        return (b == null) ? Integer.toHexString(label.hashCode()) : b.name();
+    }
+
+    //
+    // Statements
+    //
+
+    public String visit(ExprStmt s) {
+        return s.expr().accept(this);
+    }
+
+    public String visit(Assign s) {
+        return lvalue(s.lhs()) + " = " + s.rhs().accept(this);
+    }
+
+    private String lvalue(Expr addr) {
+        if (addr instanceof Addr) {
+            return ((Addr)addr).entity().name();
+        }
+        else {
+            return "*" + addr.accept(this);
+        }
+    }
+
+    public String visit(CJump s) {
+        return "if " + s.cond().accept(this)
+                + " goto " + target(s.thenLabel())
+                + " else " + target(s.elseLabel());
+    }
+
+    public String visit(Jump s) {
+        return "goto " + target(s.label());
+    }
+
+    public String visit(Switch s) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("switch ").append(s.cond().accept(this)).append(" [");
+        String sep = "";
+        for (Case c : s.cases()) {
+            buf.append(sep).append(c.value).append(": ");
+            buf.append(target(c.label));
+            sep = ", ";
+        }
+        buf.append("] default ").append(target(s.defaultLabel()));
+        return buf.toString();
+    }
+
+    public String visit(LabelStmt s) {
+        return target(s.label()) + ":";
+    }
+
+    public String visit(Return s) {
+        return (s.expr() == null) ? "return"
+                                  : "return " + s.expr().accept(this);
+    }
+
+    //
+    // Expressions
+    //
+
+    public String visit(Uni s) {
+        String expr = s.expr().accept(this);
+        switch (s.op()) {
+        case UMINUS:  return "-" + expr;
+        case BIT_NOT: return "~" + expr;
+        case NOT:     return "!" + expr;
+        case S_CAST:  return "(" + s.type() + ")" + expr;
+        case U_CAST:  return "(unsigned " + s.type() + ")" + expr;
+        default:
+            throw new Error("unknown unary op: " + s.op());
+        }
+    }
+
+    public String visit(Bin s) {
+        return "(" + s.left().accept(this)
+                + " " + binaryOp(s.op()) + " "
+                + s.right().accept(this) + ")";
+    }
+
+    private String binaryOp(Op op) {
+        switch (op) {
+        case ADD:           return "+";
+        case SUB:           return "-";
+        case MUL:           return "*";
+        case S_DIV:         return "/";
+        case U_DIV:         return "/u";
+        case S_MOD:         return "%";
+        case U_MOD:         return "%u";
+        case BIT_AND:       return "&";
+        case BIT_OR:        return "|";
+        case BIT_XOR:       return "^";
+        case BIT_LSHIFT:    return "<<";
+        case BIT_RSHIFT:    return ">>u";
+        case ARITH_RSHIFT:  return ">>";
+        case EQ:            return "==";
+        case NEQ:           return "!=";
+        case S_GT:          return ">";
+        case S_GTEQ:        return ">=";
+        case S_LT:          return "<";
+        case S_LTEQ:        return "<=";
+        case U_GT:          return ">u";
+        case U_GTEQ:        return ">=u";
+        case U_LT:          return "<u";
+        case U_LTEQ:        return "<=u";
+        default:
+            throw new Error("unknown binary op: " + op);
+        }
+    }
+
+    public String visit(Call s) {
+        StringBuilder buf = new StringBuilder();
+        if (s.isStaticCall()) {
+            buf.append(s.function().name());
+        }
+        else {
+            buf.append("(").append(s.expr().accept(this)).append(")");
+        }
+        buf.append("(");
+        String sep = "";
+        for (Expr arg : s.args()) {
+            buf.append(sep).append(arg.accept(this));
+            sep = ", ";
+        }
+        buf.append(")");
+        return buf.toString();
+    }
+
+    public String visit(Addr s) {
+        return "&" + s.entity().name();
+    }
+
+    public String visit(Mem s) {
+        return "*" + s.expr().accept(this);
+    }
+
+    public String visit(Var s) {
+        return s.name();
+    }
+
+    public String visit(Int s) {
+        return "" + s.value();
+    }
+
+    public String visit(Str s) {
+        return TextUtils.dumpString(s.entry().value());
+    }
+}
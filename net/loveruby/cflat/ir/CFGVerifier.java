@@ -0,0 +1,253 @@
+package net.loveruby.cflat.ir;
+import net.loveruby.cflat.entity.DefinedVariable;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Checks the invariants of a ControlFlowGraph, its dominator tree
+ * and its loops.  A broken graph is a compiler bug, so #verify
+ * throws Error.
+ */
+public class CFGVerifier {
+    static public void verify(ControlFlowGraph cfg) {
+        new CFGVerifier(cfg).verify();
+    }
+
+    protected ControlFlowGraph cfg;
+
+    public CFGVerifier(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+    }
+
+    public void verify() {
+        verifyBlocks();
+        verifyEdges();
+        DominatorTree dom = cfg.dominatorTree();
+        verifyDominators(dom);
+        verifyLoops(dom, new LoopInfo(dom));
+    }
+
+    /**
+     * Checks SSA form: each SSAVariable is defined once, and its
+     * definition dominates its uses.  A phi argument is used at the
+     * end of the corresponding predecessor.
+     */
+    public void verifySSA() {
+        DominatorTree dom = cfg.dominatorTree();
+        final Map<SSAVariable, BasicBlock> defBlocks =
+                new HashMap<SSAVariable, BasicBlock>();
+        for (BasicBlock b : cfg.blocks()) {
+            for (Phi phi : b.phis()) {
+                if (phi.args().size() != b.predecessors().size()) {
+                    fail("phi of " + phi.var().name() + " in " + b
+                            + " does not match predecessors");
+                }
+                define(defBlocks, phi.var(), b);
+            }
+            for (Stmt s : b.stmts()) {
+                SSAVariable v = SSAOptimizer.definedVersion(s);
+                if (v != null) define(defBlocks, v, b);
+            }
+        }
+        for (BasicBlock b : cfg.blocks()) {
+            for (Phi phi : b.phis()) {
+                for (int j = 0; j < phi.args().size(); j++) {
+                    DefinedVariable arg = phi.args().get(j);
+                    if (arg == null) {
+                        fail("phi of " + phi.var().name() + " has no value");
+                    }
+                    if (! (arg instanceof SSAVariable)) continue;
+                    BasicBlock def = defBlocks.get(arg);
+                    BasicBlock pred = b.predecessors().get(j);
+                    if (def == null || ! dom.dominates(def, pred)) {
+                        fail(arg.name() + " does not dominate its use in "
+                                + b);
+                    }
+                }
+            }
+            final Set<SSAVariable> defined = new HashSet<SSAVariable>();
+            for (Phi phi : b.phis()) {
+                defined.add(phi.var());
+            }
+            List<Stmt> stmts = new ArrayList<Stmt>(b.stmts());
+            if (b.terminator() != null) stmts.add(b.terminator());
+            for (Stmt s : stmts) {
+                final List<SSAVariable> uses = new ArrayList<SSAVariable>();
+                new IRRewriter() {
+                    protected Expr rewriteVar(Var var) {
+                        if (var.entity() instanceof SSAVariable) {
+                            uses.add((SSAVariable)var.entity());
+                        }
+                        return var;
+                    }
+                }.rewrite(s);
+                for (SSAVariable v : uses) {
+                    BasicBlock def = defBlocks.get(v);
+                    boolean ok = (def == b) ? defined.contains(v)
+                                            : (def != null
+                                               && dom.dominates(def, b));
+                    if (! ok) {
+                        fail(v.name() + " does not dominate its use in " + b);
+                    }
+                }
+                SSAVariable v = SSAOptimizer.definedVersion(s);
+                if (v != null) defined.add(v);
+            }
+        }
+    }
+
+    private void define(Map<SSAVariable, BasicBlock> defBlocks,
+                        SSAVariable v, BasicBlock b) {
+        if (defBlocks.put(v, b) != null) {
+            fail(v.name() + " is defined twice");
+        }
+    }
+
+    /**
+     * Checks that the statements of the graph are STMTS and that the
+     * graph made from them is same as this graph.
+     */
+    public void verifyRoundTrip(List<Stmt> stmts) {
+        List<Stmt> result = cfg.toStmts();
+        if (result.size() != stmts.size()) {
+            fail("round trip changed the number of statements: "
+                    + stmts.size() + " -> " + result.size());
+        }
+        for (int i = 0; i < stmts.size(); i++) {
+            if (result.get(i) != stmts.get(i)) {
+                fail("round trip changed statement #" + i);
+            }
+        }
+        ControlFlowGraph again = new ControlFlowGraph(cfg.name(), result);
+        if (again.blocks().size() != cfg.blocks().size()) {
+            fail("round trip changed the number of blocks");
+        }
+        for (BasicBlock b : cfg.blocks()) {
+            BasicBlock b2 = again.blocks().get(b.id());
+            if (! sameBlocks(b.successors(), b2.successors())) {
+                fail("round trip changed the successors of " + b);
+            }
+        }
+    }
+
+    private boolean sameBlocks(List<BasicBlock> a, List<BasicBlock> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i).id() != b.get(i).id()) return false;
+        }
+        return true;
+    }
+
+    private void verifyBlocks() {
+        List<BasicBlock> blocks = cfg.blocks();
+        if (blocks.isEmpty()) {
+            fail("no entry block");
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            BasicBlock b = blocks.get(i);
+            if (b.id() != i) {
+                fail(b + " is at #" + i);
+            }
+            for (LabelStmt s : b.labels()) {
+                if (cfg.blockOf(s.label()) != b) {
+                    fail("label of " + b + " is not mapped to it");
+                }
+            }
+            for (Stmt s : b.stmts()) {
+                if (s instanceof LabelStmt) {
+                    fail("label in the middle of " + b);
+                }
+                if (ControlFlowGraph.isTerminator(s)) {
+                    fail("jump in the middle of " + b);
+                }
+            }
+            Stmt term = b.terminator();
+            if (term != null && ! ControlFlowGraph.isTerminator(term)) {
+                fail("bad terminator of " + b);
+            }
+            if (term != null) {
+                for (Label label : ControlFlowGraph.jumpTargets(term)) {
+                    if (cfg.blockOf(label) == null) {
+                        fail(b + " jumps to unknown label");
+                    }
+                }
+            }
+        }
+    }
+
+    private void verifyEdges() {
+        for (BasicBlock b : cfg.blocks()) {
+            if (! b.successors().equals(cfg.expectedSuccessors(b))) {
+                fail("successors of " + b + " do not match its terminator");
+            }
+            for (BasicBlock succ : b.successors()) {
+                if (! succ.predecessors().contains(b)) {
+                    fail(b + " is not a predecessor of " + succ);
+                }
+            }
+            Set<BasicBlock> preds = new HashSet<BasicBlock>();
+            for (BasicBlock pred : b.predecessors()) {
+                if (! preds.add(pred)) {
+                    fail("duplicated predecessor " + pred + " of " + b);
+                }
+                if (! pred.successors().contains(b)) {
+                    fail(b + " is not a successor of " + pred);
+                }
+            }
+        }
+    }
+
+    private void verifyDominators(DominatorTree dom) {
+        for (BasicBlock b : cfg.blocks()) {
+            BasicBlock idom = dom.idom(b);
+            if (b == cfg.entry() || ! dom.isReachable(b)) {
+                if (idom != null) {
+                    fail(b + " must not have idom");
+                }
+                continue;
+            }
+            if (idom == null || ! dom.strictlyDominates(idom, b)) {
+                fail("bad idom of " + b);
+            }
+            // The idom dominates all reachable predecessors.
+            for (BasicBlock pred : b.predecessors()) {
+                if (dom.isReachable(pred) && ! dom.dominates(idom, pred)) {
+                    fail("idom of " + b + " does not dominate " + pred);
+                }
+            }
+        }
+    }
+
+    private void verifyLoops(DominatorTree dom, LoopInfo loops) {
+        for (LoopInfo.Loop loop : loops.loops()) {
+            for (BasicBlock b : loop.blocks()) {
+                if (! dom.dominates(loop.header(), b)) {
+                    fail("loop header " + loop.header()
+                            + " does not dominate " + b);
+                }
+                if (loops.depth(b) < loop.depth()) {
+                    fail("depth of " + b + " is less than its loop");
+                }
+            }
+            for (BasicBlock latch : loop.latches()) {
+                if (! latch.successors().contains(loop.header())) {
+                    fail("latch " + latch + " does not jump to "
+                            + loop.header());
+                }
+            }
+            LoopInfo.Loop parent = loop.parent();
+            if (parent != null) {
+                for (BasicBlock b : loop.blocks()) {
+                    if (! parent.contains(b)) {
+                        fail("loop " + loop.header()
+                                + " is not nested in its parent");
+                    }
+                }
+            }
+        }
+    }
+
+    private void fail(String msg) {
+        throw new Error("broken CFG of " + cfg.name() + ": " + msg);
+    }
+}
@@ -0,0 +1,249 @@
+package net.loveruby.cflat.ir;
+import net.loveruby.cflat.entity.DefinedFunction;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+import java.io.PrintStream;
+
+/**
+ * The control flow graph of a function body.  #blocks keeps the
+ * layout order of the original statement list, so #toStmts gives
+ * back the same statements as the graph was built from; unreachable
+ * blocks are kept, too.  A block without a terminator falls through
+ * to the next block of #blocks.
+ *
+ * Passes which add, remove or reorder blocks or change terminators
+ * must call #rebuildEdges afterwards.  Phi functions must be removed
+ * (SSADestructor) before that and before #toStmts.
+ */
+public class ControlFlowGraph {
+    protected String name;
+    protected List<BasicBlock> blocks;
+    protected Map<Label, BasicBlock> labelMap;
+
+    static public ControlFlowGraph build(DefinedFunction func) {
+        return new ControlFlowGraph(func.name(), func.ir());
+    }
+
+    public ControlFlowGraph(String name, List<Stmt> stmts) {
+        this.name = name;
+        this.blocks = new ArrayList<BasicBlock>();
+        split(stmts);
+        rebuildEdges();
+    }
+
+    private void split(List<Stmt> stmts) {
+        BasicBlock b = newBlock();
+        for (Stmt s : stmts) {
+            if (s instanceof LabelStmt) {
+                if (b.terminator() != null || ! b.stmts().isEmpty()) {
+                    b = newBlock();
+                }
+                b.labels().add((LabelStmt)s);
+            }
+            else if (isTerminator(s)) {
+                if (b.terminator() != null) {
+                    b = newBlock();
+                }
+                b.setTerminator(s);
+            }
+            else {
+                if (b.terminator() != null) {
+                    b = newBlock();
+                }
+                b.stmts().add(s);
+            }
+        }
+    }
+
+    /** Adds an empty block at the end of the layout. */
+    BasicBlock newBlock() {
+        BasicBlock b = new BasicBlock(blocks.size());
+        blocks.add(b);
+        return b;
+    }
+
+    static public boolean isTerminator(Stmt s) {
+        return (s instanceof Jump) || (s instanceof CJump)
+                || (s instanceof Switch) || (s instanceof Return);
+    }
+
+    /**
+     * Returns the labels a terminator may jump to, without
+     * duplicates.  Returns an empty list for Return.
+     */
+    static public List<Label> jumpTargets(Stmt term) {
+        List<Label> result = new ArrayList<Label>();
+        if (term instanceof Jump) {
+            result.add(((Jump)term).label());
+        }
+        else if (term instanceof CJump) {
+            CJump j = (CJump)term;
+            result.add(j.thenLabel());
+            if (j.elseLabel() != j.thenLabel()) {
+                result.add(j.elseLabel());
+            }
+        }
+        else if (term instanceof Switch) {
+            Switch sw = (Switch)term;
+            for (Case c : sw.cases()) {
+                if (! result.contains(c.label)) {
+                    result.add(c.label);
+                }
+            }
+            if (! result.contains(sw.defaultLabel())) {
+                result.add(sw.defaultLabel());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Renumbers blocks in the layout order and recomputes the label
+     * map and the successor/predecessor edges from the terminators.
+     */
+    public void rebuildEdges() {
+        labelMap = new HashMap<Label, BasicBlock>();
+        for (int i = 0; i < blocks.size(); i++) {
+            BasicBlock b = blocks.get(i);
+            if (! b.phis().isEmpty()) {
+                throw new Error("must not happen: rebuildEdges in SSA form");
+            }
+            b.setId(i);
+            b.successors().clear();
+            b.predecessors().clear();
+            for (LabelStmt s : b.labels()) {
+                if (labelMap.containsKey(s.label())) {
+                    throw new Error("must not happen: duplicated label in "
+                                    + name);
+                }
+                labelMap.put(s.label(), b);
+            }
+        }
+        for (BasicBlock b : blocks) {
+            for (BasicBlock succ : expectedSuccessors(b)) {
+                b.successors().add(succ);
+                succ.predecessors().add(b);
+            }
+        }
+    }
+
+    /** Successors of B computed from its terminator and the layout. */
+    List<BasicBlock> expectedSuccessors(BasicBlock b) {
+        List<BasicBlock> result = new ArrayList<BasicBlock>();
+        if (b.terminator() == null) {
+            int next = b.id() + 1;
+            if (next < blocks.size()) {
+                result.add(blocks.get(next));
+            }
+        }
+        else {
+            for (Label label : jumpTargets(b.terminator())) {
+                BasicBlock target = labelMap.get(label);
+                if (target == null) {
+                    throw new Error("must not happen: jump to unknown label in "
+                                    + name);
+                }
+                if (! result.contains(target)) {
+                    result.add(target);
+                }
+            }
+        }
+        return result;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public List<BasicBlock> blocks() {
+        return blocks;
+    }
+
+    public BasicBlock entry() {
+        return blocks.get(0);
+    }
+
+    /** Returns the block labeled LABEL, or null. */
+    public BasicBlock blockOf(Label label) {
+        return labelMap.get(label);
+    }
+
+    /** Reachable blocks in reverse postorder, starting from #entry. */
+    public List<BasicBlock> reversePostorder() {
+        List<BasicBlock> post = new ArrayList<BasicBlock>();
+        boolean[] seen = new boolean[blocks.size()];
+        // Iterative DFS; each frame is a block and its next successor.
+        LinkedList<BasicBlock> stack = new LinkedList<BasicBlock>();
+        LinkedList<Integer> nexts = new LinkedList<Integer>();
+        seen[entry().id()] = true;
+        stack.addFirst(entry());
+        nexts.addFirst(0);
+        while (! stack.isEmpty()) {
+            BasicBlock b = stack.getFirst();
+            int i = nexts.removeFirst();
+            if (i < b.successors().size()) {
+                nexts.addFirst(i + 1);
+                BasicBlock succ = b.successors().get(i);
+                if (! seen[succ.id()]) {
+                    seen[succ.id()] = true;
+                    stack.addFirst(succ);
+                    nexts.addFirst(0);
+                }
+            }
+            else {
+                stack.removeFirst();
+                post.add(b);
+            }
+        }
+        Collections.reverse(post);
+        return post;
+    }
+
+    /**
+     * Removes blocks not reachable from the entry.  A reachable block
+     * never falls through to an unreachable one, so the layout of the
+     * remaining blocks is valid.
+     */
+    public void removeUnreachableBlocks() {
+        List<BasicBlock> reachable = reversePostorder();
+        if (reachable.size() == blocks.size()) return;
+        boolean[] keep = new boolean[blocks.size()];
+        for (BasicBlock b : reachable) {
+            keep[b.id()] = true;
+        }
+        List<BasicBlock> result = new ArrayList<BasicBlock>();
+        for (BasicBlock b : blocks) {
+            if (keep[b.id()]) result.add(b);
+        }
+        blocks = result;
+        rebuildEdges();
+    }
+
+    public DominatorTree dominatorTree() {
+        return new DominatorTree(this);
+    }
+
+    /** Flattens the graph back into a statement list. */
+    public List<Stmt> toStmts() {
+        List<Stmt> result = new ArrayList<Stmt>();
+        for (BasicBlock b : blocks) {
+            if (! b.phis().isEmpty()) {
+                throw new Error("must not happen: toStmts in SSA form");
+            }
+            result.addAll(b.labels());
+            result.addAll(b.stmts());
+            if (b.terminator() != null) {
+                result.add(b.terminator());
+            }
+        }
+        return result;
+    }
+
+    public void dump(PrintStream s) {
+        new CFGDumper(s).dump(this);
+    }
+
+    public void dumpDot(PrintStream s) {
+        new CFGDumper(s).dumpDot(this);
+    }
+}
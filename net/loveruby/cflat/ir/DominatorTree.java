@@ -0,0 +1,173 @@
+package net.loveruby.cflat.ir;
+import java.util.*;
+
+/**
+ * Dominator tree of a ControlFlowGraph, computed by the iterative
+ * algorithm of Cooper, Harvey and Kennedy ("A Simple, Fast Dominance
+ * Algorithm") over the reverse postorder.  Unreachable blocks have
+ * no immediate dominator and are dominated by no block.
+ */
+public class DominatorTree {
+    protected ControlFlowGraph cfg;
+    protected List<BasicBlock> rpo;
+    protected int[] order;      // RPO index by block id; -1 if unreachable
+    protected BasicBlock[] idoms;
+    protected List<List<BasicBlock>> children;
+    protected int[] preorder, postorder;    // of the dominator tree
+    protected List<List<BasicBlock>> frontiers;
+
+    public DominatorTree(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        this.rpo = cfg.reversePostorder();
+        int n = cfg.blocks().size();
+        this.order = new int[n];
+        Arrays.fill(order, -1);
+        for (int i = 0; i < rpo.size(); i++) {
+            order[rpo.get(i).id()] = i;
+        }
+        computeIdoms(n);
+        computeTree(n);
+    }
+
+    private void computeIdoms(int n) {
+        idoms = new BasicBlock[n];
+        BasicBlock entry = cfg.entry();
+        idoms[entry.id()] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : rpo) {
+                if (b == entry) continue;
+                BasicBlock idom = null;
+                for (BasicBlock pred : b.predecessors()) {
+                    if (idoms[pred.id()] == null) continue;
+                    idom = (idom == null) ? pred : intersect(pred, idom);
+                }
+                if (idoms[b.id()] != idom) {
+                    idoms[b.id()] = idom;
+                    changed = true;
+                }
+            }
+        }
+        idoms[entry.id()] = null;
+    }
+
+    private BasicBlock intersect(BasicBlock a, BasicBlock b) {
+        while (a != b) {
+            while (order[a.id()] > order[b.id()]) {
+                a = idoms[a.id()];
+            }
+            while (order[b.id()] > order[a.id()]) {
+                b = idoms[b.id()];
+            }
+        }
+        return a;
+    }
+
+    private void computeTree(int n) {
+        children = new ArrayList<List<BasicBlock>>(n);
+        for (int i = 0; i < n; i++) {
+            children.add(new ArrayList<BasicBlock>());
+        }
+        for (BasicBlock b : rpo) {
+            BasicBlock idom = idoms[b.id()];
+            if (idom != null) {
+                children.get(idom.id()).add(b);
+            }
+        }
+        // Numbers the tree so that #dominates is O(1).
+        preorder = new int[n];
+        postorder = new int[n];
+        Arrays.fill(preorder, -1);
+        Arrays.fill(postorder, -1);
+        int pre = 0, post = 0;
+        LinkedList<BasicBlock> stack = new LinkedList<BasicBlock>();
+        LinkedList<Integer> nexts = new LinkedList<Integer>();
+        stack.addFirst(cfg.entry());
+        nexts.addFirst(0);
+        preorder[cfg.entry().id()] = pre++;
+        while (! stack.isEmpty()) {
+            BasicBlock b = stack.getFirst();
+            int i = nexts.removeFirst();
+            List<BasicBlock> kids = children.get(b.id());
+            if (i < kids.size()) {
+                nexts.addFirst(i + 1);
+                BasicBlock kid = kids.get(i);
+                preorder[kid.id()] = pre++;
+                stack.addFirst(kid);
+                nexts.addFirst(0);
+            }
+            else {
+                stack.removeFirst();
+                postorder[b.id()] = post++;
+            }
+        }
+    }
+
+    public ControlFlowGraph cfg() {
+        return cfg;
+    }
+
+    /** Reachable blocks in reverse postorder. */
+    public List<BasicBlock> reversePostorder() {
+        return rpo;
+    }
+
+    public boolean isReachable(BasicBlock b) {
+        return order[b.id()] >= 0;
+    }
+
+    /** Returns null for the entry block and unreachable blocks. */
+    public BasicBlock idom(BasicBlock b) {
+        return idoms[b.id()];
+    }
+
+    /** Blocks immediately dominated by B, in reverse postorder. */
+    public List<BasicBlock> children(BasicBlock b) {
+        return children.get(b.id());
+    }
+
+    /** True if A dominates B.  Every reachable block dominates itself. */
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        if (! isReachable(a) || ! isReachable(b)) return false;
+        return preorder[a.id()] <= preorder[b.id()]
+                && postorder[b.id()] <= postorder[a.id()];
+    }
+
+    /**
+     * The dominance frontier of B: blocks which have a predecessor
+     * dominated by B but are not strictly dominated by B.
+     */
+    public List<BasicBlock> frontier(BasicBlock b) {
+        if (frontiers == null) {
+            computeFrontiers();
+        }
+        return frontiers.get(b.id());
+    }
+
+    // Cooper, Harvey and Kennedy, Figure 5.
+    private void computeFrontiers() {
+        int n = cfg.blocks().size();
+        frontiers = new ArrayList<List<BasicBlock>>(n);
+        for (int i = 0; i < n; i++) {
+            frontiers.add(new ArrayList<BasicBlock>());
+        }
+        for (BasicBlock b : rpo) {
+            if (b.predecessors().size() < 2) continue;
+            for (BasicBlock pred : b.predecessors()) {
+                if (! isReachable(pred)) continue;
+                BasicBlock runner = pred;
+                while (runner != idoms[b.id()]) {
+                    List<BasicBlock> df = frontiers.get(runner.id());
+                    if (df.contains(b)) break;
+                    df.add(b);
+                    runner = idoms[runner.id()];
+                }
+            }
+        }
+    }
+
+    public boolean strictlyDominates(BasicBlock a, BasicBlock b) {
+        return a != b && dominates(a, b);
+    }
+}
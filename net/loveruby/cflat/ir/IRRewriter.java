@@ -0,0 +1,118 @@
+package net.loveruby.cflat.ir;
+import java.util.*;
+
+/**
+ * Base class of passes which replace Var and Addr nodes.  Nodes are
+ * copied only when one of their children is replaced; unchanged
+ * trees are returned as is.
+ */
+abstract class IRRewriter implements IRVisitor<Stmt,Expr> {
+    public Stmt rewrite(Stmt s) {
+        return s.accept(this);
+    }
+
+    public Expr rewrite(Expr e) {
+        return (e == null) ? null : e.accept(this);
+    }
+
+    /** Returns the node to replace VAR with.  VAR itself by default. */
+    protected Expr rewriteVar(Var var) {
+        return var;
+    }
+
+    /** Returns the node to replace ADDR with.  ADDR itself by default. */
+    protected Expr rewriteAddr(Addr addr) {
+        return addr;
+    }
+
+    //
+    // Statements
+    //
+
+    public Stmt visit(ExprStmt s) {
+        Expr e = rewrite(s.expr());
+        return (e == s.expr()) ? s : new ExprStmt(s.location(), e);
+    }
+
+    public Stmt visit(Assign s) {
+        Expr rhs = rewrite(s.rhs());
+        Expr lhs = rewrite(s.lhs());
+        if (lhs == s.lhs() && rhs == s.rhs()) return s;
+        return new Assign(s.location(), lhs, rhs);
+    }
+
+    public Stmt visit(CJump s) {
+        Expr cond = rewrite(s.cond());
+        if (cond == s.cond()) return s;
+        return new CJump(s.location(), cond, s.thenLabel(), s.elseLabel());
+    }
+
+    public Stmt visit(Jump s) {
+        return s;
+    }
+
+    public Stmt visit(Switch s) {
+        Expr cond = rewrite(s.cond());
+        if (cond == s.cond()) return s;
+        return new Switch(s.location(), cond, s.cases(),
+                          s.defaultLabel(), s.endLabel());
+    }
+
+    public Stmt visit(LabelStmt s) {
+        return s;
+    }
+
+    public Stmt visit(Return s) {
+        Expr e = rewrite(s.expr());
+        return (e == s.expr()) ? s : new Return(s.location(), e);
+    }
+
+    //
+    // Expressions
+    //
+
+    public Expr visit(Uni s) {
+        Expr e = rewrite(s.expr());
+        return (e == s.expr()) ? s : new Uni(s.type(), s.op(), e);
+    }
+
+    public Expr visit(Bin s) {
+        Expr l = rewrite(s.left());
+        Expr r = rewrite(s.right());
+        if (l == s.left() && r == s.right()) return s;
+        return new Bin(s.type(), s.op(), l, r);
+    }
+
+    public Expr visit(Call s) {
+        Expr expr = rewrite(s.expr());
+        boolean changed = (expr != s.expr());
+        List<Expr> args = new ArrayList<Expr>();
+        for (Expr arg : s.args()) {
+            Expr a = rewrite(arg);
+            if (a != arg) changed = true;
+            args.add(a);
+        }
+        return changed ? new Call(s.type(), expr, args) : s;
+    }
+
+    public Expr visit(Addr s) {
+        return rewriteAddr(s);
+    }
+
+    public Expr visit(Mem s) {
+        Expr e = rewrite(s.expr());
+        return (e == s.expr()) ? s : new Mem(s.type(), e);
+    }
+
+    public Expr visit(Var s) {
+        return rewriteVar(s);
+    }
+
+    public Expr visit(Int s) {
+        return s;
+    }
+
+    public Expr visit(Str s) {
+        return s;
+    }
+}
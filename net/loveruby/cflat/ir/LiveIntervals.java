@@ -0,0 +1,224 @@
+package net.loveruby.cflat.ir;
+import net.loveruby.cflat.entity.*;
+import java.util.*;
+
+/**
+ * Live intervals of the variables of a function which may be kept
+ * in registers (the same ones SSABuilder promotes), for linear scan
+ * register allocation.
+ *
+ * Statements are numbered in the layout order of the graph, which is
+ * the order of the code generated.  Each block takes a number for
+ * its start, and each statement two: variables are used at the even
+ * number and defined at the odd one, so the interval of a variable
+ * last used by an assignment does not overlap the interval of the
+ * variable assigned.  An interval covers all numbers where the
+ * variable is live, and the holes between them.
+ *
+ * The spill weight of an interval is the number of uses and
+ * definitions of the variable, each counted 10^d times in a loop of
+ * depth d.
+ */
+public class LiveIntervals {
+    static public class Interval {
+        protected DefinedVariable var;
+        protected int start, end;
+        protected long weight;
+
+        Interval(DefinedVariable var, int pos) {
+            this.var = var;
+            this.start = pos;
+            this.end = pos;
+        }
+
+        public DefinedVariable variable() {
+            return var;
+        }
+
+        public int start() {
+            return start;
+        }
+
+        public int end() {
+            return end;
+        }
+
+        public long spillWeight() {
+            return weight;
+        }
+
+        /** True if the variable has its value at the function entry. */
+        public boolean isLiveAtEntry() {
+            return start == 0;
+        }
+
+        void extend(int pos) {
+            start = Math.min(start, pos);
+            end = Math.max(end, pos);
+        }
+
+        public String toString() {
+            return var.name() + "[" + start + "," + end + "]";
+        }
+    }
+
+    protected ControlFlowGraph cfg;
+    protected List<DefinedVariable> vars;
+    protected Map<DefinedVariable, Integer> index;
+    protected Interval[] intervals;
+    protected LoopInfo loops;
+
+    public LiveIntervals(DefinedFunction func, ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        this.vars = SSABuilder.promotableVariables(func, cfg);
+        this.index = new HashMap<DefinedVariable, Integer>();
+        for (int i = 0; i < vars.size(); i++) {
+            index.put(vars.get(i), i);
+        }
+        this.intervals = new Interval[vars.size()];
+        if (! vars.isEmpty()) {
+            compute();
+        }
+    }
+
+    /** Intervals sorted by the start. */
+    public List<Interval> intervals() {
+        List<Interval> result = new ArrayList<Interval>();
+        for (Interval iv : intervals) {
+            if (iv != null) result.add(iv);
+        }
+        Collections.sort(result, new Comparator<Interval>() {
+            public int compare(Interval a, Interval b) {
+                return a.start - b.start;
+            }
+        });
+        return result;
+    }
+
+    private void compute() {
+        List<BitSet> ins = liveIns();
+        loops = new LoopInfo(cfg.dominatorTree());
+        int pos = 0;
+        for (BasicBlock b : cfg.blocks()) {
+            long weight = loopWeight(b);
+            BitSet live = ins.get(b.id());
+            for (int v = live.nextSetBit(0); v >= 0;
+                    v = live.nextSetBit(v + 1)) {
+                extend(v, pos);
+            }
+            pos += 2;
+            for (Stmt s : b.stmts()) {
+                addStmt(s, pos, weight);
+                pos += 2;
+            }
+            if (b.terminator() != null) {
+                addStmt(b.terminator(), pos, weight);
+                pos += 2;
+            }
+            // Live out of B: live in a successor.
+            for (BasicBlock succ : b.successors()) {
+                BitSet out = ins.get(succ.id());
+                for (int v = out.nextSetBit(0); v >= 0;
+                        v = out.nextSetBit(v + 1)) {
+                    extend(v, pos - 1);
+                }
+            }
+        }
+    }
+
+    static private final int MAX_LOOP_WEIGHT_DEPTH = 9;
+
+    private long loopWeight(BasicBlock b) {
+        int depth = Math.min(loops.depth(b), MAX_LOOP_WEIGHT_DEPTH);
+        long weight = 1;
+        for (int i = 0; i < depth; i++) {
+            weight *= 10;
+        }
+        return weight;
+    }
+
+    private void addStmt(Stmt s, int pos, long weight) {
+        BitSet uses = new BitSet();
+        addUses(s, uses);
+        for (int v = uses.nextSetBit(0); v >= 0; v = uses.nextSetBit(v + 1)) {
+            extend(v, pos);
+            intervals[v].weight += weight;
+        }
+        int d = definedVariable(s);
+        if (d >= 0) {
+            extend(d, pos + 1);
+            intervals[d].weight += weight;
+        }
+    }
+
+    private void extend(int v, int pos) {
+        if (intervals[v] == null) {
+            intervals[v] = new Interval(vars.get(v), pos);
+        }
+        else {
+            intervals[v].extend(pos);
+        }
+    }
+
+    private int id(Entity ent) {
+        Integer id = index.get(ent);
+        return (id == null) ? -1 : id;
+    }
+
+    private int definedVariable(Stmt s) {
+        if (! (s instanceof Assign)) return -1;
+        Expr lhs = ((Assign)s).lhs();
+        if (! (lhs instanceof Addr)) return -1;
+        return id(((Addr)lhs).entity());
+    }
+
+    private void addUses(Stmt s, final BitSet live) {
+        IRRewriter collector = new IRRewriter() {
+            protected Expr rewriteVar(Var var) {
+                int id = id(var.entity());
+                if (id >= 0) live.set(id);
+                return var;
+            }
+        };
+        if (definedVariable(s) >= 0) {
+            collector.rewrite(((Assign)s).rhs());
+        }
+        else {
+            collector.rewrite(s);
+        }
+    }
+
+    private List<BitSet> liveIns() {
+        int n = cfg.blocks().size();
+        List<BitSet> ins = new ArrayList<BitSet>(n);
+        for (int i = 0; i < n; i++) {
+            ins.add(new BitSet());
+        }
+        List<BasicBlock> order = cfg.reversePostorder();
+        Collections.reverse(order);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : order) {
+                BitSet live = new BitSet();
+                for (BasicBlock succ : b.successors()) {
+                    live.or(ins.get(succ.id()));
+                }
+                if (b.terminator() != null) {
+                    addUses(b.terminator(), live);
+                }
+                for (int i = b.stmts().size() - 1; i >= 0; i--) {
+                    Stmt s = b.stmts().get(i);
+                    int d = definedVariable(s);
+                    if (d >= 0) live.clear(d);
+                    addUses(s, live);
+                }
+                if (! live.equals(ins.get(b.id()))) {
+                    ins.set(b.id(), live);
+                    changed = true;
+                }
+            }
+        }
+        return ins;
+    }
+}
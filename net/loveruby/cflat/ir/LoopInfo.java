@@ -0,0 +1,143 @@
+package net.loveruby.cflat.ir;
+import java.util.*;
+
+/**
+ * Natural loops of a ControlFlowGraph and their nesting.  A loop is
+ * made of a header and the blocks which reach a back edge (an edge
+ * to a block which dominates its source) without passing the header.
+ * Back edges to the same header make one loop.  Cycles entered at
+ * several blocks (irreducible flow, only made by goto) are not loops.
+ */
+public class LoopInfo {
+    static public class Loop {
+        protected BasicBlock header;
+        protected List<BasicBlock> latches;
+        protected List<BasicBlock> blocks;
+        protected boolean[] member;
+        protected Loop parent;
+        protected List<Loop> children;
+        protected int depth;
+
+        Loop(BasicBlock header, int numBlocks) {
+            this.header = header;
+            this.latches = new ArrayList<BasicBlock>();
+            this.blocks = new ArrayList<BasicBlock>();
+            this.member = new boolean[numBlocks];
+            this.children = new ArrayList<Loop>();
+        }
+
+        public BasicBlock header() {
+            return header;
+        }
+
+        /** Sources of the back edges. */
+        public List<BasicBlock> latches() {
+            return latches;
+        }
+
+        /** Blocks of this loop including nested loops; header first. */
+        public List<BasicBlock> blocks() {
+            return blocks;
+        }
+
+        public boolean contains(BasicBlock b) {
+            return member[b.id()];
+        }
+
+        /** The innermost enclosing loop, or null. */
+        public Loop parent() {
+            return parent;
+        }
+
+        public List<Loop> children() {
+            return children;
+        }
+
+        /** 1 for outermost loops. */
+        public int depth() {
+            return depth;
+        }
+
+        void add(BasicBlock b) {
+            member[b.id()] = true;
+            blocks.add(b);
+        }
+    }
+
+    protected List<Loop> loops;
+    protected List<Loop> topLevelLoops;
+    protected Loop[] innermost;
+
+    public LoopInfo(DominatorTree dom) {
+        ControlFlowGraph cfg = dom.cfg();
+        int n = cfg.blocks().size();
+        this.loops = new ArrayList<Loop>();
+        this.topLevelLoops = new ArrayList<Loop>();
+        this.innermost = new Loop[n];
+        // Headers of enclosing loops come first in reverse postorder.
+        for (BasicBlock h : dom.reversePostorder()) {
+            Loop loop = null;
+            for (BasicBlock pred : h.predecessors()) {
+                if (! dom.dominates(h, pred)) continue;
+                if (loop == null) loop = new Loop(h, n);
+                loop.latches.add(pred);
+            }
+            if (loop == null) continue;
+            collectBody(loop, dom);
+            loop.parent = innermost[h.id()];
+            if (loop.parent == null) {
+                loop.depth = 1;
+                topLevelLoops.add(loop);
+            }
+            else {
+                loop.depth = loop.parent.depth + 1;
+                loop.parent.children.add(loop);
+            }
+            for (BasicBlock b : loop.blocks) {
+                innermost[b.id()] = loop;
+            }
+            loops.add(loop);
+        }
+    }
+
+    private void collectBody(Loop loop, DominatorTree dom) {
+        loop.add(loop.header);
+        LinkedList<BasicBlock> work = new LinkedList<BasicBlock>();
+        for (BasicBlock latch : loop.latches) {
+            if (! loop.contains(latch)) {
+                loop.add(latch);
+                work.add(latch);
+            }
+        }
+        while (! work.isEmpty()) {
+            BasicBlock b = work.removeFirst();
+            for (BasicBlock pred : b.predecessors()) {
+                // Skips unreachable blocks jumping into the loop.
+                if (! loop.contains(pred) && dom.isReachable(pred)) {
+                    loop.add(pred);
+                    work.add(pred);
+                }
+            }
+        }
+    }
+
+    /** All loops, enclosing loops first. */
+    public List<Loop> loops() {
+        return loops;
+    }
+
+    public List<Loop> topLevelLoops() {
+        return topLevelLoops;
+    }
+
+    /** The innermost loop containing B, or null. */
+    public Loop loopFor(BasicBlock b) {
+        return innermost[b.id()];
+    }
+
+    /** The number of loops containing B. */
+    public int depth(BasicBlock b) {
+        Loop loop = innermost[b.id()];
+        return (loop == null) ? 0 : loop.depth;
+    }
+}
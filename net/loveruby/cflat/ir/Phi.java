@@ -0,0 +1,39 @@
+package net.loveruby.cflat.ir;
+import net.loveruby.cflat.entity.DefinedVariable;
+import java.util.*;
+
+/**
+ * A phi function at the top of a BasicBlock in SSA form:
+ * "var = phi(args...)".  The i-th argument is the value which
+ * flows from the i-th predecessor of the block.  An argument is
+ * an SSAVariable or the original variable (the value at entry).
+ */
+public class Phi {
+    protected DefinedVariable original;
+    protected SSAVariable var;
+    protected List<DefinedVariable> args;
+
+    public Phi(DefinedVariable original, int numPredecessors) {
+        this.original = original;
+        this.args = new ArrayList<DefinedVariable>(numPredecessors);
+        for (int i = 0; i < numPredecessors; i++) {
+            args.add(null);
+        }
+    }
+
+    public DefinedVariable original() {
+        return original;
+    }
+
+    public SSAVariable var() {
+        return var;
+    }
+
+    public void setVar(SSAVariable var) {
+        this.var = var;
+    }
+
+    public List<DefinedVariable> args() {
+        return args;
+    }
+}
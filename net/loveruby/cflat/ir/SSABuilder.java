@@ -0,0 +1,242 @@
+package net.loveruby.cflat.ir;
+import net.loveruby.cflat.entity.*;
+import java.util.*;
+
+/**
+ * Converts a ControlFlowGraph into SSA form (mem2reg).  Scalar local
+ * variables and parameters whose address is never taken are
+ * promoted: each assignment defines a new SSAVariable, and phi
+ * functions are placed on the iterated dominance frontiers of the
+ * assignments (Cytron et al.).  Phis whose value is never used are
+ * removed later by SSAOptimizer.
+ *
+ * Functions calling setjmp are not converted, since longjmp returns
+ * to them with the values in memory.
+ */
+public class SSABuilder {
+    static private final Set<String> RETURNS_TWICE = new HashSet<String>(
+            Arrays.asList("setjmp", "_setjmp", "sigsetjmp", "__sigsetjmp"));
+
+    protected DefinedFunction func;
+    protected ControlFlowGraph cfg;
+    protected DominatorTree dom;
+    protected Map<DefinedVariable, Integer> index;
+    protected List<DefinedVariable> promoted;
+    protected List<LinkedList<DefinedVariable>> stacks;
+    protected long versionSeq;
+
+    public SSABuilder(DefinedFunction func, ControlFlowGraph cfg) {
+        this.func = func;
+        this.cfg = cfg;
+    }
+
+    /** Returns the promoted variables. */
+    public List<DefinedVariable> build() {
+        promoted = promotableVariables(func, cfg);
+        if (promoted.isEmpty()) return promoted;
+        index = new HashMap<DefinedVariable, Integer>();
+        for (int i = 0; i < promoted.size(); i++) {
+            index.put(promoted.get(i), i);
+        }
+        cfg.removeUnreachableBlocks();
+        if (! cfg.entry().predecessors().isEmpty()) {
+            // The entry block must not be a loop header to have phis.
+            cfg.blocks().add(0, new BasicBlock(0));
+            cfg.rebuildEdges();
+        }
+        dom = cfg.dominatorTree();
+        placePhis();
+        rename();
+        return promoted;
+    }
+
+    /**
+     * Scalar parameters and local variables whose address is used only
+     * to assign them; none if FUNC calls setjmp.
+     */
+    static List<DefinedVariable> promotableVariables(DefinedFunction func,
+                                                     ControlFlowGraph cfg) {
+        Set<DefinedVariable> locals = new LinkedHashSet<DefinedVariable>();
+        locals.addAll(func.parameters());
+        locals.addAll(func.lvarScope().allLocalVariables());
+        final Set<DefinedVariable> candidates = new LinkedHashSet<DefinedVariable>();
+        for (DefinedVariable var : locals) {
+            if (var.type().isScalar()) {
+                candidates.add(var);
+            }
+        }
+        final boolean[] returnsTwice = new boolean[1];
+        // Drops variables whose address is used other than as
+        // the left hand side of an assignment.
+        IRRewriter scanner = new IRRewriter() {
+            public Stmt visit(Assign s) {
+                rewrite(s.rhs());
+                if (! (s.lhs() instanceof Addr)) {
+                    rewrite(s.lhs());
+                }
+                return s;
+            }
+
+            protected Expr rewriteAddr(Addr addr) {
+                candidates.remove(addr.entity());
+                return addr;
+            }
+
+            public Expr visit(Call s) {
+                if (s.isStaticCall()
+                        && RETURNS_TWICE.contains(s.function().name())) {
+                    returnsTwice[0] = true;
+                }
+                return super.visit(s);
+            }
+        };
+        for (BasicBlock b : cfg.blocks()) {
+            for (Stmt s : b.stmts()) {
+                scanner.rewrite(s);
+            }
+            if (b.terminator() != null) {
+                scanner.rewrite(b.terminator());
+            }
+        }
+        if (returnsTwice[0]) {
+            return new ArrayList<DefinedVariable>();
+        }
+        return new ArrayList<DefinedVariable>(candidates);
+    }
+
+    private DefinedVariable definedVariable(Stmt s) {
+        if (! (s instanceof Assign)) return null;
+        Expr lhs = ((Assign)s).lhs();
+        if (! (lhs instanceof Addr)) return null;
+        Entity ent = ((Addr)lhs).entity();
+        return index.containsKey(ent) ? (DefinedVariable)ent : null;
+    }
+
+    private void placePhis() {
+        int n = cfg.blocks().size();
+        List<List<BasicBlock>> defBlocks = new ArrayList<List<BasicBlock>>();
+        for (int i = 0; i < promoted.size(); i++) {
+            defBlocks.add(new ArrayList<BasicBlock>());
+        }
+        for (BasicBlock b : dom.reversePostorder()) {
+            for (Stmt s : b.stmts()) {
+                DefinedVariable var = definedVariable(s);
+                if (var == null) continue;
+                List<BasicBlock> blocks = defBlocks.get(index.get(var));
+                if (blocks.isEmpty() || blocks.get(blocks.size() - 1) != b) {
+                    blocks.add(b);
+                }
+            }
+        }
+        int[] hasPhi = new int[n];
+        int[] queued = new int[n];
+        LinkedList<BasicBlock> work = new LinkedList<BasicBlock>();
+        for (int i = 0; i < promoted.size(); i++) {
+            // Marks are i+1 so that the arrays are reused.
+            for (BasicBlock b : defBlocks.get(i)) {
+                queued[b.id()] = i + 1;
+                work.add(b);
+            }
+            while (! work.isEmpty()) {
+                BasicBlock b = work.removeFirst();
+                for (BasicBlock f : dom.frontier(b)) {
+                    if (hasPhi[f.id()] == i + 1) continue;
+                    hasPhi[f.id()] = i + 1;
+                    f.phis().add(new Phi(promoted.get(i),
+                                         f.predecessors().size()));
+                    if (queued[f.id()] != i + 1) {
+                        queued[f.id()] = i + 1;
+                        work.add(f);
+                    }
+                }
+            }
+        }
+    }
+
+    private void rename() {
+        stacks = new ArrayList<LinkedList<DefinedVariable>>();
+        for (DefinedVariable var : promoted) {
+            LinkedList<DefinedVariable> stack = new LinkedList<DefinedVariable>();
+            stack.addFirst(var);    // the value at entry
+            stacks.add(stack);
+        }
+        // Walks the dominator tree without recursion, which would
+        // overflow on long functions.
+        LinkedList<BasicBlock> blocks = new LinkedList<BasicBlock>();
+        LinkedList<Integer> nexts = new LinkedList<Integer>();
+        LinkedList<List<Integer>> pushes = new LinkedList<List<Integer>>();
+        blocks.addFirst(cfg.entry());
+        nexts.addFirst(0);
+        pushes.addFirst(renameBlock(cfg.entry()));
+        while (! blocks.isEmpty()) {
+            BasicBlock b = blocks.getFirst();
+            int i = nexts.removeFirst();
+            List<BasicBlock> kids = dom.children(b);
+            if (i < kids.size()) {
+                nexts.addFirst(i + 1);
+                BasicBlock kid = kids.get(i);
+                blocks.addFirst(kid);
+                nexts.addFirst(0);
+                pushes.addFirst(renameBlock(kid));
+            }
+            else {
+                blocks.removeFirst();
+                for (int var : pushes.removeFirst()) {
+                    stacks.get(var).removeFirst();
+                }
+            }
+        }
+    }
+
+    /** Returns the indexes of variables defined in B. */
+    private List<Integer> renameBlock(BasicBlock b) {
+        List<Integer> defined = new ArrayList<Integer>();
+        for (Phi phi : b.phis()) {
+            int i = index.get(phi.original());
+            phi.setVar(newVersion(phi.original()));
+            stacks.get(i).addFirst(phi.var());
+            defined.add(i);
+        }
+        ListIterator<Stmt> it = b.stmts().listIterator();
+        while (it.hasNext()) {
+            Stmt s = it.next();
+            DefinedVariable var = definedVariable(s);
+            if (var == null) {
+                it.set(renamer.rewrite(s));
+            }
+            else {
+                Assign assign = (Assign)s;
+                Expr rhs = renamer.rewrite(assign.rhs());
+                SSAVariable v = newVersion(var);
+                int i = index.get(var);
+                stacks.get(i).addFirst(v);
+                defined.add(i);
+                it.set(new Assign(assign.location(),
+                        new Addr(assign.lhs().type(), v), rhs));
+            }
+        }
+        if (b.terminator() != null) {
+            b.setTerminator(renamer.rewrite(b.terminator()));
+        }
+        for (BasicBlock succ : b.successors()) {
+            int j = succ.predecessors().indexOf(b);
+            for (Phi phi : succ.phis()) {
+                int i = index.get(phi.original());
+                phi.args().set(j, stacks.get(i).getFirst());
+            }
+        }
+        return defined;
+    }
+
+    private SSAVariable newVersion(DefinedVariable var) {
+        return new SSAVariable(var, ++versionSeq);
+    }
+
+    private final IRRewriter renamer = new IRRewriter() {
+        protected Expr rewriteVar(Var var) {
+            Integer i = index.get(var.entity());
+            if (i == null) return var;
+            return new Var(var.type(), stacks.get(i).getFirst());
+        }
+    };
+}
@@ -0,0 +1,429 @@
+package net.loveruby.cflat.ir;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Translates SSA form back to variables the backend can allocate
+ * (out-of-SSA).  Each SSA variable is mapped to its original
+ * variable unless it interferes with another version mapped there
+ * (both are live at a definition of one of them); such a version
+ * gets a new temporary variable.  Phis whose arguments are mapped to
+ * other variables than their result become copies at the end of the
+ * predecessors, on new blocks for critical edges.  The copies of an
+ * edge are a parallel copy, and are ordered (using a temporary for
+ * cycles) so that no source is overwritten before it is read.
+ */
+public class SSADestructor {
+    protected DefinedFunction func;
+    protected ControlFlowGraph cfg;
+    protected boolean coalesce;
+
+    // Values are SSA variables and their original variables (the value
+    // at entry).  The values of an original are numbered consecutively.
+    protected Map<DefinedVariable, Integer> ids;
+    protected List<DefinedVariable> values;
+    protected int[] groupStart, groupEnd;
+    protected Map<DefinedVariable, DefinedVariable> assigned;
+    protected net.loveruby.cflat.asm.Type addrType;
+
+    public SSADestructor(DefinedFunction func, ControlFlowGraph cfg) {
+        this(func, cfg, true);
+    }
+
+    /** If COALESCE is false, every SSA variable gets a new variable. */
+    public SSADestructor(DefinedFunction func, ControlFlowGraph cfg,
+                         boolean coalesce) {
+        this.func = func;
+        this.cfg = cfg;
+        this.coalesce = coalesce;
+    }
+
+    public void destruct() {
+        collectValues();
+        if (values.isEmpty()) return;
+        assignVariables(coalesce ? interferences() : null);
+        rewrite();
+        insertCopies();
+        cfg.rebuildEdges();
+    }
+
+    private void collectValues() {
+        Map<DefinedVariable, List<SSAVariable>> groups =
+                new LinkedHashMap<DefinedVariable, List<SSAVariable>>();
+        for (BasicBlock b : cfg.blocks()) {
+            for (Phi phi : b.phis()) {
+                addValue(groups, phi.var());
+            }
+            for (Stmt s : b.stmts()) {
+                SSAVariable v = SSAOptimizer.definedVersion(s);
+                if (v != null) {
+                    addValue(groups, v);
+                    addrType = ((Assign)s).lhs().type();
+                }
+            }
+        }
+        ids = new HashMap<DefinedVariable, Integer>();
+        values = new ArrayList<DefinedVariable>();
+        int n = 0;
+        for (List<SSAVariable> vs : groups.values()) {
+            n += vs.size() + 1;
+        }
+        groupStart = new int[n];
+        groupEnd = new int[n];
+        for (Map.Entry<DefinedVariable, List<SSAVariable>> ent
+                : groups.entrySet()) {
+            int start = values.size();
+            int end = start + ent.getValue().size() + 1;
+            addId(ent.getKey(), start, end);
+            for (SSAVariable v : ent.getValue()) {
+                addId(v, start, end);
+            }
+        }
+    }
+
+    private void addValue(Map<DefinedVariable, List<SSAVariable>> groups,
+                          SSAVariable v) {
+        List<SSAVariable> vs = groups.get(v.original());
+        if (vs == null) {
+            vs = new ArrayList<SSAVariable>();
+            groups.put(v.original(), vs);
+        }
+        vs.add(v);
+    }
+
+    private void addId(DefinedVariable v, int start, int end) {
+        int id = values.size();
+        ids.put(v, id);
+        values.add(v);
+        groupStart[id] = start;
+        groupEnd[id] = end;
+    }
+
+    private int id(DefinedVariable v) {
+        Integer id = ids.get(v);
+        return (id == null) ? -1 : id;
+    }
+
+    //
+    // Liveness and interference
+    //
+
+    private int definedValue(Stmt s) {
+        if (! (s instanceof Assign)) return -1;
+        Expr lhs = ((Assign)s).lhs();
+        if (! (lhs instanceof Addr)) return -1;
+        Entity ent = ((Addr)lhs).entity();
+        return (ent instanceof DefinedVariable) ? id((DefinedVariable)ent) : -1;
+    }
+
+    private void addUses(Stmt s, final BitSet live) {
+        IRRewriter collector = new IRRewriter() {
+            protected Expr rewriteVar(Var var) {
+                if (var.entity() instanceof DefinedVariable) {
+                    int id = id((DefinedVariable)var.entity());
+                    if (id >= 0) live.set(id);
+                }
+                return var;
+            }
+        };
+        if (definedValue(s) >= 0) {
+            collector.rewrite(((Assign)s).rhs());
+        }
+        else {
+            collector.rewrite(s);
+        }
+    }
+
+    private List<BitSet> liveOuts() {
+        int n = cfg.blocks().size();
+        List<BitSet> ins = new ArrayList<BitSet>(n);
+        List<BitSet> outs = new ArrayList<BitSet>(n);
+        for (int i = 0; i < n; i++) {
+            ins.add(new BitSet());
+            outs.add(new BitSet());
+        }
+        List<BasicBlock> order = cfg.reversePostorder();
+        Collections.reverse(order);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : order) {
+                BitSet out = new BitSet();
+                for (BasicBlock succ : b.successors()) {
+                    out.or(ins.get(succ.id()));
+                    int j = succ.predecessors().indexOf(b);
+                    for (Phi phi : succ.phis()) {
+                        out.set(id(phi.args().get(j)));
+                    }
+                }
+                BitSet live = (BitSet)out.clone();
+                scanBlock(b, live, null);
+                outs.set(b.id(), out);
+                if (! live.equals(ins.get(b.id()))) {
+                    ins.set(b.id(), live);
+                    changed = true;
+                }
+            }
+        }
+        return outs;
+    }
+
+    /**
+     * Walks B backward from LIVE (the values live out of B), leaving
+     * the values live in B (without its phis).  Records interferences
+     * into GRAPH unless it is null.
+     */
+    private void scanBlock(BasicBlock b, BitSet live, List<BitSet> graph) {
+        if (b.terminator() != null) {
+            addUses(b.terminator(), live);
+        }
+        for (int i = b.stmts().size() - 1; i >= 0; i--) {
+            Stmt s = b.stmts().get(i);
+            int d = definedValue(s);
+            if (d >= 0) {
+                live.clear(d);
+                if (graph != null) interfere(graph, d, live);
+            }
+            addUses(s, live);
+        }
+        BitSet phiDefs = new BitSet();
+        for (Phi phi : b.phis()) {
+            phiDefs.set(id(phi.var()));
+        }
+        live.andNot(phiDefs);
+        if (graph != null) {
+            BitSet atTop = (BitSet)live.clone();
+            atTop.or(phiDefs);
+            for (Phi phi : b.phis()) {
+                int d = id(phi.var());
+                atTop.clear(d);
+                interfere(graph, d, atTop);
+                atTop.set(d);
+            }
+        }
+        if (b == cfg.entry()) {
+            // Original variables are defined at the entry.
+            for (int v = live.nextSetBit(0); v >= 0;
+                    v = live.nextSetBit(v + 1)) {
+                if (v == groupStart[v] && graph != null) {
+                    BitSet others = (BitSet)live.clone();
+                    others.clear(v);
+                    interfere(graph, v, others);
+                }
+            }
+        }
+    }
+
+    /** Records that D interferes with the values of its group in LIVE. */
+    private void interfere(List<BitSet> graph, int d, BitSet live) {
+        for (int v = live.nextSetBit(groupStart[d]);
+                v >= 0 && v < groupEnd[d];
+                v = live.nextSetBit(v + 1)) {
+            graph.get(d).set(v);
+            graph.get(v).set(d);
+        }
+    }
+
+    private List<BitSet> interferences() {
+        List<BitSet> graph = new ArrayList<BitSet>(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            graph.add(new BitSet());
+        }
+        List<BitSet> outs = liveOuts();
+        for (BasicBlock b : cfg.blocks()) {
+            scanBlock(b, (BitSet)outs.get(b.id()).clone(), graph);
+        }
+        return graph;
+    }
+
+    //
+    // Rewriting
+    //
+
+    private void assignVariables(List<BitSet> graph) {
+        assigned = new HashMap<DefinedVariable, DefinedVariable>();
+        BitSet members = new BitSet();
+        for (int v = 0; v < values.size(); v++) {
+            DefinedVariable value = values.get(v);
+            if (v == groupStart[v]) {
+                assigned.put(value, value);
+                members.clear();
+                members.set(v);
+            }
+            else if (graph != null && ! graph.get(v).intersects(members)) {
+                assigned.put(value, values.get(groupStart[v]));
+                members.set(v);
+            }
+            else {
+                assigned.put(value, newTmp(value));
+            }
+        }
+    }
+
+    private DefinedVariable newTmp(DefinedVariable v) {
+        return func.lvarScope().allocateTmp(v.type());
+    }
+
+    private DefinedVariable variableOf(DefinedVariable v) {
+        DefinedVariable var = assigned.get(v);
+        return (var == null) ? v : var;
+    }
+
+    private final IRRewriter rewriter = new IRRewriter() {
+        protected Expr rewriteVar(Var var) {
+            Entity ent = var.entity();
+            if (! (ent instanceof SSAVariable)) return var;
+            return new Var(var.type(), variableOf((DefinedVariable)ent));
+        }
+
+        protected Expr rewriteAddr(Addr addr) {
+            Entity ent = addr.entity();
+            if (! (ent instanceof SSAVariable)) return addr;
+            return new Addr(addr.type(), variableOf((DefinedVariable)ent));
+        }
+    };
+
+    private void rewrite() {
+        for (BasicBlock b : cfg.blocks()) {
+            ListIterator<Stmt> it = b.stmts().listIterator();
+            while (it.hasNext()) {
+                it.set(rewriter.rewrite(it.next()));
+            }
+            if (b.terminator() != null) {
+                b.setTerminator(rewriter.rewrite(b.terminator()));
+            }
+        }
+    }
+
+    //
+    // Copies for phis
+    //
+
+    static private class Copy {
+        DefinedVariable dst, src;
+
+        Copy(DefinedVariable dst, DefinedVariable src) {
+            this.dst = dst;
+            this.src = src;
+        }
+    }
+
+    private void insertCopies() {
+        // Blocks are inserted after the loop, since ids must not change.
+        Map<BasicBlock, List<BasicBlock>> newBlocks =
+                new HashMap<BasicBlock, List<BasicBlock>>();
+        for (BasicBlock b : cfg.blocks()) {
+            if (b.phis().isEmpty()) continue;
+            for (int j = 0; j < b.predecessors().size(); j++) {
+                List<Copy> copies = new ArrayList<Copy>();
+                for (Phi phi : b.phis()) {
+                    DefinedVariable dst = variableOf(phi.var());
+                    DefinedVariable src = variableOf(phi.args().get(j));
+                    if (dst != src) {
+                        copies.add(new Copy(dst, src));
+                    }
+                }
+                if (copies.isEmpty()) continue;
+                BasicBlock pred = b.predecessors().get(j);
+                Stmt term = pred.terminator();
+                if (term == null || term instanceof Jump) {
+                    sequentialize(copies, pred.stmts());
+                }
+                else {
+                    // The edge may be critical; copies go to a new block.
+                    BasicBlock e = new BasicBlock(-1);
+                    sequentialize(copies, e.stmts());
+                    e.setTerminator(new Jump(null, b.label()));
+                    pred.setTerminator(retarget(term, b, e.label()));
+                    List<BasicBlock> list = newBlocks.get(pred);
+                    if (list == null) {
+                        list = new ArrayList<BasicBlock>();
+                        newBlocks.put(pred, list);
+                    }
+                    list.add(e);
+                }
+            }
+        }
+        for (BasicBlock b : cfg.blocks()) {
+            b.phis().clear();
+        }
+        if (newBlocks.isEmpty()) return;
+        // The predecessors end with jumps, so blocks after them are
+        // not fallen through into.
+        List<BasicBlock> result = new ArrayList<BasicBlock>();
+        for (BasicBlock b : cfg.blocks()) {
+            result.add(b);
+            List<BasicBlock> list = newBlocks.get(b);
+            if (list != null) result.addAll(list);
+        }
+        cfg.blocks().clear();
+        cfg.blocks().addAll(result);
+    }
+
+    /** Returns TERM jumping to LABEL instead of the labels of TARGET. */
+    private Stmt retarget(Stmt term, BasicBlock target, Label label) {
+        if (term instanceof CJump) {
+            CJump j = (CJump)term;
+            return new CJump(j.location(), j.cond(),
+                    replace(j.thenLabel(), target, label),
+                    replace(j.elseLabel(), target, label));
+        }
+        else if (term instanceof Switch) {
+            Switch sw = (Switch)term;
+            List<Case> cases = new ArrayList<Case>();
+            for (Case c : sw.cases()) {
+                cases.add(new Case(c.value, replace(c.label, target, label)));
+            }
+            return new Switch(sw.location(), sw.cond(), cases,
+                    replace(sw.defaultLabel(), target, label),
+                    sw.endLabel());
+        }
+        else {
+            throw new Error("must not happen: retarget " + term);
+        }
+    }
+
+    private Label replace(Label l, BasicBlock target, Label label) {
+        return (cfg.blockOf(l) == target) ? label : l;
+    }
+
+    private void sequentialize(List<Copy> copies, List<Stmt> out) {
+        LinkedList<Copy> pending = new LinkedList<Copy>(copies);
+        while (! pending.isEmpty()) {
+            Copy ready = null;
+            for (Copy c : pending) {
+                if (! isSource(pending, c.dst)) {
+                    ready = c;
+                    break;
+                }
+            }
+            if (ready != null) {
+                pending.remove(ready);
+                out.add(copy(ready.dst, ready.src));
+            }
+            else {
+                // All destinations are sources: a cycle.
+                DefinedVariable src = pending.getFirst().src;
+                DefinedVariable tmp = newTmp(src);
+                out.add(copy(tmp, src));
+                for (Copy c : pending) {
+                    if (c.src == src) c.src = tmp;
+                }
+            }
+        }
+    }
+
+    private boolean isSource(List<Copy> copies, DefinedVariable v) {
+        for (Copy c : copies) {
+            if (c.src == v) return true;
+        }
+        return false;
+    }
+
+    private Stmt copy(DefinedVariable dst, DefinedVariable src) {
+        net.loveruby.cflat.asm.Type t =
+                net.loveruby.cflat.asm.Type.get(src.type().size());
+        return new Assign(null, new Addr(addrType, dst), new Var(t, src));
+    }
+}
@@ -0,0 +1,161 @@
+package net.loveruby.cflat.ir;
+import net.loveruby.cflat.entity.*;
+import java.util.*;
+
+/**
+ * Simple optimizations on SSA form: propagation of constant
+ * assignments into the statements using them, and removal of dead
+ * assignments and phis.
+ *
+ * Both only shorten the live ranges of SSA variables, so versions
+ * of a variable never interfere and SSADestructor can map them all
+ * back to the variable.  Constants are not propagated into phis,
+ * which would need copies on the incoming edges.
+ */
+public class SSAOptimizer {
+    protected ControlFlowGraph cfg;
+    protected Map<DefinedVariable, Long> constants;
+
+    public SSAOptimizer(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+    }
+
+    public void optimize() {
+        propagateConstants();
+        removeDeadCode();
+    }
+
+    private void propagateConstants() {
+        constants = new HashMap<DefinedVariable, Long>();
+        for (BasicBlock b : cfg.blocks()) {
+            for (Stmt s : b.stmts()) {
+                SSAVariable v = definedVersion(s);
+                if (v == null) continue;
+                Expr rhs = ((Assign)s).rhs();
+                if (rhs instanceof Int) {
+                    constants.put(v, ((Int)rhs).value());
+                }
+            }
+        }
+        if (constants.isEmpty()) return;
+        for (BasicBlock b : cfg.blocks()) {
+            ListIterator<Stmt> it = b.stmts().listIterator();
+            while (it.hasNext()) {
+                it.set(propagator.rewrite(it.next()));
+            }
+            if (b.terminator() != null) {
+                b.setTerminator(propagator.rewrite(b.terminator()));
+            }
+        }
+    }
+
+    private final IRRewriter propagator = new IRRewriter() {
+        protected Expr rewriteVar(Var var) {
+            Long value = constants.get(var.entity());
+            if (value == null || ! fits(value, var.type())) return var;
+            return new Int(var.type(), value);
+        }
+    };
+
+    /**
+     * A load of a variable of 1 or 2 bytes may extend its sign, so
+     * only values which the load does not change are propagated.
+     */
+    private boolean fits(long value, net.loveruby.cflat.asm.Type type) {
+        switch (type) {
+        case INT8:  return 0 <= value && value <= Byte.MAX_VALUE;
+        case INT16: return 0 <= value && value <= Short.MAX_VALUE;
+        case INT32: return Integer.MIN_VALUE <= value
+                            && value <= 0xffffffffL;
+        default:    return false;
+        }
+    }
+
+    /** Mark and sweep of SSA variables from the statements using them. */
+    private void removeDeadCode() {
+        Map<SSAVariable, Stmt> defs = new HashMap<SSAVariable, Stmt>();
+        Map<SSAVariable, Phi> phis = new HashMap<SSAVariable, Phi>();
+        final Set<SSAVariable> live = new HashSet<SSAVariable>();
+        final LinkedList<SSAVariable> work = new LinkedList<SSAVariable>();
+        IRRewriter marker = new IRRewriter() {
+            protected Expr rewriteVar(Var var) {
+                if (var.entity() instanceof SSAVariable) {
+                    SSAVariable v = (SSAVariable)var.entity();
+                    if (live.add(v)) work.add(v);
+                }
+                return var;
+            }
+        };
+        for (BasicBlock b : cfg.blocks()) {
+            for (Phi phi : b.phis()) {
+                phis.put(phi.var(), phi);
+            }
+            for (Stmt s : b.stmts()) {
+                SSAVariable v = definedVersion(s);
+                if (v == null || hasSideEffect(((Assign)s).rhs())) {
+                    marker.rewrite(s);
+                }
+                if (v != null) {
+                    defs.put(v, s);
+                }
+            }
+            if (b.terminator() != null) {
+                marker.rewrite(b.terminator());
+            }
+        }
+        while (! work.isEmpty()) {
+            SSAVariable v = work.removeFirst();
+            Stmt def = defs.get(v);
+            if (def != null) {
+                marker.rewrite(((Assign)def).rhs());
+            }
+            Phi phi = phis.get(v);
+            if (phi != null) {
+                for (DefinedVariable arg : phi.args()) {
+                    if (arg instanceof SSAVariable
+                            && live.add((SSAVariable)arg)) {
+                        work.add((SSAVariable)arg);
+                    }
+                }
+            }
+        }
+        for (BasicBlock b : cfg.blocks()) {
+            Iterator<Phi> phiIt = b.phis().iterator();
+            while (phiIt.hasNext()) {
+                if (! live.contains(phiIt.next().var())) phiIt.remove();
+            }
+            ListIterator<Stmt> it = b.stmts().listIterator();
+            while (it.hasNext()) {
+                Stmt s = it.next();
+                SSAVariable v = definedVersion(s);
+                if (v == null || live.contains(v)) continue;
+                Expr rhs = ((Assign)s).rhs();
+                if (hasSideEffect(rhs)) {
+                    it.set(new ExprStmt(s.location(), rhs));
+                }
+                else {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    static SSAVariable definedVersion(Stmt s) {
+        if (! (s instanceof Assign)) return null;
+        Expr lhs = ((Assign)s).lhs();
+        if (! (lhs instanceof Addr)) return null;
+        Entity ent = ((Addr)lhs).entity();
+        return (ent instanceof SSAVariable) ? (SSAVariable)ent : null;
+    }
+
+    private boolean hasSideEffect(Expr e) {
+        final boolean[] result = new boolean[1];
+        new IRRewriter() {
+            public Expr visit(Call s) {
+                result[0] = true;
+                return s;
+            }
+        }.rewrite(e);
+        return result[0];
+    }
+}
@@ -0,0 +1,22 @@
+package net.loveruby.cflat.ir;
+import net.loveruby.cflat.entity.DefinedVariable;
+
+/**
+ * A version of a local variable promoted to SSA form by SSABuilder.
+ * Each version is assigned exactly once, by an Assign or a Phi.
+ * The original variable itself stands for the value at the function
+ * entry (the parameter, or an undefined value).
+ */
+public class SSAVariable extends DefinedVariable {
+    protected DefinedVariable original;
+
+    public SSAVariable(DefinedVariable original, long version) {
+        super(false, original.typeNode(),
+              original.name() + "." + version, null);
+        this.original = original;
+    }
+
+    public DefinedVariable original() {
+        return original;
+    }
+}
@@ -0,0 +1,76 @@
+package net.loveruby.cflat.parser;
+import net.loveruby.cflat.exception.FileException;
+import java.util.Map;
+import java.util.HashMap;
+import java.io.*;
+
+/**
+ * Contents of import files (*.hb), shared by compilations in
+ * the compile server.  An entry is reused while the timestamp and
+ * the size of the file are unchanged, so edited headers are read
+ * again.
+ *
+ * Parsed declarations are not cached because semantic analysis
+ * modifies them; each compilation parses the cached text.
+ */
+public class ImportCache {
+    static private class Entry {
+        final long lastModified;
+        final long length;
+        final String source;
+
+        Entry(long lastModified, long length, String source) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.source = source;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public String read(File file) throws FileException {
+        String key = file.getAbsolutePath();
+        long mtime = file.lastModified();
+        long len = file.length();
+        synchronized (this) {
+            Entry ent = entries.get(key);
+            if (ent != null && ent.lastModified == mtime
+                    && ent.length == len) {
+                return ent.source;
+            }
+        }
+        String src = readFile(file);
+        synchronized (this) {
+            entries.put(key, new Entry(mtime, len, src));
+        }
+        return src;
+    }
+
+    static String readFile(File file) throws FileException {
+        try {
+            Reader r = new InputStreamReader(new FileInputStream(file),
+                                             Parser.SOURCE_ENCODING);
+            try {
+                StringBuilder buf = new StringBuilder();
+                char[] cbuf = new char[4096];
+                int n;
+                while ((n = r.read(cbuf)) > 0) {
+                    buf.append(cbuf, 0, n);
+                }
+                return buf.toString();
+            }
+            finally {
+                r.close();
+            }
+        }
+        catch (FileNotFoundException ex) {
+            throw new FileException(ex.getMessage());
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new Error("UTF-8 is not supported??: " + ex.getMessage());
+        }
+        catch (IOException ex) {
+            throw new FileException(ex.getMessage());
+        }
+    }
+}
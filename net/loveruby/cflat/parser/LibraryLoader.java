@@ -1,14 +1,26 @@
 package net.loveruby.cflat.parser;
 import net.loveruby.cflat.ast.Declarations;
+import net.loveruby.cflat.ast.SourceText;
 import net.loveruby.cflat.utils.ErrorHandler;
 import net.loveruby.cflat.exception.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.*;
 
 public class LibraryLoader {
     protected List<String> loadPath;
-    protected LinkedList<String> loadingLibraries;
-    protected Map<String, Declarations> loadedLibraries;
+    protected File workingDirectory;
+    protected ImportCache cache;
+    // Libraries being loaded by each thread.
+    protected ThreadLocal<LinkedList<String>> loadingLibraries;
+    protected ConcurrentMap<String, Declarations> loadedLibraries;
+    protected Map<String, File> searchTable;
+    protected PrecompiledHeaders precompiledHeaders;
+    protected SymbolPool symbolPool;
+
+    // Entry of the search table for libraries not found.
+    static private final File NOT_FOUND = new File("");
 
     static public List<String> defaultLoadPath() {
         List<String> pathes = new ArrayList<String>();
@@ -21,50 +33,252 @@ public class LibraryLoader {
     }
 
     public LibraryLoader(List<String> loadPath) {
+        this(loadPath, null, null);
+    }
+
+    /**
+     * Relative load paths are resolved against WORKING_DIRECTORY
+     * (the current directory if null).  Import files are read
+     * through CACHE if it is not null.
+     */
+    public LibraryLoader(List<String> loadPath,
+                         File workingDirectory, ImportCache cache) {
         this.loadPath = loadPath;
-        this.loadingLibraries = new LinkedList<String>();
-        this.loadedLibraries = new HashMap<String, Declarations>();
+        this.workingDirectory = workingDirectory;
+        this.cache = cache;
+        this.loadingLibraries = new ThreadLocal<LinkedList<String>>() {
+            protected LinkedList<String> initialValue() {
+                return new LinkedList<String>();
+            }
+        };
+        this.loadedLibraries =
+                new ConcurrentHashMap<String, Declarations>();
+        this.searchTable = newSearchTable();
+        this.symbolPool = new SymbolPool();
+    }
+
+    /**
+     * Returns a table which memoizes #searchLibrary, including
+     * libraries not found.  Loaders with the same load path and
+     * working directory can share the table by #setSearchTable.
+     */
+    static public Map<String, File> newSearchTable() {
+        return Collections.synchronizedMap(new HashMap<String, File>());
+    }
+
+    public void setSearchTable(Map<String, File> table) {
+        this.searchTable = table;
+    }
+
+    /** Import files are loaded through PCH if it is not null. */
+    public void setPrecompiledHeaders(PrecompiledHeaders pch) {
+        this.precompiledHeaders = pch;
+    }
+
+    /** Token images of the files this loader loads are pooled in it. */
+    public SymbolPool symbolPool() {
+        return symbolPool;
     }
 
     public void addLoadPath(String path) {
         loadPath.add(path);
+        searchTable.clear();
     }
 
     public Declarations loadLibrary(String libid, ErrorHandler handler)
             throws CompileException {
-        if (loadingLibraries.contains(libid)) {
+        LinkedList<String> loading = loadingLibraries.get();
+        if (loading.contains(libid)) {
             throw new SemanticException("recursive import from "
-                                        + loadingLibraries.getLast()
+                                        + loading.getLast()
                                         + ": " + libid);
         }
-        loadingLibraries.addLast(libid);   // stop recursive import
         Declarations decls = loadedLibraries.get(libid);
         if (decls != null) {
             // Already loaded import file.  Returns cached declarations.
             return decls;
         }
-        decls = Parser.parseDeclFile(searchLibrary(libid), this, handler);
-        loadedLibraries.put(libid, decls);
-        loadingLibraries.removeLast();
-        return decls;
+        loading.addLast(libid);   // stop recursive import
+        try {
+            decls = parseLibrary(searchLibrary(libid), handler);
+        }
+        finally {
+            loading.removeLast();
+        }
+        Declarations prev = loadedLibraries.putIfAbsent(libid, decls);
+        return (prev == null) ? decls : prev;
+    }
+
+    /**
+     * Loads LIBIDS and the libraries they import on POOL.  The import
+     * graph is read first, then a task of each library forks the
+     * tasks of the libraries it imports, joins them and parses the
+     * library, so independent libraries are parsed in parallel.  The
+     * result is the same as #loadLibrary.  Libraries which fail to
+     * load are left to #loadLibrary to report errors.
+     */
+    public void loadLibraries(List<String> libids,
+                              ErrorHandler handler, ForkJoinPool pool) {
+        // Libraries in the order they can be loaded, and their imports.
+        Map<String, List<String>> graph =
+                new LinkedHashMap<String, List<String>>();
+        Set<String> visiting = new HashSet<String>();
+        try {
+            for (String libid : libids) {
+                if (! readImports(libid, graph, visiting, handler)) {
+                    return;
+                }
+            }
+        }
+        catch (CompileException ex) {
+            return;
+        }
+        Map<String, LoadTask> tasks = new HashMap<String, LoadTask>();
+        for (String libid : graph.keySet()) {
+            tasks.put(libid, new LoadTask(libid, handler));
+        }
+        for (Map.Entry<String, List<String>> ent : graph.entrySet()) {
+            LoadTask task = tasks.get(ent.getKey());
+            for (String id : ent.getValue()) {
+                LoadTask dep = tasks.get(id);
+                if (dep != null) task.addImport(dep);
+            }
+        }
+        LoadTask root = new LoadTask(null, handler);
+        for (String libid : libids) {
+            LoadTask task = tasks.get(libid);
+            if (task != null) root.addImport(task);
+        }
+        pool.invoke(root);
+    }
+
+    /**
+     * Loads a library after the libraries it imports.  A library can
+     * be imported by many libraries, but its task is forked only by
+     * the first task which reaches it; the others join it.  The root
+     * task has no library and loads the imports of the source file.
+     */
+    private class LoadTask extends RecursiveTask<Declarations> {
+        private final String libid;
+        private final ErrorHandler handler;
+        private final List<LoadTask> imports = new ArrayList<LoadTask>();
+        private final AtomicBoolean forked = new AtomicBoolean();
+
+        LoadTask(String libid, ErrorHandler handler) {
+            this.libid = libid;
+            this.handler = handler;
+        }
+
+        void addImport(LoadTask task) {
+            if (! imports.contains(task)) imports.add(task);
+        }
+
+        protected Declarations compute() {
+            for (LoadTask task : imports) {
+                if (task.forked.compareAndSet(false, true)) {
+                    task.fork();
+                }
+            }
+            for (LoadTask task : imports) {
+                task.quietlyJoin();
+            }
+            if (libid == null) return null;
+            try {
+                return loadLibrary(libid, handler);
+            }
+            catch (CompileException ex) {
+                return null;
+            }
+        }
+    }
+
+    // Adds LIBID and the libraries it imports to GRAPH, imported ones
+    // first.  Returns false if the imports are recursive.
+    private boolean readImports(String libid,
+            Map<String, List<String>> graph, Set<String> visiting,
+            ErrorHandler handler) throws CompileException {
+        if (graph.containsKey(libid) || loadedLibraries.containsKey(libid)) {
+            return true;
+        }
+        if (! visiting.add(libid)) {
+            return false;
+        }
+        SourceText src = readLibrary(searchLibrary(libid));
+        List<String> imports = newLibraryParser(src, handler).parseImports();
+        for (String id : imports) {
+            if (! readImports(id, graph, visiting, handler)) {
+                return false;
+            }
+        }
+        visiting.remove(libid);
+        graph.put(libid, imports);
+        return true;
     }
 
     public File searchLibrary(String libid) throws FileException {
+        File file = searchTable.get(libid);
+        if (file == null) {
+            file = searchLoadPath(libid);
+            searchTable.put(libid, file);
+        }
+        if (file == NOT_FOUND) {
+            throw new FileException(
+                "no such library header file: " + libid);
+        }
+        return file;
+    }
+
+    private File searchLoadPath(String libid) throws FileException {
         try {
             for (String path : loadPath) {
                 File file = new File(path + "/" + libPath(libid) + ".hb");
-                if (file.exists()) {
+                if (resolve(file).exists()) {
                     return file;
                 }
             }
-            throw new FileException(
-                "no such library header file: " + libid);
+            return NOT_FOUND;
         }
         catch (SecurityException ex) {
             throw new FileException(ex.getMessage());
         }
     }
 
+    protected Declarations parseLibrary(File file, ErrorHandler handler)
+            throws CompileException {
+        if (precompiledHeaders != null) {
+            return precompiledHeaders.load(file, this, handler);
+        }
+        return newLibraryParser(readLibrary(file), handler).parseDecls();
+    }
+
+    /** Reads FILE returned by #searchLibrary. */
+    SourceText readLibrary(File file) throws FileException {
+        return new SourceText(file.getPath(), readLibraryText(file));
+    }
+
+    String readLibraryText(File file) throws FileException {
+        File path = resolve(file);
+        return (cache == null) ? ImportCache.readFile(path)
+                               : cache.read(path);
+    }
+
+    Parser newLibraryParser(SourceText src, ErrorHandler handler) {
+        return new Parser(src, this, handler, false);
+    }
+
+    /** Returns the declarations of LIBID if it is already loaded. */
+    Declarations loadedLibrary(String libid) {
+        return loadedLibraries.get(libid);
+    }
+
+    /** Returns the file to open for FILE returned by #searchLibrary. */
+    public File resolve(File file) {
+        if (workingDirectory == null || file.isAbsolute()) {
+            return file;
+        }
+        return new File(workingDirectory, file.getPath());
+    }
+
     protected String libPath(String id) {
         return id.replace('.', '/');
     }
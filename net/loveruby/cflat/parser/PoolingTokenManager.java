@@ -0,0 +1,25 @@
+package net.loveruby.cflat.parser;
+
+/**
+ * Token manager which takes the images of identifiers from the
+ * SymbolPool of its SourceCharStream.  Images of the other tokens
+ * are allocated for each token as usual.
+ */
+class PoolingTokenManager extends ParserTokenManager {
+    private final SourceCharStream stream;
+
+    PoolingTokenManager(SourceCharStream stream) {
+        super(stream);
+        this.stream = stream;
+    }
+
+    protected Token jjFillToken() {
+        stream.setPooling(jjmatchedKind == IDENTIFIER);
+        try {
+            return super.jjFillToken();
+        }
+        finally {
+            stream.setPooling(false);
+        }
+    }
+}
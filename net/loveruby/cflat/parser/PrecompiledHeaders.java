@@ -0,0 +1,665 @@
+package net.loveruby.cflat.parser;
+import net.loveruby.cflat.ast.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.type.*;
+import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.exception.*;
+import java.util.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.io.*;
+
+/**
+ * Precompiled import files (--pch-dir).
+ *
+ * The declarations of an import file are stored in DIR/KEY.hbc in
+ * a binary form, where KEY is the digest of the absolute path of the
+ * file.  An entry holds only the declarations of the file itself;
+ * the libraries it imports are loaded by their IDs, so declarations
+ * are shared as when the file is parsed.  The entry also holds the
+ * typedef names the imported libraries define, because they change
+ * how the file is parsed.
+ *
+ * An entry is used while the timestamp and the size of the file are
+ * unchanged, or else while the SHA-256 digest of its contents is the
+ * same.  Otherwise the file is parsed and the entry is written again.
+ * Files declaring constants whose values are not literals are always
+ * parsed.
+ */
+public class PrecompiledHeaders {
+    static private final int MAGIC = 0x43624862;     // "CbHb"
+    static private final int FORMAT_VERSION = 1;
+    static private final String EXT = ".hbc";
+
+    private final File dir;
+
+    public PrecompiledHeaders(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Loads FILE returned by LibraryLoader#searchLibrary, from its
+     * entry if it is valid.
+     */
+    Declarations load(File file, LibraryLoader loader, ErrorHandler h)
+            throws CompileException {
+        File path = loader.resolve(file);
+        String key = path.getAbsolutePath();
+        long mtime = path.lastModified();
+        long length = path.length();
+        File entry = new File(dir, toHex(digest(key)) + EXT);
+        SourceText src = null;
+        byte[] data = readEntry(entry);
+        if (data != null) {
+            try {
+                Decoder in = new Decoder(data,
+                        new HeaderText(file, loader));
+                if (! in.readHeader(key)) {
+                    return parse(file, null, entry, key, mtime, length,
+                                 loader, h);
+                }
+                long m = in.readLong();
+                long len = in.readLong();
+                boolean fresh = (m == mtime && len == length);
+                byte[] digest = in.readDigest();
+                if (! fresh) {
+                    src = loader.readLibrary(file);
+                    if (! Arrays.equals(digest, digest(src.text()))) {
+                        return parse(file, src, entry, key, mtime, length,
+                                     loader, h);
+                    }
+                }
+                List<String> libids = in.readNames();
+                List<String> typedefNames = in.readNames();
+                Declarations own = in.readDeclarations();
+                Declarations decls = loadImports(libids, loader, h);
+                if (typedefNames.equals(typedefNames(decls))) {
+                    if (! fresh) {
+                        store(entry, key, mtime, length, digest,
+                              libids, typedefNames, own);
+                    }
+                    decls.add(own);
+                    return decls;
+                }
+            }
+            catch (IOException ex) {
+                // Broken entry; parses the file and overwrites it.
+                ;
+            }
+        }
+        return parse(file, src, entry, key, mtime, length, loader, h);
+    }
+
+    private Declarations parse(File file, SourceText src, File entry,
+            String key, long mtime, long length,
+            LibraryLoader loader, ErrorHandler h) throws CompileException {
+        if (src == null) {
+            src = loader.readLibrary(file);
+        }
+        Parser parser = loader.newLibraryParser(src, h);
+        Declarations decls = parser.parseDecls();
+        List<String> libids = parser.importedLibraries();
+        Declarations imported = new Declarations();
+        for (String libid : libids) {
+            imported.add(loader.loadedLibrary(libid));
+        }
+        store(entry, key, mtime, length, digest(src.text()),
+              libids, typedefNames(imported), decls.minus(imported));
+        return decls;
+    }
+
+    private Declarations loadImports(List<String> libids,
+            LibraryLoader loader, ErrorHandler h) throws CompileException {
+        Declarations decls = new Declarations();
+        for (String libid : libids) {
+            try {
+                decls.add(loader.loadLibrary(libid, h));
+            }
+            catch (CompileException ex) {
+                // Reports as the parser does.
+                throw new SyntaxException(ex.getMessage());
+            }
+        }
+        return decls;
+    }
+
+    static private List<String> typedefNames(Declarations decls) {
+        Set<String> names = new TreeSet<String>();
+        for (TypedefNode n : decls.typedefs()) {
+            names.add(n.name());
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * Writes the entry to a temporary file and renames it, so that
+     * other processes never see incomplete entries.  Failures are
+     * ignored; precompiled headers are only an optimization.
+     */
+    private void store(File entry, String key, long mtime, long length,
+            byte[] digest, List<String> libids, List<String> typedefNames,
+            Declarations own) {
+        try {
+            Encoder out = new Encoder();
+            out.writeHeader(key);
+            out.writeLong(mtime);
+            out.writeLong(length);
+            out.writeDigest(digest);
+            out.writeNames(libids);
+            out.writeNames(typedefNames);
+            out.writeDeclarations(own);
+            if (! dir.isDirectory() && ! dir.mkdirs()) return;
+            File tmp = File.createTempFile("tmp", ".part", dir);
+            try {
+                OutputStream f = new FileOutputStream(tmp);
+                try {
+                    f.write(out.toByteArray());
+                }
+                finally {
+                    f.close();
+                }
+                if (! tmp.renameTo(entry)) {
+                    entry.delete();
+                    tmp.renameTo(entry);
+                }
+            }
+            finally {
+                tmp.delete();
+            }
+        }
+        catch (IOException ex) {
+            ;
+        }
+    }
+
+    private byte[] readEntry(File entry) {
+        try {
+            InputStream in = new FileInputStream(entry);
+            try {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                byte[] b = new byte[8192];
+                int n;
+                while ((n = in.read(b)) > 0) {
+                    buf.write(b, 0, n);
+                }
+                return buf.toByteArray();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            return null;
+        }
+    }
+
+    static private byte[] digest(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return md.digest(s.getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new Error("SHA-256 is not supported??: " + ex.getMessage());
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new Error("UTF-8 is not supported??: " + ex.getMessage());
+        }
+    }
+
+    static private final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static private String toHex(byte[] bytes) {
+        StringBuilder buf = new StringBuilder();
+        for (byte b : bytes) {
+            buf.append(HEX[(b >> 4) & 0xf]);
+            buf.append(HEX[b & 0xf]);
+        }
+        return buf.toString();
+    }
+
+    // Tags of the binary form.
+    static private final int T_VOID = 1;
+    static private final int T_INTEGER = 2;
+    static private final int T_STRUCT = 3;
+    static private final int T_UNION = 4;
+    static private final int T_USER = 5;
+    static private final int T_POINTER = 6;
+    static private final int T_ARRAY = 7;
+    static private final int T_FUNCTION = 8;
+    static private final int E_INTEGER = 1;
+    static private final int E_STRING = 2;
+
+    static private final int DIGEST_LENGTH = 32;
+
+    /*
+     * Numbers are written in unsigned LEB128.  A name is written as
+     * its index in the names written before, or 0 and the name itself
+     * for its first occurrence.  A location is written as its line
+     * (0 for null) and column; the source file is the one loading
+     * the entry.
+     */
+    static private class Encoder {
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(buf);
+        private final Map<String, Integer> names =
+                new HashMap<String, Integer>();
+
+        byte[] toByteArray() throws IOException {
+            out.flush();
+            return buf.toByteArray();
+        }
+
+        void writeHeader(String key) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+        }
+
+        void writeLong(long n) throws IOException {
+            out.writeLong(n);
+        }
+
+        void writeDigest(byte[] digest) throws IOException {
+            out.write(digest);
+        }
+
+        void writeNumber(long n) throws IOException {
+            while ((n & ~0x7fL) != 0) {
+                out.writeByte((int)((n & 0x7f) | 0x80));
+                n >>>= 7;
+            }
+            out.writeByte((int)n);
+        }
+
+        void writeBoolean(boolean b) throws IOException {
+            out.writeBoolean(b);
+        }
+
+        void writeName(String name) throws IOException {
+            Integer idx = names.get(name);
+            if (idx != null) {
+                writeNumber(idx);
+                return;
+            }
+            writeNumber(0);
+            out.writeUTF(name);
+            names.put(name, names.size() + 1);
+        }
+
+        void writeNames(List<String> list) throws IOException {
+            writeNumber(list.size());
+            for (String name : list) {
+                writeName(name);
+            }
+        }
+
+        void writeLocation(Location loc) throws IOException {
+            if (loc == null) {
+                writeNumber(0);
+                return;
+            }
+            writeNumber(loc.lineno());
+            writeNumber(loc.column());
+        }
+
+        void writeDeclarations(Declarations decls) throws IOException {
+            if (! decls.defvars().isEmpty() || ! decls.defuns().isEmpty()) {
+                throw new IOException("definitions in import file");
+            }
+            writeNumber(decls.funcdecls().size());
+            for (UndefinedFunction f : decls.funcdecls()) {
+                FunctionTypeRef ref = (FunctionTypeRef)f.typeNode().typeRef();
+                writeTypeRef(ref.returnType());
+                writeName(f.name());
+                writeLocation(ref.params().location());
+                writeNumber(f.parameters().size());
+                for (Parameter param : f.parameters()) {
+                    writeTypeRef(param.typeNode().typeRef());
+                    writeName(param.name());
+                }
+                writeBoolean(ref.params().isVararg());
+            }
+            writeNumber(decls.vardecls().size());
+            for (UndefinedVariable var : decls.vardecls()) {
+                writeTypeRef(var.typeNode().typeRef());
+                writeName(var.name());
+            }
+            writeNumber(decls.constants().size());
+            for (Constant c : decls.constants()) {
+                writeTypeRef(c.typeNode().typeRef());
+                writeName(c.name());
+                writeLiteral(c.value());
+            }
+            writeComposites(decls.defstructs());
+            writeComposites(decls.defunions());
+            writeNumber(decls.typedefs().size());
+            for (TypedefNode n : decls.typedefs()) {
+                writeLocation(n.location());
+                writeTypeRef(n.realTypeRef());
+                writeName(n.name());
+            }
+        }
+
+        void writeComposites(List<? extends CompositeTypeDefinition> defs)
+                                                    throws IOException {
+            writeNumber(defs.size());
+            for (CompositeTypeDefinition def : defs) {
+                writeLocation(def.location());
+                writeName(def.name());
+                writeNumber(def.members().size());
+                for (Slot s : def.members()) {
+                    writeTypeRef(s.typeRef());
+                    writeName(s.name());
+                }
+            }
+        }
+
+        void writeLiteral(ExprNode expr) throws IOException {
+            if (expr instanceof IntegerLiteralNode) {
+                IntegerLiteralNode n = (IntegerLiteralNode)expr;
+                writeNumber(E_INTEGER);
+                writeLocation(n.location());
+                writeTypeRef(n.typeNode().typeRef());
+                writeLong(n.value());
+            }
+            else if (expr instanceof StringLiteralNode) {
+                StringLiteralNode n = (StringLiteralNode)expr;
+                writeNumber(E_STRING);
+                writeLocation(n.location());
+                writeTypeRef(n.typeNode().typeRef());
+                out.writeUTF(n.value());
+            }
+            else {
+                throw new IOException("constant is not a literal");
+            }
+        }
+
+        void writeTypeRef(TypeRef ref) throws IOException {
+            if (ref instanceof PointerTypeRef) {
+                writeNumber(T_POINTER);
+                writeTypeRef(((PointerTypeRef)ref).baseType());
+            }
+            else if (ref instanceof ArrayTypeRef) {
+                ArrayTypeRef a = (ArrayTypeRef)ref;
+                writeNumber(T_ARRAY);
+                writeTypeRef(a.baseType());
+                writeBoolean(a.isLengthUndefined());
+                if (! a.isLengthUndefined()) {
+                    writeNumber(a.length());
+                }
+            }
+            else if (ref instanceof FunctionTypeRef) {
+                FunctionTypeRef f = (FunctionTypeRef)ref;
+                writeNumber(T_FUNCTION);
+                writeTypeRef(f.returnType());
+                writeLocation(f.params().location());
+                writeNumber(f.params().typerefs().size());
+                for (TypeRef t : f.params().typerefs()) {
+                    writeTypeRef(t);
+                }
+                writeBoolean(f.params().isVararg());
+            }
+            else if (ref instanceof IntegerTypeRef) {
+                writeNumber(T_INTEGER);
+                writeLocation(ref.location());
+                writeName(((IntegerTypeRef)ref).name());
+            }
+            else if (ref instanceof VoidTypeRef) {
+                writeNumber(T_VOID);
+                writeLocation(ref.location());
+            }
+            else if (ref instanceof StructTypeRef) {
+                writeNumber(T_STRUCT);
+                writeLocation(ref.location());
+                writeName(((StructTypeRef)ref).name());
+            }
+            else if (ref instanceof UnionTypeRef) {
+                writeNumber(T_UNION);
+                writeLocation(ref.location());
+                writeName(((UnionTypeRef)ref).name());
+            }
+            else if (ref instanceof UserTypeRef) {
+                writeNumber(T_USER);
+                writeLocation(ref.location());
+                writeName(((UserTypeRef)ref).name());
+            }
+            else {
+                throw new Error("must not happen: unknown TypeRef: " + ref);
+            }
+        }
+    }
+
+    /**
+     * Text of an import file loaded from its entry.  Locations need
+     * the text only to print source lines in diagnostics, so it is
+     * read when a line is first asked.
+     */
+    static private class HeaderText extends SourceText {
+        private final File file;
+        private final LibraryLoader loader;
+
+        HeaderText(File file, LibraryLoader loader) {
+            super(file.getPath());
+            this.file = file;
+            this.loader = loader;
+        }
+
+        protected String load() {
+            try {
+                return loader.readLibraryText(file);
+            }
+            catch (FileException ex) {
+                // The file was removed after the entry was read.
+                return "";
+            }
+        }
+    }
+
+    static private class Decoder {
+        private final DataInputStream in;
+        private final List<String> names = new ArrayList<String>();
+        private final SourceText source;
+
+        Decoder(byte[] data, SourceText source) {
+            this.in = new DataInputStream(new ByteArrayInputStream(data));
+            this.source = source;
+        }
+
+        boolean readHeader(String key) throws IOException {
+            return in.readInt() == MAGIC
+                    && in.readInt() == FORMAT_VERSION
+                    && in.readUTF().equals(key);
+        }
+
+        long readLong() throws IOException {
+            return in.readLong();
+        }
+
+        byte[] readDigest() throws IOException {
+            byte[] digest = new byte[DIGEST_LENGTH];
+            in.readFully(digest);
+            return digest;
+        }
+
+        long readNumber() throws IOException {
+            long n = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                n |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return n;
+            }
+            throw new IOException("broken number");
+        }
+
+        int readCount() throws IOException {
+            long n = readNumber();
+            if (n > Integer.MAX_VALUE) {
+                throw new IOException("broken count");
+            }
+            return (int)n;
+        }
+
+        boolean readBoolean() throws IOException {
+            return in.readBoolean();
+        }
+
+        String readName() throws IOException {
+            int idx = readCount();
+            if (idx == 0) {
+                String name = in.readUTF();
+                names.add(name);
+                return name;
+            }
+            if (idx > names.size()) {
+                throw new IOException("broken name index");
+            }
+            return names.get(idx - 1);
+        }
+
+        List<String> readNames() throws IOException {
+            int n = readCount();
+            List<String> list = new ArrayList<String>();
+            for (int i = 0; i < n; i++) {
+                list.add(readName());
+            }
+            return list;
+        }
+
+        Location readLocation() throws IOException {
+            int lineno = readCount();
+            if (lineno == 0) return null;
+            return new Location(source, lineno, readCount());
+        }
+
+        Declarations readDeclarations() throws IOException {
+            Declarations decls = new Declarations();
+            int n = readCount();
+            for (int i = 0; i < n; i++) {
+                TypeRef ret = readTypeRef();
+                String name = readName();
+                Location loc = readLocation();
+                int nparams = readCount();
+                List<Parameter> params = new ArrayList<Parameter>();
+                for (int j = 0; j < nparams; j++) {
+                    TypeNode t = new TypeNode(readTypeRef());
+                    params.add(new Parameter(t, readName()));
+                }
+                Params ps = new Params(loc, params);
+                if (readBoolean()) {
+                    ps.acceptVarargs();
+                }
+                TypeRef t = new FunctionTypeRef(ret, ps.parametersTypeRef());
+                decls.addFuncdecl(new UndefinedFunction(new TypeNode(t),
+                                                        name, ps));
+            }
+            n = readCount();
+            for (int i = 0; i < n; i++) {
+                TypeNode t = new TypeNode(readTypeRef());
+                decls.addVardecl(new UndefinedVariable(t, readName()));
+            }
+            n = readCount();
+            for (int i = 0; i < n; i++) {
+                TypeNode t = new TypeNode(readTypeRef());
+                String name = readName();
+                decls.addConstant(new Constant(t, name, readLiteral()));
+            }
+            n = readCount();
+            for (int i = 0; i < n; i++) {
+                Location loc = readLocation();
+                String name = readName();
+                decls.addDefstruct(new StructNode(loc,
+                        new StructTypeRef(name), name, readSlots()));
+            }
+            n = readCount();
+            for (int i = 0; i < n; i++) {
+                Location loc = readLocation();
+                String name = readName();
+                decls.addDefunion(new UnionNode(loc,
+                        new UnionTypeRef(name), name, readSlots()));
+            }
+            n = readCount();
+            for (int i = 0; i < n; i++) {
+                Location loc = readLocation();
+                TypeRef real = readTypeRef();
+                decls.addTypedef(new TypedefNode(loc, real, readName()));
+            }
+            return decls;
+        }
+
+        List<Slot> readSlots() throws IOException {
+            int n = readCount();
+            List<Slot> membs = new ArrayList<Slot>();
+            for (int i = 0; i < n; i++) {
+                TypeNode t = new TypeNode(readTypeRef());
+                membs.add(new Slot(t, readName()));
+            }
+            return membs;
+        }
+
+        ExprNode readLiteral() throws IOException {
+            int tag = readCount();
+            Location loc = readLocation();
+            TypeRef ref = readTypeRef();
+            switch (tag) {
+            case E_INTEGER:
+                return new IntegerLiteralNode(loc, ref, in.readLong());
+            case E_STRING:
+                return new StringLiteralNode(loc, ref, in.readUTF());
+            default:
+                throw new IOException("broken literal tag: " + tag);
+            }
+        }
+
+        TypeRef readTypeRef() throws IOException {
+            int tag = readCount();
+            switch (tag) {
+            case T_POINTER:
+                return new PointerTypeRef(readTypeRef());
+            case T_ARRAY:
+                {
+                    TypeRef base = readTypeRef();
+                    if (readBoolean()) {
+                        return new ArrayTypeRef(base);
+                    }
+                    return new ArrayTypeRef(base, readNumber());
+                }
+            case T_FUNCTION:
+                {
+                    TypeRef ret = readTypeRef();
+                    Location loc = readLocation();
+                    int n = readCount();
+                    List<TypeRef> refs = new ArrayList<TypeRef>();
+                    for (int i = 0; i < n; i++) {
+                        refs.add(readTypeRef());
+                    }
+                    return new FunctionTypeRef(ret,
+                            new ParamTypeRefs(loc, refs, readBoolean()));
+                }
+            case T_INTEGER:
+                {
+                    Location loc = readLocation();
+                    return new IntegerTypeRef(readName(), loc);
+                }
+            case T_VOID:
+                return new VoidTypeRef(readLocation());
+            case T_STRUCT:
+                {
+                    Location loc = readLocation();
+                    return new StructTypeRef(loc, readName());
+                }
+            case T_UNION:
+                {
+                    Location loc = readLocation();
+                    return new UnionTypeRef(loc, readName());
+                }
+            case T_USER:
+                {
+                    Location loc = readLocation();
+                    return new UserTypeRef(loc, readName());
+                }
+            default:
+                throw new IOException("broken type tag: " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package net.loveruby.cflat.parser;
+import net.loveruby.cflat.ast.SourceText;
+import java.io.IOException;
+
+/**
+ * CharStream over the whole text of a source file, which replaces
+ * SimpleCharStream.  While pooling is on, token images are taken
+ * from the SymbolPool instead of allocated for each token;
+ * PoolingTokenManager turns it on for identifiers only.
+ *
+ * Lines and columns are computed only for the positions the token
+ * manager asks, by a cursor which moves forward in the text.  They
+ * are same as SimpleCharStream: a line ends with "\n", "\r" or
+ * "\r\n", and a tab advances the column to the next multiple of 8.
+ */
+class SourceCharStream implements CharStream {
+    static private final int TAB_SIZE = 8;
+
+    private final char[] buf;
+    private final SymbolPool pool;
+    private boolean pooling = false;
+    private int pos = -1;           // position of the last char read
+    private int tokenBegin = -1;
+
+    // Line and column of the position CURSOR.
+    private int cursor = -1;
+    private int line = 1;
+    private int column = 0;
+    private boolean prevCharIsCR = false;
+    private boolean prevCharIsLF = false;
+
+    SourceCharStream(SourceText src, SymbolPool pool) {
+        this.buf = src.text().toCharArray();
+        this.pool = pool;
+    }
+
+    SourceCharStream(SourceText src) {
+        this(src, null);
+    }
+
+    /** Pools the images of the next tokens if POOLING is true. */
+    void setPooling(boolean pooling) {
+        this.pooling = pooling && pool != null;
+    }
+
+    public char BeginToken() throws IOException {
+        tokenBegin = -1;
+        char c = readChar();
+        tokenBegin = pos;
+        return c;
+    }
+
+    public char readChar() throws IOException {
+        if (pos + 1 >= buf.length) {
+            // Same as SimpleCharStream at EOF.
+            if (tokenBegin == -1) tokenBegin = pos;
+            throw new IOException("EOF");
+        }
+        return buf[++pos];
+    }
+
+    public void backup(int amount) {
+        pos -= amount;
+    }
+
+    public String GetImage() {
+        int len = pos - tokenBegin + 1;
+        if (pooling) {
+            return pool.intern(buf, tokenBegin, len);
+        }
+        return new String(buf, tokenBegin, len);
+    }
+
+    public char[] GetSuffix(int len) {
+        char[] ret = new char[len];
+        System.arraycopy(buf, pos - len + 1, ret, 0, len);
+        return ret;
+    }
+
+    public void Done() {
+    }
+
+    // Lines and columns are 0 before the first char is read,
+    // as SimpleCharStream.
+
+    public int getBeginLine() {
+        return moveCursor(tokenBegin) ? line : 0;
+    }
+
+    public int getBeginColumn() {
+        return moveCursor(tokenBegin) ? column : 0;
+    }
+
+    public int getEndLine() {
+        return moveCursor(pos) ? line : 0;
+    }
+
+    public int getEndColumn() {
+        return moveCursor(pos) ? column : 0;
+    }
+
+    /** @deprecated */
+    @Deprecated
+    public int getLine() {
+        return getEndLine();
+    }
+
+    /** @deprecated */
+    @Deprecated
+    public int getColumn() {
+        return getEndColumn();
+    }
+
+    // Moves the cursor to TARGET.  Returns false if TARGET is
+    // before the text.
+    private boolean moveCursor(int target) {
+        if (target < 0) return false;
+        if (target < cursor) {
+            // Goes back: starts over from the beginning.
+            cursor = -1;
+            line = 1;
+            column = 0;
+            prevCharIsCR = false;
+            prevCharIsLF = false;
+        }
+        while (cursor < target) {
+            updateLineColumn(buf[++cursor]);
+        }
+        return true;
+    }
+
+    // Same as SimpleCharStream#UpdateLineColumn.
+    private void updateLineColumn(char c) {
+        column++;
+        if (prevCharIsLF) {
+            prevCharIsLF = false;
+            line += (column = 1);
+        }
+        else if (prevCharIsCR) {
+            prevCharIsCR = false;
+            if (c == '\n') {
+                prevCharIsLF = true;
+            }
+            else {
+                line += (column = 1);
+            }
+        }
+        switch (c) {
+        case '\r':
+            prevCharIsCR = true;
+            break;
+        case '\n':
+            prevCharIsLF = true;
+            break;
+        case '\t':
+            column--;
+            column += (TAB_SIZE - (column % TAB_SIZE));
+            break;
+        default:
+            break;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package net.loveruby.cflat.parser;
+
+/**
+ * Pool of identifier images shared by the parsers of a compilation
+ * unit.  The same identifier is always the same String object, so the
+ * names in the AST and the scopes share one String (and its cached
+ * hash code), and String#equals returns by the identity check.
+ *
+ * Images are looked up by the characters of the source, so a String
+ * is made only for the first occurrence.  Only identifiers are
+ * pooled (see PoolingTokenManager): keywords and operators already
+ * have constant images, and literals, spaces and comments are rarely
+ * repeated.  Very long identifiers are not pooled either.
+ */
+public class SymbolPool {
+    static private final int MAX_LENGTH = 64;
+    static private final int INITIAL_CAPACITY = 1024;
+
+    private String[] table = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /** Returns the pooled String of BUF[OFFSET...OFFSET+LEN]. */
+    synchronized public String intern(char[] buf, int offset, int len) {
+        if (len > MAX_LENGTH) {
+            return new String(buf, offset, len);
+        }
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + buf[offset + i];
+        }
+        int mask = table.length - 1;
+        int i = spread(h) & mask;
+        while (table[i] != null) {
+            if (hashes[i] == h && matches(table[i], buf, offset, len)) {
+                return table[i];
+            }
+            i = (i + 1) & mask;
+        }
+        String s = new String(buf, offset, len);
+        table[i] = s;
+        hashes[i] = h;
+        if (++size * 2 > table.length) {
+            rehash();
+        }
+        return s;
+    }
+
+    synchronized public int size() {
+        return size;
+    }
+
+    static private int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    static private boolean matches(String s, char[] buf, int offset, int len) {
+        if (s.length() != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != buf[offset + i]) return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        String[] oldTable = table;
+        int[] oldHashes = hashes;
+        table = new String[oldTable.length * 2];
+        hashes = new int[oldTable.length * 2];
+        int mask = table.length - 1;
+        for (int j = 0; j < oldTable.length; j++) {
+            if (oldTable[j] == null) continue;
+            int i = spread(oldHashes[j]) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = oldTable[j];
+            hashes[i] = oldHashes[j];
+        }
+    }
+}
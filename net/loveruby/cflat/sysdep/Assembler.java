@@ -1,7 +1,16 @@
 package net.loveruby.cflat.sysdep;
+import net.loveruby.cflat.utils.CommandUtils;
 import net.loveruby.cflat.exception.IPCException;
 
 public interface Assembler {
     void assemble(String srcPath, String destPath,
             AssemblerOptions opts) throws IPCException;
+
+    /**
+     * Starts the assembler which reads the source from its standard
+     * input.  Write the source to Command#input, then call
+     * Command#finish.
+     */
+    CommandUtils.Command start(String destPath,
+            AssemblerOptions opts) throws IPCException;
 }
@@ -1,12 +1,18 @@
 package net.loveruby.cflat.sysdep;
 import java.util.List;
 import java.util.ArrayList;
+import java.io.File;
 
 public class AssemblerOptions {
     public boolean verbose = false;
+    public File workingDirectory = null;
     List<String> args = new ArrayList<String>();
 
     public void addArg(String a) {
         args.add(a);
     }
+
+    public List<String> args() {
+        return args;
+    }
 }
@@ -1,8 +1,12 @@
 package net.loveruby.cflat.sysdep;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.io.IOException;
 
 public interface AssemblyCode {
     String toSource();
+    /** Writes the source to OUT without making the whole string. */
+    void writeSource(Writer out) throws IOException;
     void dump();
     void dump(PrintStream s);
 }
@@ -1,5 +1,27 @@
 package net.loveruby.cflat.sysdep;
+import net.loveruby.cflat.ir.IR;
+import net.loveruby.cflat.ir.Stmt;
+import net.loveruby.cflat.entity.DefinedFunction;
+import java.util.List;
+import java.io.Writer;
+import java.io.IOException;
 
 public interface CodeGenerator {
-    AssemblyCode generate(net.loveruby.cflat.ir.IR ir);
+    AssemblyCode generate(IR ir);
+
+    /**
+     * Makes the IR of a function on demand.  Returns null if the
+     * function has errors; its code is not generated then.
+     */
+    interface Lowering {
+        List<Stmt> lower(DefinedFunction func);
+    }
+
+    /**
+     * Same as #generate, but writes the code to OUT function by
+     * function.  The IR of each function is made by LOWERING just
+     * before its code is generated, and the body and the IR are
+     * released after the code is written.
+     */
+    void generate(IR ir, Lowering lowering, Writer out) throws IOException;
 }
@@ -1,16 +1,27 @@
 package net.loveruby.cflat.sysdep;
+import net.loveruby.cflat.utils.TimeReport;
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
 
 public class CodeGeneratorOptions {
     protected int optimizeLevel;
     protected boolean generatePIC;
     protected boolean generatePIE;
     protected boolean verboseAsm;
+    protected TimeReport timeReport;
+    protected File functionCacheDir;
+    protected int jobs;
+    protected ForkJoinPool pool;
 
     public CodeGeneratorOptions() {
         optimizeLevel = 0;
         generatePIC = false;
         generatePIE = false;
         verboseAsm = false;
+        timeReport = TimeReport.nullReport();
+        functionCacheDir = null;
+        jobs = 1;
+        pool = null;
     }
 
     public void setOptimizationLevel(int level) {
@@ -48,4 +59,42 @@ public class CodeGeneratorOptions {
     public boolean isPIERequired() {
         return generatePIE;
     }
+
+    public void setTimeReport(TimeReport report) {
+        this.timeReport = report;
+    }
+
+    public TimeReport timeReport() {
+        return timeReport;
+    }
+
+    public void setFunctionCacheDir(File dir) {
+        this.functionCacheDir = dir;
+    }
+
+    /** Returns null if the code of functions is not cached. */
+    public File functionCacheDir() {
+        return functionCacheDir;
+    }
+
+    public void setJobs(int jobs) {
+        this.jobs = jobs;
+    }
+
+    /** Number of threads which compile functions of a file. */
+    public int jobs() {
+        return jobs;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * The pool which compiles functions if #jobs is more than 1.
+     * It is shared by all files, and not shut down by code generators.
+     */
+    public ForkJoinPool pool() {
+        return pool;
+    }
 }
@@ -21,7 +21,20 @@ class GNUAssembler implements Assembler {
         cmd.add("-o");
         cmd.add(destPath);
         cmd.add(srcPath);
-        CommandUtils.invoke(cmd, errorHandler, opts.verbose);
+        CommandUtils.invoke(cmd, opts.workingDirectory,
+                errorHandler, opts.verbose);
     }
     // #@@}
+
+    public CommandUtils.Command start(String destPath,
+                            AssemblerOptions opts) throws IPCException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add("as");
+        cmd.addAll(opts.args);
+        cmd.add("-o");
+        cmd.add(destPath);
+        cmd.add("-");
+        return CommandUtils.start(cmd, opts.workingDirectory,
+                errorHandler, opts.verbose);
+    }
 }
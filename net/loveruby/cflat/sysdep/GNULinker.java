@@ -48,7 +48,8 @@ class GNULinker implements Linker {
         }
         cmd.add("-o");
         cmd.add(destPath);
-        CommandUtils.invoke(cmd, errorHandler, opts.verbose);
+        CommandUtils.invoke(cmd, opts.workingDirectory,
+                errorHandler, opts.verbose);
     }
     // #@@}
 
@@ -71,7 +72,8 @@ class GNULinker implements Linker {
         }
         cmd.add("-o");
         cmd.add(destPath);
-        CommandUtils.invoke(cmd, errorHandler, opts.verbose);
+        CommandUtils.invoke(cmd, opts.workingDirectory,
+                errorHandler, opts.verbose);
     }
     // #@@}
 }
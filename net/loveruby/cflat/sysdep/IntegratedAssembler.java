@@ -0,0 +1,11 @@
+package net.loveruby.cflat.sysdep;
+import net.loveruby.cflat.exception.FileException;
+import java.io.File;
+
+/**
+ * Assembler which encodes the generated AssemblyCode into an
+ * object file directly, without writing and parsing assembly text.
+ */
+public interface IntegratedAssembler {
+    void assemble(AssemblyCode asm, File dest) throws FileException;
+}
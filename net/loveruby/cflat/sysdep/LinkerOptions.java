@@ -1,4 +1,5 @@
 package net.loveruby.cflat.sysdep;
+import java.io.File;
 
 public class LinkerOptions {
     public boolean generatingSharedLibrary = false;
@@ -6,4 +7,5 @@ public class LinkerOptions {
     public boolean noStartFiles = false;
     public boolean noDefaultLibs = false;
     public boolean verbose = false;
+    public File workingDirectory = null;
 }
@@ -6,5 +6,6 @@ public interface Platform {
     TypeTable typeTable();
     CodeGenerator codeGenerator(CodeGeneratorOptions opts, ErrorHandler h);
     Assembler assembler(ErrorHandler h);
+    IntegratedAssembler integratedAssembler(ErrorHandler h);
     Linker linker(ErrorHandler h);
 }
@@ -22,6 +22,10 @@ public class X86Linux implements Platform {
         return new GNUAssembler(h);
     }
 
+    public IntegratedAssembler integratedAssembler(ErrorHandler h) {
+        return new net.loveruby.cflat.sysdep.x86.ELFAssembler(h);
+    }
+
     public Linker linker(ErrorHandler h) {
         return new GNULinker(h);
     }
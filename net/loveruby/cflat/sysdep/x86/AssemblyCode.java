@@ -4,6 +4,8 @@ import net.loveruby.cflat.utils.TextUtils;
 import java.util.List;
 import java.util.ArrayList;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.io.IOException;
 
 public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
     final Type naturalType;
@@ -32,14 +34,43 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
     }
 
     public String toSource() {
-        StringBuffer buf = new StringBuffer();
+        StringBuilder buf = new StringBuilder();
         for (Assembly asm : assemblies) {
-            buf.append(asm.toSource(labelSymbols));
-            buf.append("\n");
+            asm.appendSource(buf, labelSymbols);
+            buf.append('\n');
         }
         return buf.toString();
     }
 
+    static private final int WRITE_CHUNK_SIZE = 8192;
+
+    public void writeSource(Writer out) throws IOException {
+        // Lines are collected into BUF and written by chunks;
+        // BUF and CHARS are reused for all chunks.
+        StringBuilder buf = new StringBuilder(WRITE_CHUNK_SIZE * 2);
+        char[] chars = new char[WRITE_CHUNK_SIZE * 2];
+        for (Assembly asm : assemblies) {
+            asm.appendSource(buf, labelSymbols);
+            buf.append('\n');
+            if (buf.length() >= WRITE_CHUNK_SIZE) {
+                chars = writeChunk(out, buf, chars);
+            }
+        }
+        writeChunk(out, buf, chars);
+    }
+
+    private char[] writeChunk(Writer out, StringBuilder buf, char[] chars)
+                                                    throws IOException {
+        int len = buf.length();
+        if (len > chars.length) {
+            chars = new char[len];
+        }
+        buf.getChars(0, len, chars, 0);
+        out.write(chars, 0, len);
+        buf.setLength(0);
+        return chars;
+    }
+
     public void dump() {
         dump(System.out);
     }
@@ -215,19 +246,19 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
     }
 
     void _byte(Literal val) {
-        directive(".byte\t" + val.toSource());
+        assemblies.add(new DataDirective(".byte", val));
     }
 
     void _value(Literal val) {
-        directive(".value\t" + val.toSource());
+        assemblies.add(new DataDirective(".value", val));
     }
 
     void _long(Literal val) {
-        directive(".long\t" + val.toSource());
+        assemblies.add(new DataDirective(".long", val));
     }
 
     void _quad(Literal val) {
-        directive(".quad\t" + val.toSource());
+        assemblies.add(new DataDirective(".quad", val));
     }
 
     void _string(String str) {
@@ -328,6 +359,11 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
         insn("jmp", new DirectMemoryReference(label.symbol()));
     }
 
+    // jump to the address in REG
+    void jmp(Register reg) {
+        insn("jmp", new AbsoluteAddress(reg));
+    }
+
     void jnz(Label label) {
         insn("jnz", new DirectMemoryReference(label.symbol()));
     }
@@ -336,6 +372,14 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
         insn("je", new DirectMemoryReference(label.symbol()));
     }
 
+    void ja(Label label) {
+        insn("ja", new DirectMemoryReference(label.symbol()));
+    }
+
+    void jge(Label label) {
+        insn("jge", new DirectMemoryReference(label.symbol()));
+    }
+
     void cmp(Operand a, Register b) {
         insn(b.type, "cmp", a, b);
     }
@@ -489,7 +533,7 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
         insn(base.type, "sar", bits, base);
     }
 
-    void sal(Register bits, Register base) {
+    void sal(Operand bits, Register base) {
         insn(base.type, "sal", bits, base);
     }
 
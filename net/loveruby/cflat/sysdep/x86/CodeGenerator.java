@@ -7,7 +7,12 @@ import net.loveruby.cflat.ast.Location;
 import net.loveruby.cflat.utils.AsmUtils;
 import net.loveruby.cflat.utils.ListUtils;
 import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.utils.TimeReport;
 import java.util.*;
+import java.util.concurrent.*;
+import java.io.File;
+import java.io.Writer;
+import java.io.IOException;
 
 public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         IRVisitor<Void,Void>, ELFConstants {
@@ -24,14 +29,89 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     }
     // #@@}
 
+    // Compiles a function of the file of PARENT.
+    private CodeGenerator(CodeGenerator parent) {
+        this(parent.options, parent.naturalType, parent.errorHandler);
+        this.sourceName = parent.sourceName;
+        this.cache = parent.cache;
+    }
+
     /** Compiles IR and generates assembly code. */
     // #@@range/generate{
     public AssemblyCode generate(IR ir) {
+        sourceName = ir.fileName();
         locateSymbols(ir);
-        return generateAssemblyCode(ir);
+        cache = openCache(ir);
+        AssemblyCode file = generateAssemblyCode(ir);
+        if (cache != null) {
+            cache.save();
+        }
+        return file;
     }
     // #@@}
 
+    /**
+     * Generates assembly code as #generate, writing each function
+     * when its code is generated.  Labels are named by one table as
+     * #generate, so the output is same.
+     */
+    public void generate(IR ir, Lowering lowering, Writer out)
+                                        throws IOException {
+        sourceName = ir.fileName();
+        locateSymbols(ir);
+        cache = openCache(ir);
+        SymbolTable labels = new SymbolTable(LABEL_SYMBOL_BASE);
+        AssemblyCode file = newAssemblyCode(labels);
+        file._file(ir.fileName());
+        if (ir.isGlobalVariableDefined()) {
+            generateDataSection(file, ir.definedGlobalVariables());
+        }
+        if (ir.isStringLiteralDefined()) {
+            generateReadOnlyDataSection(file, ir.constantTable());
+        }
+        if (ir.isFunctionDefined()) {
+            file._text();
+        }
+        file.writeSource(out);
+        for (DefinedFunction func : ir.definedFunctions()) {
+            List<Stmt> stmts = lowering.lower(func);
+            if (stmts != null) {
+                func.setIR(stmts);
+                file = newAssemblyCode(labels);
+                generateFunction(file, func);
+                file.writeSource(out);
+            }
+            func.releaseBody();
+            // Labels are local to a function.
+            labels.forget();
+        }
+        file = newAssemblyCode(labels);
+        if (ir.isCommonSymbolDefined()) {
+            generateCommonSymbols(file, ir.definedCommonSymbols());
+        }
+        if (options.isPositionIndependent()) {
+            PICThunk(file, GOTBaseReg());
+        }
+        file.writeSource(out);
+        if (cache != null) {
+            cache.save();
+        }
+    }
+
+    // for --time-report
+    private String sourceName;
+
+    // for --codegen-cache; null if not given.
+    private FunctionCache cache;
+
+    private FunctionCache openCache(IR ir) {
+        File dir = options.functionCacheDir();
+        if (dir == null) {
+            return null;
+        }
+        return FunctionCache.load(dir, ir, options, naturalType);
+    }
+
     static final String LABEL_SYMBOL_BASE = ".L";
     static final String CONST_SYMBOL_BASE = ".LC";
 
@@ -166,12 +246,15 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
 
     // #@@range/newAssemblyCode{
     private AssemblyCode newAssemblyCode() {
+        return newAssemblyCode(new SymbolTable(LABEL_SYMBOL_BASE));
+    }
+    // #@@}
+
+    private AssemblyCode newAssemblyCode(SymbolTable labels) {
         return new AssemblyCode(
-                naturalType, STACK_WORD_SIZE,
-                new SymbolTable(LABEL_SYMBOL_BASE),
+                naturalType, STACK_WORD_SIZE, labels,
                 options.isVerboseAsm());
     }
-    // #@@}
 
     /** Generates initialized entries */
     // #@@range/generateDataSection{
@@ -237,18 +320,112 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     private void generateTextSection(AssemblyCode file,
                                     List<DefinedFunction> functions) {
         file._text();
+        if (options.jobs() > 1 && options.pool() != null
+                && functions.size() > 1) {
+            generateFunctionsInParallel(file, functions);
+            return;
+        }
         for (DefinedFunction func : functions) {
-            Symbol sym = globalSymbol(func.name());
-            if (! func.isPrivate()) {
-                file._globl(sym);
+            generateFunction(file, func);
+        }
+    }
+    // #@@}
+
+    /**
+     * Compiles each function by its own CodeGenerator on the shared
+     * fork-join pool, and appends the code in the order of FUNCTIONS.
+     * Labels are named when the code is written, so the output is
+     * same as the sequential one.
+     */
+    private void generateFunctionsInParallel(final AssemblyCode file,
+                                final List<DefinedFunction> functions) {
+        ForkJoinTask<List<AssemblyCode>> all =
+            options.pool().submit(new RecursiveTask<List<AssemblyCode>>() {
+                protected List<AssemblyCode> compute() {
+                    List<GenerateTask> tasks = new ArrayList<GenerateTask>();
+                    for (DefinedFunction func : functions) {
+                        tasks.add(new GenerateTask(file, func));
+                    }
+                    invokeAll(tasks);
+                    List<AssemblyCode> codes = new ArrayList<AssemblyCode>();
+                    for (GenerateTask task : tasks) {
+                        codes.add(task.join());
+                    }
+                    return codes;
+                }
+            });
+        try {
+            for (AssemblyCode code : all.get()) {
+                file.addAll(code.assemblies());
             }
-            file._type(sym, "@function");
-            file.label(sym);
+        }
+        catch (InterruptedException ex) {
+            all.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new Error("code generation interrupted");
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new Error(cause);
+        }
+    }
+
+    // Compiles a function for #generateFunctionsInParallel.
+    private class GenerateTask extends RecursiveTask<AssemblyCode> {
+        private final AssemblyCode file;
+        private final DefinedFunction func;
+
+        GenerateTask(AssemblyCode file, DefinedFunction func) {
+            this.file = file;
+            this.func = func;
+        }
+
+        protected AssemblyCode compute() {
+            AssemblyCode code = newAssemblyCode(file.labelSymbols);
+            new CodeGenerator(CodeGenerator.this).generateFunction(code, func);
+            return code;
+        }
+    }
+
+    private void generateFunction(AssemblyCode file, DefinedFunction func) {
+        Symbol sym = globalSymbol(func.name());
+        if (! func.isPrivate()) {
+            file._globl(sym);
+        }
+        file._type(sym, "@function");
+        file.label(sym);
+        TimeReport.Timer t =
+            options.timeReport().function(sourceName, func.name());
+        if (cache == null) {
             compileFunctionBody(file, func);
-            file._size(sym, ".-" + sym.toSource());
         }
+        else {
+            compileFunctionBodyCached(file, func);
+        }
+        t.stop();
+        file._size(sym, ".-" + sym.toSource());
+    }
+
+    // The body is compiled into another AssemblyCode,
+    // to store the code of the function only.
+    private void compileFunctionBodyCached(AssemblyCode file,
+                                           DefinedFunction func) {
+        String key = cache.key(func);
+        List<Assembly> code = cache.lookup(key);
+        if (code == null) {
+            AssemblyCode body = newAssemblyCode(file.labelSymbols);
+            compileFunctionBody(body, func);
+            code = body.assemblies();
+            cache.store(key, code);
+        }
+        file.addAll(code);
     }
-    // #@@}
 
     /** Generates BSS entries */
     // #@@range/generateCommonSymbols{
@@ -407,6 +584,7 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     // #@@range/compileFunctionBody{
     private void compileFunctionBody(AssemblyCode file, DefinedFunction func) {
         StackFrameInfo frame = new StackFrameInfo();
+        allocateRegisters(func);
         // #@@range/cfb_locate{
         locateParameters(func.parameters());
         frame.lvarSize = locateLocalVariables(func.lvarScope());
@@ -435,8 +613,11 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         if (options.optimizeLevel() < 1) {
             return body;
         }
+        TimeReport.Timer t =
+            options.timeReport().phase(sourceName, "PeepholeOptimizer");
         body.apply(PeepholeOptimizer.defaultSet());
         body.reduceLabels();
+        t.stop();
         return body;
     }
     // #@@}
@@ -445,6 +626,7 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
             StackFrameInfo frame, List<DefinedVariable> lvars) {
         List<MemInfo> vars = new ArrayList<MemInfo>();
         for (DefinedVariable var : lvars) {
+            if (regvars.containsKey(var)) continue;
             vars.add(new MemInfo(var.memref(), var.name()));
         }
         vars.add(new MemInfo(mem(0, bp()), "return address"));
@@ -466,6 +648,13 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         for (MemInfo info : vars) {
             file.comment(info.mem.toString() + ": " + info.name);
         }
+        for (DefinedVariable var : lvars) {
+            Register reg = regvars.get(var);
+            if (reg != null) {
+                file.comment(reg.toSource(file.labelSymbols)
+                             + ": " + var.name());
+            }
+        }
         file.comment("-----------------------------------");
     }
 
@@ -480,12 +669,20 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     }
 
     // #@@range/compileStmts{
+    // State of the function being compiled.  Functions compiled in
+    // parallel have their own CodeGenerator.
     private AssemblyCode as;
     private Label epilogue;
+    // Variables allocated to registers; empty unless -O2.
+    private Map<Entity, Register> regvars;
+    private List<Parameter> regParams;
 
     private AssemblyCode compileStmts(DefinedFunction func) {
         as = newAssemblyCode();
         epilogue = new Label();
+        for (Parameter param : regParams) {
+            load(param.memref(), regvars.get(param));
+        }
         for (Stmt s : func.ir()) {
             compileStmt(s);
         }
@@ -494,6 +691,32 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     }
     // #@@}
 
+    private void allocateRegisters(DefinedFunction func) {
+        if (options.optimizeLevel() < 2) {
+            regvars = new HashMap<Entity, Register>();
+            regParams = new ArrayList<Parameter>();
+            return;
+        }
+        TimeReport.Timer t =
+            options.timeReport().phase(sourceName, "RegisterAllocator");
+        RegisterAllocator allocator =
+                new RegisterAllocator(allocatableRegisters(), naturalType);
+        regvars = allocator.allocate(func);
+        regParams = allocator.liveParameters();
+        t.stop();
+    }
+
+    // %ebx is the GOT base register of PIC.
+    private List<Register> allocatableRegisters() {
+        List<Register> regs = new ArrayList<Register>();
+        if (!options.isPositionIndependent()) {
+            regs.add(bx());
+        }
+        regs.add(si());
+        regs.add(di());
+        return regs;
+    }
+
     // does NOT include BP
     // #@@range/usedCalleeSaveRegisters{
     private List<Register> usedCalleeSaveRegisters(AssemblyCode body) {
@@ -545,10 +768,12 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
             List<Register> saveRegs, long frameSize) {
         file.push(bp());
         file.mov(sp(), bp());
+        // Registers are saved in the frame after it is allocated,
+        // since there is no red zone below %esp.
+        extendStack(file, frameSize);
         for (Register reg : saveRegs) {
             file.virtualPush(reg);
         }
-        extendStack(file, frameSize);
     }
     // #@@}
 
@@ -589,6 +814,7 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         // #@@range/locateLocalVariables_loc{
         long len = parentStackLen;
         for (DefinedVariable var : scope.localVariables()) {
+            if (regvars.containsKey(var)) continue;
             len = alignStack(len + var.allocSize());
             var.setMemref(relocatableMem(-len, bp()));
         }
@@ -614,6 +840,7 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     // #@@range/fixLocalVariableOffsets{
     private void fixLocalVariableOffsets(LocalScope scope, long len) {
         for (DefinedVariable var : scope.allLocalVariables()) {
+            if (regvars.containsKey(var)) continue;
             var.memref().fixOffset(-len);
         }
     }
@@ -722,18 +949,183 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     }
     // #@@}
 
+    //
+    // Switch
+    //
+    // Case values are clustered into ranges dense enough for a jump
+    // table and single values.  The clusters are dispatched by a
+    // balanced binary search of compares.
+    //
+
+    static private final int MIN_JUMP_TABLE_CASES = 4;
+    static private final long MIN_JUMP_TABLE_DENSITY = 40;    // percent
+    static private final long MAX_JUMP_TABLE_SIZE = 4096;
+    static private final int MAX_LINEAR_CLUSTERS = 3;
+
     public Void visit(Switch node) {
         compile(node.cond());
         Type t = node.cond().type();
-        for (Case c : node.cases()) {
-            as.mov(imm(c.value), cx());
-            as.cmp(cx(t), ax(t));
-            as.je(c.label);
+        if (t.size() < naturalType.size()) {
+            as.movsx(ax(t), ax());
         }
-        as.jmp(node.defaultLabel());
+        List<CaseCluster> clusters = clusterCases(sortedCases(node.cases(), t));
+        compileSwitchTree(clusters, 0, clusters.size(), node.defaultLabel());
         return null;
     }
 
+    /**
+     * Values LOW..HIGH of a switch.  A cluster of more than one case
+     * is compiled into a jump table.
+     */
+    static private final class CaseCluster {
+        final List<Case> cases;
+        final long low;
+        final long high;
+
+        CaseCluster(List<Case> cases) {
+            this.cases = cases;
+            this.low = cases.get(0).value;
+            this.high = cases.get(cases.size() - 1).value;
+        }
+
+        boolean isTable() {
+            return cases.size() > 1;
+        }
+    }
+
+    /**
+     * Returns CASES sorted by the values sign-extended from type T,
+     * which are compared with the sign-extended condition.  The first
+     * case of the same values is taken, as a linear search does.
+     */
+    private List<Case> sortedCases(List<Case> cases, Type t) {
+        Map<Long, Case> result = new TreeMap<Long, Case>();
+        for (Case c : cases) {
+            long value = signExtend(c.value, t);
+            if (! result.containsKey(value)) {
+                result.put(value, new Case(value, c.label));
+            }
+        }
+        return new ArrayList<Case>(result.values());
+    }
+
+    private long signExtend(long n, Type t) {
+        switch (t) {
+        case INT8: return (byte)n;
+        case INT16: return (short)n;
+        case INT32: return (int)n;
+        default: return n;
+        }
+    }
+
+    /**
+     * Splits sorted CASES into the least number of clusters, each of
+     * which is a single case or a range dense enough for a jump table.
+     */
+    private List<CaseCluster> clusterCases(List<Case> cases) {
+        int n = cases.size();
+        // clusters[i]: the least number of clusters of cases i..n-1
+        // next[i]: the end of the first of them
+        int[] clusters = new int[n + 1];
+        int[] next = new int[n + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            clusters[i] = clusters[i + 1] + 1;
+            next[i] = i + 1;
+            long low = cases.get(i).value;
+            for (int j = i + MIN_JUMP_TABLE_CASES; j <= n; j++) {
+                long range = cases.get(j - 1).value - low + 1;
+                if (range > MAX_JUMP_TABLE_SIZE) break;
+                if ((j - i) * 100 >= range * MIN_JUMP_TABLE_DENSITY
+                        && clusters[j] + 1 <= clusters[i]) {
+                    // Prefers a larger table on a tie.
+                    clusters[i] = clusters[j] + 1;
+                    next[i] = j;
+                }
+            }
+        }
+        List<CaseCluster> result = new ArrayList<CaseCluster>();
+        for (int i = 0; i < n; i = next[i]) {
+            result.add(new CaseCluster(cases.subList(i, next[i])));
+        }
+        return result;
+    }
+
+    /**
+     * Jumps to the case of CLUSTERS[from..to) which has the value in
+     * %eax, or to DEFAULTLABEL.
+     */
+    private void compileSwitchTree(List<CaseCluster> clusters,
+            int from, int to, Label defaultLabel) {
+        if (to - from <= MAX_LINEAR_CLUSTERS) {
+            for (int i = from; i < to; i++) {
+                compileCaseCluster(clusters.get(i), defaultLabel);
+            }
+            as.jmp(defaultLabel);
+            return;
+        }
+        int mid = (from + to) / 2;
+        Label upper = new Label();
+        as.cmp(imm(clusters.get(mid).low), ax());
+        as.jge(upper);
+        compileSwitchTree(clusters, from, mid, defaultLabel);
+        as.label(upper);
+        compileSwitchTree(clusters, mid, to, defaultLabel);
+    }
+
+    /**
+     * Jumps to the case of C which has the value in %eax; falls
+     * through if there is no such case.
+     */
+    private void compileCaseCluster(CaseCluster c, Label defaultLabel) {
+        if (! c.isTable()) {
+            as.cmp(imm(c.low), ax());
+            as.je(c.cases.get(0).label);
+            return;
+        }
+        Label next = new Label();
+        Label table = new Label();
+        as.mov(ax(), cx());
+        if (c.low != 0) {
+            as.sub(imm(c.low), cx());
+        }
+        as.cmp(imm(c.high - c.low), cx());
+        as.ja(next);
+        as.sal(imm(2), cx());
+        if (options.isPositionIndependent()) {
+            // The table has offsets from the GOT, not addresses,
+            // not to be relocated at load time.
+            as.add(GOTBaseReg(), cx());
+            as.mov(mem(localGOTSymbol(table.symbol()), cx()), cx());
+            as.add(GOTBaseReg(), cx());
+        }
+        else {
+            as.mov(mem(table.symbol(), cx()), cx());
+        }
+        as.jmp(cx());
+        generateJumpTable(table, c, defaultLabel);
+        as.label(next);
+    }
+
+    private void generateJumpTable(Label table, CaseCluster c,
+                                   Label defaultLabel) {
+        as._section(".rodata");
+        as._align(naturalType.size());
+        as.label(table);
+        Iterator<Case> cases = c.cases.iterator();
+        Case next = cases.next();
+        for (long value = c.low; value <= c.high; value++) {
+            Label dest = defaultLabel;
+            if (next != null && next.value == value) {
+                dest = next.label;
+                next = cases.hasNext() ? cases.next() : null;
+            }
+            Symbol sym = dest.symbol();
+            as._long(options.isPositionIndependent()
+                     ? localGOTSymbol(sym) : sym);
+        }
+        as._text();
+    }
+
     //
     // Expressions
     //
@@ -769,6 +1161,12 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
             loadConstant(node.right(), cx());
             compileBinaryOp(op, ax(t), cx(t));
         }
+        else if (node.right().isVar()
+                && isRegisterOperand((Var)node.right(), op, t)) {
+            compile(node.left());
+            compileBinaryOp(op, ax(t),
+                    regvars.get(node.right().getEntityForce()));
+        }
         else if (node.right().isVar()) {
             compile(node.left());
             loadVariable((Var)node.right(), cx(t));
@@ -800,6 +1198,12 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     }
     // #@@}
 
+    private boolean isRegisterOperand(Var var, Op op, Type t) {
+        return regvars.containsKey(var.entity())
+                && var.type() == t
+                && !doesRequireRegisterOperand(op);
+    }
+
     // #@@range/doesRequireRegisterOperand{
     private boolean doesRequireRegisterOperand(Op op) {
         switch (op) {
@@ -953,7 +1357,22 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
 
     // #@@range/Assign{
     public Void visit(Assign node) {
-        if (node.lhs().isAddr() && node.lhs().memref() != null) {
+        if (node.lhs().isAddr()
+                && regvars.containsKey(node.lhs().getEntityForce())) {
+            Register reg = regvars.get(node.lhs().getEntityForce());
+            Operand right = inPlaceOperand(node.rhs(), reg);
+            if (right != null) {
+                compileBinaryOp(((Bin)node.rhs()).op(), reg, right);
+            }
+            else if (node.rhs().isConstant()) {
+                loadConstant(node.rhs(), reg);
+            }
+            else {
+                compile(node.rhs());
+                as.mov(ax(), reg);
+            }
+        }
+        else if (node.lhs().isAddr() && node.lhs().memref() != null) {
             compile(node.rhs());
             store(ax(node.lhs().type()), node.lhs().memref());
         }
@@ -975,6 +1394,34 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     }
     // #@@}
 
+    /**
+     * Returns the right operand if EXPR is "REG op right", which can
+     * be computed on REG itself; otherwise null.
+     */
+    private Operand inPlaceOperand(Expr expr, Register reg) {
+        if (!(expr instanceof Bin)) return null;
+        Bin bin = (Bin)expr;
+        switch (bin.op()) {
+        case ADD: case SUB: case MUL:
+        case BIT_AND: case BIT_OR: case BIT_XOR:
+            break;
+        default:
+            return null;
+        }
+        if (bin.type() != naturalType) return null;
+        if (!bin.left().isVar()) return null;
+        // The left may be another variable whose life ends here.
+        Register left = regvars.get(bin.left().getEntityForce());
+        if (left == null || !left.equals(reg)) return null;
+        if (bin.right().isConstant()) {
+            return bin.right().asmValue();
+        }
+        if (bin.right().isVar()) {
+            return regvars.get(bin.right().getEntityForce());
+        }
+        return null;
+    }
+
     // #@@range/Mem{
     public Void visit(Mem node) {
         compile(node.expr());
@@ -1015,7 +1462,11 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     /** Loads variable content to the register. */
     // #@@range/loadVariable{
     private void loadVariable(Var var, Register dest) {
-        if (var.memref() == null) {
+        Register reg = regvars.get(var.entity());
+        if (reg != null) {
+            as.mov(reg, dest.forType(naturalType));
+        }
+        else if (var.memref() == null) {
             Register a = dest.forType(naturalType);
             as.mov(var.address(), a);
             load(mem(a), dest.forType(var.type()));
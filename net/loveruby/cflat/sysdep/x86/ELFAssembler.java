@@ -0,0 +1,625 @@
+package net.loveruby.cflat.sysdep.x86;
+import net.loveruby.cflat.sysdep.IntegratedAssembler;
+import net.loveruby.cflat.asm.*;
+import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.exception.FileException;
+import java.util.*;
+import java.io.*;
+
+/**
+ * Integrated assembler (-integrated-as).  Encodes AssemblyCode into
+ * an ELF32 relocatable object file without writing assembly source
+ * and running GNU as.
+ *
+ * Instructions are encoded by InstructionEncoder.  Directives are
+ * interpreted from the text which the code generator emits.  Each
+ * section is a list of fragments; jumps start as short jumps and are
+ * relaxed to near jumps until the layout is stable, as GNU as does.
+ */
+public class ELFAssembler implements IntegratedAssembler, ELFConstants {
+    enum FixupKind { ABS32, PC32, PLT32, GOT32, GOT32X, GOTOFF, GOTOFF_DATA, GOTPC }
+
+    /** A 32bit field which refers to a symbol. */
+    static class Fixup {
+        final int offset;
+        final FixupKind kind;
+        final String symbol;
+        final long addend;
+
+        Fixup(int offset, FixupKind kind, String symbol, long addend) {
+            this.offset = offset;
+            this.kind = kind;
+            this.symbol = symbol;
+            this.addend = addend;
+        }
+    }
+
+    abstract static class Fragment {
+        long offset;
+
+        /** Size of this fragment when it is placed at OFFSET. */
+        abstract long size(long offset);
+    }
+
+    static class DataFragment extends Fragment {
+        final ELFObjectFile.Bytes bytes = new ELFObjectFile.Bytes();
+        final List<Fixup> fixups = new ArrayList<Fixup>();
+
+        /** Records a fixup for the field which starts at the current end. */
+        void fixup(FixupKind kind, String symbol, long addend) {
+            fixups.add(new Fixup(bytes.length(), kind, symbol, addend));
+        }
+
+        long size(long offset) {
+            return bytes.length();
+        }
+    }
+
+    static class JumpFragment extends Fragment {
+        final int condition;    // -1 for jmp
+        final String target;
+        boolean isLong = false;
+
+        JumpFragment(int condition, String target) {
+            this.condition = condition;
+            this.target = target;
+        }
+
+        long size(long offset) {
+            if (! isLong) return 2;
+            return (condition < 0) ? 5 : 6;
+        }
+    }
+
+    static class AlignFragment extends Fragment {
+        final long align;
+
+        AlignFragment(long align) {
+            this.align = align;
+        }
+
+        long size(long offset) {
+            return ELFObjectFile.alignUp(offset, align) - offset;
+        }
+    }
+
+    static class LabelFragment extends Fragment {
+        final ELFObjectFile.Symbol symbol;
+
+        LabelFragment(ELFObjectFile.Symbol symbol) {
+            this.symbol = symbol;
+        }
+
+        long size(long offset) {
+            return 0;
+        }
+    }
+
+    /** ".size SYM,.-SYM" */
+    static class SizeFragment extends Fragment {
+        final ELFObjectFile.Symbol symbol;
+
+        SizeFragment(ELFObjectFile.Symbol symbol) {
+            this.symbol = symbol;
+        }
+
+        long size(long offset) {
+            return 0;
+        }
+    }
+
+    private final ErrorHandler errorHandler;
+    private ELFObjectFile obj;
+    private InstructionEncoder encoder;
+    private Map<ELFObjectFile.Section, List<Fragment>> fragments;
+    private ELFObjectFile.Section current;
+    private Set<String> localCommons;
+
+    public ELFAssembler(ErrorHandler h) {
+        this.errorHandler = h;
+    }
+
+    public void assemble(net.loveruby.cflat.sysdep.AssemblyCode code,
+                         File dest) throws FileException {
+        AssemblyCode asm = (AssemblyCode)code;
+        ELFObjectFile file = build(asm);
+        try {
+            OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(dest));
+            try {
+                file.write(out);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException ex) {
+            errorHandler.error("failed to write object file: "
+                               + ex.getMessage());
+            throw new FileException("file error");
+        }
+    }
+
+    ELFObjectFile build(AssemblyCode asm) {
+        obj = new ELFObjectFile();
+        encoder = new InstructionEncoder(asm.labelSymbols);
+        fragments = new LinkedHashMap<ELFObjectFile.Section, List<Fragment>>();
+        localCommons = new HashSet<String>();
+        // GNU as always has these sections.
+        current = section(".text", null, SHT_PROGBITS,
+                          SHF_ALLOC | SHF_EXECINSTR);
+        section(".data", null, SHT_PROGBITS, SHF_ALLOC | SHF_WRITE);
+        section(".bss", null, SHT_NOBITS, SHF_ALLOC | SHF_WRITE);
+        for (Assembly a : asm.assemblies()) {
+            if (a.isLabel()) {
+                defineLabel(encoder.symbolName(((Label)a).symbol()));
+            }
+            else if (a.isDirective()) {
+                directive(a.toSource(asm.labelSymbols).trim());
+            }
+            else if (a.isInstruction()) {
+                instruction((Instruction)a);
+            }
+        }
+        for (Map.Entry<ELFObjectFile.Section, List<Fragment>> ent
+                : fragments.entrySet()) {
+            layout(ent.getKey(), ent.getValue());
+        }
+        for (Map.Entry<ELFObjectFile.Section, List<Fragment>> ent
+                : fragments.entrySet()) {
+            emit(ent.getKey(), ent.getValue());
+        }
+        return obj;
+    }
+
+    private ELFObjectFile.Section section(String name, String group,
+                                          int type, int flags) {
+        ELFObjectFile.Section s = obj.section(name, group);
+        if (s == null) {
+            s = obj.addSection(name, type, flags, group);
+            fragments.put(s, new ArrayList<Fragment>());
+        }
+        return s;
+    }
+
+    private List<Fragment> currentFragments() {
+        if (current.isNobits()) {
+            throw new Error("integrated assembler: contents in "
+                            + current.name);
+        }
+        return fragments.get(current);
+    }
+
+    private DataFragment dataFragment() {
+        List<Fragment> frags = currentFragments();
+        if (! frags.isEmpty()) {
+            Fragment last = frags.get(frags.size() - 1);
+            if (last instanceof DataFragment) {
+                return (DataFragment)last;
+            }
+        }
+        DataFragment f = new DataFragment();
+        frags.add(f);
+        return f;
+    }
+
+    private void defineLabel(String name) {
+        ELFObjectFile.Symbol sym = obj.symbol(name);
+        if (sym.isDefined()) {
+            throw new Error("integrated assembler: symbol `" + name
+                            + "' is already defined");
+        }
+        sym.section = current;
+        currentFragments().add(new LabelFragment(sym));
+    }
+
+    private void instruction(Instruction insn) {
+        Integer cond = encoder.jumpCondition(insn);
+        if (cond != null) {
+            currentFragments().add(
+                    new JumpFragment(cond, encoder.jumpTarget(insn)));
+        }
+        else {
+            encoder.encode(insn, dataFragment());
+        }
+    }
+
+    //
+    // Directives
+    //
+
+    private void directive(String line) {
+        int sep = indexOfSpace(line);
+        String name = (sep < 0) ? line : line.substring(0, sep);
+        String args = (sep < 0) ? "" : line.substring(sep).trim();
+        if (name.equals(".file")) {
+            obj.setFileName(unquote(args));
+        }
+        else if (name.equals(".text")) {
+            current = obj.section(".text", null);
+        }
+        else if (name.equals(".data")) {
+            current = obj.section(".data", null);
+        }
+        else if (name.equals(".section")) {
+            sectionDirective(splitArgs(args));
+        }
+        else if (name.equals(".globl") || name.equals(".global")) {
+            obj.symbol(args).bind = STB_GLOBAL;
+        }
+        else if (name.equals(".local")) {
+            obj.symbol(args).bind = STB_LOCAL;
+            localCommons.add(args);
+        }
+        else if (name.equals(".hidden")) {
+            obj.symbol(args).visibility = STV_HIDDEN;
+        }
+        else if (name.equals(".comm")) {
+            commDirective(splitArgs(args));
+        }
+        else if (name.equals(".align")) {
+            long n = parseInteger(args);
+            current.align = Math.max(current.align, n);
+            currentFragments().add(new AlignFragment(n));
+        }
+        else if (name.equals(".type")) {
+            String[] a = splitArgs(args);
+            obj.symbol(a[0]).type = a[1].equals(SymbolType_function)
+                                    ? STT_FUNC : STT_OBJECT;
+        }
+        else if (name.equals(".size")) {
+            String[] a = splitArgs(args);
+            ELFObjectFile.Symbol sym = obj.symbol(a[0]);
+            if (a[1].equals(".-" + a[0])) {
+                currentFragments().add(new SizeFragment(sym));
+            }
+            else {
+                sym.size = parseInteger(a[1]);
+            }
+        }
+        else if (name.equals(".byte")) {
+            dataFragment().bytes.emit8(parseInteger(args));
+        }
+        else if (name.equals(".value")) {
+            dataFragment().bytes.emit16(parseInteger(args));
+        }
+        else if (name.equals(".long")) {
+            DataFragment f = dataFragment();
+            if (isInteger(args)) {
+                f.bytes.emit32(parseInteger(args));
+            }
+            else if (args.endsWith("@GOTOFF")) {
+                // Entries of jump tables of PIC
+                f.fixup(FixupKind.GOTOFF_DATA,
+                        args.substring(0, args.length() - 7), 0);
+                f.bytes.emit32(0);
+            }
+            else {
+                f.fixup(FixupKind.ABS32, args, 0);
+                f.bytes.emit32(0);
+            }
+        }
+        else if (name.equals(".quad")) {
+            long n = parseInteger(args);
+            dataFragment().bytes.emit32(n);
+            dataFragment().bytes.emit32(n >> 32);
+        }
+        else if (name.equals(".string")) {
+            DataFragment f = dataFragment();
+            for (byte b : unescape(unquote(args))) {
+                f.bytes.emit8(b);
+            }
+            f.bytes.emit8(0);
+        }
+        else {
+            throw new Error("integrated assembler does not support: "
+                            + line);
+        }
+    }
+
+    // .section NAME[,"FLAGS",@TYPE[,GROUP,comdat]]
+    private void sectionDirective(String[] args) {
+        String name = args[0];
+        if (args.length == 1) {
+            current = section(name, null, defaultType(name),
+                              defaultFlags(name));
+            return;
+        }
+        int flags = 0;
+        for (char c : unquote(args[1]).toCharArray()) {
+            switch (c) {
+            case 'a': flags |= SHF_ALLOC; break;
+            case 'w': flags |= SHF_WRITE; break;
+            case 'x': flags |= SHF_EXECINSTR; break;
+            case 'M': flags |= SHF_MERGE; break;
+            case 'S': flags |= SHF_STRINGS; break;
+            case 'T': flags |= SHF_TLS; break;
+            case 'G': break;
+            default:
+                throw new Error("unknown section flag: " + c);
+            }
+        }
+        int type = (args.length > 2 && args[2].equals("@nobits"))
+                   ? SHT_NOBITS : SHT_PROGBITS;
+        String group = (args.length > 3) ? args[3] : null;
+        current = section(name, group, type, flags);
+    }
+
+    private int defaultType(String name) {
+        return name.startsWith(".bss") ? SHT_NOBITS : SHT_PROGBITS;
+    }
+
+    private int defaultFlags(String name) {
+        if (name.startsWith(".text")) return SHF_ALLOC | SHF_EXECINSTR;
+        if (name.startsWith(".data")) return SHF_ALLOC | SHF_WRITE;
+        if (name.startsWith(".bss")) return SHF_ALLOC | SHF_WRITE;
+        if (name.startsWith(".rodata")) return SHF_ALLOC;
+        return 0;
+    }
+
+    // .comm SYM,SIZE,ALIGN
+    private void commDirective(String[] args) {
+        ELFObjectFile.Symbol sym = obj.symbol(args[0]);
+        long size = parseInteger(args[1]);
+        long align = parseInteger(args[2]);
+        sym.size = size;
+        sym.type = STT_OBJECT;
+        if (localCommons.contains(args[0])) {
+            // Local common symbols are allocated in .bss.
+            ELFObjectFile.Section bss = obj.section(".bss", null);
+            bss.align = Math.max(bss.align, align);
+            bss.bssSize = ELFObjectFile.alignUp(bss.bssSize, align);
+            sym.section = bss;
+            sym.value = bss.bssSize;
+            bss.bssSize += size;
+        }
+        else {
+            sym.common = true;
+            sym.value = align;
+            sym.bind = STB_GLOBAL;
+        }
+    }
+
+    //
+    // Layout and relocation
+    //
+
+    private void layout(ELFObjectFile.Section s, List<Fragment> frags) {
+        boolean grown = true;
+        while (grown) {
+            long off = 0;
+            for (Fragment f : frags) {
+                f.offset = off;
+                off += f.size(off);
+                if (f instanceof LabelFragment) {
+                    ((LabelFragment)f).symbol.value = f.offset;
+                }
+            }
+            grown = false;
+            for (Fragment f : frags) {
+                if (! (f instanceof JumpFragment)) continue;
+                JumpFragment j = (JumpFragment)f;
+                if (j.isLong) continue;
+                ELFObjectFile.Symbol target = obj.symbol(j.target);
+                long disp = target.value - (j.offset + 2);
+                if (! target.isLocal() || target.section != s
+                        || disp < -128 || disp > 127) {
+                    j.isLong = true;
+                    grown = true;
+                }
+            }
+        }
+    }
+
+    private void emit(ELFObjectFile.Section s, List<Fragment> frags) {
+        ELFObjectFile.Bytes data = s.data;
+        List<Fixup> fixups = new ArrayList<Fixup>();
+        for (Fragment f : frags) {
+            if (f instanceof DataFragment) {
+                DataFragment d = (DataFragment)f;
+                int base = data.length();
+                data.emit(d.bytes);
+                for (Fixup fx : d.fixups) {
+                    fixups.add(new Fixup(base + fx.offset, fx.kind,
+                                         fx.symbol, fx.addend));
+                }
+            }
+            else if (f instanceof JumpFragment) {
+                JumpFragment j = (JumpFragment)f;
+                if (j.isLong) {
+                    if (j.condition < 0) {
+                        data.emit8(0xe9);
+                    }
+                    else {
+                        data.emit8(0x0f);
+                        data.emit8(0x80 + j.condition);
+                    }
+                    fixups.add(new Fixup(data.length(), FixupKind.PC32,
+                                         j.target, -4));
+                    data.emit32(0);
+                }
+                else {
+                    ELFObjectFile.Symbol target = obj.symbol(j.target);
+                    data.emit8((j.condition < 0) ? 0xeb : 0x70 + j.condition);
+                    data.emit8(target.value - (j.offset + 2));
+                }
+            }
+            else if (f instanceof AlignFragment) {
+                int fill = ((s.flags & SHF_EXECINSTR) != 0) ? 0x90 : 0;
+                for (long i = f.size(f.offset); i > 0; i--) {
+                    data.emit8(fill);
+                }
+            }
+            else if (f instanceof SizeFragment) {
+                ELFObjectFile.Symbol sym = ((SizeFragment)f).symbol;
+                sym.size = f.offset - sym.value;
+            }
+        }
+        for (Fixup fx : fixups) {
+            resolve(s, fx);
+        }
+    }
+
+    /**
+     * Fills the field of FX, adding a relocation unless the value is
+     * known.  References to local symbols are relocated against the
+     * section symbol; the addend is stored in the field (REL).
+     */
+    private void resolve(ELFObjectFile.Section s, Fixup fx) {
+        ELFObjectFile.Symbol sym = obj.symbol(fx.symbol);
+        if (sym.isTemporary() && ! sym.isDefined()) {
+            throw new Error("integrated assembler: undefined label: "
+                            + fx.symbol);
+        }
+        boolean local = sym.isLocal();
+        switch (fx.kind) {
+        case ABS32:
+            relocate(s, fx, sym, local, R_386_32);
+            break;
+        case PC32:
+        case PLT32:
+            if (local && sym.section == s) {
+                s.data.patch32(fx.offset,
+                               sym.value + fx.addend - fx.offset);
+            }
+            else {
+                relocate(s, fx, sym, local,
+                         fx.kind == FixupKind.PC32 ? R_386_PC32
+                                                   : R_386_PLT32);
+            }
+            break;
+        case GOTOFF:
+            relocate(s, fx, sym, local, R_386_GOTOFF);
+            break;
+        case GOTOFF_DATA:
+            // GNU as relocates @GOTOFF of data against the symbol
+            // itself, even if it is a local label.
+            sym.keep = true;
+            relocate(s, fx, sym, false, R_386_GOTOFF);
+            break;
+        case GOT32:
+            relocate(s, fx, sym, false, R_386_GOT32);
+            break;
+        case GOT32X:
+            relocate(s, fx, sym, false, R_386_GOT32X);
+            break;
+        case GOTPC:
+            relocate(s, fx, sym, false, R_386_GOTPC);
+            break;
+        default:
+            throw new Error("unknown fixup kind: " + fx.kind);
+        }
+    }
+
+    private void relocate(ELFObjectFile.Section s, Fixup fx,
+            ELFObjectFile.Symbol sym, boolean viaSection, int type) {
+        if (viaSection) {
+            obj.addRelocation(s, fx.offset,
+                              obj.sectionSymbol(sym.section), type);
+            s.data.patch32(fx.offset, sym.value + fx.addend);
+        }
+        else {
+            obj.addRelocation(s, fx.offset, sym, type);
+            s.data.patch32(fx.offset, fx.addend);
+        }
+    }
+
+    //
+    // Parsing utilities
+    //
+
+    private int indexOfSpace(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) return i;
+        }
+        return -1;
+    }
+
+    private String[] splitArgs(String args) {
+        String[] result = args.split(",");
+        for (int i = 0; i < result.length; i++) {
+            result[i] = result[i].trim();
+        }
+        return result;
+    }
+
+    private boolean isInteger(String s) {
+        try {
+            Long.parseLong(s);
+            return true;
+        }
+        catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private long parseInteger(String s) {
+        try {
+            return Long.parseLong(s);
+        }
+        catch (NumberFormatException ex) {
+            throw new Error("integrated assembler: not an integer: " + s);
+        }
+    }
+
+    private String unquote(String s) {
+        if (s.length() < 2 || s.charAt(0) != '"'
+                || s.charAt(s.length() - 1) != '"') {
+            throw new Error("integrated assembler: not a string: " + s);
+        }
+        return s.substring(1, s.length() - 1);
+    }
+
+    /** Interprets backslash escapes as GNU as does. */
+    private byte[] unescape(String s) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i++);
+            if (c != '\\' || i == s.length()) {
+                writeChar(buf, c);
+                continue;
+            }
+            c = s.charAt(i++);
+            switch (c) {
+            case 'b': buf.write('\b'); break;
+            case 'f': buf.write('\f'); break;
+            case 'n': buf.write('\n'); break;
+            case 'r': buf.write('\r'); break;
+            case 't': buf.write('\t'); break;
+            case 'v': buf.write(0x0b); break;
+            case 'x': {
+                int n = 0;
+                while (i < s.length() && Character.digit(s.charAt(i), 16) >= 0) {
+                    n = n * 16 + Character.digit(s.charAt(i++), 16);
+                }
+                buf.write(n);
+                break;
+            }
+            default:
+                if ('0' <= c && c <= '7') {
+                    int n = c - '0';
+                    for (int j = 0; j < 2 && i < s.length()
+                            && '0' <= s.charAt(i) && s.charAt(i) <= '7'; j++) {
+                        n = n * 8 + (s.charAt(i++) - '0');
+                    }
+                    buf.write(n);
+                }
+                else {
+                    writeChar(buf, c);
+                }
+            }
+        }
+        return buf.toByteArray();
+    }
+
+    private void writeChar(ByteArrayOutputStream buf, char c) {
+        try {
+            byte[] b = String.valueOf(c).getBytes("UTF-8");
+            buf.write(b, 0, b.length);
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new Error("UTF-8 is not supported??: " + ex.getMessage());
+        }
+    }
+}
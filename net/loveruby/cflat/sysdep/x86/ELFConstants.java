@@ -18,4 +18,54 @@ public interface ELFConstants {
     static public final String SectionType_note = "@note";
 
     static public final String SymbolType_function = "@function";
+
+    //
+    // Values in ELF32 object files
+    //
+
+    // Section types
+    static public final int SHT_NULL = 0;
+    static public final int SHT_PROGBITS = 1;
+    static public final int SHT_SYMTAB = 2;
+    static public final int SHT_STRTAB = 3;
+    static public final int SHT_NOBITS = 8;
+    static public final int SHT_REL = 9;
+    static public final int SHT_GROUP = 17;
+
+    // Section flags
+    static public final int SHF_WRITE = 0x1;
+    static public final int SHF_ALLOC = 0x2;
+    static public final int SHF_EXECINSTR = 0x4;
+    static public final int SHF_MERGE = 0x10;
+    static public final int SHF_STRINGS = 0x20;
+    static public final int SHF_INFO_LINK = 0x40;
+    static public final int SHF_GROUP = 0x200;
+    static public final int SHF_TLS = 0x400;
+
+    static public final int GRP_COMDAT = 1;
+
+    // Special section indexes
+    static public final int SHN_UNDEF = 0;
+    static public final int SHN_ABS = 0xfff1;
+    static public final int SHN_COMMON = 0xfff2;
+
+    // Symbol bindings, types and visibilities
+    static public final int STB_LOCAL = 0;
+    static public final int STB_GLOBAL = 1;
+    static public final int STT_NOTYPE = 0;
+    static public final int STT_OBJECT = 1;
+    static public final int STT_FUNC = 2;
+    static public final int STT_SECTION = 3;
+    static public final int STT_FILE = 4;
+    static public final int STV_DEFAULT = 0;
+    static public final int STV_HIDDEN = 2;
+
+    // i386 relocation types
+    static public final int R_386_32 = 1;
+    static public final int R_386_PC32 = 2;
+    static public final int R_386_GOT32 = 3;
+    static public final int R_386_PLT32 = 4;
+    static public final int R_386_GOTOFF = 9;
+    static public final int R_386_GOTPC = 10;
+    static public final int R_386_GOT32X = 43;
 }
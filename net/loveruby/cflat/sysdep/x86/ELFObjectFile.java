@@ -0,0 +1,440 @@
+package net.loveruby.cflat.sysdep.x86;
+import java.util.*;
+import java.io.OutputStream;
+import java.io.IOException;
+
+/**
+ * ELF32 relocatable object file for i386.  ELFAssembler fills
+ * sections, symbols and relocations; #write lays out the file in
+ * the same way as GNU as does (COMDAT groups first, each section
+ * followed by its relocation section, then .symtab, .strtab and
+ * .shstrtab).
+ */
+class ELFObjectFile implements ELFConstants {
+    static private final int EHDR_SIZE = 52;
+    static private final int SHDR_SIZE = 40;
+    static private final int SYM_SIZE = 16;
+    static private final int REL_SIZE = 8;
+
+    /** Growable little-endian byte buffer. */
+    static class Bytes {
+        private byte[] buf = new byte[256];
+        private int len = 0;
+
+        int length() {
+            return len;
+        }
+
+        void emit8(long b) {
+            if (len == buf.length) {
+                byte[] newbuf = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, newbuf, 0, len);
+                buf = newbuf;
+            }
+            buf[len++] = (byte)b;
+        }
+
+        void emit16(long n) {
+            emit8(n);
+            emit8(n >> 8);
+        }
+
+        void emit32(long n) {
+            emit16(n);
+            emit16(n >> 16);
+        }
+
+        void emit(Bytes b) {
+            for (int i = 0; i < b.len; i++) {
+                emit8(b.buf[i]);
+            }
+        }
+
+        void patch8(int off, long b) {
+            buf[off] = (byte)b;
+        }
+
+        void patch32(int off, long n) {
+            for (int i = 0; i < 4; i++) {
+                buf[off + i] = (byte)(n >> (i * 8));
+            }
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, len);
+        }
+    }
+
+    static class Section {
+        final String name;
+        final int type;
+        final int flags;
+        final String group;     // COMDAT group signature, or null
+        final Bytes data = new Bytes();
+        final List<Relocation> relocations = new ArrayList<Relocation>();
+        long align = 1;
+        long bssSize = 0;       // size of a SHT_NOBITS section
+        Symbol symbol;          // section symbol, created on demand
+        int index;
+
+        Section(String name, int type, int flags, String group) {
+            this.name = name;
+            this.type = type;
+            this.flags = flags;
+            this.group = group;
+        }
+
+        boolean isNobits() {
+            return type == SHT_NOBITS;
+        }
+
+        long size() {
+            return isNobits() ? bssSize : data.length();
+        }
+    }
+
+    static class Symbol {
+        final String name;
+        Section section;        // null if undefined or common
+        boolean common = false;
+        long value = 0;
+        long size = 0;
+        int type = STT_NOTYPE;
+        int bind = STB_LOCAL;
+        int visibility = STV_DEFAULT;
+        int index;
+        boolean keep = false;   // written even if temporary
+
+        Symbol(String name) {
+            this.name = name;
+        }
+
+        boolean isDefined() {
+            return section != null || common;
+        }
+
+        /**
+         * Local labels (.L*) are not written to the symbol table,
+         * unless a relocation refers to them (#keep).
+         */
+        boolean isTemporary() {
+            return name.startsWith(".L") && ! keep;
+        }
+
+        boolean isLocal() {
+            return isDefined() && bind == STB_LOCAL;
+        }
+    }
+
+    static class Relocation {
+        final long offset;
+        final Symbol symbol;
+        final int type;
+
+        Relocation(long offset, Symbol symbol, int type) {
+            this.offset = offset;
+            this.symbol = symbol;
+            this.type = type;
+        }
+    }
+
+    private String fileName;
+    private final List<Section> sections = new ArrayList<Section>();
+    private final Map<String, Symbol> symbols =
+            new LinkedHashMap<String, Symbol>();
+
+    void setFileName(String name) {
+        this.fileName = name;
+    }
+
+    Section section(String name, String group) {
+        for (Section s : sections) {
+            if (s.name.equals(name) && (s.group == null
+                    ? group == null : s.group.equals(group))) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    Section addSection(String name, int type, int flags, String group) {
+        Section s = new Section(name, type,
+                (group == null) ? flags : (flags | SHF_GROUP), group);
+        sections.add(s);
+        return s;
+    }
+
+    List<Section> sections() {
+        return sections;
+    }
+
+    /** Returns the symbol NAME, creating it on the first mention. */
+    Symbol symbol(String name) {
+        Symbol sym = symbols.get(name);
+        if (sym == null) {
+            sym = new Symbol(name);
+            symbols.put(name, sym);
+        }
+        return sym;
+    }
+
+    Collection<Symbol> symbols() {
+        return symbols.values();
+    }
+
+    Symbol sectionSymbol(Section s) {
+        if (s.symbol == null) {
+            s.symbol = new Symbol("");
+            s.symbol.section = s;
+            s.symbol.type = STT_SECTION;
+        }
+        return s.symbol;
+    }
+
+    void addRelocation(Section s, long offset, Symbol sym, int type) {
+        s.relocations.add(new Relocation(offset, sym, type));
+    }
+
+    //
+    // Writer
+    //
+
+    static private class Header {
+        final String name;
+        final int type;
+        final int flags;
+        int link = 0;
+        int info = 0;
+        long align = 1;
+        long entsize = 0;
+        Bytes contents;
+        long size;
+        long offset;
+        int nameIndex;
+
+        Header(String name, int type, int flags) {
+            this.name = name;
+            this.type = type;
+            this.flags = flags;
+        }
+    }
+
+    void write(OutputStream out) throws IOException {
+        // Decide section indexes.
+        List<String> groups = new ArrayList<String>();
+        for (Section s : sections) {
+            if (s.group != null && ! groups.contains(s.group)) {
+                groups.add(s.group);
+            }
+        }
+        int idx = 1 + groups.size();
+        for (Section s : sections) {
+            s.index = idx++;
+            if (! s.relocations.isEmpty()) idx++;
+        }
+        int symtabIndex = idx++;
+        int strtabIndex = idx++;
+        int shstrtabIndex = idx++;
+
+        // Symbol table
+        List<Symbol> symtab = orderSymbols(groups);
+        int firstGlobal = 0;
+        for (int i = 0; i < symtab.size(); i++) {
+            symtab.get(i).index = i + 1;
+            if (firstGlobal == 0 && symtab.get(i).bind != STB_LOCAL) {
+                firstGlobal = i + 1;
+            }
+        }
+        if (firstGlobal == 0) firstGlobal = symtab.size() + 1;
+        Bytes strtab = new Bytes();
+        strtab.emit8(0);
+        Bytes symbytes = new Bytes();
+        for (int i = 0; i < SYM_SIZE; i++) symbytes.emit8(0);
+        for (Symbol sym : symtab) {
+            symbytes.emit32(sym.name.length() == 0
+                            ? 0 : addString(strtab, sym.name));
+            symbytes.emit32(sym.value);
+            symbytes.emit32(sym.size);
+            symbytes.emit8((sym.bind << 4) | sym.type);
+            symbytes.emit8(sym.visibility);
+            symbytes.emit16(shndx(sym));
+        }
+
+        // Section headers
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new Header("", SHT_NULL, 0));
+        for (String group : groups) {
+            Header h = new Header(".group", SHT_GROUP, 0);
+            h.contents = new Bytes();
+            h.contents.emit32(GRP_COMDAT);
+            for (Section s : sections) {
+                if (group.equals(s.group)) {
+                    h.contents.emit32(s.index);
+                    if (! s.relocations.isEmpty()) {
+                        h.contents.emit32(s.index + 1);
+                    }
+                }
+            }
+            h.link = symtabIndex;
+            h.info = symbol(group).index;
+            h.align = 4;
+            h.entsize = 4;
+            headers.add(h);
+        }
+        for (Section s : sections) {
+            Header h = new Header(s.name, s.type, s.flags);
+            h.contents = s.data;
+            h.size = s.size();
+            h.align = s.align;
+            headers.add(h);
+            if (! s.relocations.isEmpty()) {
+                Header rel = new Header(".rel" + s.name, SHT_REL,
+                        SHF_INFO_LINK | (s.flags & SHF_GROUP));
+                rel.contents = new Bytes();
+                for (Relocation r : s.relocations) {
+                    rel.contents.emit32(r.offset);
+                    rel.contents.emit32((r.symbol.index << 8) | r.type);
+                }
+                rel.link = symtabIndex;
+                rel.info = s.index;
+                rel.align = 4;
+                rel.entsize = REL_SIZE;
+                headers.add(rel);
+            }
+        }
+        Header symh = new Header(".symtab", SHT_SYMTAB, 0);
+        symh.contents = symbytes;
+        symh.link = strtabIndex;
+        symh.info = firstGlobal;
+        symh.align = 4;
+        symh.entsize = SYM_SIZE;
+        headers.add(symh);
+        Header strh = new Header(".strtab", SHT_STRTAB, 0);
+        strh.contents = strtab;
+        headers.add(strh);
+        Header shstrh = new Header(".shstrtab", SHT_STRTAB, 0);
+        shstrh.contents = new Bytes();
+        headers.add(shstrh);
+        shstrh.contents.emit8(0);
+        for (Header h : headers) {
+            if (h.type != SHT_NULL) {
+                h.nameIndex = addString(shstrh.contents, h.name);
+            }
+        }
+
+        // Layout
+        long off = EHDR_SIZE;
+        for (Header h : headers) {
+            if (h.type == SHT_NULL) continue;
+            if (h.type != SHT_NOBITS) {
+                h.size = h.contents.length();
+            }
+            off = alignUp(off, h.align);
+            h.offset = off;
+            if (h.type != SHT_NOBITS) off += h.size;
+        }
+        long shoff = alignUp(off, 4);
+
+        Bytes file = new Bytes();
+        writeELFHeader(file, shoff, headers.size(), shstrtabIndex);
+        for (Header h : headers) {
+            if (h.type == SHT_NULL || h.type == SHT_NOBITS) continue;
+            while (file.length() < h.offset) file.emit8(0);
+            file.emit(h.contents);
+        }
+        while (file.length() < shoff) file.emit8(0);
+        for (Header h : headers) {
+            file.emit32(h.nameIndex);
+            file.emit32(h.type);
+            file.emit32(h.flags);
+            file.emit32(0);     // sh_addr
+            file.emit32(h.offset);
+            file.emit32(h.size);
+            file.emit32(h.link);
+            file.emit32(h.info);
+            file.emit32(h.type == SHT_NULL ? 0 : h.align);
+            file.emit32(h.entsize);
+        }
+        file.writeTo(out);
+    }
+
+    /**
+     * Symbol table order: the file, section symbols, local symbols,
+     * then global symbols.  Undefined symbols become global.
+     */
+    private List<Symbol> orderSymbols(List<String> groups) {
+        for (String group : groups) {
+            symbol(group);
+        }
+        List<Symbol> result = new ArrayList<Symbol>();
+        if (fileName != null) {
+            Symbol file = new Symbol(fileName);
+            file.type = STT_FILE;
+            result.add(file);
+        }
+        for (Section s : sections) {
+            if (s.symbol != null) result.add(s.symbol);
+        }
+        for (Symbol sym : symbols.values()) {
+            if (sym.isTemporary()) continue;
+            if (! sym.isDefined()) sym.bind = STB_GLOBAL;
+            if (sym.bind == STB_LOCAL) result.add(sym);
+        }
+        for (Symbol sym : symbols.values()) {
+            if (sym.isTemporary()) continue;
+            if (sym.bind != STB_LOCAL) result.add(sym);
+        }
+        return result;
+    }
+
+    private int shndx(Symbol sym) {
+        if (sym.type == STT_FILE) return SHN_ABS;
+        if (sym.common) return SHN_COMMON;
+        if (sym.section == null) return SHN_UNDEF;
+        return sym.section.index;
+    }
+
+    private int addString(Bytes table, String s) {
+        int idx = table.length();
+        try {
+            for (byte b : s.getBytes("UTF-8")) {
+                table.emit8(b);
+            }
+        }
+        catch (java.io.UnsupportedEncodingException ex) {
+            throw new Error("UTF-8 is not supported??: " + ex.getMessage());
+        }
+        table.emit8(0);
+        return idx;
+    }
+
+    private void writeELFHeader(Bytes out, long shoff,
+                                int shnum, int shstrndx) {
+        out.emit8(0x7f);
+        out.emit8('E');
+        out.emit8('L');
+        out.emit8('F');
+        out.emit8(1);           // ELFCLASS32
+        out.emit8(1);           // ELFDATA2LSB
+        out.emit8(1);           // EV_CURRENT
+        for (int i = 7; i < 16; i++) out.emit8(0);
+        out.emit16(1);          // ET_REL
+        out.emit16(3);          // EM_386
+        out.emit32(1);          // EV_CURRENT
+        out.emit32(0);          // e_entry
+        out.emit32(0);          // e_phoff
+        out.emit32(shoff);
+        out.emit32(0);          // e_flags
+        out.emit16(EHDR_SIZE);
+        out.emit16(0);          // e_phentsize
+        out.emit16(0);          // e_phnum
+        out.emit16(SHDR_SIZE);
+        out.emit16(shnum);
+        out.emit16(shstrndx);
+    }
+
+    static long alignUp(long n, long align) {
+        if (align <= 1) return n;
+        return (n + align - 1) / align * align;
+    }
+}
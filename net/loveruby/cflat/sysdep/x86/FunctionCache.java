@@ -0,0 +1,880 @@
+package net.loveruby.cflat.sysdep.x86;
+import net.loveruby.cflat.sysdep.CodeGeneratorOptions;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.asm.*;
+import java.util.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.io.*;
+
+/**
+ * On-disk cache of the code of functions (--codegen-cache).
+ *
+ * The code of a function (the body after the label of the function,
+ * optimized) is keyed by the SHA-256 digest of its IR, the layout of
+ * its parameters and local variables, the symbols of the global
+ * entities it refers to and how they are accessed, and the code
+ * generator options.  Labels are stored by their positions in the
+ * code, and string literals by their values: loaded code gets new
+ * labels, which are named by the SymbolTable of the output, and the
+ * symbols of the string literals of the current file.  So an entry
+ * is still used when other functions of the file are changed.
+ *
+ * All entries of a source file are stored in one file DIR/KEY.fnc,
+ * where KEY is the digest of the name of the source file and the
+ * options.  The file is read before the code generation, and written
+ * again with the entries used by it, so entries of changed functions
+ * are dropped.  #key, #lookup and #store may be called by threads
+ * compiling functions in parallel.
+ */
+class FunctionCache {
+    static private final int MAGIC = 0x43624663;     // "CbFc"
+    static private final int FORMAT_VERSION = 3;
+    static private final String EXT = ".fnc";
+
+    private final File file;
+    private final CodeGeneratorOptions options;
+    private final Type naturalType;
+    private final Map<String, byte[]> entries;
+    // Sorted, so that the file does not depend on the order in
+    // which functions are compiled.  Guarded by itself.
+    private final Map<String, byte[]> used =
+            new TreeMap<String, byte[]>();
+    // Symbols of string literals and their values.
+    private final Map<Symbol, String> constantValues =
+            new IdentityHashMap<Symbol, String>();
+    private final Map<String, ConstantEntry> constants =
+            new HashMap<String, ConstantEntry>();
+
+    /**
+     * Loads the entries of the source file of IR.  Symbols of IR
+     * must have been located.
+     */
+    static FunctionCache load(File dir, IR ir,
+            CodeGeneratorOptions options, Type naturalType) {
+        String name = ir.fileName()
+                + " -O" + options.optimizeLevel()
+                + (options.isPICRequired() ? " -fPIC" : "")
+                + (options.isPIERequired() ? " -fPIE" : "")
+                + (options.isVerboseAsm() ? " -fverbose-asm" : "");
+        File file = new File(dir, toHex(digest(name)) + EXT);
+        return new FunctionCache(file, readEntries(file),
+                                 ir, options, naturalType);
+    }
+
+    private FunctionCache(File file, Map<String, byte[]> entries, IR ir,
+            CodeGeneratorOptions options, Type naturalType) {
+        this.file = file;
+        this.entries = entries;
+        this.options = options;
+        this.naturalType = naturalType;
+        for (ConstantEntry ent : ir.constantTable()) {
+            constantValues.put(ent.symbol(), ent.value());
+            constants.put(ent.value(), ent);
+        }
+    }
+
+    /** Returns the cache key of FUNC.  Its IR must have been generated. */
+    String key(DefinedFunction func) {
+        try {
+            Output out = new Output();
+            new KeyWriter(out).writeFunction(func);
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(out.buf, 0, out.size);
+            return toHex(md.digest());
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new Error("SHA-256 is not supported??: " + ex.getMessage());
+        }
+    }
+
+    /** Returns the code of KEY, or null if it is not cached. */
+    List<Assembly> lookup(String key) {
+        byte[] data = entries.get(key);
+        if (data == null) {
+            return null;
+        }
+        try {
+            List<Assembly> code = new Decoder(data).readCode();
+            synchronized (used) {
+                used.put(key, data);
+            }
+            return code;
+        }
+        catch (IOException ex) {
+            // Broken entry or an unknown string literal; regenerates.
+            return null;
+        }
+    }
+
+    void store(String key, List<Assembly> code) {
+        Encoder out = new Encoder();
+        out.writeCode(code);
+        synchronized (used) {
+            used.put(key, out.toByteArray());
+        }
+    }
+
+    /**
+     * Writes the entries used so far to a temporary file and renames
+     * it.  Failures are ignored; the cache is only an optimization.
+     */
+    void save() {
+        if (used.keySet().equals(entries.keySet())) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(used.size());
+            for (Map.Entry<String, byte[]> ent : used.entrySet()) {
+                out.writeUTF(ent.getKey());
+                out.writeInt(ent.getValue().length);
+                out.write(ent.getValue());
+            }
+            out.flush();
+            File dir = file.getParentFile();
+            if (! dir.isDirectory() && ! dir.mkdirs()) return;
+            File tmp = File.createTempFile("tmp", ".part", dir);
+            try {
+                OutputStream f = new FileOutputStream(tmp);
+                try {
+                    buf.writeTo(f);
+                }
+                finally {
+                    f.close();
+                }
+                if (! tmp.renameTo(file)) {
+                    file.delete();
+                    tmp.renameTo(file);
+                }
+            }
+            finally {
+                tmp.delete();
+            }
+        }
+        catch (IOException ex) {
+            ;
+        }
+    }
+
+    static private Map<String, byte[]> readEntries(File file) {
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC
+                        || in.readInt() != FORMAT_VERSION) {
+                    return entries;
+                }
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    String key = in.readUTF();
+                    int len = in.readInt();
+                    if (len < 0) break;
+                    byte[] data = new byte[len];
+                    in.readFully(data);
+                    entries.put(key, data);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            // No entry file, or a broken one; uses what was read.
+            ;
+        }
+        return entries;
+    }
+
+    static private byte[] digest(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return md.digest(s.getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new Error("SHA-256 is not supported??: " + ex.getMessage());
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new Error("UTF-8 is not supported??: " + ex.getMessage());
+        }
+    }
+
+    static private final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static private String toHex(byte[] bytes) {
+        StringBuilder buf = new StringBuilder();
+        for (byte b : bytes) {
+            buf.append(HEX[(b >> 4) & 0xf]);
+            buf.append(HEX[b & 0xf]);
+        }
+        return buf.toString();
+    }
+
+    /*
+     * Numbers are written in unsigned LEB128; signed numbers are
+     * zigzag encoded before.  A string is written as its index in the
+     * strings written before, or 0 and the string itself for its
+     * first occurrence.
+     */
+    static private class Output {
+        byte[] buf = new byte[256];
+        int size = 0;
+        private final Map<String, Integer> strings =
+                new HashMap<String, Integer>();
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        void writeByte(int b) {
+            if (size == buf.length) {
+                buf = Arrays.copyOf(buf, size * 2);
+            }
+            buf[size++] = (byte)b;
+        }
+
+        void writeNumber(long n) {
+            while ((n & ~0x7fL) != 0) {
+                writeByte((int)((n & 0x7f) | 0x80));
+                n >>>= 7;
+            }
+            writeByte((int)n);
+        }
+
+        void writeSigned(long n) {
+            writeNumber((n << 1) ^ (n >> 63));
+        }
+
+        void writeBoolean(boolean b) {
+            writeByte(b ? 1 : 0);
+        }
+
+        void writeString(String s) {
+            Integer idx = strings.get(s);
+            if (idx != null) {
+                writeNumber(idx);
+                return;
+            }
+            writeNumber(0);
+            writeNumber(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                writeNumber(s.charAt(i));
+            }
+            strings.put(s, strings.size() + 1);
+        }
+    }
+
+    static private class Input {
+        private final byte[] buf;
+        private int pos = 0;
+        private final List<String> strings = new ArrayList<String>();
+
+        Input(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= buf.length) {
+                throw new IOException("broken entry");
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        long readNumber() throws IOException {
+            long n = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                n |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return n;
+            }
+            throw new IOException("broken entry");
+        }
+
+        int readCount() throws IOException {
+            long n = readNumber();
+            if (n > Integer.MAX_VALUE) {
+                throw new IOException("broken entry");
+            }
+            return (int)n;
+        }
+
+        long readSigned() throws IOException {
+            long n = readNumber();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        String readString() throws IOException {
+            int idx = readCount();
+            if (idx > 0) {
+                if (idx > strings.size()) {
+                    throw new IOException("broken entry");
+                }
+                return strings.get(idx - 1);
+            }
+            int len = readCount();
+            StringBuilder s = new StringBuilder(len);
+            for (int i = 0; i < len; i++) {
+                s.append((char)readCount());
+            }
+            String str = s.toString();
+            strings.add(str);
+            return str;
+        }
+    }
+
+    //
+    // Cache key
+    //
+
+    // Tags of the key.
+    static private final int K_EXPR_STMT = 1;
+    static private final int K_ASSIGN = 2;
+    static private final int K_CJUMP = 3;
+    static private final int K_JUMP = 4;
+    static private final int K_SWITCH = 5;
+    static private final int K_LABEL_STMT = 6;
+    static private final int K_RETURN = 7;
+    static private final int K_UNI = 8;
+    static private final int K_BIN = 9;
+    static private final int K_CALL = 10;
+    static private final int K_ADDR = 11;
+    static private final int K_MEM = 12;
+    static private final int K_VAR = 13;
+    static private final int K_INT = 14;
+    static private final int K_STR = 15;
+    static private final int K_LOCAL = 16;
+    static private final int K_GLOBAL = 17;
+
+    /**
+     * Writes what the code of a function depends on.  Local entities
+     * and labels are written by their indexes.  The IR is visited as
+     * CodeGenerator does, so expressions it does not compile (e.g.
+     * the function of a static call) are not written.
+     */
+    private class KeyWriter implements IRVisitor<Void,Void> {
+        private final Output out;
+        private final Map<Entity, Integer> locals =
+                new IdentityHashMap<Entity, Integer>();
+        private final Map<Label, Integer> labels =
+                new IdentityHashMap<Label, Integer>();
+
+        KeyWriter(Output out) {
+            this.out = out;
+        }
+
+        void writeFunction(DefinedFunction func) {
+            out.writeNumber(FORMAT_VERSION);
+            out.writeNumber(options.optimizeLevel());
+            out.writeBoolean(options.isPICRequired());
+            out.writeBoolean(options.isPIERequired());
+            out.writeBoolean(options.isVerboseAsm());
+            out.writeNumber(naturalType.ordinal());
+            out.writeNumber(func.parameters().size());
+            for (Parameter param : func.parameters()) {
+                locals.put(param, locals.size());
+            }
+            writeScope(func.lvarScope());
+            out.writeNumber(func.ir().size());
+            for (Stmt stmt : func.ir()) {
+                if (options.isVerboseAsm()) {
+                    out.writeString(stmt.location() == null ? ""
+                            : stmt.location().numberedLine());
+                }
+                stmt.accept(this);
+            }
+        }
+
+        private void writeScope(LocalScope scope) {
+            List<DefinedVariable> vars = scope.localVariables();
+            out.writeNumber(vars.size());
+            for (DefinedVariable var : vars) {
+                out.writeNumber(var.allocSize());
+                if (options.isVerboseAsm()) {
+                    out.writeString(var.name());
+                }
+                locals.put(var, locals.size());
+            }
+            out.writeNumber(scope.children().size());
+            for (LocalScope s : scope.children()) {
+                writeScope(s);
+            }
+        }
+
+        private void label(Label label) {
+            Integer idx = labels.get(label);
+            if (idx == null) {
+                idx = labels.size();
+                labels.put(label, idx);
+            }
+            out.writeNumber(idx);
+        }
+
+        private void entity(Entity ent) {
+            Integer idx = locals.get(ent);
+            if (idx != null) {
+                out.writeNumber(K_LOCAL);
+                out.writeNumber(idx);
+            }
+            else {
+                // Symbols of global entities depend on these.
+                out.writeNumber(K_GLOBAL);
+                out.writeString(ent.symbolString());
+                out.writeBoolean(ent.isPrivate());
+                out.writeBoolean(ent.isDefined());
+                out.writeBoolean(ent instanceof Function);
+            }
+        }
+
+        private void expr(int tag, Expr e) {
+            out.writeNumber(tag);
+            out.writeNumber(e.type().ordinal());
+        }
+
+        public Void visit(ExprStmt s) {
+            out.writeNumber(K_EXPR_STMT);
+            s.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Assign s) {
+            out.writeNumber(K_ASSIGN);
+            s.lhs().accept(this);
+            s.rhs().accept(this);
+            return null;
+        }
+
+        public Void visit(CJump s) {
+            out.writeNumber(K_CJUMP);
+            s.cond().accept(this);
+            label(s.thenLabel());
+            label(s.elseLabel());
+            return null;
+        }
+
+        public Void visit(Jump s) {
+            out.writeNumber(K_JUMP);
+            label(s.label());
+            return null;
+        }
+
+        public Void visit(Switch s) {
+            out.writeNumber(K_SWITCH);
+            s.cond().accept(this);
+            out.writeNumber(s.cases().size());
+            for (Case c : s.cases()) {
+                out.writeSigned(c.value);
+                label(c.label);
+            }
+            label(s.defaultLabel());
+            label(s.endLabel());
+            return null;
+        }
+
+        public Void visit(LabelStmt s) {
+            out.writeNumber(K_LABEL_STMT);
+            label(s.label());
+            return null;
+        }
+
+        public Void visit(Return s) {
+            out.writeNumber(K_RETURN);
+            out.writeBoolean(s.expr() != null);
+            if (s.expr() != null) {
+                s.expr().accept(this);
+            }
+            return null;
+        }
+
+        public Void visit(Uni e) {
+            expr(K_UNI, e);
+            out.writeNumber(e.op().ordinal());
+            e.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Bin e) {
+            expr(K_BIN, e);
+            out.writeNumber(e.op().ordinal());
+            e.left().accept(this);
+            e.right().accept(this);
+            return null;
+        }
+
+        public Void visit(Call e) {
+            out.writeNumber(K_CALL);
+            out.writeNumber(e.numArgs());
+            for (Expr arg : e.args()) {
+                arg.accept(this);
+            }
+            out.writeBoolean(e.isStaticCall());
+            if (e.isStaticCall()) {
+                entity(e.function());
+            }
+            else {
+                e.expr().accept(this);
+            }
+            return null;
+        }
+
+        public Void visit(Addr e) {
+            out.writeNumber(K_ADDR);
+            entity(e.entity());
+            return null;
+        }
+
+        public Void visit(Mem e) {
+            expr(K_MEM, e);
+            e.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Var e) {
+            expr(K_VAR, e);
+            entity(e.entity());
+            return null;
+        }
+
+        public Void visit(Int e) {
+            expr(K_INT, e);
+            out.writeSigned(e.value());
+            return null;
+        }
+
+        public Void visit(Str e) {
+            expr(K_STR, e);
+            out.writeString(e.entry().value());
+            return null;
+        }
+    }
+
+    //
+    // Code
+    //
+
+    // Tags of the code.
+    static private final int A_INSTRUCTION = 1;
+    static private final int A_LABEL = 2;
+    static private final int A_DIRECTIVE = 3;
+    static private final int A_COMMENT = 4;
+    static private final int A_DATA = 5;
+    static private final int O_REGISTER = 1;
+    static private final int O_IMMEDIATE = 2;
+    static private final int O_DIRECT = 3;
+    static private final int O_INDIRECT = 4;
+    static private final int O_ABSOLUTE = 5;
+    static private final int O_REPEATED = 6;
+    static private final int L_INTEGER = 1;
+    static private final int L_NAMED = 2;
+    static private final int L_CONSTANT = 3;
+    static private final int L_UNNAMED = 4;
+    static private final int L_SUFFIXED = 5;
+
+    /*
+     * An unnamed symbol is written as its index in the unnamed
+     * symbols written before.  A symbol of a string literal is
+     * written as the string.  An operand which is same as one written
+     * before is written as its index, and is shared by the decoded
+     * instructions, as operands of generated code are.
+     */
+    private class Encoder extends Output {
+        private final Map<UnnamedSymbol, Integer> unnamed =
+                new IdentityHashMap<UnnamedSymbol, Integer>();
+        private final Map<String, Integer> operands =
+                new HashMap<String, Integer>();
+
+        void writeCode(List<Assembly> code) {
+            writeNumber(code.size());
+            for (Assembly asm : code) {
+                writeAssembly(asm);
+            }
+        }
+
+        private void writeAssembly(Assembly asm) {
+            if (asm instanceof Instruction) {
+                Instruction insn = (Instruction)asm;
+                writeByte(A_INSTRUCTION);
+                writeString(insn.mnemonic());
+                writeString(insn.suffix());
+                writeBoolean(insn.needRelocation());
+                writeNumber(insn.numOperands());
+                for (int i = 0; i < insn.numOperands(); i++) {
+                    writeOperand(insn.operand(i));
+                }
+            }
+            else if (asm instanceof Label) {
+                writeByte(A_LABEL);
+                writeLiteral(((Label)asm).symbol());
+            }
+            else if (asm instanceof DataDirective) {
+                DataDirective d = (DataDirective)asm;
+                writeByte(A_DATA);
+                writeString(d.content());
+                writeLiteral(d.value());
+            }
+            else if (asm instanceof Directive) {
+                writeByte(A_DIRECTIVE);
+                writeString(((Directive)asm).content());
+            }
+            else if (asm instanceof Comment) {
+                Comment c = (Comment)asm;
+                writeByte(A_COMMENT);
+                writeString(c.string());
+                writeNumber(c.indentLevel());
+            }
+            else {
+                throw new Error("unknown assembly: " + asm.getClass());
+            }
+        }
+
+        private void writeOperand(Operand op) {
+            // #dump shows the register type and the identity of
+            // unnamed symbols, which #equals does not compare.
+            String dump = op.dump();
+            Integer idx = operands.get(dump);
+            if (idx != null) {
+                writeByte(O_REPEATED);
+                writeNumber(idx);
+                return;
+            }
+            operands.put(dump, operands.size());
+            if (op instanceof Register) {
+                writeByte(O_REGISTER);
+                writeRegister((Register)op);
+            }
+            else if (op instanceof ImmediateValue) {
+                writeByte(O_IMMEDIATE);
+                writeLiteral(((ImmediateValue)op).expr());
+            }
+            else if (op instanceof DirectMemoryReference) {
+                writeByte(O_DIRECT);
+                writeLiteral(((DirectMemoryReference)op).value());
+            }
+            else if (op instanceof IndirectMemoryReference) {
+                IndirectMemoryReference mem = (IndirectMemoryReference)op;
+                writeByte(O_INDIRECT);
+                writeLiteral(mem.offset());
+                writeRegister((Register)mem.base());
+            }
+            else if (op instanceof AbsoluteAddress) {
+                writeByte(O_ABSOLUTE);
+                writeRegister((Register)((AbsoluteAddress)op).register());
+            }
+            else {
+                throw new Error("unknown operand: " + op.getClass());
+            }
+        }
+
+        private void writeRegister(Register reg) {
+            writeByte(reg.registerClass().ordinal() << 4 | reg.type.ordinal());
+        }
+
+        private void writeLiteral(Literal lit) {
+            if (lit instanceof IntegerLiteral) {
+                writeByte(L_INTEGER);
+                writeSigned(((IntegerLiteral)lit).value());
+            }
+            else if (constantValues.containsKey(lit)) {
+                writeByte(L_CONSTANT);
+                writeString(constantValues.get(lit));
+            }
+            else if (lit instanceof NamedSymbol) {
+                writeByte(L_NAMED);
+                writeString(((NamedSymbol)lit).name());
+            }
+            else if (lit instanceof UnnamedSymbol) {
+                Integer idx = unnamed.get(lit);
+                if (idx == null) {
+                    idx = unnamed.size();
+                    unnamed.put((UnnamedSymbol)lit, idx);
+                }
+                writeByte(L_UNNAMED);
+                writeNumber(idx);
+            }
+            else if (lit instanceof SuffixedSymbol) {
+                SuffixedSymbol sym = (SuffixedSymbol)lit;
+                writeByte(L_SUFFIXED);
+                writeLiteral(sym.base());
+                writeString(sym.suffix());
+            }
+            else {
+                throw new Error("unknown literal: " + lit.getClass());
+            }
+        }
+    }
+
+    // Registers are immutable; decoded code shares them.
+    static private final Register[][] REGISTERS;
+    static {
+        RegisterClass[] classes = RegisterClass.values();
+        Type[] types = Type.values();
+        REGISTERS = new Register[classes.length][types.length];
+        for (int i = 0; i < classes.length; i++) {
+            for (int j = 0; j < types.length; j++) {
+                REGISTERS[i][j] = new Register(classes[i], types[j]);
+            }
+        }
+    }
+
+    private class Decoder extends Input {
+        private final List<UnnamedSymbol> unnamed =
+                new ArrayList<UnnamedSymbol>();
+        // Read strings are shared, so they are keys by identity.
+        private final Map<String, NamedSymbol> named =
+                new IdentityHashMap<String, NamedSymbol>();
+        private final List<Operand> operands = new ArrayList<Operand>();
+
+        Decoder(byte[] data) {
+            super(data);
+        }
+
+        List<Assembly> readCode() throws IOException {
+            int n = readCount();
+            List<Assembly> code = new ArrayList<Assembly>(n);
+            for (int i = 0; i < n; i++) {
+                code.add(readAssembly());
+            }
+            return code;
+        }
+
+        private Assembly readAssembly() throws IOException {
+            switch (readByte()) {
+            case A_INSTRUCTION:
+                {
+                    String mnemonic = readString();
+                    String suffix = readString();
+                    boolean reloc = readBoolean();
+                    Operand[] operands = new Operand[readByte()];
+                    for (int i = 0; i < operands.length; i++) {
+                        operands[i] = readOperand();
+                    }
+                    return new Instruction(mnemonic, suffix, operands, reloc);
+                }
+            case A_LABEL:
+                return new Label(readSymbol());
+            case A_DIRECTIVE:
+                return new Directive(readString());
+            case A_COMMENT:
+                return new Comment(readString(), readCount());
+            case A_DATA:
+                {
+                    String op = readString();
+                    return new DataDirective(op, readLiteral());
+                }
+            default:
+                throw new IOException("broken entry");
+            }
+        }
+
+        private Operand readOperand() throws IOException {
+            int tag = readByte();
+            if (tag == O_REPEATED) {
+                int idx = readCount();
+                if (idx >= operands.size()) {
+                    throw new IOException("broken entry");
+                }
+                return operands.get(idx);
+            }
+            Operand op = readOperand(tag);
+            operands.add(op);
+            return op;
+        }
+
+        private Operand readOperand(int tag) throws IOException {
+            switch (tag) {
+            case O_REGISTER:
+                return readRegister();
+            case O_IMMEDIATE:
+                return new ImmediateValue(readLiteral());
+            case O_DIRECT:
+                return new DirectMemoryReference(readLiteral());
+            case O_INDIRECT:
+                {
+                    Literal offset = readLiteral();
+                    Register base = readRegister();
+                    if (offset instanceof IntegerLiteral) {
+                        return new IndirectMemoryReference(
+                                ((IntegerLiteral)offset).value(), base);
+                    }
+                    else {
+                        return new IndirectMemoryReference(
+                                (Symbol)offset, base);
+                    }
+                }
+            case O_ABSOLUTE:
+                return new AbsoluteAddress(readRegister());
+            default:
+                throw new IOException("broken entry");
+            }
+        }
+
+        private Register readRegister() throws IOException {
+            int b = readByte();
+            if ((b >> 4) >= REGISTERS.length
+                    || (b & 0xf) >= REGISTERS[0].length) {
+                throw new IOException("broken entry");
+            }
+            return REGISTERS[b >> 4][b & 0xf];
+        }
+
+        private Symbol readSymbol() throws IOException {
+            Literal lit = readLiteral();
+            if (! (lit instanceof Symbol)) {
+                throw new IOException("broken entry");
+            }
+            return (Symbol)lit;
+        }
+
+        private Literal readLiteral() throws IOException {
+            switch (readByte()) {
+            case L_INTEGER:
+                return new IntegerLiteral(readSigned());
+            case L_CONSTANT:
+                {
+                    ConstantEntry ent = constants.get(readString());
+                    if (ent == null) {
+                        throw new IOException("unknown string literal");
+                    }
+                    return ent.symbol();
+                }
+            case L_NAMED:
+                {
+                    String name = readString();
+                    NamedSymbol sym = named.get(name);
+                    if (sym == null) {
+                        sym = new NamedSymbol(name);
+                        named.put(name, sym);
+                    }
+                    return sym;
+                }
+            case L_UNNAMED:
+                {
+                    int idx = readCount();
+                    if (idx == unnamed.size()) {
+                        unnamed.add(new UnnamedSymbol());
+                    }
+                    else if (idx > unnamed.size()) {
+                        throw new IOException("broken entry");
+                    }
+                    return unnamed.get(idx);
+                }
+            case L_SUFFIXED:
+                {
+                    Symbol base = readSymbol();
+                    return new SuffixedSymbol(base, readString());
+                }
+            default:
+                throw new IOException("broken entry");
+            }
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package net.loveruby.cflat.sysdep.x86;
+import net.loveruby.cflat.asm.*;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * Encodes i386 instructions generated by CodeGenerator into machine
+ * code.  Only the instructions and operand forms the code generator
+ * emits are supported; the encodings are the ones GNU as chooses
+ * (shortest immediate/displacement, accumulator short forms, etc).
+ * Jumps are encoded by ELFAssembler because their size depends on
+ * the layout.
+ */
+class InstructionEncoder {
+    // ModRM "reg" field extensions of group instructions
+    static private final Map<String, Integer> arithmetics;
+    static private final Map<String, Integer> unaries;
+    static private final Map<String, Integer> shifts;
+    static private final Map<String, Integer> conditions;
+    static {
+        arithmetics = new HashMap<String, Integer>();
+        arithmetics.put("add", 0);
+        arithmetics.put("or", 1);
+        arithmetics.put("adc", 2);
+        arithmetics.put("sbb", 3);
+        arithmetics.put("and", 4);
+        arithmetics.put("sub", 5);
+        arithmetics.put("xor", 6);
+        arithmetics.put("cmp", 7);
+
+        unaries = new HashMap<String, Integer>();
+        unaries.put("not", 2);
+        unaries.put("neg", 3);
+        unaries.put("mul", 4);
+        unaries.put("div", 6);
+        unaries.put("idiv", 7);
+
+        shifts = new HashMap<String, Integer>();
+        shifts.put("rol", 0);
+        shifts.put("ror", 1);
+        shifts.put("sal", 4);
+        shifts.put("shl", 4);
+        shifts.put("shr", 5);
+        shifts.put("sar", 7);
+
+        conditions = new HashMap<String, Integer>();
+        conditions.put("o", 0x0);
+        conditions.put("no", 0x1);
+        conditions.put("b", 0x2);
+        conditions.put("ae", 0x3);
+        conditions.put("e", 0x4);
+        conditions.put("z", 0x4);
+        conditions.put("ne", 0x5);
+        conditions.put("nz", 0x5);
+        conditions.put("be", 0x6);
+        conditions.put("a", 0x7);
+        conditions.put("s", 0x8);
+        conditions.put("ns", 0x9);
+        conditions.put("l", 0xc);
+        conditions.put("ge", 0xd);
+        conditions.put("le", 0xe);
+        conditions.put("g", 0xf);
+    }
+
+    private final SymbolTable labelSymbols;
+
+    InstructionEncoder(SymbolTable labelSymbols) {
+        this.labelSymbols = labelSymbols;
+    }
+
+    /**
+     * Returns the condition code of a jump instruction ("jmp" is -1),
+     * or null if INSN is not a jump.
+     */
+    Integer jumpCondition(Instruction insn) {
+        String op = insn.mnemonic();
+        if (op.equals("jmp")) {
+            return (insn.operand1() instanceof DirectMemoryReference)
+                    ? -1 : null;
+        }
+        if (! op.startsWith("j")) return null;
+        return conditions.get(op.substring(1));
+    }
+
+    /** Returns the name of the jump target of INSN. */
+    String jumpTarget(Instruction insn) {
+        return symbolName(insn.jmpDestination());
+    }
+
+    void encode(Instruction insn, ELFAssembler.DataFragment out) {
+        String op = insn.mnemonic();
+        int start = out.bytes.length();
+        if (op.equals("mov")) {
+            mov(insn, out, start);
+        }
+        else if (op.equals("movs") || op.equals("movz")) {
+            movx(insn, out, start);
+        }
+        else if (op.equals("lea")) {
+            Register dest = (Register)insn.operand2();
+            out.bytes.emit8(0x8d);
+            modrm(regCode(dest), insn.operand1(), out, start, false);
+        }
+        else if (op.equals("push") || op.equals("pop")) {
+            Register reg = register(insn, insn.operand1());
+            out.bytes.emit8((op.equals("push") ? 0x50 : 0x58)
+                            + regCode(reg));
+        }
+        else if (arithmetics.containsKey(op)) {
+            arithmetic(arithmetics.get(op), insn, out, start);
+        }
+        else if (op.equals("test")) {
+            test(insn, out, start);
+        }
+        else if (op.equals("imul") && insn.numOperands() == 2) {
+            imul(insn, out, start);
+        }
+        else if (unaries.containsKey(op)) {
+            int size = operandSize(insn);
+            prefix(size, out);
+            out.bytes.emit8(size == 1 ? 0xf6 : 0xf7);
+            modrm(unaries.get(op), insn.operand1(), out, start, false);
+        }
+        else if (op.equals("inc") || op.equals("dec")) {
+            incdec(op.equals("inc") ? 0 : 1, insn, out, start);
+        }
+        else if (shifts.containsKey(op)) {
+            shift(shifts.get(op), insn, out, start);
+        }
+        else if (op.startsWith("set") && conditions.containsKey(op.substring(3))) {
+            out.bytes.emit8(0x0f);
+            out.bytes.emit8(0x90 + conditions.get(op.substring(3)));
+            modrm(0, insn.operand1(), out, start, false);
+        }
+        else if (op.equals("call")) {
+            call(insn, out, start);
+        }
+        else if (op.equals("jmp") && insn.operand1() instanceof AbsoluteAddress) {
+            Register reg = (Register)((AbsoluteAddress)insn.operand1()).register();
+            out.bytes.emit8(0xff);
+            modrm(4, reg, out, start, false);
+        }
+        else if (op.equals("cltd") && insn.numOperands() == 0) {
+            out.bytes.emit8(0x99);
+        }
+        else if (op.equals("ret") && insn.numOperands() == 0) {
+            out.bytes.emit8(0xc3);
+        }
+        else {
+            throw unsupported(insn);
+        }
+    }
+
+    private void mov(Instruction insn, ELFAssembler.DataFragment out,
+                     int start) {
+        Operand src = insn.operand1();
+        Operand dest = insn.operand2();
+        int size = operandSize(insn);
+        prefix(size, out);
+        int w = (size == 1) ? 0 : 1;
+        if (src instanceof ImmediateValue) {
+            Literal imm = ((ImmediateValue)src).expr();
+            if (dest instanceof Register) {
+                out.bytes.emit8((size == 1 ? 0xb0 : 0xb8)
+                                + regCode((Register)dest));
+            }
+            else {
+                out.bytes.emit8(0xc6 + w);
+                modrm(0, dest, out, start, false);
+            }
+            immediate(size, imm, out, start);
+        }
+        else if (src instanceof Register) {
+            if (isAccumulator(src) && dest instanceof DirectMemoryReference) {
+                out.bytes.emit8(0xa2 + w);
+                disp32(((DirectMemoryReference)dest).value(),
+                       out, start, false);
+            }
+            else {
+                out.bytes.emit8(0x88 + w);
+                modrm(regCode((Register)src), dest, out, start, false);
+            }
+        }
+        else if (dest instanceof Register) {
+            if (isAccumulator(dest) && src instanceof DirectMemoryReference) {
+                out.bytes.emit8(0xa0 + w);
+                disp32(((DirectMemoryReference)src).value(),
+                       out, start, true);
+            }
+            else {
+                out.bytes.emit8(0x8a + w);
+                modrm(regCode((Register)dest), src, out, start, true);
+            }
+        }
+        else {
+            throw unsupported(insn);
+        }
+    }
+
+    // movsbl, movzwl, ...
+    private void movx(Instruction insn, ELFAssembler.DataFragment out,
+                      int start) {
+        String suffix = insn.suffix();
+        if (suffix.length() != 2) throw unsupported(insn);
+        int srcSize = suffixSize(suffix.charAt(0), insn);
+        int destSize = suffixSize(suffix.charAt(1), insn);
+        Register dest = register(insn, insn.operand2());
+        prefix(destSize, out);
+        out.bytes.emit8(0x0f);
+        int opc = insn.mnemonic().equals("movz") ? 0xb6 : 0xbe;
+        out.bytes.emit8(opc + (srcSize == 1 ? 0 : 1));
+        modrm(regCode(dest), insn.operand1(), out, start, false);
+    }
+
+    private void arithmetic(int ext, Instruction insn,
+            ELFAssembler.DataFragment out, int start) {
+        Operand src = insn.operand1();
+        Operand dest = insn.operand2();
+        int size = operandSize(insn);
+        prefix(size, out);
+        int w = (size == 1) ? 0 : 1;
+        if (src instanceof ImmediateValue) {
+            Literal imm = ((ImmediateValue)src).expr();
+            if (size != 1 && isInt8(imm)) {
+                out.bytes.emit8(0x83);
+                modrm(ext, dest, out, start, false);
+                immediate(1, imm, out, start);
+            }
+            else if (isAccumulator(dest)) {
+                out.bytes.emit8(ext * 8 + 4 + w);
+                immediate(size, imm, out, start);
+            }
+            else {
+                out.bytes.emit8(0x80 + w);
+                modrm(ext, dest, out, start, false);
+                immediate(size, imm, out, start);
+            }
+        }
+        else if (src instanceof Register) {
+            out.bytes.emit8(ext * 8 + w);
+            modrm(regCode((Register)src), dest, out, start, false);
+        }
+        else if (dest instanceof Register) {
+            out.bytes.emit8(ext * 8 + 2 + w);
+            modrm(regCode((Register)dest), src, out, start, true);
+        }
+        else {
+            throw unsupported(insn);
+        }
+    }
+
+    private void test(Instruction insn, ELFAssembler.DataFragment out,
+                      int start) {
+        Operand src = insn.operand1();
+        Operand dest = insn.operand2();
+        int size = operandSize(insn);
+        prefix(size, out);
+        int w = (size == 1) ? 0 : 1;
+        if (src instanceof ImmediateValue) {
+            Literal imm = ((ImmediateValue)src).expr();
+            if (isAccumulator(dest)) {
+                out.bytes.emit8(0xa8 + w);
+            }
+            else {
+                out.bytes.emit8(0xf6 + w);
+                modrm(0, dest, out, start, false);
+            }
+            immediate(size, imm, out, start);
+        }
+        else if (src instanceof Register) {
+            out.bytes.emit8(0x84 + w);
+            modrm(regCode((Register)src), dest, out, start, false);
+        }
+        else {
+            throw unsupported(insn);
+        }
+    }
+
+    private void imul(Instruction insn, ELFAssembler.DataFragment out,
+                      int start) {
+        Operand src = insn.operand1();
+        Register dest = register(insn, insn.operand2());
+        int size = operandSize(insn);
+        if (size == 1) throw unsupported(insn);
+        prefix(size, out);
+        if (src instanceof ImmediateValue) {
+            Literal imm = ((ImmediateValue)src).expr();
+            boolean short_ = isInt8(imm);
+            out.bytes.emit8(short_ ? 0x6b : 0x69);
+            modrm(regCode(dest), dest, out, start, false);
+            immediate(short_ ? 1 : size, imm, out, start);
+        }
+        else {
+            out.bytes.emit8(0x0f);
+            out.bytes.emit8(0xaf);
+            modrm(regCode(dest), src, out, start, false);
+        }
+    }
+
+    private void incdec(int ext, Instruction insn,
+            ELFAssembler.DataFragment out, int start) {
+        Operand dest = insn.operand1();
+        int size = operandSize(insn);
+        prefix(size, out);
+        if (size != 1 && dest instanceof Register) {
+            out.bytes.emit8(0x40 + ext * 8 + regCode((Register)dest));
+        }
+        else {
+            out.bytes.emit8(size == 1 ? 0xfe : 0xff);
+            modrm(ext, dest, out, start, false);
+        }
+    }
+
+    private void shift(int ext, Instruction insn,
+            ELFAssembler.DataFragment out, int start) {
+        Operand bits = insn.operand1();
+        Operand dest = insn.operand2();
+        int size = operandSize(insn);
+        prefix(size, out);
+        int w = (size == 1) ? 0 : 1;
+        if (bits instanceof Register) {
+            if (((Register)bits).registerClass() != RegisterClass.CX) {
+                throw unsupported(insn);
+            }
+            out.bytes.emit8(0xd2 + w);
+            modrm(ext, dest, out, start, false);
+        }
+        else if (bits instanceof ImmediateValue) {
+            Literal imm = ((ImmediateValue)bits).expr();
+            if (! (imm instanceof IntegerLiteral)) throw unsupported(insn);
+            if (((IntegerLiteral)imm).value() == 1) {
+                out.bytes.emit8(0xd0 + w);
+                modrm(ext, dest, out, start, false);
+            }
+            else {
+                out.bytes.emit8(0xc0 + w);
+                modrm(ext, dest, out, start, false);
+                immediate(1, imm, out, start);
+            }
+        }
+        else {
+            throw unsupported(insn);
+        }
+    }
+
+    private void call(Instruction insn, ELFAssembler.DataFragment out,
+                      int start) {
+        Operand target = insn.operand1();
+        if (target instanceof DirectMemoryReference) {
+            Literal lit = ((DirectMemoryReference)target).value();
+            if (! (lit instanceof Symbol)) throw unsupported(insn);
+            out.bytes.emit8(0xe8);
+            ELFAssembler.FixupKind kind = ELFAssembler.FixupKind.PC32;
+            if (lit instanceof SuffixedSymbol) {
+                if (! ((SuffixedSymbol)lit).suffix().equals("@PLT")) {
+                    throw unsupported(insn);
+                }
+                kind = ELFAssembler.FixupKind.PLT32;
+            }
+            out.fixup(kind, symbolName((Symbol)lit), -4);
+            out.bytes.emit32(0);
+        }
+        else if (target instanceof AbsoluteAddress) {
+            Register reg = (Register)((AbsoluteAddress)target).register();
+            out.bytes.emit8(0xff);
+            modrm(2, reg, out, start, false);
+        }
+        else {
+            throw unsupported(insn);
+        }
+    }
+
+    //
+    // Operands
+    //
+
+    /**
+     * Emits ModRM (and SIB, displacement) bytes for the register or
+     * memory operand RM.  LOAD is true if the instruction reads RM
+     * into a register, which allows the linker to relax GOT loads.
+     */
+    private void modrm(int reg, Operand rm, ELFAssembler.DataFragment out,
+                       int start, boolean load) {
+        if (rm instanceof Register) {
+            out.bytes.emit8(0xc0 | (reg << 3) | regCode((Register)rm));
+        }
+        else if (rm instanceof IndirectMemoryReference) {
+            IndirectMemoryReference mem = (IndirectMemoryReference)rm;
+            int base = regCode((Register)mem.base());
+            Literal off = mem.offset();
+            int mod;
+            if (! (off instanceof IntegerLiteral)) {
+                mod = 2;
+            }
+            else if (off.isZero() && base != 5) {
+                mod = 0;
+            }
+            else if (isInt8(off)) {
+                mod = 1;
+            }
+            else {
+                mod = 2;
+            }
+            out.bytes.emit8((mod << 6) | (reg << 3) | base);
+            if (base == 4) {
+                out.bytes.emit8(0x24);      // SIB: base=%esp, no index
+            }
+            if (mod == 1) {
+                out.bytes.emit8(((IntegerLiteral)off).value());
+            }
+            else if (mod == 2) {
+                disp32(off, out, start, load);
+            }
+        }
+        else if (rm instanceof DirectMemoryReference) {
+            out.bytes.emit8((reg << 3) | 5);
+            disp32(((DirectMemoryReference)rm).value(), out, start, load);
+        }
+        else {
+            throw new Error("unsupported operand: " + rm.dump());
+        }
+    }
+
+    private void disp32(Literal lit, ELFAssembler.DataFragment out,
+                        int start, boolean load) {
+        if (lit instanceof IntegerLiteral) {
+            out.bytes.emit32(((IntegerLiteral)lit).value());
+            return;
+        }
+        ELFAssembler.FixupKind kind = fixupKind((Symbol)lit, load);
+        // The GOT address is relative to the field, not the instruction.
+        long addend = (kind == ELFAssembler.FixupKind.GOTPC)
+                ? out.bytes.length() - start : 0;
+        out.fixup(kind, symbolName((Symbol)lit), addend);
+        out.bytes.emit32(0);
+    }
+
+    private void immediate(int size, Literal imm,
+                           ELFAssembler.DataFragment out, int start) {
+        if (imm instanceof IntegerLiteral) {
+            long n = ((IntegerLiteral)imm).value();
+            switch (size) {
+            case 1: out.bytes.emit8(n); break;
+            case 2: out.bytes.emit16(n); break;
+            default: out.bytes.emit32(n); break;
+            }
+        }
+        else if (size == 4) {
+            disp32(imm, out, start, false);
+        }
+        else {
+            throw new Error("symbol in " + size + " byte immediate: "
+                            + imm.dump());
+        }
+    }
+
+    private ELFAssembler.FixupKind fixupKind(Symbol sym, boolean load) {
+        if (sym instanceof SuffixedSymbol) {
+            String suffix = ((SuffixedSymbol)sym).suffix();
+            if (suffix.equals("@GOTOFF")) {
+                return ELFAssembler.FixupKind.GOTOFF;
+            }
+            else if (suffix.equals("@GOT")) {
+                return load ? ELFAssembler.FixupKind.GOT32X
+                            : ELFAssembler.FixupKind.GOT32;
+            }
+            else {
+                throw new Error("unsupported symbol suffix: " + suffix);
+            }
+        }
+        else if (symbolName(sym).equals("_GLOBAL_OFFSET_TABLE_")) {
+            return ELFAssembler.FixupKind.GOTPC;
+        }
+        else {
+            return ELFAssembler.FixupKind.ABS32;
+        }
+    }
+
+    String symbolName(Symbol sym) {
+        if (sym instanceof SuffixedSymbol) {
+            return ((SuffixedSymbol)sym).base().toSource(labelSymbols);
+        }
+        return sym.toSource(labelSymbols);
+    }
+
+    //
+    // Utilities
+    //
+
+    private void prefix(int size, ELFAssembler.DataFragment out) {
+        if (size == 2) {
+            out.bytes.emit8(0x66);      // operand-size prefix
+        }
+    }
+
+    private int operandSize(Instruction insn) {
+        String suffix = insn.suffix();
+        if (suffix.length() == 1) {
+            return suffixSize(suffix.charAt(0), insn);
+        }
+        if (suffix.length() > 1) throw unsupported(insn);
+        for (int i = 0; i < insn.numOperands(); i++) {
+            Operand op = (i == 0) ? insn.operand1() : insn.operand2();
+            if (op instanceof Register) {
+                return ((Register)op).type.size();
+            }
+        }
+        throw unsupported(insn);
+    }
+
+    private int suffixSize(char c, Instruction insn) {
+        switch (c) {
+        case 'b': return 1;
+        case 'w': return 2;
+        case 'l': return 4;
+        default:
+            throw unsupported(insn);
+        }
+    }
+
+    private int regCode(Register reg) {
+        switch (reg.registerClass()) {
+        case AX: return 0;
+        case CX: return 1;
+        case DX: return 2;
+        case BX: return 3;
+        case SP: return 4;
+        case BP: return 5;
+        case SI: return 6;
+        case DI: return 7;
+        default:
+            throw new Error("unknown register: " + reg.dump());
+        }
+    }
+
+    private Register register(Instruction insn, Operand op) {
+        if (! (op instanceof Register)) throw unsupported(insn);
+        return (Register)op;
+    }
+
+    private boolean isAccumulator(Operand op) {
+        return (op instanceof Register)
+                && ((Register)op).registerClass() == RegisterClass.AX;
+    }
+
+    private boolean isInt8(Literal lit) {
+        if (! (lit instanceof IntegerLiteral)) return false;
+        long n = ((IntegerLiteral)lit).value();
+        return -128 <= n && n <= 127;
+    }
+
+    private Error unsupported(Instruction insn) {
+        return new Error("integrated assembler does not support: "
+                         + insn.toSource(labelSymbols).trim());
+    }
+}
@@ -267,6 +267,9 @@ public class PeepholeOptimizer {
 
         public boolean match(Cursor<Assembly> asms) {
             Instruction insn = (Instruction)asms.current();
+            if (! (insn.operand1() instanceof DirectMemoryReference)) {
+                return false;   // indirect jump
+            }
             return doesLabelFollows(asms.clone(), insn.jmpDestination());
         }
 
@@ -0,0 +1,106 @@
+package net.loveruby.cflat.sysdep.x86;
+import net.loveruby.cflat.ir.ControlFlowGraph;
+import net.loveruby.cflat.ir.LiveIntervals;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.asm.Type;
+import java.util.*;
+
+/**
+ * Allocates local variables and parameters of a function to
+ * registers by linear scan over their live intervals (Poletto and
+ * Sarkar).  When all registers are used, the interval of the least
+ * spill weight among the active ones and the new one is spilled,
+ * that is, its variable is kept in its stack slot for all its life,
+ * as without allocation.  Spill weights count uses in loops more, so
+ * loop counters are not spilled for short-lived temporaries.
+ *
+ * Only callee-saved registers are given, since the code generator
+ * uses %eax, %ecx and %edx as scratch registers: idiv and shifts
+ * clobber them, and function calls clobber them too.  A variable in
+ * a callee-saved register survives all of them without spill code.
+ * Only variables of the natural size are allocated; %esi and %edi
+ * have no byte registers.
+ */
+class RegisterAllocator {
+    private final List<Register> registers;
+    private final Type naturalType;
+    private Map<Entity, Register> result;
+    private List<Parameter> liveParams;
+
+    RegisterAllocator(List<Register> registers, Type naturalType) {
+        this.registers = registers;
+        this.naturalType = naturalType;
+    }
+
+    /** Returns registers of variables which are allocated. */
+    Map<Entity, Register> allocate(DefinedFunction func) {
+        result = new HashMap<Entity, Register>();
+        liveParams = new ArrayList<Parameter>();
+        ControlFlowGraph cfg = ControlFlowGraph.build(func);
+        LiveIntervals live = new LiveIntervals(func, cfg);
+        // Active intervals sorted by the end.
+        LinkedList<LiveIntervals.Interval> active =
+                new LinkedList<LiveIntervals.Interval>();
+        LinkedList<Register> free = new LinkedList<Register>(registers);
+        for (LiveIntervals.Interval iv : live.intervals()) {
+            if (iv.variable().allocSize() != naturalType.size()) continue;
+            while (! active.isEmpty()
+                    && active.getFirst().end() < iv.start()) {
+                free.add(result.get(active.removeFirst().variable()));
+            }
+            if (! free.isEmpty()) {
+                result.put(iv.variable(), free.removeFirst());
+                insertByEnd(active, iv);
+            }
+            else {
+                LiveIntervals.Interval spill = spillCandidate(active);
+                if (spill != null
+                        && spill.spillWeight() < iv.spillWeight()) {
+                    active.remove(spill);
+                    result.put(iv.variable(), result.remove(spill.variable()));
+                    insertByEnd(active, iv);
+                }
+            }
+        }
+        for (LiveIntervals.Interval iv : live.intervals()) {
+            if (iv.isLiveAtEntry() && iv.variable() instanceof Parameter
+                    && result.containsKey(iv.variable())) {
+                liveParams.add((Parameter)iv.variable());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Allocated parameters which have to be loaded to the registers
+     * at the function entry.
+     */
+    List<Parameter> liveParameters() {
+        return liveParams;
+    }
+
+    /** The interval of the least weight; the one ending last of ties. */
+    private LiveIntervals.Interval spillCandidate(
+            List<LiveIntervals.Interval> active) {
+        LiveIntervals.Interval result = null;
+        for (LiveIntervals.Interval iv : active) {
+            if (result == null
+                    || iv.spillWeight() <= result.spillWeight()) {
+                result = iv;
+            }
+        }
+        return result;
+    }
+
+    private void insertByEnd(LinkedList<LiveIntervals.Interval> active,
+                             LiveIntervals.Interval iv) {
+        ListIterator<LiveIntervals.Interval> it = active.listIterator();
+        while (it.hasNext()) {
+            if (it.next().end() > iv.end()) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(iv);
+    }
+}
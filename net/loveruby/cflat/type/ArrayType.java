@@ -62,12 +62,14 @@ public class ArrayType extends Type {
     }
 
     public boolean isSameType(Type other) {
+        if (other == this) return true;
         // length is not important
         if (!other.isPointer() && !other.isArray()) return false;
         return baseType.isSameType(other.baseType());
     }
 
     public boolean isCompatible(Type target) {
+        if (target == this) return true;
         if (!target.isPointer() && !target.isArray()) return false;
         if (target.baseType().isVoid()) {
             return true;
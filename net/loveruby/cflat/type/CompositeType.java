@@ -67,14 +67,16 @@ abstract public class CompositeType extends NamedType {
         }
     }
 
-    public long size() {
+    // Offsets are computed lazily, possibly by threads checking or
+    // compiling functions in parallel.
+    synchronized public long size() {
         if (cachedSize == Type.sizeUnknown) {
             computeOffsets();
         }
         return cachedSize;
     }
 
-    public long alignmemt() {
+    synchronized public long alignmemt() {
         if (cachedAlign == Type.sizeUnknown) {
             computeOffsets();
         }
@@ -101,7 +103,7 @@ abstract public class CompositeType extends NamedType {
         return fetch(name).type();
     }
 
-    public long memberOffset(String name) {
+    synchronized public long memberOffset(String name) {
         Slot s = fetch(name);
         if (s.offset() == Type.sizeUnknown) {
             computeOffsets();
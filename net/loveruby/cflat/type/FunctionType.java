@@ -15,6 +15,7 @@ public class FunctionType extends Type {
     public boolean isCallable() { return true; }
 
     public boolean isSameType(Type other) {
+        if (other == this) return true;
         if (! other.isFunction()) return false;
         FunctionType t = other.getFunctionType();
         return t.returnType.isSameType(returnType)
@@ -22,6 +23,7 @@ public class FunctionType extends Type {
     }
 
     public boolean isCompatible(Type target) {
+        if (target == this) return true;
         if (! target.isFunction()) return false;
         FunctionType t = target.getFunctionType();
         return t.returnType.isCompatible(returnType)
@@ -27,12 +27,16 @@ public class PointerType extends Type {
         return baseType.equals(((Type)other).getPointerType().baseType);
     }
 
+    // Pointer types are hash-consed by TypeTable, so the same type
+    // is usually the same instance.
     public boolean isSameType(Type other) {
+        if (other == this) return true;
         if (!other.isPointer()) return false;
         return baseType.isSameType(other.baseType());
     }
 
     public boolean isCompatible(Type other) {
+        if (other == this) return true;
         if (!other.isPointer()) return false;
         if (baseType.isVoid()) {
             return true;
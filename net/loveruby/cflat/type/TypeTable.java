@@ -38,6 +38,18 @@ public class TypeTable {
     private int pointerSize;
     private Map<TypeRef, Type> table;
 
+    // Derived types are hash-consed: a pointer, array or function
+    // type of the same component types is one instance, so that
+    // such types are compared by ==.  Component types are canonical,
+    // so they are compared by identity.  Guarded by this, because
+    // semantic checks of functions may run in parallel.
+    private final Map<Type, PointerType> pointerTypes =
+            new IdentityHashMap<Type, PointerType>();
+    private final Map<DerivedKey, ArrayType> arrayTypes =
+            new HashMap<DerivedKey, ArrayType>();
+    private final Map<DerivedKey, FunctionType> functionTypes =
+            new HashMap<DerivedKey, FunctionType>();
+
     public TypeTable(int intSize, int longSize, int pointerSize) {
         this.intSize = intSize;
         this.longSize = longSize;
@@ -68,22 +80,20 @@ public class TypeTable {
             }
             else if (ref instanceof PointerTypeRef) {
                 PointerTypeRef pref = (PointerTypeRef)ref;
-                Type t = new PointerType(pointerSize, get(pref.baseType()));
+                Type t = pointerTo(get(pref.baseType()));
                 table.put(pref, t);
                 return t;
             }
             else if (ref instanceof ArrayTypeRef) {
                 ArrayTypeRef aref = (ArrayTypeRef)ref;
-                Type t = new ArrayType(get(aref.baseType()),
-                                       aref.length(),
-                                       pointerSize);
+                Type t = arrayOf(get(aref.baseType()), aref.length());
                 table.put(aref, t);
                 return t;
             }
             else if (ref instanceof FunctionTypeRef) {
                 FunctionTypeRef fref = (FunctionTypeRef)ref;
-                Type t = new FunctionType(get(fref.returnType()),
-                                          fref.params().internTypes(this));
+                Type t = functionType(get(fref.returnType()),
+                                      fref.params().internTypes(this));
                 table.put(fref, t);
                 return t;
             }
@@ -178,87 +188,192 @@ public class TypeTable {
         return (IntegerType)table.get(IntegerTypeRef.ulongRef());
     }
 
-    public PointerType pointerTo(Type baseType) {
-        return new PointerType(pointerSize, baseType);
+    public synchronized PointerType pointerTo(Type baseType) {
+        PointerType t = pointerTypes.get(baseType);
+        if (t == null) {
+            t = new PointerType(pointerSize, baseType);
+            pointerTypes.put(baseType, t);
+        }
+        return t;
     }
 
-    public void semanticCheck(ErrorHandler h) {
-        for (Type t : types()) {
-            // We can safely use "instanceof" instead of isXXXX() here,
-            // because the type refered from UserType must be also
-            // kept in this table.
-            if (t instanceof CompositeType) {
-                checkVoidMembers((CompositeType)t, h);
-                checkDuplicatedMembers((CompositeType)t, h);
-            }
-            else if (t instanceof ArrayType) {
-                checkVoidMembers((ArrayType)t, h);
-            }
-            checkRecursiveDefinition(t, h);
+    /** LENGTH is -1 if the length is not given. */
+    public synchronized ArrayType arrayOf(Type baseType, long length) {
+        DerivedKey key = new DerivedKey(length, baseType);
+        ArrayType t = arrayTypes.get(key);
+        if (t == null) {
+            t = new ArrayType(baseType, length, pointerSize);
+            arrayTypes.put(key, t);
         }
+        return t;
     }
 
-    protected void checkVoidMembers(ArrayType t, ErrorHandler h) {
-        if (t.baseType().isVoid()) {
-            h.error("array cannot contain void");
+    public synchronized FunctionType functionType(Type ret,
+                                                  ParamTypes params) {
+        List<Type> types = params.types();
+        Type[] comps = new Type[types.size() + 1];
+        comps[0] = ret;
+        for (int i = 0; i < types.size(); i++) {
+            comps[i + 1] = types.get(i);
+        }
+        DerivedKey key = new DerivedKey(params.isVararg() ? 1 : 0, comps);
+        FunctionType t = functionTypes.get(key);
+        if (t == null) {
+            t = new FunctionType(ret, params);
+            functionTypes.put(key, t);
         }
+        return t;
     }
 
-    protected void checkVoidMembers(CompositeType t, ErrorHandler h) {
-        for (Slot s : t.members()) {
-            if (s.type().isVoid()) {
-                h.error(t.location(), "struct/union cannot contain void");
+    // Component types, compared by identity, and a number: the
+    // length of an array, or 1 for a function of variable arguments.
+    static private class DerivedKey {
+        private final long n;
+        private final Type[] types;
+
+        DerivedKey(long n, Type... types) {
+            this.n = n;
+            this.types = types;
+        }
+
+        public int hashCode() {
+            int h = (int)(n ^ (n >>> 32));
+            for (Type t : types) {
+                h = h * 31 + System.identityHashCode(t);
             }
+            return h;
         }
-    }
 
-    protected void checkDuplicatedMembers(CompositeType t, ErrorHandler h) {
-        Map<String, Slot> seen = new HashMap<String, Slot>();
-        for (Slot s : t.members()) {
-            if (seen.containsKey(s.name())) {
-                h.error(t.location(),
-                        t.toString() + " has duplicated member: " + s.name());
+        public boolean equals(Object other) {
+            if (! (other instanceof DerivedKey)) return false;
+            DerivedKey k = (DerivedKey)other;
+            if (n != k.n || types.length != k.types.length) return false;
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] != k.types[i]) return false;
             }
-            seen.put(s.name(), s);
+            return true;
         }
     }
 
-    // #@@range/checkRecursiveDefinition{
-    protected void checkRecursiveDefinition(Type t, ErrorHandler h) {
-        _checkRecursiveDefinition(t, new HashMap<Type, Object>(), h);
+    /**
+     * Checks members of struct, union and array types, and reports
+     * recursive type definitions.  The type graph is traversed once:
+     * RecursionFinder checks the members of each type when it visits
+     * the type, and finds the strongly connected components of the
+     * "contains" relation; a named type in a component which has a
+     * cycle is recursive.  Each recursive type is reported once.
+     */
+    public void semanticCheck(ErrorHandler h) {
+        RecursionFinder finder = new RecursionFinder(h);
+        for (Type t : types()) {
+            finder.visit(t);
+            if (finder.isRecursive(t)) {
+                h.error(((NamedType)t).location(),
+                        "recursive type definition: " + t);
+            }
+        }
     }
 
-    static final protected Object checking = new Object();
-    static final protected Object checked = new Object();
+    // #@@range/checkRecursiveDefinition{
+    // Tarjan's algorithm.  Types already visited are skipped,
+    // so the whole graph is traversed once.
+    static private class RecursionFinder {
+        private final ErrorHandler h;
+        private final Map<Type, Mark> marks =
+                new IdentityHashMap<Type, Mark>();
+        private final List<Type> stack = new ArrayList<Type>();
+
+        RecursionFinder(ErrorHandler h) {
+            this.h = h;
+        }
 
-    protected void _checkRecursiveDefinition(Type t,
-                                             Map<Type, Object> marks,
-                                             ErrorHandler h) {
-        if (marks.get(t) == checking) {
-            h.error(((NamedType)t).location(),
-                    "recursive type definition: " + t);
-            return;
+        // Array types in a cycle are not recursive; they are made
+        // of the named types in it.
+        boolean isRecursive(Type t) {
+            return (t instanceof NamedType) && marks.get(t).recursive;
         }
-        else if (marks.get(t) == checked) {
-            return;
+
+        void visit(Type t) {
+            if (marks.containsKey(t)) return;
+            Mark m = new Mark(marks.size());
+            marks.put(t, m);
+            stack.add(t);
+            boolean selfContained = false;
+            for (Type u : containedTypes(t)) {
+                Mark um = marks.get(u);
+                if (um == null) {
+                    visit(u);
+                    m.lowlink = Math.min(m.lowlink, marks.get(u).lowlink);
+                }
+                else if (um.onStack) {
+                    m.lowlink = Math.min(m.lowlink, um.index);
+                }
+                if (u == t) selfContained = true;
+            }
+            if (m.lowlink == m.index) {
+                // T is the root of a component; pop it.
+                int root = stack.lastIndexOf(t);
+                List<Type> comp = stack.subList(root, stack.size());
+                boolean cyclic = (comp.size() > 1 || selfContained);
+                for (Type u : comp) {
+                    Mark um = marks.get(u);
+                    um.onStack = false;
+                    um.recursive = cyclic;
+                }
+                comp.clear();
+            }
         }
-        else {
-            marks.put(t, checking);
+
+        // Returns the types T contains, checking its members on the
+        // way.  Pointers do not contain their base types.
+        private List<Type> containedTypes(Type t) {
+            // We can safely use "instanceof" instead of isXXXX() here,
+            // because the type refered from UserType must be also
+            // kept in this table.
             if (t instanceof CompositeType) {
-                CompositeType ct = (CompositeType)t;
-                for (Slot s : ct.members()) {
-                    _checkRecursiveDefinition(s.type(), marks, h);
-                }
+                return checkMembers((CompositeType)t);
             }
             else if (t instanceof ArrayType) {
-                ArrayType at = (ArrayType)t;
-                _checkRecursiveDefinition(at.baseType(), marks, h);
+                Type base = ((ArrayType)t).baseType();
+                if (base.isVoid()) {
+                    h.error("array cannot contain void");
+                }
+                return Collections.singletonList(base);
             }
             else if (t instanceof UserType) {
-                UserType ut = (UserType)t;
-                _checkRecursiveDefinition(ut.realType(), marks, h);
+                return Collections.singletonList(((UserType)t).realType());
             }
-            marks.put(t, checked);
+            else {
+                return Collections.emptyList();
+            }
+        }
+
+        private List<Type> checkMembers(CompositeType t) {
+            List<Type> types = new ArrayList<Type>();
+            Set<String> seen = new HashSet<String>();
+            for (Slot s : t.members()) {
+                if (s.type().isVoid()) {
+                    h.error(t.location(), "struct/union cannot contain void");
+                }
+                if (! seen.add(s.name())) {
+                    h.error(t.location(),
+                        t.toString() + " has duplicated member: " + s.name());
+                }
+                types.add(s.type());
+            }
+            return types;
+        }
+    }
+
+    static private class Mark {
+        final int index;
+        int lowlink;
+        boolean onStack = true;
+        boolean recursive = false;
+
+        Mark(int index) {
+            this.index = index;
+            this.lowlink = index;
         }
     }
     // #@@}
@@ -7,25 +7,31 @@ import java.io.*;
 abstract public class CommandUtils {
     static public void invoke(List<String> cmdArgs,
             ErrorHandler errorHandler, boolean verbose) throws IPCException {
+        invoke(cmdArgs, null, errorHandler, verbose);
+    }
+
+    /**
+     * Runs the command in the directory DIR, or in the current
+     * directory if DIR is null.
+     */
+    static public void invoke(List<String> cmdArgs, File dir,
+            ErrorHandler errorHandler, boolean verbose) throws IPCException {
+        start(cmdArgs, dir, errorHandler, verbose).finish();
+    }
+
+    /**
+     * Starts the command and returns without waiting for it.
+     * Call Command#finish to wait for the command.
+     */
+    static public Command start(List<String> cmdArgs, File dir,
+            ErrorHandler errorHandler, boolean verbose) throws IPCException {
         if (verbose) {
             dumpCommand(cmdArgs);
         }
         try {
             String[] cmd = cmdArgs.toArray(new String[] {});
-            Process proc = Runtime.getRuntime().exec(cmd);
-            proc.waitFor();
-            passThrough(proc.getInputStream());
-            passThrough(proc.getErrorStream());
-            if (proc.exitValue() != 0) {
-                errorHandler.error(cmd[0] + " failed."
-                        + " (status " + proc.exitValue() + ")");
-                throw new IPCException("compile error");
-            }
-        }
-        catch (InterruptedException ex) {
-            errorHandler.error("external command interrupted: "
-                    + cmdArgs.get(0) + ": " + ex.getMessage());
-            throw new IPCException("compile error");
+            Process proc = Runtime.getRuntime().exec(cmd, null, dir);
+            return new Command(cmd[0], proc, errorHandler);
         }
         catch (IOException ex) {
             errorHandler.error(
@@ -34,20 +40,130 @@ abstract public class CommandUtils {
         }
     }
 
-    static private void dumpCommand(List<String> args) {
-        String sep = "";
-        for (String arg : args) {
-            System.out.print(sep); sep = " ";
-            System.out.print(arg);
+    /**
+     * A running external command.  Its stdout and stderr are drained
+     * by background threads while it runs, so the command never
+     * blocks on a full pipe; the output is printed to System.err
+     * by #finish.
+     */
+    static public class Command {
+        private final String name;
+        private final Process proc;
+        private final ErrorHandler errorHandler;
+        private final Drain stdout;
+        private final Drain stderr;
+
+        Command(String name, Process proc, ErrorHandler errorHandler) {
+            this.name = name;
+            this.proc = proc;
+            this.errorHandler = errorHandler;
+            this.stdout = new Drain(proc.getInputStream());
+            this.stderr = new Drain(proc.getErrorStream());
+            stdout.start();
+            stderr.start();
+        }
+
+        /** The standard input of the command. */
+        public OutputStream input() {
+            return proc.getOutputStream();
+        }
+
+        /**
+         * Closes the standard input, waits for the command and
+         * reports its output and failure.
+         */
+        public void finish() throws IPCException {
+            try {
+                try {
+                    proc.getOutputStream().close();
+                }
+                catch (IOException ex) {
+                    // The command exited without reading all input;
+                    // its status tells what happened.
+                    ;
+                }
+                int status = proc.waitFor();
+                stdout.join();
+                stderr.join();
+                stdout.printTo(System.err);
+                stderr.printTo(System.err);
+                if (status != 0) {
+                    errorHandler.error(name + " failed."
+                            + " (status " + status + ")");
+                    throw new IPCException("compile error");
+                }
+            }
+            catch (InterruptedException ex) {
+                proc.destroy();
+                errorHandler.error("external command interrupted: "
+                        + name + ": " + ex.getMessage());
+                throw new IPCException("compile error");
+            }
+        }
+
+        /** Kills the command.  Its output and status are discarded. */
+        public void kill() {
+            proc.destroy();
+            try {
+                proc.waitFor();
+                stdout.join();
+                stderr.join();
+            }
+            catch (InterruptedException ex) {
+                ;
+            }
         }
-        System.out.println("");
     }
 
-    static private void passThrough(InputStream s) throws IOException {
-        BufferedReader r = new BufferedReader(new InputStreamReader(s));
-        String line;
-        while ((line = r.readLine()) != null) {
-            System.err.println(line);
+    static private class Drain extends Thread {
+        private final InputStream in;
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        Drain(InputStream in) {
+            this.in = in;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                byte[] b = new byte[4096];
+                int n;
+                while ((n = in.read(b)) > 0) {
+                    buf.write(b, 0, n);
+                }
+            }
+            catch (IOException ex) {
+                // The stream is closed when the process exits.
+                ;
+            }
+            finally {
+                try {
+                    in.close();
+                }
+                catch (IOException ex) {
+                    ;
+                }
+            }
+        }
+
+        // Prints the output by one call, not to be mixed with
+        // the output of other threads.
+        void printTo(PrintStream s) {
+            if (buf.size() == 0) return;
+            s.print(buf.toString());
+            s.flush();
+        }
+    }
+
+    // Prints the command by one call, not to be mixed with
+    // the output of other threads.
+    static private void dumpCommand(List<String> args) {
+        StringBuilder buf = new StringBuilder();
+        String sep = "";
+        for (String arg : args) {
+            buf.append(sep); sep = " ";
+            buf.append(arg);
         }
+        System.out.println(buf.toString());
     }
 }
@@ -1,12 +1,18 @@
 package net.loveruby.cflat.utils;
 import net.loveruby.cflat.ast.Location;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
 
 public class ErrorHandler {
     protected String programId;
     protected PrintStream stream;
-    protected long nError;
-    protected long nWarning;
+    protected final AtomicLong nError = new AtomicLong();
+    protected final AtomicLong nWarning = new AtomicLong();
+
+    // For a handler made by #buffer.
+    protected ErrorHandler parent;
+    protected List<String> buffer;
 
     public ErrorHandler(String progid) {
         programId = progid;
@@ -18,13 +24,40 @@ public class ErrorHandler {
         this.stream = new PrintStream(stream);
     }
 
+    /**
+     * Returns a new handler which keeps messages until #flush is
+     * called.  Used to report messages of threads in a fixed order.
+     */
+    public ErrorHandler buffer() {
+        ErrorHandler h = new ErrorHandler(programId);
+        h.parent = this;
+        h.buffer = new ArrayList<String>();
+        return h;
+    }
+
+    /**
+     * Writes the messages kept by this handler to the handler
+     * which made it, and adds the counts of errors and warnings.
+     */
+    public void flush() {
+        if (parent == null) {
+            throw new Error("must not happen: flush of unbuffered handler");
+        }
+        for (String msg : buffer) {
+            parent.print(msg);
+        }
+        buffer.clear();
+        parent.nError.addAndGet(nError.getAndSet(0));
+        parent.nWarning.addAndGet(nWarning.getAndSet(0));
+    }
+
     public void error(Location loc, String msg) {
         error(loc.toString() + ": " + msg);
     }
 
     public void error(String msg) {
-        stream.println(programId + ": error: " + msg);
-        nError++;
+        print(programId + ": error: " + msg);
+        nError.incrementAndGet();
     }
 
     public void warn(Location loc, String msg) {
@@ -32,11 +65,25 @@ public class ErrorHandler {
     }
 
     public void warn(String msg) {
-        stream.println(programId + ": warning: " + msg);
-        nWarning++;
+        print(programId + ": warning: " + msg);
+        nWarning.incrementAndGet();
+    }
+
+    protected void print(String msg) {
+        if (buffer != null) {
+            buffer.add(msg);
+        }
+        else {
+            stream.println(msg);
+        }
     }
 
     public boolean errorOccured() {
-        return (nError > 0);
+        return (nError.get() > 0);
+    }
+
+    /** The number of errors reported so far. */
+    public long errorCount() {
+        return nError.get();
     }
 }
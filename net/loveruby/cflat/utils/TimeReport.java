@@ -0,0 +1,195 @@
+package net.loveruby.cflat.utils;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.io.PrintStream;
+
+/**
+ * Wall time, CPU time and allocated bytes of compiler phases and
+ * of each function in code generation (--time-report).
+ * CPU time and allocation are measured on the current thread, so a
+ * phase must start and stop on the same thread.  Entries of the
+ * same name are accumulated.  This class is thread-safe.
+ */
+public class TimeReport {
+    static public final String PHASE = "phase";
+    static public final String FUNCTION = "function";
+
+    /** Measurement started by #phase or #function. */
+    public interface Timer {
+        void stop();
+    }
+
+    static private final Timer NULL_TIMER = new Timer() {
+        public void stop() {}
+    };
+
+    static private final TimeReport NULL_REPORT = new TimeReport(false);
+
+    /** Report which records nothing. */
+    static public TimeReport nullReport() {
+        return NULL_REPORT;
+    }
+
+    static private class Entry {
+        final String unit;
+        final String kind;
+        final String name;
+        long count = 0;
+        long wall = 0;          // nanoseconds
+        long cpu = 0;           // nanoseconds; -1 if unsupported
+        long alloc = 0;         // bytes; -1 if unsupported
+
+        Entry(String unit, String kind, String name) {
+            this.unit = unit;
+            this.kind = kind;
+            this.name = name;
+        }
+    }
+
+    private final boolean enabled;
+    private final Map<String, Entry> entries =
+            new LinkedHashMap<String, Entry>();
+    private final ThreadMXBean threads;
+
+    public TimeReport() {
+        this(true);
+    }
+
+    private TimeReport(boolean enabled) {
+        this.enabled = enabled;
+        this.threads = enabled ? ManagementFactory.getThreadMXBean() : null;
+        if (enabled && threads.isThreadCpuTimeSupported()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    /** Starts measuring the phase NAME of the compilation unit UNIT. */
+    public Timer phase(String unit, String name) {
+        return start(unit, PHASE, name);
+    }
+
+    /** Starts measuring code generation of the function NAME. */
+    public Timer function(String unit, String name) {
+        return start(unit, FUNCTION, name);
+    }
+
+    private Timer start(final String unit, final String kind,
+                        final String name) {
+        if (! enabled) return NULL_TIMER;
+        final Entry ent = entry(unit, kind, name);
+        final long wall0 = System.nanoTime();
+        final long cpu0 = cpuTime();
+        final long alloc0 = allocatedBytes();
+        return new Timer() {
+            public void stop() {
+                long wall = System.nanoTime() - wall0;
+                long cpu = (cpu0 < 0) ? -1 : cpuTime() - cpu0;
+                long alloc = (alloc0 < 0) ? -1 : allocatedBytes() - alloc0;
+                record(ent, wall, cpu, alloc);
+            }
+        };
+    }
+
+    private long cpuTime() {
+        if (! threads.isThreadCpuTimeSupported()) return -1;
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    private long allocatedBytes() {
+        if (! (threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean t =
+                (com.sun.management.ThreadMXBean)threads;
+        if (! t.isThreadAllocatedMemorySupported()) return -1;
+        return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Entries are listed in the order they are started.
+    synchronized private Entry entry(String unit, String kind, String name) {
+        String key = unit + "\0" + kind + "\0" + name;
+        Entry ent = entries.get(key);
+        if (ent == null) {
+            ent = new Entry(unit, kind, name);
+            entries.put(key, ent);
+        }
+        return ent;
+    }
+
+    synchronized private void record(Entry ent,
+                                     long wall, long cpu, long alloc) {
+        ent.count++;
+        ent.wall += wall;
+        ent.cpu = (cpu < 0 || ent.cpu < 0) ? -1 : ent.cpu + cpu;
+        ent.alloc = (alloc < 0 || ent.alloc < 0) ? -1 : ent.alloc + alloc;
+    }
+
+    /** Prints the report as a table grouped by compilation units. */
+    synchronized public void print(PrintStream s) {
+        StringBuilder buf = new StringBuilder();
+        String unit = null;
+        for (Entry ent : entries.values()) {
+            if (ent.count == 0) continue;
+            if (! ent.unit.equals(unit)) {
+                unit = ent.unit;
+                buf.append(String.format("%s:%n",
+                        unit.length() == 0 ? "(build)" : unit));
+                buf.append(String.format("  %-32s %5s %10s %10s %12s%n",
+                        "phase/function", "count",
+                        "wall(ms)", "cpu(ms)", "alloc(KB)"));
+            }
+            String name = ent.kind.equals(FUNCTION)
+                    ? "  " + ent.name + "()" : ent.name;
+            buf.append(String.format("  %-32s %5d %10.3f %10s %12s%n",
+                    name, ent.count, ent.wall / 1e6,
+                    ent.cpu < 0 ? "-" : String.format("%.3f", ent.cpu / 1e6),
+                    ent.alloc < 0 ? "-" : String.valueOf(ent.alloc / 1024)));
+        }
+        s.print(buf.toString());
+        s.flush();
+    }
+
+    /** Prints the report as a JSON object. */
+    synchronized public void printJSON(PrintStream s) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\"entries\": [");
+        String sep = "\n";
+        for (Entry ent : entries.values()) {
+            if (ent.count == 0) continue;
+            buf.append(sep); sep = ",\n";
+            buf.append("  {\"unit\": ").append(jsonString(ent.unit));
+            buf.append(", \"kind\": ").append(jsonString(ent.kind));
+            buf.append(", \"name\": ").append(jsonString(ent.name));
+            buf.append(", \"count\": ").append(ent.count);
+            buf.append(", \"wall_ns\": ").append(ent.wall);
+            buf.append(", \"cpu_ns\": ").append(jsonNumber(ent.cpu));
+            buf.append(", \"alloc_bytes\": ").append(jsonNumber(ent.alloc));
+            buf.append("}");
+        }
+        buf.append("\n]}\n");
+        s.print(buf.toString());
+        s.flush();
+    }
+
+    static private String jsonNumber(long n) {
+        return (n < 0) ? "null" : String.valueOf(n);
+    }
+
+    static private String jsonString(String str) {
+        StringBuilder buf = new StringBuilder("\"");
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int)c));
+            }
+            else {
+                buf.append(c);
+            }
+        }
+        return buf.append('"').toString();
+    }
+}
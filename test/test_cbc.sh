@@ -141,6 +141,8 @@ test_17_jump() {
     assert_ok ./dowhile-continue
     assert_ok ./for-continue
     assert_compile_error continue-semcheck.cb
+
+    assert_out "7;102;7;10;30;30" ./cfg
 }
 
 test_18_array() {
@@ -182,6 +184,8 @@ test_19_struct() {
     assert_compile_error struct-semcheck8.cb
     assert_compile_error struct-semcheck9.cb
     assert_compile_error struct-semcheck10.cb
+    assert_compile_error struct-semcheck11.cb
+    assert_compile_error struct-semcheck12.cb
 }
 
 test_20_union() {
@@ -241,6 +245,14 @@ test_24_cast() {
 
 test_25_block() {
     assert_out "1;2;3;1;OK" ./block
+    assert_out "1;5;3;2;6;1" ./block2
+    assert_compile_error block-semcheck.cb
+    assert_compile_error block-semcheck2.cb
+    for f in block2.cb block-semcheck.cb block-semcheck2.cb
+    do
+        assert_equal "$CBC --resolver=chained -S -o - $f" \
+                     "$CBC --resolver=indexed -S -o - $f"
+    done
     assert_out "1;2;3" ./defvar
     assert_out "77" ./decloverride
     assert_compile_error decloverride2.cb
@@ -273,16 +285,23 @@ test_27_switch() {
         assert_stdout "other"  ./switch x x x x x x
         assert_stdout "other"  ./switch x x x x x x x
     fi
+    for opt in "" "-O" "-O -fPIC"
+    do
+        assert_compile_success $opt switch2.cb &&
+        assert_stdout "-1137273595;1;2;3;0;5;6;7;8;1744202511;11;12;1;4;0;5" ./switch2
+    done
 }
 
 test_28_syntax() {
     assert_out "1, 2, 0" ./syntax1
     assert_compile_success syntax2.cb
     assert_stat 0 ./syntax3
+    assert_status 1 "$CBC" syntax4.cb
 }
 
 test_29_import() {
     assert_compile_success duplicated-import.cb
+    assert_compile_success reimport.cb
     assert_compile_success vardecl.cb &&
     assert_status 0 ./vardecl
     assert_compile_success -fPIC vardecl.cb &&
@@ -331,6 +350,243 @@ test_37_setjmp() {
     assert_out "OK" ./setjmptest
 }
 
+test_38_parallel() {
+    assert_compile_success -j2 src1.cb src2.cb -o src &&
+    assert_status 4 ./src
+    assert_equal "$CBC -S -o - src1.cb; $CBC -S -o - src2.cb" \
+                 "$CBC -j2 -S src1.cb src2.cb && cat src1.s src2.s"
+    assert_equal "$CBC -S -o - reimport.cb" "$CBC -j4 -S -o - reimport.cb"
+}
+
+test_39_server() {
+    port=17891
+    # The server writes its token under $HOME; keep the real one.
+    save_home=$HOME
+    HOME=`pwd`/tc.home
+    rm -rf $HOME && mkdir $HOME
+    $CBC --server=$port >/dev/null 2>&1 &
+    for i in 1 2 3 4 5 6 7 8 9 10
+    do
+        $CBC --client=$port --version >/dev/null 2>&1 && break
+        sleep 1
+    done
+    assert_equal "$CBC -S -o - hello.cb" \
+                 "$CBC --client=$port -S -o - hello.cb"
+    assert_compile_success --client=$port src1.cb src2.cb -o src &&
+    assert_status 4 ./src
+    assert_compile_error --client=$port var-semcheck.cb
+    # Requests without the token of the server are rejected.
+    token=$HOME/.cbc/server-$port.token
+    assert_eq 600 `stat -c %a $token`
+    assert_eq 700 `stat -c %a $HOME/.cbc`
+    echo 0 >$token
+    assert_compile_error --client=$port hello.cb
+    pkill -f -- "--server=$port"
+    rm -rf $HOME
+    HOME=$save_home
+}
+
+test_40_cache() {
+    rm -rf tc.cache
+    assert_stdout "object cache: 0 hits, 1 misses" \
+        $CBC -v --cache-dir tc.cache -S hello.cb
+    assert_stdout "object cache: 1 hits, 0 misses" \
+        $CBC -v --cache-dir tc.cache -S hello.cb
+    assert_compile_success --cache-dir tc.cache src1.cb src2.cb -o src &&
+    assert_status 4 ./src
+    assert_compile_success --cache-dir tc.cache src1.cb src2.cb -o src &&
+    assert_status 4 ./src
+    rm -rf tc.cache
+}
+
+test_41_integrated_as() {
+    for f in funcptr.cb switch2.cb
+    do
+        for opt in "" "-O" "-O -fPIC"
+        do
+            assert_compile_success $opt -c -o tc.o $f &&
+            objdump -d -r -s tc.o >tc.gnu
+            assert_compile_success $opt -integrated-as -c -o tc.o $f &&
+            objdump -d -r -s tc.o >tc.ia
+            assert_equal "cat tc.gnu" "cat tc.ia"
+        done
+    done
+    assert_compile_success -integrated-as src1.cb src2.cb -o src &&
+    assert_status 4 ./src
+    rm -f tc.o tc.gnu tc.ia
+}
+
+test_42_pipe_as() {
+    rm -f hello.s hello.o
+    assert_compile_success -c hello.cb &&
+    assert_file hello.o &&
+    assert_not_exist hello.s
+    mv hello.o tc.o
+    assert_compile_success --save-temps -c hello.cb &&
+    assert_file hello.s &&
+    assert_status 0 cmp -s tc.o hello.o
+    assert_compile_success src1.cb src2.cb -o src &&
+    assert_status 4 ./src
+    rm -f hello.s hello.o tc.o
+}
+
+test_43_time_report() {
+    $CBC --time-report -S -o tc.s hello.cb 2>tc.out &&
+    assert_status 0 grep -q "^hello.cb:" tc.out &&
+    assert_status 0 grep -q "^    main()" tc.out
+    $CBC --time-report=json -S -o tc.s hello.cb 2>tc.out &&
+    assert_status 0 grep -q '"name": "Parser"' tc.out &&
+    assert_status 0 grep -q '"kind": "function", "name": "main"' tc.out
+    assert_error $CBC --time-report=xml -S -o tc.s hello.cb
+    rm -f tc.s tc.out
+}
+
+test_44_locations() {
+    $CBC -fverbose-asm -S -o tc.s funcptr.cb &&
+    assert_status 0 grep -q "# line 8: f = printf;" tc.s
+    assert_compile_success -fverbose-asm -S -o tc.s assign.cb
+    $CBC --dump-tokens hello.cb >tc.out &&
+    assert_status 0 grep -q '^<EOF>' tc.out
+    rm -f tc.s tc.out
+}
+
+test_45_pch() {
+    rm -rf tc.pch tc.inc
+    $CBC -S -o tc.s hello.cb
+    assert_compile_success --pch-dir tc.pch -S -o tc1.s hello.cb &&
+    assert_status 0 ls tc.pch/*.hbc
+    assert_compile_success --pch-dir tc.pch -S -o tc1.s hello.cb &&
+    assert_equal "cat tc.s" "cat tc1.s"
+    # Edited import files are parsed again.
+    mkdir tc.inc
+    echo "extern int tc_f(int x);" >tc.inc/tclib.hb
+    printf 'import tclib;\nint\nmain(int argc, char **argv)\n{\n    return tc_f(argc);\n}\n' >tc.cb
+    assert_compile_success --pch-dir tc.pch -I tc.inc -S -o tc.s tc.cb
+    echo "extern int tc_g(int x);" >tc.inc/tclib.hb
+    assert_compile_error --pch-dir tc.pch -I tc.inc -S -o tc.s tc.cb
+    rm -rf tc.pch tc.inc tc.cb tc.s tc1.s
+}
+
+test_46_stream() {
+    for f in slvar.cb slcomm.cb sgvar.cb string.cb funcall5.cb switch2.cb
+    do
+        assert_equal "$CBC -S -o - $f" "$CBC --stream -S -o - $f"
+        assert_equal "$CBC -O -fPIC -S -o - $f" \
+                     "$CBC -O -fPIC --stream -S -o - $f"
+    done
+    assert_compile_success --stream src1.cb src2.cb -o src &&
+    assert_status 4 ./src
+    # No output is left on errors.
+    rm -f tc.s
+    assert_compile_error --stream -S -o tc.s break-semcheck.cb
+    assert_status 1 test -e tc.s
+    # Type errors of all functions are reported.
+    assert_equal "$CBC -S -o - stream-semcheck.cb" \
+                 "$CBC --stream -S -o - stream-semcheck.cb"
+}
+
+test_47_codegen_cache() {
+    rm -rf tc.fnc
+    for f in slvar.cb sgvar.cb string.cb funcall5.cb switch.cb switch2.cb
+    do
+        for opt in "" "-O" "-O -fPIC"
+        do
+            assert_equal "$CBC $opt -S -o - $f" \
+                         "$CBC $opt --codegen-cache tc.fnc -S -o - $f"
+            assert_equal "$CBC $opt -S -o - $f" \
+                         "$CBC $opt --codegen-cache tc.fnc -S -o - $f"
+        done
+    done
+    # Edited functions are compiled again.
+    cp funcall5.cb tc.cb
+    assert_compile_success -O --codegen-cache tc.fnc -S -o tc.s tc.cb
+    sed 's/1/2/g' funcall5.cb >tc.cb
+    assert_equal "$CBC -O -S -o - tc.cb" \
+                 "$CBC -O --codegen-cache tc.fnc -S -o - tc.cb"
+    rm -rf tc.fnc tc.cb tc.s
+}
+
+test_48_parallel_codegen() {
+    for f in slvar.cb string.cb funcptr.cb alloca2.cb setjmptest.cb switch2.cb
+    do
+        for opt in "" "-O" "-O -fPIC" "-fverbose-asm"
+        do
+            assert_equal "$CBC $opt -S -o - $f" \
+                         "$CBC $opt -j 4 -S -o - $f"
+        done
+    done
+    rm -rf tc.fnc
+    assert_equal "$CBC -O -S -o - alloca2.cb" \
+                 "$CBC -O -j 4 --codegen-cache tc.fnc -S -o - alloca2.cb"
+    assert_equal "$CBC -O -S -o - alloca2.cb" \
+                 "$CBC -O -j 4 --codegen-cache tc.fnc -S -o - alloca2.cb"
+    rm -rf tc.fnc
+}
+
+test_49_parallel_semcheck() {
+    for f in typecheck-functions.cb deref-functions.cb
+    do
+        assert_compile_error -j 4 -S -o tc.s $f
+        assert_equal "$CBC -S -o tc.s $f" "$CBC -j 4 -S -o tc.s $f"
+    done
+    assert_equal "$CBC -S -o - alloca2.cb" "$CBC -j 4 -S -o - alloca2.cb"
+    rm -f tc.s
+}
+
+test_50_cfg() {
+    for f in cfg.cb switch2.cb funcptr.cb
+    do
+        for opt in "" "-O" "-O -fPIC"
+        do
+            assert_equal "$CBC $opt -S -o - $f" \
+                         "$CBC $opt --verify-cfg -S -o - $f"
+        done
+        assert_equal "$CBC -S -o - $f" "$CBC --verify-cfg --stream -S -o - $f"
+    done
+    $CBC --dump-cfg cfg.cb >tc.out &&
+    assert_status 0 grep -q "^function classify:" tc.out &&
+    assert_status 0 grep -q "^bb3: .* idom: bb2 ; loop: bb3 depth 2" tc.out &&
+    assert_status 0 grep -q "^bb8: .* unreachable" tc.out
+    $CBC --dump-cfg=dot cfg.cb >tc.out &&
+    assert_eq 5 `grep -c "^digraph" tc.out` &&
+    assert_status 0 grep -q 'bb1 -> bb10 \[label="F"\];' tc.out
+    assert_error $CBC --dump-cfg=svg cfg.cb
+    rm -f tc.out
+}
+
+test_51_ssa() {
+    assert_out "12;21;1;2;7;33;98;-2;7;10;20;42" ./ssa
+    for f in ssa.cb cfg.cb switch2.cb funcptr.cb
+    do
+        for opt in "-O2" "-O2 -fPIC"
+        do
+            assert_equal "$CBC $opt -S -o - $f" \
+                         "$CBC $opt --verify-cfg -S -o - $f"
+        done
+    done
+    $CBC -O2 --dump-cfg ssa.cb >tc.out &&
+    assert_status 0 grep -q "^function swap_loop:" tc.out &&
+    assert_status 0 grep -q " = phi(" tc.out &&
+    assert_status 0 grep -q "return (7 + z\.2)" tc.out &&
+    assert_status 1 grep -q "(x \* 2)" tc.out
+    rm -f tc.out
+}
+
+test_52_regalloc() {
+    assert_out "21;912;5268;48;358;4231;-8134" ./regalloc
+    $CBC -O -S -o tc.s regalloc.cb &&
+    assert_status 1 grep -q "%esi" tc.s
+    $CBC -O2 -S -o tc.s regalloc.cb &&
+    assert_status 0 grep -q "addl	%edi, %esi" tc.s &&
+    sed -n '/^pressure:/,/\.size/p' tc.s >tc.out &&
+    assert_status 0 grep -q "%ebx" tc.out
+    # %ebx is the GOT base register of PIC.
+    $CBC -O2 -fPIC -S -o tc.s regalloc.cb &&
+    sed -n '/^pressure:/,/\.size/p' tc.s >tc.out &&
+    assert_status 1 grep -q "%ebx" tc.out
+    rm -f tc.s tc.out
+}
+
 ###
 ### Local Assertions
 ###
@@ -355,6 +611,8 @@ assert_out() {
         assert_compile_success -fPIC "$1.cb" &&
         assert_stdout "$msg" "$@" &&
         assert_compile_success -O -fPIC "$1.cb" &&
+        assert_stdout "$msg" "$@" &&
+        assert_compile_success -O2 "$1.cb" &&
         assert_stdout "$msg" "$@"
     fi
 }
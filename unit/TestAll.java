@@ -8,7 +8,8 @@ import org.junit.runners.Suite.*;
     TestCursor.class,
     TestTextUtils.class,
     TestAsmUtils.class,
-    TestListUtils.class
+    TestListUtils.class,
+    TestErrorHandler.class
 })
 public class TestAll {
     static public void main(String[] args) {
@@ -0,0 +1,38 @@
+import net.loveruby.cflat.utils.ErrorHandler;
+import java.io.*;
+import org.junit.*;
+import org.junit.runner.*;
+import static org.junit.Assert.*;
+
+public class TestErrorHandler {
+    static public void main(String[] args) {
+        JUnitCore.main(TestErrorHandler.class.getName());
+    }
+
+    @Test public void test_buffer() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ErrorHandler h = new ErrorHandler("cbc", out);
+        ErrorHandler b1 = h.buffer();
+        ErrorHandler b2 = h.buffer();
+        b2.warn("w2");
+        b1.error("e1");
+        assertEquals("buffered", "", out.toString());
+        assertEquals("buffered error", false, h.errorOccured());
+        b1.flush();
+        b2.flush();
+        assertEquals("flush order",
+                     "cbc: error: e1\ncbc: warning: w2\n", out.toString());
+        assertEquals("flushed error", true, h.errorOccured());
+    }
+
+    @Test public void test_flush_twice() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ErrorHandler h = new ErrorHandler("cbc", out);
+        ErrorHandler b = h.buffer();
+        b.warn("w");
+        b.flush();
+        b.flush();
+        assertEquals("flush twice", "cbc: warning: w\n", out.toString());
+        assertEquals("no error", false, h.errorOccured());
+    }
+}